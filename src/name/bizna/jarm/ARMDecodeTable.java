@@ -0,0 +1,83 @@
+package name.bizna.jarm;
+
+/**
+ * Every conditional ARM instruction's encoding class can be told from bits 27-20 and 7-4 alone, so instead of walking
+ * the decode tree in chapter A5 for every instruction we walk it once per combination of those bits, when the class is
+ * loaded, and look the answer up afterward.
+ * The classes correspond to the tables in A5-196 through A5-215. Anything finer than that is still decoded by the
+ * class's handler in {@link CPU}.
+ */
+final class ARMDecodeTable {
+	static final byte UNDEFINED = 0;
+	/* Data-processing and miscellaneous instructions (A5-196) */
+	static final byte DP_REGISTER = 1;
+	static final byte DP_REGISTER_SHIFTED_REGISTER = 2;
+	static final byte MISCELLANEOUS = 3;
+	static final byte HALFWORD_MULTIPLY = 4;
+	static final byte MULTIPLY_AND_SYNCHRONIZATION = 5;
+	static final byte EXTRA_LOAD_STORE = 6;
+	static final byte MOVW = 7;
+	static final byte MOVT = 8;
+	static final byte MSR_IMMEDIATE_AND_HINTS = 9;
+	static final byte DP_IMMEDIATE = 10;
+	/* Load/store word and unsigned byte (A5-208), Media instructions (A5-209) */
+	static final byte LOAD_STORE_IMMEDIATE = 11;
+	static final byte LOAD_STORE_REGISTER = 12;
+	static final byte MEDIA = 13;
+	/* Branch, branch with link, and block data transfer (A5-214) */
+	static final byte B = 14;
+	static final byte BL = 15;
+	static final byte BLOCK_DATA_TRANSFER = 16;
+	/* Coprocessor instructions, and Supervisor Call (A5-215) */
+	static final byte COPROCESSOR_AND_SVC = 17;
+	private static final byte[] table = new byte[4096];
+	static {
+		for(int n = 0; n < 4096; ++n) table[n] = classify(((n & 0xFF0) << 16) | ((n & 15) << 4));
+	}
+	/** Returns the encoding class of a conditional instruction (cond != 15) */
+	static byte lookup(int iword) {
+		return table[((iword >> 16) & 0xFF0) | ((iword >> 4) & 15)];
+	}
+	private static byte classify(int iword) {
+		switch((iword >> 25) & 7) {
+		case 0: {
+			/* (op=0) Data-processing and miscellaneous instructions (A5-196) */
+			/* TODO: page 0 decoding is wrong */
+			int op1 = (iword >> 20) & 31;
+			int op2 = (iword >> 4) & 15;
+			if((op1 & 25) != 16) {
+				if((op2 & 1) == 0) return DP_REGISTER;
+				else if((op2 & 8) == 0) return DP_REGISTER_SHIFTED_REGISTER;
+			}
+			else {
+				if((op2 & 8) == 0) return MISCELLANEOUS;
+				else if((op2 & 1) == 0) return HALFWORD_MULTIPLY;
+			}
+			/* still here... ugh, this is the most confusing part of the instruction space */
+			if(op2 == 9) return MULTIPLY_AND_SYNCHRONIZATION;
+			else if(op2 > 9) return EXTRA_LOAD_STORE;
+			else return UNDEFINED;
+		}
+		case 1:
+			/* (op=1) Data-processing and miscellaneous instructions (A5-196) */
+			switch((iword >> 20) & 31) {
+			case 16: return MOVW;
+			case 20: return MOVT;
+			case 18: case 22: return MSR_IMMEDIATE_AND_HINTS;
+			default: return DP_IMMEDIATE;
+			}
+		case 2:
+			return LOAD_STORE_IMMEDIATE;
+		case 3:
+			if((iword & 16) != 0) return MEDIA;
+			else return LOAD_STORE_REGISTER;
+		case 4:
+			return BLOCK_DATA_TRANSFER;
+		case 5:
+			if((iword & (1<<24)) != 0) return BL;
+			else return B;
+		default:
+			return COPROCESSOR_AND_SVC;
+		}
+	}
+}
@@ -7,13 +7,22 @@ public final class BusErrorException extends Exception {
 	private final String reason;
 	private final long address;
 	private final AccessType accessType;
+	private final int faultStatus;
 
 	public BusErrorException(String reason, long address, AccessType accessType) {
+		this(reason, address, accessType, 0x08);
+	}
+
+	/**
+	 * @param faultStatus The value a Data Abort should put in DFSR (B4-1561); 0x08 for a synchronous external abort
+	 */
+	public BusErrorException(String reason, long address, AccessType accessType, int faultStatus) {
 		super(String.format("Failed to %s 0x%8x (%s)", accessType.name(), address, reason));
 
 		this.reason = reason;
 		this.address = address;
 		this.accessType = accessType;
+		this.faultStatus = faultStatus;
 	}
 
 	public String getReason() {
@@ -28,6 +37,15 @@ public final class BusErrorException extends Exception {
 		return accessType;
 	}
 
+	/** Returns true if this came from address translation rather than from the memory system itself. */
+	public boolean isTranslationFault() {
+		return faultStatus != 0x08;
+	}
+
+	public int getFaultStatus() {
+		return faultStatus;
+	}
+
 	public static enum AccessType {
 		READ, WRITE, UNKNOWN;
 	}
@@ -1,10 +1,17 @@
 package name.bizna.jarm;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public final class ByteArrayRegion extends ByteBackedRegion {
 
 	protected boolean allowWrites;
-	protected boolean dirty;
 	protected byte[] backing;
+	/* marked after every store, so whoever keeps a copy of the contents elsewhere can move only what changed */
+	protected final DirtyPageMap dirtyPages;
+	/* views of backing for whole halfword/word accesses, which the JIT turns into single loads and stores */
+	private final ByteBuffer littleView, bigView;
 
 	/* Because of JVM limitations, size cannot be larger than 1GB. */
 	public ByteArrayRegion(long size, int accessLatency, boolean wide) {
@@ -12,6 +19,9 @@ public final class ByteArrayRegion extends ByteBackedRegion {
 		assert (size <= (1 * 1024 * 1024 * 1024));
 		this.allowWrites = true;
 		this.backing = new byte[(int) size];
+		this.dirtyPages = new DirtyPageMap(size);
+		this.littleView = ByteBuffer.wrap(backing).order(ByteOrder.LITTLE_ENDIAN);
+		this.bigView = ByteBuffer.wrap(backing).order(ByteOrder.BIG_ENDIAN);
 	}
 
 	public ByteArrayRegion(long size, int accessLatency) {
@@ -26,6 +36,9 @@ public final class ByteArrayRegion extends ByteBackedRegion {
 		super(accessLatency, wide);
 		this.allowWrites = allowWrites;
 		this.backing = backing;
+		this.dirtyPages = new DirtyPageMap(backing.length);
+		this.littleView = ByteBuffer.wrap(backing).order(ByteOrder.LITTLE_ENDIAN);
+		this.bigView = ByteBuffer.wrap(backing).order(ByteOrder.BIG_ENDIAN);
 	}
 
 	public ByteArrayRegion(byte[] backing, boolean allowWrites, int accessLatency) {
@@ -40,12 +53,41 @@ public final class ByteArrayRegion extends ByteBackedRegion {
 		this(backing, true, 1, true);
 	}
 
+	/* whether any page is marked; to find out which ones, and clear them as they're read, use getDirtyPages().take() */
 	public boolean isDirty() {
-		return dirty;
+		return !dirtyPages.isClean();
 	}
 
 	public void setDirty(boolean dirty) {
-		this.dirty = dirty;
+		if (dirty) dirtyPages.markAll();
+		else dirtyPages.clear();
+	}
+
+	public DirtyPageMap getDirtyPages() {
+		return dirtyPages;
+	}
+
+	/* read-only memory is whatever it was built with, so only RAM is saved */
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		if (allowWrites) out.writePages(backing, 0, backing.length);
+	}
+
+	@Override
+	public void loadState(SnapshotInputStream in) throws IOException {
+		if (!allowWrites) return;
+		in.readPages(backing, 0, backing.length);
+		dirtyPages.markAll();
+	}
+
+	/* Read-only regions are shared as they are. RAM is not copy-on-write: it's copied whole, right away, since
+	 * getBackingArray hands out the array itself for callers to write to. Use PagedMemoryRegion to fork cheaply. */
+	@Override
+	public ByteArrayRegion fork() {
+		if (!allowWrites) return this;
+		ByteArrayRegion ret = new ByteArrayRegion(backing.clone(), true, accessLatencyHalf, accessLatencyWord == accessLatencyHalf);
+		ret.dirtyPages.set(dirtyPages);
+		return ret;
 	}
 
 	@Override
@@ -61,13 +103,97 @@ public final class ByteArrayRegion extends ByteBackedRegion {
 	@Override
 	public void backingWriteByte(int address, byte b) throws BusErrorException {
 		if (allowWrites) {
-			dirty = true;
 			backing[address] = b;
+			dirtyPages.mark(address, 1);
 		} else {
 			throw new BusErrorException("ByteArrayRegion is readonly", address, BusErrorException.AccessType.WRITE);
 		}
 	}
 
+	private void checkWritable(long address) throws BusErrorException {
+		if (!allowWrites) {
+			throw new BusErrorException("ByteArrayRegion is readonly", address, BusErrorException.AccessType.WRITE);
+		}
+	}
+
+	@Override
+	public short readShortLE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyHalf);
+		return littleView.getShort((int) address);
+	}
+
+	@Override
+	public short readShortBE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyHalf);
+		return bigView.getShort((int) address);
+	}
+
+	@Override
+	public void writeShortLE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException {
+		mem.addToBill(accessLatencyHalf);
+		checkWritable(address);
+		littleView.putShort((int) address, v);
+		dirtyPages.mark(address, 2);
+	}
+
+	@Override
+	public void writeShortBE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException {
+		mem.addToBill(accessLatencyHalf);
+		checkWritable(address);
+		bigView.putShort((int) address, v);
+		dirtyPages.mark(address, 2);
+	}
+
+	@Override
+	public int readIntLE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyWord);
+		return littleView.getInt((int) address);
+	}
+
+	@Override
+	public int readIntBE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyWord);
+		return bigView.getInt((int) address);
+	}
+
+	@Override
+	public void writeIntLE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException {
+		mem.addToBill(accessLatencyWord);
+		checkWritable(address);
+		littleView.putInt((int) address, v);
+		dirtyPages.mark(address, 4);
+	}
+
+	@Override
+	public void writeIntBE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException {
+		mem.addToBill(accessLatencyWord);
+		checkWritable(address);
+		bigView.putInt((int) address, v);
+		dirtyPages.mark(address, 4);
+	}
+
+	@Override
+	public void readBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) {
+		if (length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		System.arraycopy(backing, (int) address, buf, offset, length);
+	}
+
+	@Override
+	public void writeBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) throws BusErrorException {
+		if (length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		checkWritable(address);
+		System.arraycopy(buf, offset, backing, (int) address, length);
+		dirtyPages.mark(address, length);
+	}
+
+	@Override
+	public boolean isInstructionCacheable() {
+		return true;
+	}
+
+	/* if you modify this array behind the CPU's back, call PhysicalMemorySpace.invalidateInstructionCache() */
 	public byte[] getBackingArray() {
 		return backing;
 	}
@@ -1,6 +1,10 @@
 package name.bizna.jarm;
 
 
+/*
+ * Builds halfword and word accesses out of single byte accesses. Subclasses with a faster way to do wider accesses
+ * may override them, but must bill the same latencies.
+ */
 public abstract class ByteBackedRegion extends MemoryRegion {
 	public abstract byte backingReadByte(int address) throws BusErrorException, EscapeRetryException;
 	public abstract void backingWriteByte(int address, byte v) throws BusErrorException, EscapeRetryException;
@@ -17,43 +21,43 @@ public abstract class ByteBackedRegion extends MemoryRegion {
 		this.accessLatencyWord = wide ? accessLatency : accessLatency * 2;
 	}
 	@Override
-	public final byte readByte(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+	public byte readByte(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyHalf);
 		return backingReadByte((int)address);
 	}
 	@Override
-	public final void writeByte(PhysicalMemorySpace mem, long address, byte v) throws BusErrorException, EscapeRetryException {
+	public void writeByte(PhysicalMemorySpace mem, long address, byte v) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyHalf);
 		backingWriteByte((int)address, v);
 	}
 	@Override
-	public final short readShortLE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+	public short readShortLE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyHalf);
 		byte first = backingReadByte((int)address);
 		byte second = backingReadByte((int)address+1);
 		return (short)((second << 8) | (first & 0xFF));
 	}
 	@Override
-	public final short readShortBE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+	public short readShortBE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyHalf);
 		byte first = backingReadByte((int)address);
 		byte second = backingReadByte((int)address+1);
 		return (short)((first << 8) | (second & 0xFF));
 	}
 	@Override
-	public final void writeShortLE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException, EscapeRetryException {
+	public void writeShortLE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyHalf);
 		backingWriteByte((int)address, (byte)(v&255));
 		backingWriteByte((int)address+1, (byte)(v>>8));
 	}
 	@Override
-	public final void writeShortBE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException, EscapeRetryException {
+	public void writeShortBE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyHalf);
 		backingWriteByte((int)address, (byte)(v>>8));
 		backingWriteByte((int)address+1, (byte)(v&255));
 	}
 	@Override
-	public final int readIntLE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+	public int readIntLE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyWord);
 		byte first = backingReadByte((int)address);
 		byte second = backingReadByte((int)address+1);
@@ -65,7 +69,7 @@ public abstract class ByteBackedRegion extends MemoryRegion {
 				| (first & 0xFF);
 	}
 	@Override
-	public final int readIntBE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+	public int readIntBE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyWord);
 		byte first = backingReadByte((int)address);
 		byte second = backingReadByte((int)address+1);
@@ -77,7 +81,7 @@ public abstract class ByteBackedRegion extends MemoryRegion {
 				| (fourth & 0xFF);
 	}
 	@Override
-	public final void writeIntLE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException, EscapeRetryException {
+	public void writeIntLE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyWord);
 		backingWriteByte((int)address, (byte)v);
 		backingWriteByte((int)address+1, (byte)(v>>8));
@@ -85,11 +89,27 @@ public abstract class ByteBackedRegion extends MemoryRegion {
 		backingWriteByte((int)address+3, (byte)(v>>24));
 	}
 	@Override
-	public final void writeIntBE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException, EscapeRetryException {
+	public void writeIntBE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException, EscapeRetryException {
 		mem.addToBill(accessLatencyWord);
 		backingWriteByte((int)address, (byte)(v>>24));
 		backingWriteByte((int)address+1, (byte)(v>>16));
 		backingWriteByte((int)address+2, (byte)(v>>8));
 		backingWriteByte((int)address+3, (byte)v);
 	}
+	/* What a bulk copy of the given length costs: a word access for every four bytes, a byte access for the rest */
+	protected final int bulkLatency(int length) {
+		return (length >>> 2) * accessLatencyWord + (length & 3) * accessLatencyHalf;
+	}
+	@Override
+	public void readBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		if(length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		for(int n = 0; n < length; ++n) buf[offset+n] = backingReadByte((int)address+n);
+	}
+	@Override
+	public void writeBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		if(length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		for(int n = 0; n < length; ++n) backingWriteByte((int)address+n, buf[offset+n]);
+	}
 }
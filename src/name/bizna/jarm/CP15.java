@@ -1,5 +1,7 @@
 package name.bizna.jarm;
 
+import java.io.IOException;
+
 /* VMSA system control registers (B3-1444, B3-1469, B3-1491) */
 class CP15 extends SaneCoprocessor {
 	/** CPUID REGISTERS **/
@@ -14,12 +16,12 @@ class CP15 extends SaneCoprocessor {
 	/* Cache Type Register (B4-1556) */
 	/* 29-31: 0b100, ARMv7 format */
 	/* 24-27: CWG / Cache Write-back Granule. 0b0000 -> no info provided. */
-	/* 20-23: ERG / Exclusives Reservation Granule. TODO: Pick a value for this */
+	/* 20-23: ERG / Exclusives Reservation Granule. 3 -> 8 words (see ExclusiveMonitor) */
 	/* 16-19: DminLine. 0. */
 	/* 14-15: L1Ip. Break the rules, RAZ. */
 	/* 4-13,28: RAZ. */
 	/* 0-3: IminLine. 0. */
-	static final int CTR = 0x80000000;
+	static final int CTR = 0x80300000;
 	/* TCM Type Register (B4-1716) */
 	/* 29-31: 0b100, ARMv7 format */
 	/* 0-28: Implementation defined */
@@ -28,8 +30,15 @@ class CP15 extends SaneCoprocessor {
 	/* 1-31: Implementation defined */
 	/* 0: nU; 0 -> unified TLB */
 	static final int TLBTR = 0;
-	/* Multiprocessor Affinity Register (RAZ in this implementation) */
-	static final int MPIDR = 0;
+	/* Multiprocessor Affinity Register (B4-1644) */
+	/* RAZ for a lone processor; for a core made by CPU(Debugger, PhysicalMemorySpace, int): */
+	/* 31: 1 (Multiprocessing Extensions format) */
+	/* 30: U (0 -> part of a multiprocessor system) */
+	/* 24-29: Reserved */
+	/* 0-23: Aff2, Aff1, Aff0 (given by whoever made the core) */
+	static final int MPIDR_MULTIPROCESSING = 0x80000000;
+	static final int MPIDR_AFFINITY_MASK = 0x00FFFFFF;
+	int MPIDR = 0;
 	/* Revision ID Register (B4-1703) */
 	/* TODO: Allow the user to provide these bits */
 	static final int REVIDR = 0;
@@ -42,22 +51,22 @@ class CP15 extends SaneCoprocessor {
 	static final int ID_PFR0 = 0x00000101;
 	/* Processor Feature Register 1 (B4-1635) */
 	/* 20-31: Reserved */
-	/* 16-19: Generic Timer support (0 -> none) */
+	/* 16-19: Generic Timer support (1 -> supported, see GenericTimer) */
 	/* 12-15: Virtualization Extensions support (0 -> none) */
 	/* 8-11: M profile programmer's model support (0 -> none) */
 	/* 4-7: Security Extensions support (0 -> none) */
 	/* 0-3: Standard programmer's model support (1 -> supported) */
-	static final int ID_PFR1 = 1;
+	static final int ID_PFR1 = 0x00010001;
 	/* Debug Feature Register 0 (B4-1605) */
 	/* 28-31: Reserved */
-	/* 24-27: Performance Monitors Extension (0 -> not supported) */
+	/* 24-27: Performance Monitors Extension (2 -> PMUv2, see PerformanceMonitors) */
 	/* 20-23: M debug model (0 -> not supported) */
 	/* 16-19: Memory-mapped trace model (0 -> not supported) */
 	/* 12-15: Coprocessor trace model (0 -> not supported) */
 	/* 8-11: A/R debug model (0 -> not supported) */
 	/* 4-7: Coprocessor Secure debug model (0 -> not supported) */
 	/* 0-3: Coprocessor debug model (0 -> not supported) */
-	static final int ID_DFR0 = 0;
+	static final int ID_DFR0 = 0x02000000;
 	/* Auxiliary Feature Register 0 (B4-1604, RAZ in this implementation) */
 	static final int ID_AFR0 = 0;
 	/* Memory Model Feature Register 0 (B4-1621) */
@@ -68,10 +77,10 @@ class CP15 extends SaneCoprocessor {
 	/* 12-15: Shareability levels (0?) */
 	/* 8-11: Outermost shareability (15?) */
 	/* 4-7: PMSA support (0) */
-	/* 0-3: VMSA support (4 -> VMSAv7 + PXN bit) TODO: Long descriptor translation table? */
+	/* 0-3: VMSA support (4 -> VMSAv7 + PXN bit, short descriptors only; see MMU) */
 	static final int ID_MMFR0 = 0xF0000F04;
 	/* Memory Model Feature Register 1 (B4-1623) */
-	/* 28-31: Branch predictor (0 -> no branch predictor) TODO: Change this when we add JIT */
+	/* 28-31: Branch predictor (0 -> no branch predictor; the JIT invalidates itself on writes, so software never has to) */
     /* 0-27: Required 0 in v7 */
 	static final int ID_MMFR1 = 0x00000000;
 	/* Memory Model Feature Register 2 (B4-1627) */
@@ -86,11 +95,11 @@ class CP15 extends SaneCoprocessor {
 	/* 24-27: Cached memory size (0 -> 4GB) */
 	/* 20-23: Coherent walk (1 -> coherent?) */
 	/* 16-19: UNK */
-	/* 12-15: Maintenance broadcast (0 -> irrelevant) */
+	/* 12-15: Maintenance broadcast (2 -> all, including TLB maintenance; see CP15 c7 and c8) */
 	/* 8-11: BP maintain operations (2 -> all) */
 	/* 4-7: Cache maintain set/way (1 -> all) */
 	/* 0-3: Cache maintain MVA (1 -> all) */
-	static final int ID_MMFR3 = 0x00100211;
+	static final int ID_MMFR3 = 0x00102211;
 	/* ISA Feature Register 0 (B4-1608) */
 	/* 28-31: Reserved */
 	/* 24-27: Divide instructions (2 -> both ARM and Thumb) */
@@ -132,7 +141,7 @@ class CP15 extends SaneCoprocessor {
 	/* 0-3: Saturate instructions (1 -> yes) */
 	static final int ID_ISAR3 = 0x01112131;
 	/* ISA Feature Register 4 (B4-1618) */
-	/* 28-31: SWP/SWPB memory locking (1 -> sort of) */
+	/* 28-31: SWP/SWPB memory locking (1 -> supported, see PhysicalMemorySpace.swap) */
 	/* 24-27: M profile forms of PSR modifications (1 -> yes) TODO: do we actually implement this? */
 	/* 20-23: Sync primitives fraction (0) */
 	/* 16-19: Barrier operations (1 -> yes) */
@@ -215,12 +224,50 @@ class CP15 extends SaneCoprocessor {
 	static final int SCTLR_BIT_M = 0;
 	static final int SCTLR_READ_OR = 0x00E50058;
 	static final int SCTLR_READ_MASK = 0x7A022427;
+	static final int SCTLR_WRITE_MASK = SCTLR_READ_MASK & ~(1<<SCTLR_BIT_NMFI);
 	int SCTLR = 0xDEADBEEF;
 	/* Auxiliary Control Register */
 	/* Implemented as a fully read/write register that is not affected by resets but is 0 on power-on */
 	int ACTLR = 0;
 	/* Coprocessor Access Control Register (TODO: implement) */
 	int CPACR = 0;
+	/** MEMORY PROTECTION AND CONTROL REGISTERS **/
+	/* Translation Table Base Registers (B4-1729, B4-1733) */
+	/* 31-(14-N): base address, 0-6: walk attributes (ignored, we have no caches to walk through) */
+	int TTBR0 = 0, TTBR1 = 0;
+	/* Translation Table Base Control Register (B4-1726) */
+	/* 31: EAE (RAZ, no Large Physical Address Extension) */
+	/* 0-2: N */
+	static final int TTBCR_WRITE_MASK = 7;
+	int TTBCR = 0;
+	/* Domain Access Control Register (B4-1558) */
+	int DACR = 0;
+	/** FAULT REGISTERS **/
+	/* Data/Instruction Fault Status Registers (B4-1561, B4-1601) */
+	/* 12: ExT (RAZ) */
+	/* 11: WnR (DFSR only) */
+	/* 10: FS[4] */
+	/* 4-7: Domain (DFSR only) */
+	/* 0-3: FS[3:0] */
+	static final int DFSR_BIT_WNR = 11;
+	static final int DFSR_WRITE_MASK = 0x00000CFF;
+	static final int IFSR_WRITE_MASK = 0x0000040F;
+	int DFSR = 0, IFSR = 0;
+	/* Data/Instruction Fault Address Registers (B4-1560, B4-1600) */
+	int DFAR = 0, IFAR = 0;
+	/* Physical Address Register, written by the address translation operations (B4-1693) */
+	int PAR = 0;
+	/** MEMORY REMAPPING REGISTERS **/
+	/* Primary Region Remap Register, Normal Memory Remap Register (B4-1697, B4-1683) */
+	/* Only used when SCTLR.TRE is set, and we have no caches for memory types to matter to; plain storage */
+	int PRRR = 0x00098AA4, NMRR = 0x44E048E0;
+	/** PROCESS, CONTEXT, AND THREAD ID REGISTERS **/
+	/* Context ID Register (B4-1558) */
+	/* 8-31: PROCID, 0-7: ASID */
+	int CONTEXTIDR = 0;
+	/* Software Thread ID Registers (B4-1723) */
+	/* URW: user read/write, URO: user read-only, PRW: privileged only */
+	int TPIDRURW = 0, TPIDRURO = 0, TPIDRPRW = 0;
 	/** IMPLEMENTATION **/
 	CP15(CPU cpu) { super(cpu); }
 	/* B3-1446: all CDP, LDC, and STC operations to ... CP15 [are undefined] */
@@ -315,21 +362,50 @@ class CP15 extends SaneCoprocessor {
 			break;
 		case 2:
 			/* Memory protection and control registers (B3-1473) */
+			if(opc1 == 0 && CRm == 0) {
+				switch(opc2) {
+				case 0: valid = true; readValue = TTBR0; break;
+				case 1: valid = true; readValue = TTBR1; break;
+				case 2: valid = true; readValue = TTBCR; break;
+				}
+			}
 			break;
 		case 3:
 			/* Memory protection and control registers, continued (B3-1473) */
+			if(opc1 == 0 && CRm == 0 && opc2 == 0) { valid = true; readValue = DACR; }
 			break;
 		case 4:
 			/* Not used */
 			break;
 		case 5:
 			/* Memory system fault registers (B3-1474) */
+			if(opc1 == 0) {
+				switch(CRm) {
+				case 0:
+					switch(opc2) {
+					case 0: valid = true; readValue = DFSR; break;
+					case 1: valid = true; readValue = IFSR; break;
+					}
+					break;
+				case 1:
+					/* ADFSR, AIFSR; RAZ */
+					if(opc2 <= 1) { valid = true; readValue = 0; }
+					break;
+				}
+			}
 			break;
 		case 6:
 			/* Memory system fault registers, continued (B3-1474) */
+			if(opc1 == 0 && CRm == 0) {
+				switch(opc2) {
+				case 0: valid = true; readValue = DFAR; break;
+				case 2: valid = true; readValue = IFAR; break;
+				}
+			}
 			break;
 		case 7:
 			/* Cache maintenance, address translation, and other functions (B3-1475) */
+			if(opc1 == 0 && CRm == 4 && opc2 == 0) { valid = true; readValue = PAR; }
 			break;
 		case 8:
 			/* TLB maintenance operations (B3-1476) */
@@ -337,9 +413,47 @@ class CP15 extends SaneCoprocessor {
 			break;
 		case 9:
 			/* Cache and TCM control and performance monitors (B3-1477) */
+			if(opc1 == 0) {
+				PerformanceMonitors pmu = cpu.pmu;
+				/* PMUSERENR.EN opens everything but the interrupt enables to PL0 */
+				privileged = !pmu.userEnabled();
+				switch(CRm) {
+				case 12:
+					valid = true;
+					switch(opc2) {
+					case 0: readValue = pmu.readPMCR(); break;
+					case 1: case 2: readValue = pmu.PMCNTENSET; break;
+					case 3: readValue = pmu.readPMOVSR(); break;
+					case 4: valid = false; break; /* PMSWINC is write-only */
+					case 5: readValue = pmu.PMSELR; break;
+					case 6: readValue = PerformanceMonitors.PMCEID0; break;
+					case 7: readValue = PerformanceMonitors.PMCEID1; break;
+					}
+					break;
+				case 13:
+					switch(opc2) {
+					case 0: valid = true; readValue = pmu.readPMCCNTR(); break;
+					case 1: valid = true; readValue = pmu.readPMXEVTYPER(); break;
+					case 2: valid = true; readValue = pmu.readPMXEVCNTR(); break;
+					}
+					break;
+				case 14:
+					switch(opc2) {
+					case 0: valid = true; privileged = false; readValue = pmu.PMUSERENR; break;
+					case 1: case 2: valid = true; privileged = true; readValue = pmu.PMINTENSET; break;
+					}
+					break;
+				}
+			}
 			break;
 		case 10:
 			/* Memory remapping and TLB control registers (B3-1478) */
+			if(opc1 == 0 && CRm == 2) {
+				switch(opc2) {
+				case 0: valid = true; readValue = PRRR; break;
+				case 1: valid = true; readValue = NMRR; break;
+				}
+			}
 			break;
 		case 11:
 			/* Reserved for TCM DMA registers (B3-1478) */
@@ -350,9 +464,42 @@ class CP15 extends SaneCoprocessor {
 			break;
 		case 13:
 			/* Process, context, and thread ID registers (B3-1479) */
+			if(opc1 == 0 && CRm == 0) {
+				switch(opc2) {
+				case 0: valid = true; readValue = 0; break; /* FCSEIDR, RAZ: no FCSE */
+				case 1: valid = true; readValue = CONTEXTIDR; break;
+				case 2: valid = true; privileged = false; readValue = TPIDRURW; break;
+				case 3: valid = true; privileged = false; readValue = TPIDRURO; break;
+				case 4: valid = true; readValue = TPIDRPRW; break;
+				}
+			}
 			break;
 		case 14:
 			/* Generic Timer Extension (B3-1480) */
+			if(opc1 == 0) {
+				GenericTimer timer = cpu.timer;
+				switch(CRm) {
+				case 0:
+					if(opc2 == 0) {
+						valid = true;
+						privileged = !timer.pl0Enabled(GenericTimer.CNTKCTL_BIT_PL0PCTEN) && !timer.pl0Enabled(GenericTimer.CNTKCTL_BIT_PL0VCTEN);
+						readValue = timer.CNTFRQ;
+					}
+					break;
+				case 1:
+					if(opc2 == 0) { valid = true; readValue = timer.CNTKCTL; }
+					break;
+				case 2: case 3: {
+					GenericTimer.Timer which = CRm == 2 ? timer.physical : timer.virtual;
+					privileged = !timer.pl0Enabled(CRm == 2 ? GenericTimer.CNTKCTL_BIT_PL0PTEN : GenericTimer.CNTKCTL_BIT_PL0VTEN);
+					switch(opc2) {
+					case 0: valid = true; readValue = which.readTVAL(); break;
+					case 1: valid = true; readValue = which.readCTL(); break;
+					}
+					break;
+				}
+				}
+			}
 			break;
 		case 15:
 			/* Implementation defined */
@@ -360,20 +507,286 @@ class CP15 extends SaneCoprocessor {
 		}
 		if(!valid) throw new UndefinedException();
 		if(privileged && !cpu.isPrivileged()) throw new UndefinedException();
-		cpu.writeGPR(Rt, readValue);
+		/* none of our registers can be moved to APSR_nzcv (A8-492) */
+		if(Rt == 15) throw new UndefinedException();
+		cpu.writeRegister(Rt, readValue);
 	}
 	@Override
 	public void moveCoreRegisterToCoprocessorRegister(boolean unconditional, int coproc, int opc1, int opc2, int CRn, int CRm, int Rt) throws BusErrorException, AlignmentException, UndefinedException {
-		/* TODO: implement write access */
-		throw new UndefinedException();
+		/* MCR from the PC is UNPREDICTABLE (A8-476) */
+		if(Rt == 15) throw new UndefinedException();
+		int value = cpu.readRegister(Rt);
+		/* the only things PL0 may write are TPIDRURW and the barrier operations */
+		boolean unprivilegedOK = opc1 == 0 && ((CRn == 13 && CRm == 0 && opc2 == 2)
+				|| (CRn == 7 && ((CRm == 5 && opc2 == 4) || (CRm == 10 && (opc2 == 4 || opc2 == 5))))
+				|| (CRn == 14 && ((CRm == 2 && cpu.timer.pl0Enabled(GenericTimer.CNTKCTL_BIT_PL0PTEN))
+						|| (CRm == 3 && cpu.timer.pl0Enabled(GenericTimer.CNTKCTL_BIT_PL0VTEN))))
+				|| (CRn == 9 && (CRm == 12 || CRm == 13) && cpu.pmu.userEnabled()));
+		if(!unprivilegedOK && !cpu.isPrivileged()) throw new UndefinedException();
+		if(opc1 != 0) throw new UndefinedException();
+		MMU mmu = cpu.mmu;
+		boolean valid = false;
+		switch(CRn) {
+		case 0:
+			/* CSSELR (opc1 == 2) is RAZ/WI, but we only get here with opc1 == 0; the ID registers are read-only */
+			break;
+		case 1:
+			/* System control registers (B3-1472) */
+			if(CRm == 0) {
+				switch(opc2) {
+				case 0:
+					valid = true;
+					/* NMFI is read-only */
+					SCTLR = (SCTLR & ~SCTLR_WRITE_MASK) | (value & SCTLR_WRITE_MASK);
+					mmu.controlChanged();
+					break;
+				case 1: valid = true; ACTLR = value; break;
+				case 2: valid = true; CPACR = value; break;
+				}
+			}
+			break;
+		case 2:
+			/* Memory protection and control registers (B3-1473) */
+			if(CRm == 0) {
+				switch(opc2) {
+				case 0: valid = true; TTBR0 = value; break;
+				case 1: valid = true; TTBR1 = value; break;
+				case 2: valid = true; TTBCR = value & TTBCR_WRITE_MASK; break;
+				}
+			}
+			break;
+		case 3:
+			/* Memory protection and control registers, continued (B3-1473) */
+			if(CRm == 0 && opc2 == 0) { valid = true; DACR = value; }
+			break;
+		case 5:
+			/* Memory system fault registers (B3-1474) */
+			switch(CRm) {
+			case 0:
+				switch(opc2) {
+				case 0: valid = true; DFSR = value & DFSR_WRITE_MASK; break;
+				case 1: valid = true; IFSR = value & IFSR_WRITE_MASK; break;
+				}
+				break;
+			case 1:
+				/* ADFSR, AIFSR; WI */
+				if(opc2 <= 1) valid = true;
+				break;
+			}
+			break;
+		case 6:
+			/* Memory system fault registers, continued (B3-1474) */
+			if(CRm == 0) {
+				switch(opc2) {
+				case 0: valid = true; DFAR = value; break;
+				case 2: valid = true; IFAR = value; break;
+				}
+			}
+			break;
+		case 7:
+			/* Cache maintenance, address translation, and other functions (B3-1475) */
+			switch(CRm) {
+			case 4:
+				if(opc2 == 0) { valid = true; PAR = value; }
+				break;
+			case 8:
+				/* ATS1CPR, ATS1CPW, ATS1CUR, ATS1CUW */
+				if(opc2 <= 3) {
+					valid = true;
+					try { PAR = mmu.translateForPAR(value, (opc2 & 1) != 0, opc2 < 2); }
+					catch(EscapeRetryException e) { PAR = 1 | (MMU.FS_EXTERNAL << 1); }
+				}
+				break;
+			case 1: case 5:
+				switch(opc2) {
+				case 0:
+					/* ICIALLUIS, ICIALLU; every core's instruction cache, since they share one coherence domain */
+					valid = true;
+					cpu.getMemorySpace().invalidateInstructionCache();
+					break;
+				case 1:
+					/* ICIMVAU */
+					valid = CRm == 5;
+					if(valid) {
+						try {
+							long physical = mmu.enabled ? mmu.translate(value, MMU.ACCESS_READ, true) : value & 0xFFFFFFFFL;
+							cpu.getMemorySpace().invalidateInstructionCache(physical);
+						}
+						catch(BusErrorException e) { /* nothing there to be cached */ }
+						catch(EscapeRetryException e) { cpu.getMemorySpace().invalidateInstructionCache(); }
+					}
+					break;
+				case 4:
+					/* CP15ISB */
+					valid = CRm == 5;
+					break;
+				case 6: case 7:
+					/* BPIALLIS, BPIALL, BPIMVA; we have no branch predictor */
+					valid = true;
+					break;
+				}
+				break;
+			case 10:
+				/* CP15DSB, CP15DMB; the rest are data cache maintenance operations, as below */
+				if(opc2 == 4 || opc2 == 5) cpu.getMemorySpace().memoryBarrier();
+				valid = true;
+				break;
+			case 6: case 11: case 14:
+				/* We have no data caches; the data cache maintenance operations are no-ops */
+				valid = true;
+				break;
+			}
+			break;
+		case 8:
+			/* TLB maintenance operations (B3-1476) */
+			/* Unified, instruction, and data TLB operations all act on our one unified TLB. The Inner Shareable
+			 * versions (CRm == 3) also make every other core sharing our memory flush its whole TLB before its next
+			 * translation. */
+			switch(CRm) {
+			case 3:
+				valid = invalidateTLB(opc2, value);
+				if(valid) {
+					for(CPU other : cpu.getMemorySpace().getProcessors()) {
+						if(other != cpu) other.mmu.requestFlush();
+					}
+				}
+				break;
+			case 5: case 6: case 7:
+				valid = invalidateTLB(opc2, value);
+				break;
+			}
+			break;
+		case 9:
+			/* Cache and TCM control and performance monitors (B3-1477) */
+		{
+			PerformanceMonitors pmu = cpu.pmu;
+			switch(CRm) {
+			case 12:
+				valid = true;
+				switch(opc2) {
+				case 0: pmu.writePMCR(value); break;
+				case 1: pmu.writePMCNTENSET(value); break;
+				case 2: pmu.writePMCNTENCLR(value); break;
+				case 3: pmu.writePMOVSR(value); break;
+				case 4: pmu.writePMSWINC(value); break;
+				case 5: pmu.PMSELR = value & 31; break;
+				default: valid = false; break; /* PMCEID0/1 are read-only */
+				}
+				break;
+			case 13:
+				switch(opc2) {
+				case 0: valid = true; pmu.writePMCCNTR(value); break;
+				case 1: valid = true; pmu.writePMXEVTYPER(value); break;
+				case 2: valid = true; pmu.writePMXEVCNTR(value); break;
+				}
+				break;
+			case 14:
+				switch(opc2) {
+				case 0: valid = true; pmu.PMUSERENR = value & (1<<PerformanceMonitors.PMUSERENR_BIT_EN); break;
+				case 1: valid = true; pmu.writePMINTENSET(value); break;
+				case 2: valid = true; pmu.writePMINTENCLR(value); break;
+				}
+				break;
+			}
+			break;
+		}
+		case 10:
+			/* Memory remapping and TLB control registers (B3-1478) */
+			if(CRm == 2) {
+				switch(opc2) {
+				case 0: valid = true; PRRR = value; break;
+				case 1: valid = true; NMRR = value; break;
+				}
+			}
+			break;
+		case 13:
+			/* Process, context, and thread ID registers (B3-1479) */
+			if(CRm == 0) {
+				switch(opc2) {
+				case 0: valid = true; break; /* FCSEIDR, WI: no FCSE */
+				case 1: valid = true; CONTEXTIDR = value; break;
+				case 2: valid = true; TPIDRURW = value; break;
+				case 3: valid = true; TPIDRURO = value; break;
+				case 4: valid = true; TPIDRPRW = value; break;
+				}
+			}
+			break;
+		case 14:
+			/* Generic Timer Extension (B3-1480) */
+		{
+			GenericTimer timer = cpu.timer;
+			switch(CRm) {
+			case 0:
+				if(opc2 == 0) { valid = true; timer.CNTFRQ = value; }
+				break;
+			case 1:
+				if(opc2 == 0) { valid = true; timer.writeCNTKCTL(value); }
+				break;
+			case 2: case 3: {
+				GenericTimer.Timer which = CRm == 2 ? timer.physical : timer.virtual;
+				switch(opc2) {
+				case 0: valid = true; which.writeTVAL(value); break;
+				case 1: valid = true; which.writeCTL(value); break;
+				}
+				break;
+			}
+			}
+			break;
+		}
+		}
+		if(!valid) throw new UndefinedException();
 	}
+	/* TLBIALL, TLBIMVA, TLBIASID, TLBIMVAA by opc2; returns false for anything else */
+	private boolean invalidateTLB(int opc2, int value) {
+		MMU mmu = cpu.mmu;
+		switch(opc2) {
+		case 0: mmu.invalidateAll(); return true;
+		case 1: mmu.invalidateByAddress(value & 0xFFFFF000, value & 0xFF, false); return true;
+		case 2: mmu.invalidateByASID(value & 0xFF); return true;
+		case 3: mmu.invalidateByAddress(value & 0xFFFFF000, 0, true); return true;
+		default: return false;
+		}
+	}
+	/* The only 64-bit registers are the Generic Timer's (B3-1480): CNTPCT, CNTVCT, CNTP_CVAL, CNTV_CVAL by opc1.
+	 * CNTVOFF (opc1 4) only exists with the Virtualization Extensions. */
 	@Override
 	public void moveCoreRegistersToCoprocessorRegister(boolean unconditional, int coproc, int opc1, int CRm, int Rt, int Rt2) throws BusErrorException, AlignmentException, UndefinedException {
-		throw new UndefinedException();
+		if(CRm != 14) throw new UndefinedException();
+		/* UNPREDICTABLE (A8-478) */
+		if(Rt == 15 || Rt2 == 15) throw new UndefinedException();
+		GenericTimer timer = cpu.timer;
+		long value = (cpu.readRegister(Rt) & 0xFFFFFFFFL) | ((long)cpu.readRegister(Rt2) << 32);
+		switch(opc1) {
+		case 2:
+			if(!cpu.isPrivileged() && !timer.pl0Enabled(GenericTimer.CNTKCTL_BIT_PL0PTEN)) throw new UndefinedException();
+			timer.physical.writeCVAL(value);
+			break;
+		case 3:
+			if(!cpu.isPrivileged() && !timer.pl0Enabled(GenericTimer.CNTKCTL_BIT_PL0VTEN)) throw new UndefinedException();
+			timer.virtual.writeCVAL(value);
+			break;
+		default:
+			throw new UndefinedException();
+		}
 	}
 	@Override
 	public void moveCoprocessorRegisterToCoreRegisters(boolean unconditional, int coproc, int opc1, int CRm, int Rt, int Rt2) throws BusErrorException, AlignmentException, UndefinedException {
-		throw new UndefinedException();
+		if(CRm != 14) throw new UndefinedException();
+		/* UNPREDICTABLE (A8-494) */
+		if(Rt == 15 || Rt2 == 15 || Rt == Rt2) throw new UndefinedException();
+		GenericTimer timer = cpu.timer;
+		int guard;
+		long value;
+		switch(opc1) {
+		case 0: guard = GenericTimer.CNTKCTL_BIT_PL0PCTEN; value = timer.readCount(); break;
+		case 1: guard = GenericTimer.CNTKCTL_BIT_PL0VCTEN; value = timer.readCount(); break;
+		case 2: guard = GenericTimer.CNTKCTL_BIT_PL0PTEN; value = timer.physical.readCVAL(); break;
+		case 3: guard = GenericTimer.CNTKCTL_BIT_PL0VTEN; value = timer.virtual.readCVAL(); break;
+		default: throw new UndefinedException();
+		}
+		if(!cpu.isPrivileged() && !timer.pl0Enabled(guard)) throw new UndefinedException();
+		cpu.writeRegister(Rt, (int)value);
+		cpu.writeRegister(Rt2, (int)(value >>> 32));
 	}
 	@Override
 	public void reset() {} /* never called; we have special reset logic */
@@ -414,5 +827,34 @@ class CP15 extends SaneCoprocessor {
 		if(thumb_exceptions) SCTLR |= 1<<SCTLR_BIT_TE;
 		if(big_endian) SCTLR |= 1<<SCTLR_BIT_EE;
 		if(high_vectors) SCTLR |= 1<<SCTLR_BIT_V;
+		/* TTBCR (B4-1726) */
+		TTBCR = 0;
+		cpu.mmu.controlChanged();
+		cpu.mmu.invalidateAll();
+		cpu.timer.reset();
+		cpu.pmu.reset();
+	}
+	/* MPIDR describes how the machine was built, so it isn't saved */
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		out.writeInt(SCTLR); out.writeInt(ACTLR); out.writeInt(CPACR); out.writeInt(CSSELR);
+		out.writeInt(TTBR0); out.writeInt(TTBR1); out.writeInt(TTBCR); out.writeInt(DACR);
+		out.writeInt(DFSR); out.writeInt(IFSR); out.writeInt(DFAR); out.writeInt(IFAR); out.writeInt(PAR);
+		out.writeInt(PRRR); out.writeInt(NMRR); out.writeInt(CONTEXTIDR);
+		out.writeInt(TPIDRURW); out.writeInt(TPIDRURO); out.writeInt(TPIDRPRW);
+		cpu.timer.saveState(out);
+		cpu.pmu.saveState(out);
+	}
+	@Override
+	public void loadState(SnapshotInputStream in) throws IOException {
+		SCTLR = in.readInt(); ACTLR = in.readInt(); CPACR = in.readInt(); CSSELR = in.readInt();
+		TTBR0 = in.readInt(); TTBR1 = in.readInt(); TTBCR = in.readInt(); DACR = in.readInt();
+		DFSR = in.readInt(); IFSR = in.readInt(); DFAR = in.readInt(); IFAR = in.readInt(); PAR = in.readInt();
+		PRRR = in.readInt(); NMRR = in.readInt(); CONTEXTIDR = in.readInt();
+		TPIDRURW = in.readInt(); TPIDRURO = in.readInt(); TPIDRPRW = in.readInt();
+		cpu.mmu.controlChanged();
+		cpu.mmu.invalidateAll();
+		cpu.timer.loadState(in);
+		cpu.pmu.loadState(in);
 	}
 }
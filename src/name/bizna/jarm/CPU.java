@@ -1,8 +1,9 @@
 package name.bizna.jarm;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.HashMap;
-import java.util.TreeSet;
+import java.util.HashSet;
 
 public final class CPU {
 	/*** CONSTANTS ***/
@@ -88,6 +89,10 @@ public final class CPU {
 	private int pc;
 	
 	private final Debugger debugger;
+	/* What the debugger wants to hear about, asked again at the start of each slice after it calls hooksChanged. With
+	 * nothing to report, the core takes the same path as without a debugger, instruction cache and JIT included. */
+	private volatile boolean debuggerHooksStale;
+	private boolean hookInstructions, debuggerListening;
 	
 	public int readGPR(int r) {
 		if(mode == ProcessorMode.FIQ && r >= 8) return gprFIQ[r-8];
@@ -103,7 +108,13 @@ public final class CPU {
 	public void writeLR(int new_value) { lr[mode.lrIndex] = new_value; }
 	public int readPC() { return isThumb() ? pc + 2 : pc + 4; }
 	public int readCurrentPC() { return pc; }
+	/* Every PC write an instruction makes goes through one of interworkingBranch, branch or writePC, and is counted
+	 * there for the performance monitors (PC_WRITE_RETIRED). Exception entry and loadPC set the PC without counting. */
 	public void interworkingBranch(int new_pc) {
+		++pcWrites;
+		setPCInterworking(new_pc);
+	}
+	private void setPCInterworking(int new_pc) {
 		if((new_pc & 1) != 0) {
 			/* THUMB jump */
 			cpsr |= 1<<CPSR_BIT_T;
@@ -116,16 +127,32 @@ public final class CPU {
 		}
 	}
 	public void branch(int new_pc) {
+		++pcWrites;
 		if(isThumb()) pc = new_pc & ~1;
 		else pc = new_pc & ~3;
 	}
 	public void loadPC(int new_pc) {
-		interworkingBranch(new_pc);
+		setPCInterworking(new_pc);
 	}
 	public void writePC(int new_pc) {
-		if(isThumb()) pc = new_pc & ~1;
+		if(isThumb()) branch(new_pc);
 		else interworkingBranch(new_pc);
 	}
+	/* Everything a coprocessor instruction can change in the core itself: r0-r14 as the current mode sees them, the PC,
+	 * the CPSR, and how many times the PC has been written. Used by InputRecorder and InputReplayer. */
+	static final int COPROCESSOR_VISIBLE_STATE = 18;
+	void saveCoprocessorVisibleState(int[] state) {
+		for(int r = 0; r < 15; ++r) state[r] = readRegister(r);
+		state[15] = pc;
+		state[16] = readCPSR();
+		state[17] = (int)pcWrites;
+	}
+	void restoreCoprocessorVisibleState(int index, int value) {
+		if(index < 15) writeRegister(index, value);
+		else if(index == 15) pc = value;
+		else if(index == 16) writeCPSR(value);
+		else pcWrites += value - (int)pcWrites;
+	}
 	public int readRegister(int r) {
 		switch(r) {
 		case 13: return readSP();
@@ -168,6 +195,7 @@ public final class CPU {
 		setProcessorMode(newMode);
 	}
 	private void enterProcessorModeByException(ProcessorMode newMode) {
+		materializeFlags();
 		if(newMode.spsrIndex >= 0)
 			spsr[newMode.spsrIndex] = cpsr;
 		setProcessorMode(newMode);
@@ -176,23 +204,85 @@ public final class CPU {
 		if(mode.spsrIndex >= 0) {
 			ProcessorMode newMode = ProcessorMode.getModeFromRepresentation(spsr[mode.spsrIndex] & CPSR_MASK_M);
 			assert(newMode != null);
+			flagsKind = FLAGS_MATERIALIZED;
 			cpsr = spsr[mode.spsrIndex];
 			cur_sp = newMode.spIndex;
 			cur_lr = newMode.lrIndex;
 			mode = newMode;
 		}
 	}
-	public boolean conditionN() { return (cpsr & (1<<CPSR_BIT_N)) != 0; }
-	public boolean conditionZ() { return (cpsr & (1<<CPSR_BIT_Z)) != 0; }
-	public boolean conditionC() { return (cpsr & (1<<CPSR_BIT_C)) != 0; }
-	public boolean conditionV() { return (cpsr & (1<<CPSR_BIT_V)) != 0; }
+	/*** LAZY FLAGS ***/
+	/* Flag-setting data processing operations don't touch NZCV in cpsr; they record what they did here, and the flags
+	 * are worked out the first time anything looks at them. Everything that reads the NZCV bits of cpsr must call
+	 * materializeFlags() first, and everything that replaces them outright must set flagsKind to FLAGS_MATERIALIZED. */
+	private static final int FLAGS_MATERIALIZED = 0;
+	/* N and Z from flagsResult, C from flagsCarry, V untouched */
+	private static final int FLAGS_LOGICAL = 1;
+	/* all four from AddWithCarry(flagsX, flagsY, flagsCarryIn) (A2-43) */
+	private static final int FLAGS_ADD = 2;
+	private int flagsKind = FLAGS_MATERIALIZED;
+	private int flagsX, flagsY, flagsCarryIn, flagsResult;
+	private boolean flagsCarry;
+	private boolean lazyFlags = true;
+	private void materializeFlags() {
+		switch(flagsKind) {
+		case FLAGS_LOGICAL:
+			cpsr &= ~((1<<CPSR_BIT_N)|(1<<CPSR_BIT_Z)|(1<<CPSR_BIT_C));
+			if(flagsResult < 0) cpsr |= 1<<CPSR_BIT_N;
+			if(flagsResult == 0) cpsr |= 1<<CPSR_BIT_Z;
+			if(flagsCarry) cpsr |= 1<<CPSR_BIT_C;
+			break;
+		case FLAGS_ADD: {
+			/* this is the way the spec specified it
+			 * TODO: work out a more efficient way */
+			long signedResult = (long)flagsX + flagsY + flagsCarryIn;
+			long unsignedResult = (flagsX&0xFFFFFFFFL) + (flagsY&0xFFFFFFFFL) + flagsCarryIn;
+			int result = (int)unsignedResult;
+			cpsr &= CPSR_MASK_CLEAR_CONDITIONS;
+			if(result < 0) cpsr |= 1<<CPSR_BIT_N;
+			if(result == 0) cpsr |= 1<<CPSR_BIT_Z;
+			if(unsignedResult != (result&0xFFFFFFFFL)) cpsr |= 1<<CPSR_BIT_C;
+			if(signedResult != result) cpsr |= 1<<CPSR_BIT_V;
+			break;
+		}
+		}
+		flagsKind = FLAGS_MATERIALIZED;
+	}
+	private void setFlagsFromAdd(int x, int y, int carry_in) {
+		flagsKind = FLAGS_ADD;
+		flagsX = x;
+		flagsY = y;
+		flagsCarryIn = carry_in;
+		if(!lazyFlags) materializeFlags();
+	}
+	private void setFlagsFromLogical(int result, boolean carry) {
+		/* V survives a logical operation, so we need the real one */
+		if(flagsKind == FLAGS_ADD) materializeFlags();
+		flagsKind = FLAGS_LOGICAL;
+		flagsResult = result;
+		flagsCarry = carry;
+		if(!lazyFlags) materializeFlags();
+	}
+	/**
+	 * This mode defaults to true. When true, flag-setting data processing instructions record their operands and the
+	 * NZCV flags are only computed when something reads them. The results are the same either way.
+	 * @param nu The new mode.
+	 */
+	public void setLazyFlagsMode(boolean nu) {
+		materializeFlags();
+		lazyFlags = nu;
+	}
+	public boolean conditionN() { if(flagsKind != FLAGS_MATERIALIZED) materializeFlags(); return (cpsr & (1<<CPSR_BIT_N)) != 0; }
+	public boolean conditionZ() { if(flagsKind != FLAGS_MATERIALIZED) materializeFlags(); return (cpsr & (1<<CPSR_BIT_Z)) != 0; }
+	public boolean conditionC() { if(flagsKind != FLAGS_MATERIALIZED) materializeFlags(); return (cpsr & (1<<CPSR_BIT_C)) != 0; }
+	public boolean conditionV() { if(flagsKind != FLAGS_MATERIALIZED) materializeFlags(); return (cpsr & (1<<CPSR_BIT_V)) != 0; }
 	public boolean conditionQ() { return (cpsr & (1<<CPSR_BIT_Q)) != 0; }
-	public void setConditionN(boolean nu) { if(nu) cpsr |= (1<<CPSR_BIT_N); else cpsr &= ~(1<<CPSR_BIT_N); }
-	public void setConditionZ(boolean nu) { if(nu) cpsr |= (1<<CPSR_BIT_Z); else cpsr &= ~(1<<CPSR_BIT_Z); }
-	public void setConditionC(boolean nu) { if(nu) cpsr |= (1<<CPSR_BIT_C); else cpsr &= ~(1<<CPSR_BIT_C); }
-	public void setConditionV(boolean nu) { if(nu) cpsr |= (1<<CPSR_BIT_V); else cpsr &= ~(1<<CPSR_BIT_V); }
+	public void setConditionN(boolean nu) { materializeFlags(); if(nu) cpsr |= (1<<CPSR_BIT_N); else cpsr &= ~(1<<CPSR_BIT_N); }
+	public void setConditionZ(boolean nu) { materializeFlags(); if(nu) cpsr |= (1<<CPSR_BIT_Z); else cpsr &= ~(1<<CPSR_BIT_Z); }
+	public void setConditionC(boolean nu) { materializeFlags(); if(nu) cpsr |= (1<<CPSR_BIT_C); else cpsr &= ~(1<<CPSR_BIT_C); }
+	public void setConditionV(boolean nu) { materializeFlags(); if(nu) cpsr |= (1<<CPSR_BIT_V); else cpsr &= ~(1<<CPSR_BIT_V); }
 	public void setConditionQ(boolean nu) { if(nu) cpsr |= (1<<CPSR_BIT_Q); else cpsr &= ~(1<<CPSR_BIT_Q); }
-	public void setConditions(int cc) { cpsr = (cpsr & 0x0FFFFFFF) | (cc<<28); }
+	public void setConditions(int cc) { flagsKind = FLAGS_MATERIALIZED; cpsr = (cpsr & 0x0FFFFFFF) | (cc<<28); }
 	public boolean isThumb() { return (cpsr & (1<<CPSR_BIT_T)) != 0; }
 	public boolean isARM() { return (cpsr & (1<<CPSR_BIT_T)) == 0; }
 	public boolean isLittleEndian() { return (cpsr & (1<<CPSR_BIT_E)) == 0; }
@@ -202,8 +292,8 @@ public final class CPU {
 	public boolean areIRQsEnabled() { return (cpsr & (1<<CPSR_BIT_I)) != 0; }
 	public boolean areFIQsEnabled() { return (cpsr & (1<<CPSR_BIT_F)) != 0; }
 	public int getMode() { return cpsr & 31; }
-	public void writeCPSR(int value) { cpsr = value; }
-	public int readCPSR() { return cpsr; }
+	public void writeCPSR(int value) { flagsKind = FLAGS_MATERIALIZED; cpsr = value; }
+	public int readCPSR() { materializeFlags(); return cpsr; }
 	private void instrWriteCurCPSR(int value, int mask, boolean isExceptionReturn) throws UndefinedException {
 		/* (B1-1153) */
 		int writeMask = 0;
@@ -228,7 +318,7 @@ public final class CPU {
 			if((cp15.SCTLR&(1<<CP15.SCTLR_BIT_NMFI)) == 0) writeMask |= 0x00000040;
 		}
 		if(!isPrivileged()) writeMask &= APSR_WRITE_MASK;
-		// System.out.printf("Value: %08X, mask:%1X = %08X\n", value, mask, writeMask);
+		materializeFlags();
 		cpsr = (cpsr & ~writeMask) | (value & writeMask);
 		if((writeMask & 31) == 31) setProcessorMode(value & 31);
 	}
@@ -255,27 +345,27 @@ public final class CPU {
 		spsr[mode.spsrIndex] = (spsr[mode.spsrIndex] & ~writeMask) | (value & writeMask);
 	}
 	/*** MEMORY MODEL ***/
-	private final PhysicalMemorySpace mem = new PhysicalMemorySpace();
+	private final PhysicalMemorySpace mem;
 	public PhysicalMemorySpace getMemorySpace() { return mem; }
 	private final VirtualMemorySpace vm;
 	public VirtualMemorySpace getVirtualMemorySpace() { return vm; }
 	public int instructionReadWord(int address, boolean privileged) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
-		return vm.readInt(address, inStrictAlignMode(), isBigEndian());
+		return vm.readInt(address, inStrictAlignMode(), isBigEndian(), privileged);
 	}
 	public void instructionWriteWord(int address, int value, boolean privileged) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
-		vm.writeInt(address,value, inStrictAlignMode(), isBigEndian());
+		vm.writeInt(address,value, inStrictAlignMode(), isBigEndian(), privileged);
 	}
 	public byte instructionReadByte(int address, boolean privileged) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
-		return vm.readByte(address);
+		return vm.readByte(address, privileged);
 	}
 	public void instructionWriteByte(int address, byte value, boolean privileged) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
-		vm.writeByte(address, value);
+		vm.writeByte(address, value, privileged);
 	}
 	public short instructionReadHalfword(int address, boolean privileged) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
-		return vm.readShort(address, inStrictAlignMode(), isBigEndian());
+		return vm.readShort(address, inStrictAlignMode(), isBigEndian(), privileged);
 	}
 	public void instructionWriteHalfword(int address, short value, boolean privileged) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
-		vm.writeShort(address, value, inStrictAlignMode(), isBigEndian());
+		vm.writeShort(address, value, inStrictAlignMode(), isBigEndian(), privileged);
 	}
 	public int instructionReadWord(int address) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
 		return instructionReadWord(address, isPrivileged());
@@ -290,7 +380,7 @@ public final class CPU {
 		instructionWriteByte(address, value, isPrivileged());
 	}
 	public short instructionReadHalfword(int address) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
-		return instructionReadHalfword(address);
+		return instructionReadHalfword(address, isPrivileged());
 	}
 	public void instructionWriteHalfword(int address, short value) throws BusErrorException, AlignmentException, EscapeRetryException, EscapeCompleteException {
 		instructionWriteHalfword(address, value, isPrivileged());
@@ -320,34 +410,157 @@ public final class CPU {
 	}
 	CP14 cp14;
 	CP15 cp15;
+	final MMU mmu;
 	public boolean inStrictAlignMode() { return (cp15.SCTLR & (1<<CP15.SCTLR_BIT_A)) != 0; }
 	/*** INITIALIZATION ***/
 	public CPU() { this(null); }
 	public CPU(Debugger debugger) {
+		this(debugger, 0, new PhysicalMemorySpace());
+	}
+	/**
+	 * Make one core of a multiprocessor system. Each core should run on only one host thread at a time, but different
+	 * cores may run on different threads.
+	 * The cores see the same memory, with the ordering guarantees described at DMB in executeARMUnconditional. Another
+	 * core, or any other thread, can send this one an interrupt through getInterruptController.
+	 * @param memory Memory shared by all the cores. This core gets its own port onto it; see getMemorySpace.
+	 * @param affinity This core's affinity fields (Aff2:Aff1:Aff0) for MPIDR, usually just its number
+	 */
+	public CPU(Debugger debugger, PhysicalMemorySpace memory, int affinity) {
+		this(debugger, CP15.MPIDR_MULTIPROCESSING | (affinity & CP15.MPIDR_AFFINITY_MASK), new PhysicalMemorySpace(memory));
+	}
+	/**
+	 * Take this core off its memory, when the core is being thrown away but other cores on the same memory go on. It
+	 * stops taking part in the exclusive monitor, broadcast maintenance, and instruction cache coherence, and must not
+	 * be run again.
+	 */
+	public void detachFromMemory() {
+		mem.detachProcessor(this, monitorId);
+	}
+	private CPU(Debugger debugger, int mpidr, PhysicalMemorySpace mem) {
 		this.debugger = debugger;
-		vm = new VirtualMemorySpace(mem, debugger);
-		
+		this.mem = mem;
 		coprocessors[10] = new FPU(this);
 		coprocessors[11] = coprocessors[10];
 		coprocessors[14] = cp14 = new CP14(this);
 		coprocessors[15] = cp15 = new CP15(this);
+		mmu = new MMU(this, cp15, mem);
+		interrupts = new InterruptController(this);
+		scheduler = new EventScheduler();
+		timer = new GenericTimer(this);
+		pmu = new PerformanceMonitors(this);
+		cp15.MPIDR = mpidr;
+		monitorId = mem.attachProcessor(this);
+		vm = new VirtualMemorySpace(mem, debugger, mmu);
+		/* the debugger isn't finished being constructed yet, so it's only asked once we first run */
+		hookInstructions = debuggerListening = debuggerHooksStale = debugger != null;
+	}
+	/* Called by Debugger.hooksChanged */
+	void debuggerHooksChanged() { debuggerHooksStale = true; }
+	private void refreshDebuggerHooks() {
+		debuggerHooksStale = false;
+		hookInstructions = debugger.wantsInstructions();
+		vm.reportAccesses = debugger.wantsMemoryAccesses();
+		/* instruction fetches are reported as reads too, and the cache and JIT don't make them */
+		debuggerListening = hookInstructions || vm.reportAccesses;
 	}
 	/*** EXECUTION ***/
 	private boolean haveReset = false;
 	private int cycleBudget = 0;
+	/* every cycle ever added to the budget; the cycle count is this minus what's left */
+	private long budgetGranted;
+	/* the part of the budget that lies past the next scheduled event, taken out of cycleBudget so that the execute loop
+	 * stops there; only nonzero inside execute(int) */
+	private int heldBudget;
+	private final EventScheduler scheduler;
+	final GenericTimer timer;
+	final PerformanceMonitors pmu;
+	/* running totals of things the performance monitors can count */
+	long instructionsRetired, exceptionsTaken, pcWrites, coprocessorInstructions;
+	/* address of the instruction being executed; a JIT block keeps this up to date as it goes */
+	private int backupPC;
+	/* at most one of these is attached at a time */
+	InputRecorder recorder;
+	InputReplayer replayer;
+	/* can be attached alongside either */
+	TraceRecorder tracer;
 	/**
 	 * Returns true if the cycle budget is fully spent, false if there are some unspent cycles left.
 	 */
 	public boolean budgetFullySpent() { return cycleBudget <= 0; }
 	/**
-	 * Spends any cycles that still remain in the budget.
+	 * Spends any cycles that still remain in the budget. Spent cycles count as elapsed; forgiven debt doesn't turn the
+	 * cycle count back.
 	 * @param soft If true, only zero the budget if there are unspent cycles. If false, also forgive debt.
 	 */
 	public void zeroBudget(boolean soft) {
-		if(cycleBudget > 0 || !soft) cycleBudget = 0;
+		if(cycleBudget > 0 || !soft) {
+			if(cycleBudget < 0) budgetGranted -= cycleBudget;
+			cycleBudget = 0;
+		}
+	}
+	/**
+	 * Returns the number of cycles this core has used since it was created, including cycles spent waiting in WFI.
+	 * Exact at any point, including from inside an instruction.
+	 */
+	public long getCycleCount() { return budgetGranted - cycleBudget - heldBudget; }
+	/**
+	 * Returns the number of instructions this core has retired since it was created, not counting the one being
+	 * executed. A snapshot keeps it, so it can be used to find the same point in a replay.
+	 */
+	public long getInstructionCount() { return currentInstruction(); }
+	/** The timed events driven by this core's cycle count. */
+	public EventScheduler getEventScheduler() { return scheduler; }
+	/**
+	 * Set CNTFRQ, the rate at which the Generic Timer's counter (the cycle count) is meant to tick, as firmware would
+	 * before handing over to an OS. Only informs software; it doesn't change how fast anything runs.
+	 * @param hz Cycles per second
+	 */
+	public void setCounterFrequency(int hz) { timer.CNTFRQ = hz; }
+	/* for InputReplayer, which puts back the time that passed outside execute(int) */
+	void setCycleCount(long count) { budgetGranted += count - getCycleCount(); }
+	/* Give back the rest of the budget without letting the cycles go by, so that execute(int) returns right away */
+	void forfeitBudget() {
+		budgetGranted -= cycleBudget + heldBudget;
+		cycleBudget = heldBudget = 0;
+	}
+	/* An event was just scheduled from this core's own thread, maybe from inside a JIT block, which only watches the
+	 * budget; stop where it's due */
+	void holdBudgetForEvents() {
+		long until = Math.max(scheduler.nextDue - getCycleCount(), 0);
+		if(until < cycleBudget) {
+			heldBudget += cycleBudget - (int)until;
+			cycleBudget = (int)until;
+		}
+	}
+	/* Fire every event that's due, then hold back the part of the budget past the next one */
+	private void serviceEvents() {
+		cycleBudget += heldBudget;
+		heldBudget = 0;
+		scheduler.changed = false;
+		long now = getCycleCount();
+		EventScheduler.Event event;
+		while((event = scheduler.pollDue(now)) != null) event.callback.onEvent(this, event.when);
+		long until = scheduler.nextDue - now;
+		if(until < cycleBudget) {
+			heldBudget = cycleBudget - (int)until;
+			cycleBudget = (int)until;
+		}
+	}
+	/* a pending interrupt or event ends WFI/WFE */
+	private void checkWakeUp() {
+		if(!waitingForInterrupt) return;
+		if(replayer != null && replayer.checkWakeUp(this)) eventRegister = true;
+		if(haveIRQ() || haveFIQ() || (waitingForEvent && eventRegister)) {
+			if(recorder != null) recorder.wokeUp(this, waitingForEvent && eventRegister);
+			/* WFE consumes the event that woke it */
+			if(waitingForEvent) eventRegister = false;
+			waitingForInterrupt = waitingForEvent = false;
+		}
 	}
 	/**
 	 * Fetch and execute enough instructions to meet a given cycle budget. Will go slightly over budget, and compensate exactly for this on the next call.
+	 * Scheduled events that fall within the budget are fired on time. While the core waits for an interrupt, the
+	 * cycles up to the next event go by without anything being executed.
 	 * Throws an exception if exception debug mode is true.
 	 * @param budget Number of cycles
 	 * @return true if the budget was fully expended
@@ -357,31 +570,61 @@ public final class CPU {
 		// Hack: allow self-tail-call without bursting the whole stack
 		while(true) {
 			cycleBudget += budget;
-			int backupPC = pc;
-			if(waitingForInterrupt && (haveIRQ() || haveFIQ())) waitingForInterrupt = false;
+			budgetGranted += budget;
+			if(recorder != null) recorder.beginSlice(this);
+			else if(replayer != null) replayer.beginSlice(this);
+			if(debuggerHooksStale) refreshDebuggerHooks();
+			backupPC = pc;
+			/* the cycle count when an escape left the instruction it happened in */
+			long escapedAt = -1;
+			boolean escapeCompleted = false;
 			try {
-				while(cycleBudget > 0 && !waitingForInterrupt) {
+				serviceEvents();
+				while(true) {
+					checkWakeUp();
+					if(waitingForInterrupt) {
+						/* idle until the next event, if it comes before the budget runs out */
+						if(heldBudget == 0) break;
+						if(cycleBudget > 0) cycleBudget = 0;
+						serviceEvents();
+						continue;
+					}
+					if(cycleBudget <= 0) {
+						if(heldBudget == 0) break;
+						serviceEvents();
+						continue;
+					}
+					if(scheduler.changed) serviceEvents();
 					backupPC = pc;
-					execute();
+					if(!jitEnabled || !executeJITBlock()) execute();
 					/* then settle and check the debt */
 					cycleBudget -= mem.settleAccessBill();
 				}
 			}
 			catch(BusErrorException e) {
+				releaseHeldBudget();
 				if(exceptionDebugMode) throw e;
+				/* translation faults know exactly where they happened; external aborts only know the last access */
+				if(e.isTranslationFault()) cp15.DFAR = (int)e.getAddress();
+				else cp15.DFAR = vm.getLastAccessAddress();
+				cp15.DFSR = e.getFaultStatus() | (vm.getLastAccessWasStore() ? 1<<CP15.DFSR_BIT_WNR : 0);
 				generateDataAbortException();
 				budget = 0;
 				cycleBudget -= mem.settleAccessBill();
 				continue;
 			}
 			catch(AlignmentException e) {
+				releaseHeldBudget();
 				if(exceptionDebugMode) throw e;
+				cp15.DFAR = vm.getLastAccessAddress();
+				cp15.DFSR = MMU.FS_ALIGNMENT | (vm.getLastAccessWasStore() ? 1<<CP15.DFSR_BIT_WNR : 0);
 				generateDataAbortException();
 				budget = 0;
 				cycleBudget -= mem.settleAccessBill();
 				continue;
 			}
 			catch(UndefinedException e) {
+				releaseHeldBudget();
 				if(exceptionDebugMode) throw e;
 				generateUndefinedException();
 				budget = 0;
@@ -390,41 +633,78 @@ public final class CPU {
 			}
 			catch(EscapeRetryException e) {
 				pc = backupPC;
+				escapedAt = getCycleCount();
+			}
+			catch(EscapeCompleteException e) {
+				escapedAt = getCycleCount();
+				escapeCompleted = true;
+			}
+			catch(RuntimeException e) {
+				releaseHeldBudget();
+				throw e;
 			}
-			catch(EscapeCompleteException e) {}
+			releaseHeldBudget();
 			// don't hoard cycles in a low-power state
 			cycleBudget -= mem.settleAccessBill();
 			if(waitingForInterrupt && cycleBudget > 0) cycleBudget = 0;
+			if(escapedAt >= 0 && recorder != null) recorder.escaped(this, escapedAt, escapeCompleted);
 			return cycleBudget <= 0;
 		}
 	}
+	private void releaseHeldBudget() {
+		cycleBudget += heldBudget;
+		heldBudget = 0;
+	}
 	/**
 	 * Fetch and execute a single instruction
 	 */
 	public void execute() throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
 		if(!haveReset) throw new FatalException("execute() called without first calling reset()");
-		if((cpsr & CPSR_BIT_F) == 0 && haveFIQ()) generateFIQException();
-		if((cpsr & CPSR_BIT_I) == 0 && haveIRQ()) generateIRQException();
+		if(interrupts.output != 0) {
+			InputReplayer replay = (interrupts.output & InterruptController.OUTPUT_REPLAY) != 0 ? replayer : null;
+			if(replay != null) replay.beforeInterrupts(this);
+			if((cpsr & (1<<CPSR_BIT_F)) == 0 && haveFIQ()) {
+				if(recorder != null) recorder.interruptTaken(this, true);
+				generateFIQException();
+			}
+			if((cpsr & (1<<CPSR_BIT_I)) == 0 && haveIRQ()) {
+				if(recorder != null) recorder.interruptTaken(this, false);
+				generateIRQException();
+			}
+			if(replay != null) replay.afterInterrupts(this);
+		}
 		
-		if(debugger!=null) debugger.onInstruction(this, pc);
+		if(hookInstructions) debugger.onInstruction(this, pc);
 		
-		if(isThumb()) throw new UndefinedException(); // Thumb not implemented
-		else executeARM();
+		try {
+			if(isThumb()) throw new UndefinedException(); // Thumb not implemented
+			else if(instructionCacheEnabled && !debuggerListening) executeARMCached();
+			else executeARM();
+		}
+		/* the instruction did finish; a JIT block counts these too */
+		catch(EscapeCompleteException e) { ++instructionsRetired; throw e; }
+		++instructionsRetired;
 	}
-	/* Fetch and execute a 32-bit ARM instruction */
-	private void executeARM() throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+	/* Fetch a 32-bit ARM instruction, taking a Prefetch Abort if needed */
+	private int fetchARM() throws BusErrorException, AlignmentException, EscapeRetryException {
 		int iword;
 		if((pc&3) != 0) pc=pc&~3;
-		try { iword = vm.readInt(pc, true, false); }
+		try { iword = vm.readInstruction(pc); }
 		catch(BusErrorException e) {
 			// TODO: ugh
 			if(exceptionDebugMode) throw e;
-			// System.out.println("Prefetch abort! "+Long.toHexString((long)pc & 0xFFFFFFFFL));
+			cp15.IFAR = pc;
+			cp15.IFSR = e.getFaultStatus() & ~0xF0; /* IFSR has no Domain field */
 			generatePrefetchAbortException();
-			try { iword = vm.readInt(pc, true, false); }
+			try { iword = vm.readInstruction(pc); }
 			catch(BusErrorException e2) { throw new FatalException("Prefetch abort vector is on invalid address"); }
 		}
-		// System.out.printf("\t%08X : %08X\n", pc, iword);
+		return iword;
+	}
+	/* Fetch and execute a 32-bit ARM instruction */
+	private void executeARM() throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		int iword = fetchARM();
+		if(tracer != null) tracer.instruction(pc, iword, getCycleCount());
 		pc += 4;
 		try { executeARM(iword); }
 		/* if we experience an exception, restore as much state as possible to before the exception */
@@ -432,6 +712,89 @@ public final class CPU {
 		catch(AlignmentException e) { pc -= 4; throw e; }
 		catch(UndefinedException e) { pc -= 4; throw e; }
 	}
+	/* As above, but go through the predecoded instruction cache */
+	private void executeARMCached() throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		if((pc&3) != 0) pc=pc&~3;
+		/* the cache is keyed by physical address; if translation faults, let fetchARM take the Prefetch Abort */
+		long physical;
+		try { physical = vm.translateFetch(pc); }
+		catch(BusErrorException e) { physical = -1; }
+		DecodedInstruction insn = physical < 0 ? null : mem.icache.lookup(physical);
+		if(insn == null) {
+			int fetchPC = pc;
+			int billBefore = mem.getAccessBill();
+			int iword = fetchARM();
+			insn = decodeARM(iword, mem.getAccessBill() - billBefore);
+			/* if fetchARM took us to the prefetch abort vector, the bill includes the failed fetch; don't cache it */
+			if(pc == fetchPC && physical >= 0 && mem.isInstructionCacheable(physical)) mem.icache.store(physical, insn);
+		}
+		else if(insn.fetchCost > 0) mem.addToBill(insn.fetchCost);
+		if(tracer != null) tracer.instruction(pc, insn.iword, getCycleCount());
+		pc += 4;
+		try { executeDecoded(insn); }
+		/* if we experience an exception, restore as much state as possible to before the exception */
+		catch(BusErrorException e) { pc -= 4; throw e; }
+		catch(AlignmentException e) { pc -= 4; throw e; }
+		catch(UndefinedException e) { pc -= 4; throw e; }
+	}
+	/* Run a compiled block from the current PC, if there is one. Returns false if the interpreter should execute the
+	 * next instruction instead. Compiles blocks once their first instruction has been here often enough. */
+	private boolean executeJITBlock() throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		if(!haveReset || debuggerListening || !instructionCacheEnabled) return false;
+		/* let the interpreter take interrupts and deal with anything else unusual */
+		if(interruptDeliverable() || isThumb() || (pc&3) != 0) return false;
+		long address;
+		try { address = vm.translateFetch(pc); }
+		catch(BusErrorException e) { return false; }
+		InstructionCache.Page page = mem.icache.getPage(address);
+		if(page == null) return false;
+		int slot = (int)(address >>> 2) & (InstructionCache.PAGE_INSTRUCTIONS-1);
+		if(page.blocks == null) {
+			page.blocks = new JITBlock[InstructionCache.PAGE_INSTRUCTIONS];
+			page.heat = new int[InstructionCache.PAGE_INSTRUCTIONS];
+		}
+		JITBlock block = page.blocks[slot];
+		if(block == null) {
+			if(++page.heat[slot] < jitThreshold) return false;
+			page.heat[slot] = 0;
+			block = JITCompiler.compile(page, slot, address);
+			if(block == null) return false;
+			page.blocks[slot] = block;
+		}
+		jitPage = page;
+		/* blocks never cross a page, so every instruction in this one is at the same offset from its virtual address */
+		jitDelta = pc - (int)address;
+		inJITBlock = true;
+		try { block.run(this); }
+		/* same as executeARM(), but the block knows exactly which instruction it was on */
+		/* jitStep counted the instruction before it ran; it didn't retire after all */
+		catch(BusErrorException e) { pc = backupPC; --instructionsRetired; throw e; }
+		catch(AlignmentException e) { pc = backupPC; --instructionsRetired; throw e; }
+		catch(UndefinedException e) { pc = backupPC; --instructionsRetired; throw e; }
+		catch(EscapeRetryException e) { --instructionsRetired; throw e; }
+		finally { inJITBlock = false; }
+		return true;
+	}
+	private InstructionCache.Page jitPage;
+	private int jitDelta;
+	private boolean inJITBlock;
+	/* The number of instructions retired before the one being executed. Inside a JIT block, jitStep has already
+	 * counted it. */
+	long currentInstruction() { return inJITBlock ? instructionsRetired - 1 : instructionsRetired; }
+	/* Called by a compiled block before each instruction; does what execute(int) and execute() would have done in
+	 * between. Returns false if the block should return to the interpreter. The address is physical. */
+	boolean jitStep(int address, int fetchCost) {
+		cycleBudget -= mem.settleAccessBill();
+		int physical = address;
+		address += jitDelta;
+		if(cycleBudget <= 0 || waitingForInterrupt || pc != address || jitPage.dead || interruptDeliverable()) return false;
+		if(tracer != null) tracer.instruction(address, jitPage.instructions[(physical >>> 2) & (InstructionCache.PAGE_INSTRUCTIONS-1)].iword, getCycleCount());
+		backupPC = address;
+		if(fetchCost > 0) mem.addToBill(fetchCost);
+		pc = address + 4;
+		++instructionsRetired;
+		return true;
+	}
 	/* used by executeDataProcessingOperation for operations that don't provide their own carry logic */
 	private boolean shifterCarryOut;
 	private int expandARMImmediate(int imm12) {
@@ -503,66 +866,49 @@ public final class CPU {
 		return applyOpShift(src, type, readRegister(Rs) & 255);
 	}
 	private void executeDataProcessingOperation(int opcode, int n, int m, int Rd) throws UndefinedException {
-		/* TODO: possibly speed this up by separating WriteFlags version out */
 		/* TODO: ensure that all the data processing operation variants are correct */
 		boolean writeFlags = (opcode & 1) != 0;
-		boolean Cout, Vout;
 		int result;
+		/* flags are only recorded here, see materializeFlags */
+		int flagsKind = FLAGS_LOGICAL, x = 0, y = 0, carry_in = 0;
 		switch(opcode) {
 		case 0: case 1:
 			/* AND (immediate at A8-324) */
 			writeRegister(Rd, result = (n&m));
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		case 2: case 3:
 			/* EOR (immediate at A8-382) */
 			writeRegister(Rd, result = (n^m));
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		case 17:
 			/* TST (immediate at A8-744)
 			 * same as AND but discard result */
 			result = (n&m);
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		case 19:
 			/* TEQ (immediate at A8-738)
 			 * same as EOR but discard result */
 			result = (n^m);
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		case 24: case 25:
 			/* OR (immediate [ORR] at A8-516) */
 			writeRegister(Rd, result = (n|m));
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		case 26: case 27:
 			/* MOV (immediate at A8-484) */
 			writeRegister(Rd, result = m);
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		case 28: case 29:
 			/* BIC (immediate at A8-340) */
 			writeRegister(Rd, result = (n&~m));
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		case 30: case 31:
 			/* MVN (immediate at A8-504) */
 			writeRegister(Rd, result = ~m);
-			Cout = shifterCarryOut;
-			Vout = conditionV();
 			break;
 		default:
 			/* any instruction that is an AddWithCarry at heart */
 		{
-			int x, y, carry_in;
 			boolean writeOut;
 			switch(opcode) {
 			case 4: case 5:
@@ -600,13 +946,8 @@ public final class CPU {
 			default:
 				throw new RuntimeException("unknown op: "+opcode);
 			}
-			/* this is the way the spec specified it
-			 * TODO: work out a more efficient way */
-			long signedResult = (long)x + y + carry_in;
-			long unsignedResult = (x&0xFFFFFFFFL) + (y&0xFFFFFFFFL) + carry_in;
-			result = (int)unsignedResult;
-			Cout = unsignedResult != (result&0xFFFFFFFFL);
-			Vout = signedResult != result;
+			result = x + y + carry_in;
+			flagsKind = FLAGS_ADD;
 			if(writeOut) writeRegister(Rd, result);
 		}
 		}
@@ -615,1098 +956,1093 @@ public final class CPU {
 				/* when the destination register is the PC, the flag-setting versions are for PL1 and above only */
 				if(!isPrivileged()) throw new UndefinedException();
 			}
-			else {
-				cpsr &= CPSR_MASK_CLEAR_CONDITIONS;
-				if(result < 0) cpsr |= 1<<CPSR_BIT_N;
-				if(result == 0) cpsr |= 1<<CPSR_BIT_Z;
-				if(Cout) cpsr |= 1<<CPSR_BIT_C;
-				if(Vout) cpsr |= 1<<CPSR_BIT_V;
-			}
+			else if(flagsKind == FLAGS_ADD) setFlagsFromAdd(x, y, carry_in);
+			else setFlagsFromLogical(result, shifterCarryOut);
 		}
 	}
-	private void executeARMPage0(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
-		/* (op=0) Data-processing and miscellaneous instructions (A5-196) */
-		/* TODO: page 0 decoding is wrong */
+	private void executeARMDataProcessingRegister(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		int op1 = (iword >> 20) & 31;
+		/* Data-processing (register, A5-197) */
+		int Rn = (iword >> 16) & 15;
+		int Rd = (iword >> 12) & 15;
+		int imm5 = (iword >> 7) & 31;
+		int type = (iword >> 5) & 3;
+		int Rm = iword & 15;
+		int n = readRegister(Rn);
+		int m = applyIRShift(readRegister(Rm), type, imm5);
+		executeDataProcessingOperation(op1, n, m, Rd);
+		/* TODO: if S is set and Rd == 15, copy SPSR to CPSR */
+		return;
+	}
+	private void executeARMDataProcessingRegisterShiftedRegister(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
 		int op1 = (iword >> 20) & 31;
+		/* Data-processing (register-shifted register, A5-198) */
+		int Rn = (iword >> 16) & 15;
+		int Rd = (iword >> 12) & 15;
+		int Rs = (iword >> 8) & 15;
+		int type = (iword >> 5) & 3;
+		int Rm = iword & 15;
+		int n = readRegister(Rn);
+		int m = applyRRShift(readRegister(Rm), type, Rs);
+		executeDataProcessingOperation(op1, n, m, Rd);
+		return;
+	}
+	private void executeARMMiscellaneous(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
 		int op2 = (iword >> 4) & 15;
-		if((op1 & 25) != 16) {
-			if((op2 & 1) == 0) {
-				/* Data-processing (register, A5-197) */
-				int Rn = (iword >> 16) & 15;
-				int Rd = (iword >> 12) & 15;
-				int imm5 = (iword >> 7) & 31;
-				int type = (iword >> 5) & 3;
-				int Rm = iword & 15;
-				int n = readRegister(Rn);
-				int m = applyIRShift(readRegister(Rm), type, imm5);
-				executeDataProcessingOperation(op1, n, m, Rd);
-				/* TODO: if S is set and Rd == 15, copy SPSR to CPSR */
-				return;
-			}
-			else if((op2 & 8) == 0) {
-				/* static_assert((op2 & 1) == 1) */
-				/* Data-processing (register-shifted register, A5-198) */
-				int Rn = (iword >> 16) & 15;
-				int Rd = (iword >> 12) & 15;
-				int Rs = (iword >> 8) & 15;
-				int type = (iword >> 5) & 3;
-				int Rm = iword & 15;
-				int n = readRegister(Rn);
-				int m = applyRRShift(readRegister(Rm), type, Rs);
-				executeDataProcessingOperation(op1, n, m, Rd);
-				return;
+		/* Miscellaneous instructions (A5-207) */
+		int op = (iword >> 21) & 3;
+		int op1 = (iword >> 16) & 15;
+		/* op2 is still good */
+		switch(op2) {
+		case 0:
+			if((iword & 512) != 0) {
+				if((op & 1) == 0) {
+					/* MRS (banked register, B9-1992) */
+					/* We don't have Virtualization extensions */
+					throw new UndefinedException();
+				}
+				else {
+					/* MSR (banked register, B9-1994) */
+					/* We don't have Virtualization extensions */
+					throw new UndefinedException();
+				}
 			}
-		}
-		else {
-			if((op2 & 8) == 0) {
-				/* Miscellaneous instructions (A5-207) */
-				int op = (iword >> 21) & 3;
-				op1 = (iword >> 16) & 15;
-				/* op2 is still good */
-				switch(op2) {
-				case 0:
-					if((iword & 512) != 0) {
-						if((op & 1) == 0) {
-							/* MRS (banked register, B9-1992) */
-							/* We don't have Virtualization extensions */
-							throw new UndefinedException();
-						}
-						else {
-							/* MSR (banked register, B9-1994) */
-							/* We don't have Virtualization extensions */
+			else {
+				switch(op) {
+				case 0: case 2: {
+					/* MRS (A8-496, B9-1990) */
+					boolean readSPSR = (op & 2) != 0;
+					int Rd = (iword >> 12) & 15;
+					if(readSPSR) {
+						if(mode == ProcessorMode.USER || mode == ProcessorMode.SYSTEM)
 							throw new UndefinedException();
-						}
-					}
-					else {
-						switch(op) {
-						case 0: case 2: {
-							/* MRS (A8-496, B9-1990) */
-							boolean readSPSR = (op & 2) != 0;
-							int Rd = (iword >> 12) & 15;
-							if(readSPSR) {
-								if(mode == ProcessorMode.USER || mode == ProcessorMode.SYSTEM)
-									throw new UndefinedException();
-								writeRegister(Rd, spsr[mode.spsrIndex]);
-								return;
-							}
-							else {
-								int red = cpsr;
-								if(mode == ProcessorMode.USER) red &= CPSR_USER_READ_MASK;
-								writeRegister(Rd, red);
-								return;
-							}
-						}
-						case 1:
-						case 3:
-							/* MSR (register, A8-500, B9-1998) */
-							int mask = (iword >> 16) & 15;
-							boolean writingSPSR = (op & 2) != 0;
-							if(writingSPSR || ((mask & 3) == 1) || ((mask & 2) != 0))
-								if(!isPrivileged()) throw new UndefinedException();
-							int imm32 = expandARMImmediate(iword & 4095);
-							if(writingSPSR)
-								instrWriteCurSPSR(imm32, mask);
-							else
-								instrWriteCurCPSR(imm32, mask, false);
-							return;
-						}
-					}
-					break;
-				case 1:
-					switch(op) {
-					case 1:
-						/* BX (A8-352) */
-					{
-						int Rm = (iword) & 15;
-						interworkingBranch(readRegister(Rm));
-						return;
-					}
-					case 3:
-						/* CLZ (A8-362) */
-						int Rm = (iword) & 15;
-						int Rd = (iword >> 12) & 15;
-						writeRegister(Rd, Integer.numberOfLeadingZeros(readRegister(Rm)));
-						return;
-					}
-					break;
-				case 2:
-					switch(op) {
-					case 1:
-						/* BXJ (A8-354) */
-						throw new UnimplementedInstructionException(iword, "BXJ");
-					}
-					break;
-				case 3:
-					switch(op) {
-					case 1:
-						/* BLX (A8-350) */
-						int Rm = iword&15;
-						writeLR(readPC()-4);
-						interworkingBranch(readRegister(Rm));
+						writeRegister(Rd, spsr[mode.spsrIndex]);
 						return;
 					}
-					break;
-				case 5:
-					/* Saturating addition and subtraction (A5-202) */
-					/* QADD/QSUB/QDADD/QDSUB (A8-540 and change) */
-					boolean subtract = (op & 1) != 0;
-					boolean doubleTrouble = (op & 2) != 0;
-					int Rm = iword&15;
-					int Rn = (iword>>16)&15;
-					int Rd = (iword>>12)&15;
-					long n = readRegister(Rn);
-					if(doubleTrouble) n *= 2L; // why only n? WHO KNOWS
-					long m = readRegister(Rm);
-					long result;
-					if(subtract) result = n - m;
-					else result = n + m;
-					if(result > 0x7FFFFFFFL) {
-						writeRegister(Rd, 0x7FFFFFFF);
-						cpsr |= 1<<CPSR_BIT_Q;
-					}
-					else if(result < -0x80000000L) {
-						writeRegister(Rd, 0x80000000);
-						cpsr |= 1<<CPSR_BIT_Q;
-					}
-					else writeRegister(Rd, (int)result);
-					return;
-				case 6:
-					switch(op) {
-					case 3:
-						/* ERET (B9-1982) */
-						throw new UnimplementedInstructionException(iword, "ERET");
-					}
-					break;
-				case 7:
-					switch(op) {
-					case 1:
-						/* BKPT (A8-346) */
-						/* TODO: Invasive debugging mode */
+					else {
+						materializeFlags();
+						int red = cpsr;
+						if(mode == ProcessorMode.USER) red &= CPSR_USER_READ_MASK;
+						writeRegister(Rd, red);
 						return;
-					case 2:
-						/* HVC (B9-1984) but we do NOT have Virtualization Extensions */
-					case 3:
-						/* SMC (B9-2002) but we do NOT have Security Extensions */
-						break;
 					}
 				}
-				throw new UndefinedException();
-			}
-			else if((op2 & 1) == 0) {
-				/* static_assert((op2 & 8) == 8) */
-				/* Halfword multiply and multiply accumulate (A5-203) */
-				switch(op1) {
-				case 16:
-					/* SMLABB/SMLABT/SMLATB/SMLATT (A8-620) */
-					throw new UnimplementedInstructionException(iword, "SMLABB/SMLABT/SMLATB/SMLATT");
-				case 18:
-					if((op2 & 2) == 0)
-						/* SMLAWB/SMLAWT (A8-630) */
-						throw new UnimplementedInstructionException(iword, "SMLAWB/SMLAWT");
+				case 1:
+				case 3:
+					/* MSR (register, A8-500, B9-1998) */
+					int mask = (iword >> 16) & 15;
+					boolean writingSPSR = (op & 2) != 0;
+					if(writingSPSR || ((mask & 3) == 1) || ((mask & 2) != 0))
+						if(!isPrivileged()) throw new UndefinedException();
+					int imm32 = expandARMImmediate(iword & 4095);
+					if(writingSPSR)
+						instrWriteCurSPSR(imm32, mask);
 					else
-						/* SMULWB/SMULWT (A8-648) */
-						throw new UnimplementedInstructionException(iword, "SMULWB/SMULWT");
-				case 20:
-					/* SMLALBB/SMLALBT/SMLALTB/SMLALTT (A8-626) */
-					throw new UnimplementedInstructionException(iword, "SMLALBB/SMLALBT/SMLALTB/SMLALTT");
-				case 22: {
-					/* SMULBB/SMULBT/SMULTB/SMULTT (A8-644) */
-					int Rn = iword & 15;
-					int Rm = (iword>>8) & 15;
-					int Rd = (iword>>16) & 15;
-					int va, vb;
-					if((op2 & 2) != 0) va = readRegister(Rn)>>16;
-					else va = (short)readRegister(Rn);
-					if((op2 & 4) != 0) vb = readRegister(Rm)>>16;
-					else vb = (short)readRegister(Rm);
-					writeRegister(Rd, va*vb);
-				}
+						instrWriteCurCPSR(imm32, mask, false);
+					return;
 				}
-				throw new UndefinedException();
 			}
-		}
-		/* still here... ugh, this is the most confusing part of the instruction space */
-		if(op2 == 9) {
-			switch(op1) {
-			/* Multiply and multiply accumulate (A5-202) */
-			case 0: case 1: case 2: case 3: {
-				/* MUL (A8-502) */
-				/* MLA (A8-480) */
-				int Rn = iword&15;
-				int Rm = (iword>>8)&15;
-				int Ra = (iword>>12)&15;
-				int Rd = (iword>>16)&15;
-				boolean setFlags = (op1&1) != 0;
-				boolean accumulate = (op1&2) != 0;
-				// result is the same whether signed or unsigned
-				int result = readRegister(Rn)*readRegister(Rm);
-				if(accumulate) result += readRegister(Ra);
-				if(setFlags) {
-					setConditionN(result < 0);
-					setConditionZ(result == 0);
-				}
-				writeRegister(Rd, result);
+			break;
+		case 1:
+			switch(op) {
+			case 1:
+				/* BX (A8-352) */
+			{
+				int Rm = (iword) & 15;
+				interworkingBranch(readRegister(Rm));
 				return;
 			}
-			case 4:
-				/* UMAAL (A8-774) */
-				throw new UnimplementedInstructionException(iword, "UMAAL");
-			case 6: {
-				/* MLS (A8-482) */
-				int Rn = iword&15;
-				int Rm = (iword>>8)&15;
-				int Ra = (iword>>12)&15;
-				int Rd = (iword>>16)&15;
-				// result is the same whether signed or unsigned
-				int result = readRegister(Rn)*readRegister(Rm);
-				result = readRegister(Ra) - result;
-				writeRegister(Rd, result);
+			case 3:
+				/* CLZ (A8-362) */
+				int Rm = (iword) & 15;
+				int Rd = (iword >> 12) & 15;
+				writeRegister(Rd, Integer.numberOfLeadingZeros(readRegister(Rm)));
 				return;
 			}
-			case 8: case 9: {
-				/* UMULL (A8-778) */
-				int Rn = iword&15;
-				int Rm = (iword>>8)&15;
-				int RdLo = (iword>>12)&15;
-				int RdHi = (iword>>16)&15;
-				boolean setFlags = (op1&1) != 0;
-				long src1 = readRegister(Rn) & 0xFFFFFFFFL;
-				long src2 = readRegister(Rm) & 0xFFFFFFFFL;
-				long result = src1 * src2;
-				writeRegister(RdLo, (int)(result & 0xFFFFFFFFL));
-				writeRegister(RdHi, (int)(result >>> 32));
-				if(setFlags) {
-					setConditionN(result < 0);
-					setConditionZ(result == 0);
-				}
+			break;
+		case 2:
+			switch(op) {
+			case 1:
+				/* BXJ (A8-354) */
+				throw new UnimplementedInstructionException(iword, "BXJ");
+			}
+			break;
+		case 3:
+			switch(op) {
+			case 1:
+				/* BLX (A8-350) */
+				int Rm = iword&15;
+				writeLR(readPC()-4);
+				interworkingBranch(readRegister(Rm));
 				return;
 			}
-			case 10: case 11:
-				/* UMLAL (A8-776) */
-				throw new UnimplementedInstructionException(iword, "UMLAL");
-			case 12: case 13:
-				/* SMULL (A8-646) */
-				throw new UnimplementedInstructionException(iword, "SMULL");
-			case 14: case 15:
-				/* SMLAL (A8-624) */
-				throw new UnimplementedInstructionException(iword, "SMLAL");
-			/* Synchronization primitives (A5-205) */
-			case 16: case 20:
-				/* SWP/SWPB (A8-722) */
-				throw new UnimplementedInstructionException(iword, "SWP/SWPB");
-			case 24:
-				/* STREX (A8-690) */
-				throw new UnimplementedInstructionException(iword, "STREX");
-			case 25:
-				/* LDREX (A8-432) */
-				throw new UnimplementedInstructionException(iword, "LDREX");
-			case 26:
-				/* STREXD (A8-694) */
-				throw new UnimplementedInstructionException(iword, "STREXD");
-			case 27:
-				/* LDREXD (A8-436) */
-				throw new UnimplementedInstructionException(iword, "LDREXD");
-			case 28:
-				/* STREXB (A8-692) */
-				throw new UnimplementedInstructionException(iword, "STREXB");
-			case 29:
-				/* LDREXB (A8-434) */
-				throw new UnimplementedInstructionException(iword, "LDREXB");
-			case 30:
-				/* STREXH (A8-696) */
-				throw new UnimplementedInstructionException(iword, "STREXH");
-			case 31:
-				/* LDREXH (A8-438) */
-				throw new UnimplementedInstructionException(iword, "LDREXH");
-			default:
-				/* undefined, explicitly throw */
-				throw new UndefinedException();
+			break;
+		case 5:
+			/* Saturating addition and subtraction (A5-202) */
+			/* QADD/QSUB/QDADD/QDSUB (A8-540 and change) */
+			boolean subtract = (op & 1) != 0;
+			boolean doubleTrouble = (op & 2) != 0;
+			int Rm = iword&15;
+			int Rn = (iword>>16)&15;
+			int Rd = (iword>>12)&15;
+			long n = readRegister(Rn);
+			if(doubleTrouble) n *= 2L; // why only n? WHO KNOWS
+			long m = readRegister(Rm);
+			long result;
+			if(subtract) result = n - m;
+			else result = n + m;
+			if(result > 0x7FFFFFFFL) {
+				writeRegister(Rd, 0x7FFFFFFF);
+				cpsr |= 1<<CPSR_BIT_Q;
 			}
-		}
-		else if(op2 > 9) {
-			boolean argh = (op2 & 4) != 0;
-			if((op1 & 16) == 0) {
-				if(((op2 == 11) && (op1 & 18) == 2)
-					|| (op2 == 13 || op2 == 15) && (op1 & 19) == 3) {
-					/* Extra load/store instructions, unprivileged (A5-204) */
-					switch(op2) {
-					case 11:
-						if((op1 & 1) == 0) {
-							/* STRHT (A8-704) */
-							throw new UnimplementedInstructionException(iword, "STRHT");
-						}
-						else {
-							/* LDRHT (A8-448) */
-							throw new UnimplementedInstructionException(iword, "LDRHT");
-						}
-					case 13:
-						/* LDRSBT (A8-456) */
-						throw new UnimplementedInstructionException(iword, "LDRSBT");
-					case 15:
-						/* LDRSHT (A8-464) */
-						throw new UnimplementedInstructionException(iword, "LDRSHT");
-					}
-				}
+			else if(result < -0x80000000L) {
+				writeRegister(Rd, 0x80000000);
+				cpsr |= 1<<CPSR_BIT_Q;
 			}
-			/* Extra load/store instructions (A5-203) */
-			int Rn = (iword >> 16) & 15;
-			switch(op2) {
-			case 11:
-				switch(op1 & 5) {
-				case 0: 
-				case 1:
-				case 4:
-				case 5: {
-					/* LDRH (register, A8-446) */
-					/* STRH (register, A8-702) */
-					/* LDRH (immediate, ARM, A8-442) */
-					/* LDRH (literal, A8-444) */
-					/* STRH (immediate, ARM, A8-700) */
-					boolean P = ((iword >> 24) & 1) != 0;
-					boolean U = ((iword >> 23) & 1) != 0;
-					boolean W = ((iword >> 21) & 1) != 0;
-					boolean isLoad = ((op1 & 1) != 0);
-					boolean registerForm = ((op1 & 4) == 0);
-					int Rt = (iword >> 12) & 15;
-					int offset;
-					if(registerForm) offset = readRegister(iword & 15);
-					else offset = ((iword >> 4)&240) | (iword&15);
-					boolean writeback = !P || W;
-					int base_addr = readRegisterAlignPC(Rn);
-					int offset_addr;
-					if(U) offset_addr = base_addr + offset;
-					else offset_addr = base_addr - offset;
-					int address = P ? offset_addr : base_addr;
-					int value;
-					if(isLoad) {
-						value = instructionReadHalfword(address, isPrivileged()) & 0xFFFF;
-						writeRegister(Rt, value);
-					}
-					else {
-						value = readRegister(Rt);
-						instructionWriteHalfword(address, (short)value, isPrivileged());
-					}
-					if(writeback) writeRegister(Rn, offset_addr);
-					return;
-				}
-				}
-			case 13:
-				switch(op1 & 5) {
-				case 0:
-				case 1:
-				case 4:
-				case 5: {
-					/* Load/store word and unsigned byte (A5-208) */
-					/* LDRD (register, A8-430) */
-					/* LDRSB (register, A8-454) */
-					/* LDRD (immediate, A8-426) */
-					/* LDRD (literal, A8-428) */
-					/* LDRSB (immediate, A8-450) */
-					/* LDRSB (literal, A8-452) */
-					boolean registerForm = ((iword >> 22) & 1) == 0;
-					boolean P = ((iword >> 24) & 1) != 0;
-					boolean U = ((iword >> 23) & 1) != 0;
-					boolean isByte = ((iword >> 20) & 1) != 0;
-					boolean W = ((iword >> 21) & 1) != 0;
-					int Rt = (iword >> 12) & 15;
-					boolean unprivileged = (!P && W);
-					boolean writeback = (!P ^ W);
-					int offset;
-					if(registerForm) offset = readRegister(iword & 15);
-					else offset = (iword & 15) | ((iword >> 4) & 240);
-					int base_addr = readRegisterAlignPC(Rn);
-					int offset_addr;
-					if(U) offset_addr = base_addr + offset;
-					else offset_addr = base_addr - offset;
-					int address = P ? offset_addr : base_addr;
-					int value;
-					if(isByte) {
-						value = instructionReadByte(address, unprivileged ? false : isPrivileged());
-						writeRegister(Rt, value);
-					}
-					else {
-						if((Rt&1)!=0 || Rt==14) throw new UndefinedException();
-						writeRegister(Rt, instructionReadWord(address, unprivileged ? false : isPrivileged()));
-						writeRegister(Rt+1, instructionReadWord(address+4, unprivileged ? false : isPrivileged()));
-					}
-					if(writeback) writeRegister(Rn, offset_addr);
-					return;
-				}
-				}
-			case 15:
-				switch(op1 & 5) {
-				case 0:
-					/* STRD (register, A8-688) */
-					throw new UnimplementedInstructionException(iword, "STRD(688)");
-				case 1:
-					/* LDRSH (register, A8-462) */
-					throw new UnimplementedInstructionException(iword, "LDRSH");
-				case 4: {
-					/* STRD (immediate, A8-686) */
-					boolean P = ((iword >> 24) & 1) != 0;
-					boolean U = ((iword >> 23) & 1) != 0;
-					boolean W = ((iword >> 21) & 1) != 0;
-					int Rt = (iword >> 12) & 15;
-					int offset = ((iword >> 4)&240) | (iword&15);
-					boolean writeback = !P || W;
-					int base_addr = readRegisterAlignPC(Rn);
-					int offset_addr;
-					if(U) offset_addr = base_addr + offset;
-					else offset_addr = base_addr - offset;
-					int address = P ? offset_addr : base_addr;
-					instructionWriteWord(address, readRegister(Rt));
-					instructionWriteWord(address+4, readRegister(Rt+1));
-					if(writeback) writeRegister(Rn, offset_addr);
-					return;
-				}
-				case 5: {
-					/* LDRSH (immediate, A8-458) */
-					/* LDRSH (literal, A8-460) */
-					boolean P = ((iword >> 24) & 1) != 0;
-					boolean U = ((iword >> 23) & 1) != 0;
-					boolean W = ((iword >> 21) & 1) != 0;
-					int Rt = (iword >> 12) & 15;
-					int offset = ((iword >> 4)&240) | (iword&15);
-					boolean writeback = !P || W;
-					int base_addr = readRegisterAlignPC(Rn);
-					int offset_addr;
-					if(U) offset_addr = base_addr + offset;
-					else offset_addr = base_addr - offset;
-					int address = P ? offset_addr : base_addr;
-					int value = instructionReadHalfword(address, isPrivileged());
-					writeRegister(Rt, value);
-					if(writeback) writeRegister(Rn, offset_addr);
-					return;
-				}
-				}
+			else writeRegister(Rd, (int)result);
+			return;
+		case 6:
+			switch(op) {
+			case 3:
+				/* ERET (B9-1982) */
+				throw new UnimplementedInstructionException(iword, "ERET");
+			}
+			break;
+		case 7:
+			switch(op) {
+			case 1:
+				/* BKPT (A8-346) */
+				/* TODO: Invasive debugging mode */
+				return;
+			case 2:
+				/* HVC (B9-1984) but we do NOT have Virtualization Extensions */
+			case 3:
+				/* SMC (B9-2002) but we do NOT have Security Extensions */
+				break;
 			}
 		}
 		throw new UndefinedException();
 	}
-	private void executeARMPage1(int iword) throws BusErrorException, AlignmentException, UndefinedException {
-		/* (op=1) Data-processing and miscellaneous instructions (A5-196) */
+	private void executeARMHalfwordMultiply(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
 		int op1 = (iword >> 20) & 31;
+		int op2 = (iword >> 4) & 15;
+		/* Halfword multiply and multiply accumulate (A5-203) */
 		switch(op1) {
 		case 16:
-			/* MOVW (A8-484) */
-		{
-			int Rd = (iword >> 12) & 15;
-			int imm16 = ((iword >> 4) & 0xF000) | (iword & 0xFFF);
-			writeRegister(Rd, imm16);
+			/* SMLABB/SMLABT/SMLATB/SMLATT (A8-620) */
+			throw new UnimplementedInstructionException(iword, "SMLABB/SMLABT/SMLATB/SMLATT");
+		case 18:
+			if((op2 & 2) == 0)
+				/* SMLAWB/SMLAWT (A8-630) */
+				throw new UnimplementedInstructionException(iword, "SMLAWB/SMLAWT");
+			else
+				/* SMULWB/SMULWT (A8-648) */
+				throw new UnimplementedInstructionException(iword, "SMULWB/SMULWT");
+		case 20:
+			/* SMLALBB/SMLALBT/SMLALTB/SMLALTT (A8-626) */
+			throw new UnimplementedInstructionException(iword, "SMLALBB/SMLALBT/SMLALTB/SMLALTT");
+		case 22: {
+			/* SMULBB/SMULBT/SMULTB/SMULTT (A8-644) */
+			int Rn = iword & 15;
+			int Rm = (iword>>8) & 15;
+			int Rd = (iword>>16) & 15;
+			int va, vb;
+			if((op2 & 2) != 0) va = readRegister(Rn)>>16;
+			else va = (short)readRegister(Rn);
+			if((op2 & 4) != 0) vb = readRegister(Rm)>>16;
+			else vb = (short)readRegister(Rm);
+			writeRegister(Rd, va*vb);
+		}
+		}
+		throw new UndefinedException();
+	}
+	/*** EXCLUSIVE MONITOR (A3-114) ***/
+	/* our slot in the global monitor, which lives in the memory space */
+	private final int monitorId;
+	/* the local monitor: the physical address and size of the last Load-Exclusive, or -1 if in Open Access state */
+	private long exclusiveAddress = -1;
+	private int exclusiveSize;
+	/* access size for each of the four pairs of exclusives, indexed by op1<2:1> */
+	private static final int[] EXCLUSIVE_SIZES = {4, 8, 1, 2};
+	/* CLREX, and anything else that returns the local monitor to Open Access */
+	private void clearExclusiveMonitor() {
+		if(exclusiveAddress < 0) return;
+		exclusiveAddress = -1;
+		mem.monitor.release(monitorId);
+	}
+	/* SWP and the exclusives go around vm's accessors, so their accesses are traced here; a doubleword as two words */
+	private void traceAtomic(boolean write, int address, int size, long value) {
+		int kind = write ? TraceRecorder.WRITE_BYTE : TraceRecorder.READ_BYTE;
+		switch(size) {
+		case 1: tracer.access(kind, address, (int)value & 0xFF); break;
+		case 2: tracer.access(kind+1, address, (int)value & 0xFFFF); break;
+		case 4: tracer.access(kind+2, address, (int)value); break;
+		case 8:
+			tracer.access(kind+2, address, (int)value);
+			tracer.access(kind+2, address+4, (int)(value >>> 32));
+			break;
+		}
+	}
+	private void executeARMMultiplyAndSynchronization(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		/* op2 == 9 */
+		int op1 = (iword >> 20) & 31;
+		switch(op1) {
+		/* Multiply and multiply accumulate (A5-202) */
+		case 0: case 1: case 2: case 3: {
+			/* MUL (A8-502) */
+			/* MLA (A8-480) */
+			int Rn = iword&15;
+			int Rm = (iword>>8)&15;
+			int Ra = (iword>>12)&15;
+			int Rd = (iword>>16)&15;
+			boolean setFlags = (op1&1) != 0;
+			boolean accumulate = (op1&2) != 0;
+			// result is the same whether signed or unsigned
+			int result = readRegister(Rn)*readRegister(Rm);
+			if(accumulate) result += readRegister(Ra);
+			if(setFlags) {
+				setConditionN(result < 0);
+				setConditionZ(result == 0);
+			}
+			writeRegister(Rd, result);
 			return;
 		}
-		case 20:
-			/* MOVT (high half-word 16 bit immediate, A8-491) */
-		{
-			int Rd = (iword >> 12) & 15;
-			int imm16 = ((iword >> 4) & 0xF000) | (iword & 0xFFF);
-			writeRegister(Rd, (readRegister(Rd) & 0xFFFF) | (imm16 << 16));
+		case 4:
+			/* UMAAL (A8-774) */
+			throw new UnimplementedInstructionException(iword, "UMAAL");
+		case 6: {
+			/* MLS (A8-482) */
+			int Rn = iword&15;
+			int Rm = (iword>>8)&15;
+			int Ra = (iword>>12)&15;
+			int Rd = (iword>>16)&15;
+			// result is the same whether signed or unsigned
+			int result = readRegister(Rn)*readRegister(Rm);
+			result = readRegister(Ra) - result;
+			writeRegister(Rd, result);
 			return;
 		}
-		case 18:
-		case 22:
-			/* MSR/hints (immediate, A5-206) */
-		{
-			int mask = (iword >> 16) & 15;
-			if(((iword >> 22) & 1) == 0 && mask == 0) {
-				int hint = iword & 255;
-				if(hint >= 240) {
-					/* DBG (A8-377) */
-					if(debugDumpMode) {
-						System.err.println("DBG #"+(hint&15));
-						dumpState(System.err);
-					}
-				}
-				switch(hint) {
-				case 0: break; // NOP (A8-510)
-				case 1: break; // YIELD (A8-1108)
-				case 2: /* no SMP or events; TODO events */ break; // WFE (A8-1104)
-				case 3: // WFI (A8-1106)
-					if(haveFIQ() || haveIRQ()) break;
-					waitingForInterrupt = true;
-					return;
-				case 4: /* no SMP or events; see above */ break; // SEV (A8-606)
-				}
-				// do nothing
-				return;
+		case 8: case 9: {
+			/* UMULL (A8-778) */
+			int Rn = iword&15;
+			int Rm = (iword>>8)&15;
+			int RdLo = (iword>>12)&15;
+			int RdHi = (iword>>16)&15;
+			boolean setFlags = (op1&1) != 0;
+			long src1 = readRegister(Rn) & 0xFFFFFFFFL;
+			long src2 = readRegister(Rm) & 0xFFFFFFFFL;
+			long result = src1 * src2;
+			writeRegister(RdLo, (int)(result & 0xFFFFFFFFL));
+			writeRegister(RdHi, (int)(result >>> 32));
+			if(setFlags) {
+				setConditionN(result < 0);
+				setConditionZ(result == 0);
 			}
-			else {
-				boolean writingSPSR = (op1 & 4) != 0;
-				if(writingSPSR || ((mask & 3) == 1) || ((mask & 2) != 0))
-					/* MSR (immediate, system-level, B9-1996 */
-					if(!isPrivileged()) throw new UndefinedException();
-				int imm32 = expandARMImmediate(iword & 4095);
-				if(writingSPSR)
-					instrWriteCurSPSR(imm32, mask);
-				else
-					instrWriteCurCPSR(imm32, mask, false);
-				return;
+			return;
+		}
+		case 10: case 11:
+			/* UMLAL (A8-776) */
+			throw new UnimplementedInstructionException(iword, "UMLAL");
+		case 12: case 13:
+			/* SMULL (A8-646) */
+			throw new UnimplementedInstructionException(iword, "SMULL");
+		case 14: case 15:
+			/* SMLAL (A8-624) */
+			throw new UnimplementedInstructionException(iword, "SMLAL");
+		/* Synchronization primitives (A5-205) */
+		case 16: case 20: {
+			/* SWP/SWPB (A8-722) */
+			int Rt2 = iword&15;
+			int Rt = (iword>>12)&15;
+			int Rn = (iword>>16)&15;
+			boolean isByte = (op1&4) != 0;
+			int value = readRegister(Rt2);
+			long physical = vm.translateAtomic(readRegister(Rn), isByte ? 1 : 4, true, isBigEndian(), value);
+			int old = mem.swap(physical, value, isByte, isBigEndian());
+			if(tracer != null) {
+				traceAtomic(false, readRegister(Rn), isByte ? 1 : 4, old);
+				traceAtomic(true, readRegister(Rn), isByte ? 1 : 4, value);
 			}
+			writeRegister(Rt, old);
+			return;
 		}
+		case 24: case 26: case 28: case 30: {
+			/* STREX (A8-690), STREXD (A8-694), STREXB (A8-692), STREXH (A8-696) */
+			int Rt = iword&15;
+			int Rd = (iword>>12)&15;
+			int Rn = (iword>>16)&15;
+			int size = EXCLUSIVE_SIZES[(op1>>1)&3];
+			if(size == 8 && ((Rt&1) != 0 || Rt == 14)) throw new UndefinedException(); /* UNPREDICTABLE */
+			long value = readRegister(Rt) & 0xFFFFFFFFL;
+			if(size == 8) value |= (long)readRegister(Rt+1) << 32;
+			long physical = vm.translateAtomic(readRegister(Rn), size, true, isBigEndian(), value);
+			/* the local monitor has to agree before we bother the global one */
+			boolean stored = exclusiveAddress == physical && exclusiveSize == size
+					&& mem.storeExclusive(monitorId, physical, size, value, isBigEndian());
+			clearExclusiveMonitor();
+			if(stored && tracer != null) traceAtomic(true, readRegister(Rn), size, value);
+			writeRegister(Rd, stored ? 0 : 1);
+			return;
 		}
-		/* Data processing, immediate (A5-199) */
-		int Rn = (iword >> 16) & 15;
-		int Rd = (iword >> 12) & 15;
-		int imm12 = iword & 4095;
-		int n = readRegister(Rn);
-		executeDataProcessingOperation(op1, n, expandARMImmediate(imm12), Rd);
-		if(Rd == 15 && (op1 & 1) == 1) {
-			/* non-privileged flag-setting PC writes are already filtered out by eDPO */
-			if(Rn == 14) {
+		case 25: case 27: case 29: case 31: {
+			/* LDREX (A8-432), LDREXD (A8-436), LDREXB (A8-434), LDREXH (A8-438) */
+			int Rt = (iword>>12)&15;
+			int Rn = (iword>>16)&15;
+			int size = EXCLUSIVE_SIZES[(op1>>1)&3];
+			if(size == 8 && ((Rt&1) != 0 || Rt == 14)) throw new UndefinedException(); /* UNPREDICTABLE */
+			long physical = vm.translateAtomic(readRegister(Rn), size, false, isBigEndian(), 0);
+			long value = mem.loadExclusive(monitorId, physical, size, isBigEndian());
+			exclusiveAddress = physical;
+			exclusiveSize = size;
+			if(tracer != null) traceAtomic(false, readRegister(Rn), size, value);
+			writeRegister(Rt, (int)value);
+			if(size == 8) writeRegister(Rt+1, (int)(value >>> 32));
+			return;
+		}
+		default:
+			/* undefined, explicitly throw */
+			throw new UndefinedException();
+		}
+	}
+	private void executeARMExtraLoadStore(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		/* op2 > 9 */
+		int op1 = (iword >> 20) & 31;
+		int op2 = (iword >> 4) & 15;
+		boolean argh = (op2 & 4) != 0;
+		if((op1 & 16) == 0) {
+			if(((op2 == 11) && (op1 & 18) == 2)
+				|| (op2 == 13 || op2 == 15) && (op1 & 19) == 3) {
+				/* Extra load/store instructions, unprivileged (A5-204) */
+				switch(op2) {
+				case 11:
+					if((op1 & 1) == 0) {
+						/* STRHT (A8-704) */
+						throw new UnimplementedInstructionException(iword, "STRHT");
+					}
+					else {
+						/* LDRHT (A8-448) */
+						throw new UnimplementedInstructionException(iword, "LDRHT");
+					}
+				case 13:
+					/* LDRSBT (A8-456) */
+					throw new UnimplementedInstructionException(iword, "LDRSBT");
+				case 15:
+					/* LDRSHT (A8-464) */
+					throw new UnimplementedInstructionException(iword, "LDRSHT");
+				}
+			}
+		}
+		/* Extra load/store instructions (A5-203) */
+		int Rn = (iword >> 16) & 15;
+		switch(op2) {
+		case 11:
+			switch(op1 & 5) {
+			case 0: 
+			case 1:
+			case 4:
+			case 5: {
+				/* LDRH (register, A8-446) */
+				/* STRH (register, A8-702) */
+				/* LDRH (immediate, ARM, A8-442) */
+				/* LDRH (literal, A8-444) */
+				/* STRH (immediate, ARM, A8-700) */
+				boolean P = ((iword >> 24) & 1) != 0;
+				boolean U = ((iword >> 23) & 1) != 0;
+				boolean W = ((iword >> 21) & 1) != 0;
+				boolean isLoad = ((op1 & 1) != 0);
+				boolean registerForm = ((op1 & 4) == 0);
+				int Rt = (iword >> 12) & 15;
+				int offset;
+				if(registerForm) offset = readRegister(iword & 15);
+				else offset = ((iword >> 4)&240) | (iword&15);
+				boolean writeback = !P || W;
+				int base_addr = readRegisterAlignPC(Rn);
+				int offset_addr;
+				if(U) offset_addr = base_addr + offset;
+				else offset_addr = base_addr - offset;
+				int address = P ? offset_addr : base_addr;
+				int value;
+				if(isLoad) {
+					value = instructionReadHalfword(address, isPrivileged()) & 0xFFFF;
+					writeRegister(Rt, value);
+				}
+				else {
+					value = readRegister(Rt);
+					instructionWriteHalfword(address, (short)value, isPrivileged());
+				}
+				if(writeback) writeRegister(Rn, offset_addr);
+				return;
+			}
+			}
+		case 13:
+			switch(op1 & 5) {
+			case 0:
+			case 1:
+			case 4:
+			case 5: {
+				/* Load/store word and unsigned byte (A5-208) */
+				/* LDRD (register, A8-430) */
+				/* LDRSB (register, A8-454) */
+				/* LDRD (immediate, A8-426) */
+				/* LDRD (literal, A8-428) */
+				/* LDRSB (immediate, A8-450) */
+				/* LDRSB (literal, A8-452) */
+				boolean registerForm = ((iword >> 22) & 1) == 0;
+				boolean P = ((iword >> 24) & 1) != 0;
+				boolean U = ((iword >> 23) & 1) != 0;
+				boolean isByte = ((iword >> 20) & 1) != 0;
+				boolean W = ((iword >> 21) & 1) != 0;
+				int Rt = (iword >> 12) & 15;
+				boolean unprivileged = (!P && W);
+				boolean writeback = (!P ^ W);
+				int offset;
+				if(registerForm) offset = readRegister(iword & 15);
+				else offset = (iword & 15) | ((iword >> 4) & 240);
+				int base_addr = readRegisterAlignPC(Rn);
+				int offset_addr;
+				if(U) offset_addr = base_addr + offset;
+				else offset_addr = base_addr - offset;
+				int address = P ? offset_addr : base_addr;
+				int value;
+				if(isByte) {
+					value = instructionReadByte(address, unprivileged ? false : isPrivileged());
+					writeRegister(Rt, value);
+				}
+				else {
+					if((Rt&1)!=0 || Rt==14) throw new UndefinedException();
+					writeRegister(Rt, instructionReadWord(address, unprivileged ? false : isPrivileged()));
+					writeRegister(Rt+1, instructionReadWord(address+4, unprivileged ? false : isPrivileged()));
+				}
+				if(writeback) writeRegister(Rn, offset_addr);
+				return;
+			}
+			}
+		case 15:
+			switch(op1 & 5) {
+			case 0:
+				/* STRD (register, A8-688) */
+				throw new UnimplementedInstructionException(iword, "STRD(688)");
+			case 1:
+				/* LDRSH (register, A8-462) */
+				throw new UnimplementedInstructionException(iword, "LDRSH");
+			case 4: {
+				/* STRD (immediate, A8-686) */
+				boolean P = ((iword >> 24) & 1) != 0;
+				boolean U = ((iword >> 23) & 1) != 0;
+				boolean W = ((iword >> 21) & 1) != 0;
+				int Rt = (iword >> 12) & 15;
+				int offset = ((iword >> 4)&240) | (iword&15);
+				boolean writeback = !P || W;
+				int base_addr = readRegisterAlignPC(Rn);
+				int offset_addr;
+				if(U) offset_addr = base_addr + offset;
+				else offset_addr = base_addr - offset;
+				int address = P ? offset_addr : base_addr;
+				instructionWriteWord(address, readRegister(Rt));
+				instructionWriteWord(address+4, readRegister(Rt+1));
+				if(writeback) writeRegister(Rn, offset_addr);
+				return;
+			}
+			case 5: {
+				/* LDRSH (immediate, A8-458) */
+				/* LDRSH (literal, A8-460) */
+				boolean P = ((iword >> 24) & 1) != 0;
+				boolean U = ((iword >> 23) & 1) != 0;
+				boolean W = ((iword >> 21) & 1) != 0;
+				int Rt = (iword >> 12) & 15;
+				int offset = ((iword >> 4)&240) | (iword&15);
+				boolean writeback = !P || W;
+				int base_addr = readRegisterAlignPC(Rn);
+				int offset_addr;
+				if(U) offset_addr = base_addr + offset;
+				else offset_addr = base_addr - offset;
+				int address = P ? offset_addr : base_addr;
+				int value = instructionReadHalfword(address, isPrivileged());
+				writeRegister(Rt, value);
+				if(writeback) writeRegister(Rn, offset_addr);
+				return;
+			}
+			}
+		}
+		throw new UndefinedException();
+	}
+	private void executeARMMSRImmediateAndHints(int iword) throws BusErrorException, AlignmentException, UndefinedException {
+		/* MSR/hints (immediate, A5-206) */
+		int op1 = (iword >> 20) & 31;
+		int mask = (iword >> 16) & 15;
+		if(((iword >> 22) & 1) == 0 && mask == 0) {
+			int hint = iword & 255;
+			if(hint >= 240) {
+				/* DBG (A8-377) */
+				if(debugDumpMode) {
+					System.err.println("DBG #"+(hint&15));
+					dumpState(System.err);
+				}
+			}
+			switch(hint) {
+			case 0: break; // NOP (A8-510)
+			case 1: break; // YIELD (A8-1108)
+			case 2: // WFE (A8-1104)
+				if(eventPendingAtWait()) {
+					eventRegister = false;
+					break;
+				}
+				if(interruptPendingAtWait()) break;
+				waitingForInterrupt = waitingForEvent = true;
+				return;
+			case 3: // WFI (A8-1106)
+				if(interruptPendingAtWait()) break;
+				waitingForInterrupt = true;
+				return;
+			case 4: // SEV (A8-606)
+				/* every core, including this one (B1-1199) */
+				for(CPU cpu : mem.getProcessors()) cpu.signalEvent();
+				break;
+			}
+			// do nothing
+			return;
+		}
+		else {
+			boolean writingSPSR = (op1 & 4) != 0;
+			if(writingSPSR || ((mask & 3) == 1) || ((mask & 2) != 0))
+				/* MSR (immediate, system-level, B9-1996 */
+				if(!isPrivileged()) throw new UndefinedException();
+			int imm32 = expandARMImmediate(iword & 4095);
+			if(writingSPSR)
+				instrWriteCurSPSR(imm32, mask);
+			else
+				instrWriteCurCPSR(imm32, mask, false);
+			return;
+		}
+	}
+	private void executeARMDataProcessingImmediate(int iword) throws BusErrorException, AlignmentException, UndefinedException {
+		int op1 = (iword >> 20) & 31;
+		/* Data processing, immediate (A5-199) */
+		int Rn = (iword >> 16) & 15;
+		int Rd = (iword >> 12) & 15;
+		int imm12 = iword & 4095;
+		int n = readRegister(Rn);
+		executeDataProcessingOperation(op1, n, expandARMImmediate(imm12), Rd);
+		if(Rd == 15 && (op1 & 1) == 1) {
+			/* non-privileged flag-setting PC writes are already filtered out by eDPO */
+			if(Rn == 14) {
 				// <op>S PC, LR, #<const>
 				returnFromProcessorMode();
 			}
 			else throw new UndefinedException();
 		}
 	}
-	private void executeARMPage23(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
-		if((iword & (1<<25)) != 0 && (iword & 16) != 0) {
-			int op1 = (iword >> 20) & 31;
-			int op2 = (iword >> 5) & 7;
-			int Rn = iword & 15;
-			/* Media instructions (A5-209) */
-			if(op1 == 31 && op2 == 7) {
-				/* UDF (A8-758) */
-				/* ALWAYS undefined. Worth EXPLICITLY throwing. */
-				throw new UndefinedException();
+	private void executeARMMedia(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		int op1 = (iword >> 20) & 31;
+		int op2 = (iword >> 5) & 7;
+		int Rn = iword & 15;
+		/* Media instructions (A5-209) */
+		if(op1 == 31 && op2 == 7) {
+			/* UDF (A8-758) */
+			/* ALWAYS undefined. Worth EXPLICITLY throwing. */
+			throw new UndefinedException();
+		}
+		else if(op1 >= 30) {
+			if((op2 & 3) == 2) {
+				/* UBFX (A8-756) */
+				int widthminus1 = (iword >> 16) & 31;
+				int Rd = (iword >> 12) & 15;
+				int lsbit = (iword >> 7) & 31;
+				writeRegister(Rd, (readRegister(Rn) >>> lsbit) & (0xFFFFFFFF >>> (31-widthminus1)));
+				return;
 			}
-			else if(op1 >= 30) {
-				if((op2 & 3) == 2) {
-					/* UBFX (A8-756) */
-					int widthminus1 = (iword >> 16) & 31;
-					int Rd = (iword >> 12) & 15;
-					int lsbit = (iword >> 7) & 31;
-					writeRegister(Rd, (readRegister(Rn) >>> lsbit) & (0xFFFFFFFF >>> (31-widthminus1)));
-					return;
+		}
+		else if(op1 >= 28) {
+			if((op2 & 3) == 0) {
+				int lsb = (iword >> 7) & 31;
+				int msb = (iword >> 16) & 31;
+				int Rd = (iword >> 12) & 15;
+				int value = readRegister(Rd);
+				int mask = (0xFFFFFFFF << lsb) & (0xFFFFFFFF >>> (31-msb));
+				if(Rn == 15) {
+					/* BFC (A8-336) */
+					value = (value & ~mask);
 				}
-			}
-			else if(op1 >= 28) {
-				if((op2 & 3) == 0) {
-					int lsb = (iword >> 7) & 31;
-					int msb = (iword >> 16) & 31;
-					int Rd = (iword >> 12) & 15;
-					int value = readRegister(Rd);
-					int mask = (0xFFFFFFFF << lsb) & (0xFFFFFFFF >>> (31-msb));
-					if(Rn == 15) {
-						/* BFC (A8-336) */
-						value = (value & ~mask);
-					}
-					else {
-						/* BFI (A8-338) */
-						value = (value & ~mask) | ((readRegister(Rn) << lsb) & mask);
-					}
-					writeRegister(Rd, value);
-					return;
+				else {
+					/* BFI (A8-338) */
+					value = (value & ~mask) | ((readRegister(Rn) << lsb) & mask);
 				}
+				writeRegister(Rd, value);
+				return;
 			}
-			else if(op1 >= 26) {
-				if((op2 & 3) == 2) {
-					/* SBFX (A8-598) */
-					int widthminus1 = (iword >> 16) & 31;
-					int Rd = (iword >> 12) & 15;
-					int lsbit = (iword >> 7) & 31;
-					int value = (readRegister(Rn) >>> lsbit) & (0xFFFFFFFF >>> (31-widthminus1));
-					if((value & (1<<widthminus1))!=0) value |= 0xFFFFFFFF << (widthminus1+1);
-					writeRegister(Rd, value);
-					return;
-				}
+		}
+		else if(op1 >= 26) {
+			if((op2 & 3) == 2) {
+				/* SBFX (A8-598) */
+				int widthminus1 = (iword >> 16) & 31;
+				int Rd = (iword >> 12) & 15;
+				int lsbit = (iword >> 7) & 31;
+				int value = (readRegister(Rn) >>> lsbit) & (0xFFFFFFFF >>> (31-widthminus1));
+				if((value & (1<<widthminus1))!=0) value |= 0xFFFFFFFF << (widthminus1+1);
+				writeRegister(Rd, value);
+				return;
 			}
-			else if(op1 == 24) {
-				if(op2 == 0) {
-					int Rd = (iword >> 12) & 15;
-					if(Rd == 15) {
-						/* USADA8 (A8-794) */
-						throw new UnimplementedInstructionException(iword, "USADA8");
-					}
-					else {
-						/* USAD8 (A8-792) */
-						throw new UnimplementedInstructionException(iword, "USAD8");
-					}
+		}
+		else if(op1 == 24) {
+			if(op2 == 0) {
+				int Rd = (iword >> 12) & 15;
+				if(Rd == 15) {
+					/* USADA8 (A8-794) */
+					throw new UnimplementedInstructionException(iword, "USADA8");
 				}
-			}
-			else if(op1 < 24) {
-				if((op1 & 16) != 0) {
-					if((op1 & 8) == 0) {
-						/* Signed multiply, signed and unsigned divide (A5-213) */
-						op1 &= 7;
-						int A = (iword >> 12) & 15;
-						/* high nibble is op1, low op2&~1 */
-						switch((op1 << 4) | (op2 & ~1)) {
-						case 0x00:
-							if(A != 15) {
-								/* SMLAD (A8-622) */
-								throw new UnimplementedInstructionException(iword, "SMLAD");
-							}
-							else {
-								/* SMUAD (A8-642) */
-								throw new UnimplementedInstructionException(iword, "SMUAD");
-							}
-						case 0x02:
-							if(A != 15) {
-								/* SMLSD (A8-632) */
-								throw new UnimplementedInstructionException(iword, "SMLSD");
-							}
-							else {
-								/* SMUSD (A8-650) */
-								throw new UnimplementedInstructionException(iword, "SMUSD");
-							}
-						case 0x10:
-							if(op2 == 0) {
-								/* SDIV (A8-600) */
-								int Rm = (iword>>8)&15;
-								int Rd = (iword>>16)&15;
-								int n = readRegister(Rn);
-								int m = readRegister(Rm);
-								int d;
-								if(m == 0) {
-									/* TODO: if IntegerZeroDivideTrappingEnabled() then GenerateIntegerZeroDivide(); */
-									d = 0;
-								}
-								else if(m == -1 || n == -2147483648)
-									d = -2147483648;
-								else
-									d = n  / m;
-								writeRegister(Rd, d);
-								return;
-							}
-							else break;
-						case 0x30:
-							if(op2 == 0) {
-								/* UDIV (A8-760) */
-								int Rm = (iword>>8)&15;
-								int Rd = (iword>>16)&15;
-								int n = readRegister(Rn);
-								int m = readRegister(Rm);
-								int d;
-								if(m == 0) {
-									/* TODO: if IntegerZeroDivideTrappingEnabled() then GenerateIntegerZeroDivide(); */
-									d = 0;
-								}
-								else
-									d = (int)((n&0xFFFFFFFFL)  / (m&0xFFFFFFFFL));
-								writeRegister(Rd, d);
-								return;
-							}
-							else break;
-						case 0x40:
-							/* SMLALD (A8-628) */
-							throw new UnimplementedInstructionException(iword, "SMLALD");
-						case 0x42:
-							/* SMLSLD (A8-634) */
-							throw new UnimplementedInstructionException(iword, "SMLSLD");
-						case 0x50:
-							if(A != 15) {
-								/* SMMLA (A8-636) */
-								throw new UnimplementedInstructionException(iword, "SMMLA");
-							}
-							else {
-								/* SMMUL (A8-640) */
-								boolean round = ((iword >> 5) & 1) != 0;
-								int Rd = (iword >> 16) & 15;
-								int Rm = (iword >> 8) & 15;
-								long result = (long)readRegister(Rn) * readRegister(Rm);
-								// System.out.printf("\t%08X * %08X = %016X\n", readRegister(Rn), readRegister(Rm), result);
-								if(round) result += 0x80000000L;
-								writeRegister(Rd, (int)(result >> 32));
-								return;
-							}
-						case 0x56:
-							/* SMMLS (A8-638) */
-							throw new UnimplementedInstructionException(iword, "SMMLS");
-						}
-					}
+				else {
+					/* USAD8 (A8-792) */
+					throw new UnimplementedInstructionException(iword, "USAD8");
 				}
-				else if((op1 & 8) != 0) {
-					/* Packing, unpacking, saturation, and reversal (A5-212) */
+			}
+		}
+		else if(op1 < 24) {
+			if((op1 & 16) != 0) {
+				if((op1 & 8) == 0) {
+					/* Signed multiply, signed and unsigned divide (A5-213) */
 					op1 &= 7;
-					int Radd = (iword >> 16) & 15;
-					if(op1 == 0) {
-						if((op2 & 1) == 0) {
-							/* PKH (A8-522) */
-							int Rn_real = (iword >> 16) & 15;
-							int Rd = (iword >> 12) & 15;
-							int Rm = iword & 15;
-							boolean isTB = (iword&64)!=0;
-							int m = applyIRShift(readRegister(Rm), isTB ? 2 : 0, (iword>>7)&31);
-							int n = readRegister(Rn_real);
-							if(isTB)
-								writeRegister(Rd, (m&0x0000FFFF)|(n&0xFFFF0000));
+					int A = (iword >> 12) & 15;
+					/* high nibble is op1, low op2&~1 */
+					switch((op1 << 4) | (op2 & ~1)) {
+					case 0x00:
+						if(A != 15) {
+							/* SMLAD (A8-622) */
+							throw new UnimplementedInstructionException(iword, "SMLAD");
+						}
+						else {
+							/* SMUAD (A8-642) */
+							throw new UnimplementedInstructionException(iword, "SMUAD");
+						}
+					case 0x02:
+						if(A != 15) {
+							/* SMLSD (A8-632) */
+							throw new UnimplementedInstructionException(iword, "SMLSD");
+						}
+						else {
+							/* SMUSD (A8-650) */
+							throw new UnimplementedInstructionException(iword, "SMUSD");
+						}
+					case 0x10:
+						if(op2 == 0) {
+							/* SDIV (A8-600) */
+							int Rm = (iword>>8)&15;
+							int Rd = (iword>>16)&15;
+							int n = readRegister(Rn);
+							int m = readRegister(Rm);
+							int d;
+							if(m == 0) {
+								/* TODO: if IntegerZeroDivideTrappingEnabled() then GenerateIntegerZeroDivide(); */
+								d = 0;
+							}
+							else if(m == -1 || n == -2147483648)
+								d = -2147483648;
 							else
-								writeRegister(Rd, (m&0xFFFF0000)|(n&0x0000FFFF));
+								d = n  / m;
+							writeRegister(Rd, d);
 							return;
 						}
-						else if(op2 == 3) {
-							if(Radd != 15) {
-								/* SXTAB16 (A8-726) */
-								throw new UnimplementedInstructionException(iword, "SXTAB16");
-							}
-							else {
-								/* SXTB16 (A8-732) */
-								throw new UnimplementedInstructionException(iword, "SXTB16");
+						else break;
+					case 0x30:
+						if(op2 == 0) {
+							/* UDIV (A8-760) */
+							int Rm = (iword>>8)&15;
+							int Rd = (iword>>16)&15;
+							int n = readRegister(Rn);
+							int m = readRegister(Rm);
+							int d;
+							if(m == 0) {
+								/* TODO: if IntegerZeroDivideTrappingEnabled() then GenerateIntegerZeroDivide(); */
+								d = 0;
 							}
+							else
+								d = (int)((n&0xFFFFFFFFL)  / (m&0xFFFFFFFFL));
+							writeRegister(Rd, d);
+							return;
 						}
-						else if(op2 == 5) {
-							/* SEL (A8-602) */
-							throw new UnimplementedInstructionException(iword, "SEL");
+						else break;
+					case 0x40:
+						/* SMLALD (A8-628) */
+						throw new UnimplementedInstructionException(iword, "SMLALD");
+					case 0x42:
+						/* SMLSLD (A8-634) */
+						throw new UnimplementedInstructionException(iword, "SMLSLD");
+					case 0x50:
+						if(A != 15) {
+							/* SMMLA (A8-636) */
+							throw new UnimplementedInstructionException(iword, "SMMLA");
 						}
-					}
-					else if(op1 == 1) {
-						/* no valid instructions */
-					}
-					else {
-						boolean unsigned = (op1 & 4) != 0;
-						/* high nibble is low bits of op1, low nibble is op2, for ease of reading
-						 * wish I were compiling against Java 7 so I could use binary literals... */
-						switch(op2 | ((op1 & 3) << 4)) {
-						case 0x21:
-							/* SSAT16 (A8-654), USAT16 (A8-798) */
-							throw new UnimplementedInstructionException(iword, "*SAT16");
-						case 0x23: {
-							/* SXTAB (A8-724), UXTAB (A8-806) */
-							/* SXTB (A8-730), UXTB (A8-812) */
-							int Rd = (iword >> 12) & 15;
-							int rotation = (iword >> 7) & 24;
-							int result = Integer.rotateRight(readRegister(Rn), rotation);
-							if(unsigned) result &= 0xFF;
-							else result = (int)(byte)result;
-							writeRegister(Rd, Radd == 15 ? result : result + readRegister(Radd));
+						else {
+							/* SMMUL (A8-640) */
+							boolean round = ((iword >> 5) & 1) != 0;
+							int Rd = (iword >> 16) & 15;
+							int Rm = (iword >> 8) & 15;
+							long result = (long)readRegister(Rn) * readRegister(Rm);
+							if(round) result += 0x80000000L;
+							writeRegister(Rd, (int)(result >> 32));
 							return;
 						}
-						case 0x31:
-							/* the unsigned/signed symmetry breaks down here */
-							if(!unsigned) {
-								/* REV (A8-562) */
-								int Rm = iword&15;
-								int Rd = (iword>>12)&15;
-								writeRegister(Rd, Integer.reverseBytes(readRegister(Rm)));
-								return;
-							}
-							else {
-								/* RBIT (A8-560) */
-								int Rm = iword&15;
-								int Rd = (iword>>12)&15;
-								writeRegister(Rd, Integer.reverse(readRegister(Rm)));
-								return;
-							}
-						case 0x33: {
-							/* SXTAH (A8-728), UXTAH (A8-810) */
-							/* SXTH (A8-734), UXTH (A8-816) */
-							int Rd = (iword >> 12) & 15;
-							int rotation = (iword >> 7) & 24;
-							int result = Integer.rotateRight(readRegister(Rn), rotation);
-							if(unsigned) result &= 0xFFFF;
-							else result = (int)(short)result;
-							writeRegister(Rd, Radd == 15 ? result : result + readRegister(Radd));
-							return;
+					case 0x56:
+						/* SMMLS (A8-638) */
+						throw new UnimplementedInstructionException(iword, "SMMLS");
+					}
+				}
+			}
+			else if((op1 & 8) != 0) {
+				/* Packing, unpacking, saturation, and reversal (A5-212) */
+				op1 &= 7;
+				int Radd = (iword >> 16) & 15;
+				if(op1 == 0) {
+					if((op2 & 1) == 0) {
+						/* PKH (A8-522) */
+						int Rn_real = (iword >> 16) & 15;
+						int Rd = (iword >> 12) & 15;
+						int Rm = iword & 15;
+						boolean isTB = (iword&64)!=0;
+						int m = applyIRShift(readRegister(Rm), isTB ? 2 : 0, (iword>>7)&31);
+						int n = readRegister(Rn_real);
+						if(isTB)
+							writeRegister(Rd, (m&0x0000FFFF)|(n&0xFFFF0000));
+						else
+							writeRegister(Rd, (m&0xFFFF0000)|(n&0x0000FFFF));
+						return;
+					}
+					else if(op2 == 3) {
+						if(Radd != 15) {
+							/* SXTAB16 (A8-726) */
+							throw new UnimplementedInstructionException(iword, "SXTAB16");
 						}
-						case 0x35:
-							/* breaks down here too */
-							if(!unsigned) {
-								/* REV16 (A8-564) */
-								int Rm = iword&15;
-								int Rd = (iword>>12)&15;
-								writeRegister(Rd, (Short.reverseBytes((short)readRegister(Rm))&0xFFFF)
-										|(Short.reverseBytes((short)(readRegister(Rm)>>16))<<16));
-								return;
-							}
-							else {
-								/* REVSH (A8-566) */
-								int Rm = iword&15;
-								int Rd = (iword>>12)&15;
-								writeRegister(Rd, Short.reverseBytes((short)readRegister(Rm)));
-								return;
-							}
-						default:
-							if((op1 & 6) == 2 && (op2 & 1) == 0) {
-								/* SSAT (A8-652), USAT (A8-796) */
-								throw new UnimplementedInstructionException(iword, "*SAT");
-							}
+						else {
+							/* SXTB16 (A8-732) */
+							throw new UnimplementedInstructionException(iword, "SXTB16");
 						}
 					}
+					else if(op2 == 5) {
+						/* SEL (A8-602) */
+						throw new UnimplementedInstructionException(iword, "SEL");
+					}
+				}
+				else if(op1 == 1) {
+					/* no valid instructions */
 				}
 				else {
-					/* Parallel addition and subtraction, signed (A5-210) */
-					/* Parallel addition and subtraction, unsigned (A5-211) */
 					boolean unsigned = (op1 & 4) != 0;
-					boolean saturate = (op1 & 3) == 2;
-					boolean half = (op1 & 3) == 3;
-					int Rn_real = (iword>>16)&15;
-					int Rd = (iword>>12)&15;
-					int Rm = iword&15;
-					int n = readRegister(Rn_real);
-					int m = readRegister(Rm);
-					switch(op2) {
-					case 0: {
-						/* SADD16 (A8-586), QADD16 (A8-542), SHADD16 (A5-608), UADD16 (A8-750), UQADD16 (A8-780), UHADD16 (A8-762) */
-						int loN = (short)n;
-						int hiN = (short)(n>>16);
-						int loM = (short)m;
-						int hiM = (short)(m>>16);
-						if(unsigned) {
-							loN &= 0xFFFF;
-							hiN &= 0xFFFF;
-							loM &= 0xFFFF;
-							hiM &= 0xFFFF;
-						}
-						int loD = loN + loM;
-						int hiD = hiN + hiM;
-						if(half) {
-							loD >>= 1;
-							hiD >>= 1;
+					/* high nibble is low bits of op1, low nibble is op2, for ease of reading
+					 * wish I were compiling against Java 7 so I could use binary literals... */
+					switch(op2 | ((op1 & 3) << 4)) {
+					case 0x21:
+						/* SSAT16 (A8-654), USAT16 (A8-798) */
+						throw new UnimplementedInstructionException(iword, "*SAT16");
+					case 0x23: {
+						/* SXTAB (A8-724), UXTAB (A8-806) */
+						/* SXTB (A8-730), UXTB (A8-812) */
+						int Rd = (iword >> 12) & 15;
+						int rotation = (iword >> 7) & 24;
+						int result = Integer.rotateRight(readRegister(Rn), rotation);
+						if(unsigned) result &= 0xFF;
+						else result = (int)(byte)result;
+						writeRegister(Rd, Radd == 15 ? result : result + readRegister(Radd));
+						return;
+					}
+					case 0x31:
+						/* the unsigned/signed symmetry breaks down here */
+						if(!unsigned) {
+							/* REV (A8-562) */
+							int Rm = iword&15;
+							int Rd = (iword>>12)&15;
+							writeRegister(Rd, Integer.reverseBytes(readRegister(Rm)));
+							return;
 						}
-						if(saturate) {
-							if(unsigned) {
-								loD = clamp(loD, 0, 0xFFFF);
-								hiD = clamp(hiD, 0, 0xFFFF);
-							}
-							else {
-								loD = clamp(loD, -0x8000, 0x7FFF);
-								hiD = clamp(hiD, -0x8000, 0x7FFF);
-							}
+						else {
+							/* RBIT (A8-560) */
+							int Rm = iword&15;
+							int Rd = (iword>>12)&15;
+							writeRegister(Rd, Integer.reverse(readRegister(Rm)));
+							return;
 						}
-						writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
-					} return;
-					case 1: {
-						/* SASX (A8-590), QASX (A8-546), SHASX (A8-612), UASX (A8-754), UQASX (A8-784), UHASX (A8-766) */
-						int loN = (short)n;
-						int hiN = (short)(n>>16);
-						int loM = (short)m;
-						int hiM = (short)(m>>16);
-						if(unsigned) {
-							loN &= 0xFFFF;
-							hiN &= 0xFFFF;
-							loM &= 0xFFFF;
-							hiM &= 0xFFFF;
+					case 0x33: {
+						/* SXTAH (A8-728), UXTAH (A8-810) */
+						/* SXTH (A8-734), UXTH (A8-816) */
+						int Rd = (iword >> 12) & 15;
+						int rotation = (iword >> 7) & 24;
+						int result = Integer.rotateRight(readRegister(Rn), rotation);
+						if(unsigned) result &= 0xFFFF;
+						else result = (int)(short)result;
+						writeRegister(Rd, Radd == 15 ? result : result + readRegister(Radd));
+						return;
+					}
+					case 0x35:
+						/* breaks down here too */
+						if(!unsigned) {
+							/* REV16 (A8-564) */
+							int Rm = iword&15;
+							int Rd = (iword>>12)&15;
+							writeRegister(Rd, (Short.reverseBytes((short)readRegister(Rm))&0xFFFF)
+									|(Short.reverseBytes((short)(readRegister(Rm)>>16))<<16));
+							return;
 						}
-						int loD = loN - hiM;
-						int hiD = hiN + loM;
-						if(half) {
-							loD >>= 1;
-							hiD >>= 1;
+						else {
+							/* REVSH (A8-566) */
+							int Rm = iword&15;
+							int Rd = (iword>>12)&15;
+							writeRegister(Rd, Short.reverseBytes((short)readRegister(Rm)));
+							return;
 						}
-						if(saturate) {
-							if(unsigned) {
-								loD = clamp(loD, 0, 0xFFFF);
-								hiD = clamp(hiD, 0, 0xFFFF);
-							}
-							else {
-								loD = clamp(loD, -0x8000, 0x7FFF);
-								hiD = clamp(hiD, -0x8000, 0x7FFF);
-							}
+					default:
+						if((op1 & 6) == 2 && (op2 & 1) == 0) {
+							/* SSAT (A8-652), USAT (A8-796) */
+							throw new UnimplementedInstructionException(iword, "*SAT");
 						}
-						writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
-					} return;
-					case 2: {
-						/* SSAX (A8-656), QSAX (A8-552), SHSAX (A8-614), USAX (A8-800), UQSAX (A8-786), UHSAX (A8-768) */
-						int loN = (short)n;
-						int hiN = (short)(n>>16);
-						int loM = (short)m;
-						int hiM = (short)(m>>16);
+					}
+				}
+			}
+			else {
+				/* Parallel addition and subtraction, signed (A5-210) */
+				/* Parallel addition and subtraction, unsigned (A5-211) */
+				boolean unsigned = (op1 & 4) != 0;
+				boolean saturate = (op1 & 3) == 2;
+				boolean half = (op1 & 3) == 3;
+				int Rn_real = (iword>>16)&15;
+				int Rd = (iword>>12)&15;
+				int Rm = iword&15;
+				int n = readRegister(Rn_real);
+				int m = readRegister(Rm);
+				switch(op2) {
+				case 0: {
+					/* SADD16 (A8-586), QADD16 (A8-542), SHADD16 (A5-608), UADD16 (A8-750), UQADD16 (A8-780), UHADD16 (A8-762) */
+					int loN = (short)n;
+					int hiN = (short)(n>>16);
+					int loM = (short)m;
+					int hiM = (short)(m>>16);
+					if(unsigned) {
+						loN &= 0xFFFF;
+						hiN &= 0xFFFF;
+						loM &= 0xFFFF;
+						hiM &= 0xFFFF;
+					}
+					int loD = loN + loM;
+					int hiD = hiN + hiM;
+					if(half) {
+						loD >>= 1;
+						hiD >>= 1;
+					}
+					if(saturate) {
 						if(unsigned) {
-							loN &= 0xFFFF;
-							hiN &= 0xFFFF;
-							loM &= 0xFFFF;
-							hiM &= 0xFFFF;
+							loD = clamp(loD, 0, 0xFFFF);
+							hiD = clamp(hiD, 0, 0xFFFF);
 						}
-						int loD = loN + hiM;
-						int hiD = hiN - loM;
-						if(half) {
-							loD >>= 1;
-							hiD >>= 1;
-						}
-						if(saturate) {
-							if(unsigned) {
-								loD = clamp(loD, 0, 0xFFFF);
-								hiD = clamp(hiD, 0, 0xFFFF);
-							}
-							else {
-								loD = clamp(loD, -0x8000, 0x7FFF);
-								hiD = clamp(hiD, -0x8000, 0x7FFF);
-							}
+						else {
+							loD = clamp(loD, -0x8000, 0x7FFF);
+							hiD = clamp(hiD, -0x8000, 0x7FFF);
 						}
-						writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
-					} return;
-					case 3: {
-						/* SSUB16 (A8-658), QSUB16 (A8-556), SHSUB16 (A8-616), USUB16 (A8-802), UQSUB16 (A8-788), UHSUB16 (A8-770) */
-						int loN = (short)n;
-						int hiN = (short)(n>>16);
-						int loM = (short)m;
-						int hiM = (short)(m>>16);
+					}
+					writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
+				} return;
+				case 1: {
+					/* SASX (A8-590), QASX (A8-546), SHASX (A8-612), UASX (A8-754), UQASX (A8-784), UHASX (A8-766) */
+					int loN = (short)n;
+					int hiN = (short)(n>>16);
+					int loM = (short)m;
+					int hiM = (short)(m>>16);
+					if(unsigned) {
+						loN &= 0xFFFF;
+						hiN &= 0xFFFF;
+						loM &= 0xFFFF;
+						hiM &= 0xFFFF;
+					}
+					int loD = loN - hiM;
+					int hiD = hiN + loM;
+					if(half) {
+						loD >>= 1;
+						hiD >>= 1;
+					}
+					if(saturate) {
 						if(unsigned) {
-							loN &= 0xFFFF;
-							hiN &= 0xFFFF;
-							loM &= 0xFFFF;
-							hiM &= 0xFFFF;
+							loD = clamp(loD, 0, 0xFFFF);
+							hiD = clamp(hiD, 0, 0xFFFF);
 						}
-						int loD = loN - loM;
-						int hiD = hiN - hiM;
-						if(half) {
-							loD >>= 1;
-							hiD >>= 1;
-						}
-						if(saturate) {
-							if(unsigned) {
-								loD = clamp(loD, 0, 0xFFFF);
-								hiD = clamp(hiD, 0, 0xFFFF);
-							}
-							else {
-								loD = clamp(loD, -0x8000, 0x7FFF);
-								hiD = clamp(hiD, -0x8000, 0x7FFF);
-							}
+						else {
+							loD = clamp(loD, -0x8000, 0x7FFF);
+							hiD = clamp(hiD, -0x8000, 0x7FFF);
 						}
-						writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
-					} return;
-					case 4: {
-						/* SADD8 (A8-588), QADD8 (A8-544), SHADD8 (A8-610), UADD8 (A8-752), UQADD8 (A8-782), UHADD8 (A8-764) */
-						int n0 = (byte)n;
-						int n1 = (byte)(n>>8);
-						int n2 = (byte)(n>>16);
-						int n3 = (byte)(n>>24);
-						int m0 = (byte)m;
-						int m1 = (byte)(m>>8);
-						int m2 = (byte)(m>>16);
-						int m3 = (byte)(m>>24);
+					}
+					writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
+				} return;
+				case 2: {
+					/* SSAX (A8-656), QSAX (A8-552), SHSAX (A8-614), USAX (A8-800), UQSAX (A8-786), UHSAX (A8-768) */
+					int loN = (short)n;
+					int hiN = (short)(n>>16);
+					int loM = (short)m;
+					int hiM = (short)(m>>16);
+					if(unsigned) {
+						loN &= 0xFFFF;
+						hiN &= 0xFFFF;
+						loM &= 0xFFFF;
+						hiM &= 0xFFFF;
+					}
+					int loD = loN + hiM;
+					int hiD = hiN - loM;
+					if(half) {
+						loD >>= 1;
+						hiD >>= 1;
+					}
+					if(saturate) {
 						if(unsigned) {
-							n0 &= 0xFF;
-							n1 &= 0xFF;
-							n2 &= 0xFF;
-							n3 &= 0xFF;
-							m0 &= 0xFF;
-							m1 &= 0xFF;
-							m2 &= 0xFF;
-							m3 &= 0xFF;
+							loD = clamp(loD, 0, 0xFFFF);
+							hiD = clamp(hiD, 0, 0xFFFF);
 						}
-						int d0 = n0+m0;
-						int d1 = n1+m1;
-						int d2 = n2+m2;
-						int d3 = n3+m3;
-						if(half) {
-							d0 >>= 1;
-							d1 >>= 1;
-							d2 >>= 1;
-							d3 >>= 1;
+						else {
+							loD = clamp(loD, -0x8000, 0x7FFF);
+							hiD = clamp(hiD, -0x8000, 0x7FFF);
 						}
-						if(saturate) {
-							if(unsigned) {
-								d0 = clamp(d0, 0, 0xFF);
-								d1 = clamp(d1, 0, 0xFF);
-								d2 = clamp(d2, 0, 0xFF);
-								d3 = clamp(d3, 0, 0xFF);
-							}
-							else {
-								d0 = clamp(d0, -0x80, 0x7F);
-								d1 = clamp(d1, -0x80, 0x7F);
-								d2 = clamp(d2, -0x80, 0x7F);
-								d3 = clamp(d3, -0x80, 0x7F);
-							}
+					}
+					writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
+				} return;
+				case 3: {
+					/* SSUB16 (A8-658), QSUB16 (A8-556), SHSUB16 (A8-616), USUB16 (A8-802), UQSUB16 (A8-788), UHSUB16 (A8-770) */
+					int loN = (short)n;
+					int hiN = (short)(n>>16);
+					int loM = (short)m;
+					int hiM = (short)(m>>16);
+					if(unsigned) {
+						loN &= 0xFFFF;
+						hiN &= 0xFFFF;
+						loM &= 0xFFFF;
+						hiM &= 0xFFFF;
+					}
+					int loD = loN - loM;
+					int hiD = hiN - hiM;
+					if(half) {
+						loD >>= 1;
+						hiD >>= 1;
+					}
+					if(saturate) {
+						if(unsigned) {
+							loD = clamp(loD, 0, 0xFFFF);
+							hiD = clamp(hiD, 0, 0xFFFF);
+						}
+						else {
+							loD = clamp(loD, -0x8000, 0x7FFF);
+							hiD = clamp(hiD, -0x8000, 0x7FFF);
 						}
-						writeRegister(Rd, (d0&0xFF)|((d1&0xFF)<<8)|((d2&0xFF)<<16)|(d3<<24));
-					} return;
-					case 7: {
-						/* SSUB8 (A8-660), QSUB8 (A8-558), SHSUB8 (A8-618), USUB8 (A8-804), UQSUB8 (A8-790), UHSUB8 (A8-772) */
-						int n0 = (byte)n;
-						int n1 = (byte)(n>>8);
-						int n2 = (byte)(n>>16);
-						int n3 = (byte)(n>>24);
-						int m0 = (byte)m;
-						int m1 = (byte)(m>>8);
-						int m2 = (byte)(m>>16);
-						int m3 = (byte)(m>>24);
+					}
+					writeRegister(Rd, (loD&0xFFFF)|(hiD<<16));
+				} return;
+				case 4: {
+					/* SADD8 (A8-588), QADD8 (A8-544), SHADD8 (A8-610), UADD8 (A8-752), UQADD8 (A8-782), UHADD8 (A8-764) */
+					int n0 = (byte)n;
+					int n1 = (byte)(n>>8);
+					int n2 = (byte)(n>>16);
+					int n3 = (byte)(n>>24);
+					int m0 = (byte)m;
+					int m1 = (byte)(m>>8);
+					int m2 = (byte)(m>>16);
+					int m3 = (byte)(m>>24);
+					if(unsigned) {
+						n0 &= 0xFF;
+						n1 &= 0xFF;
+						n2 &= 0xFF;
+						n3 &= 0xFF;
+						m0 &= 0xFF;
+						m1 &= 0xFF;
+						m2 &= 0xFF;
+						m3 &= 0xFF;
+					}
+					int d0 = n0+m0;
+					int d1 = n1+m1;
+					int d2 = n2+m2;
+					int d3 = n3+m3;
+					if(half) {
+						d0 >>= 1;
+						d1 >>= 1;
+						d2 >>= 1;
+						d3 >>= 1;
+					}
+					if(saturate) {
 						if(unsigned) {
-							n0 &= 0xFF;
-							n1 &= 0xFF;
-							n2 &= 0xFF;
-							n3 &= 0xFF;
-							m0 &= 0xFF;
-							m1 &= 0xFF;
-							m2 &= 0xFF;
-							m3 &= 0xFF;
+							d0 = clamp(d0, 0, 0xFF);
+							d1 = clamp(d1, 0, 0xFF);
+							d2 = clamp(d2, 0, 0xFF);
+							d3 = clamp(d3, 0, 0xFF);
 						}
-						int d0 = n0-m0;
-						int d1 = n1-m1;
-						int d2 = n2-m2;
-						int d3 = n3-m3;
-						if(half) {
-							d0 >>= 1;
-							d1 >>= 1;
-							d2 >>= 1;
-							d3 >>= 1;
+						else {
+							d0 = clamp(d0, -0x80, 0x7F);
+							d1 = clamp(d1, -0x80, 0x7F);
+							d2 = clamp(d2, -0x80, 0x7F);
+							d3 = clamp(d3, -0x80, 0x7F);
 						}
-						if(saturate) {
-							if(unsigned) {
-								d0 = clamp(d0, 0, 0xFF);
-								d1 = clamp(d1, 0, 0xFF);
-								d2 = clamp(d2, 0, 0xFF);
-								d3 = clamp(d3, 0, 0xFF);
-							}
-							else {
-								d0 = clamp(d0, -0x80, 0x7F);
-								d1 = clamp(d1, -0x80, 0x7F);
-								d2 = clamp(d2, -0x80, 0x7F);
-								d3 = clamp(d3, -0x80, 0x7F);
-							}
+					}
+					writeRegister(Rd, (d0&0xFF)|((d1&0xFF)<<8)|((d2&0xFF)<<16)|(d3<<24));
+				} return;
+				case 7: {
+					/* SSUB8 (A8-660), QSUB8 (A8-558), SHSUB8 (A8-618), USUB8 (A8-804), UQSUB8 (A8-790), UHSUB8 (A8-772) */
+					int n0 = (byte)n;
+					int n1 = (byte)(n>>8);
+					int n2 = (byte)(n>>16);
+					int n3 = (byte)(n>>24);
+					int m0 = (byte)m;
+					int m1 = (byte)(m>>8);
+					int m2 = (byte)(m>>16);
+					int m3 = (byte)(m>>24);
+					if(unsigned) {
+						n0 &= 0xFF;
+						n1 &= 0xFF;
+						n2 &= 0xFF;
+						n3 &= 0xFF;
+						m0 &= 0xFF;
+						m1 &= 0xFF;
+						m2 &= 0xFF;
+						m3 &= 0xFF;
+					}
+					int d0 = n0-m0;
+					int d1 = n1-m1;
+					int d2 = n2-m2;
+					int d3 = n3-m3;
+					if(half) {
+						d0 >>= 1;
+						d1 >>= 1;
+						d2 >>= 1;
+						d3 >>= 1;
+					}
+					if(saturate) {
+						if(unsigned) {
+							d0 = clamp(d0, 0, 0xFF);
+							d1 = clamp(d1, 0, 0xFF);
+							d2 = clamp(d2, 0, 0xFF);
+							d3 = clamp(d3, 0, 0xFF);
+						}
+						else {
+							d0 = clamp(d0, -0x80, 0x7F);
+							d1 = clamp(d1, -0x80, 0x7F);
+							d2 = clamp(d2, -0x80, 0x7F);
+							d3 = clamp(d3, -0x80, 0x7F);
 						}
-						writeRegister(Rd, (d0&0xFF)|((d1&0xFF)<<8)|((d2&0xFF)<<16)|(d3<<24));
-					} return;
 					}
+					writeRegister(Rd, (d0&0xFF)|((d1&0xFF)<<8)|((d2&0xFF)<<16)|(d3<<24));
+				} return;
 				}
 			}
 		}
-		else {
-			/* Load/store word and unsigned byte (A5-208) */
-			/* STR (immediate, ARM, A8-674) */
-			/* STR (register, A8-676) */
-			/* STRT (A8-706) */
-			/* LDR (immediate, ARM, A8-408) */
-			/* LDR (literal, A8-410) */
-			/* LDR (register, ARM, A8-414) */
-			/* LDRT (A8-466) */
-			/* after hours of banging my head against the wall, the relationship between them becomes clear */
-			boolean registerForm = ((iword >> 25) & 1) != 0;
-			boolean P = ((iword >> 24) & 1) != 0;
-			boolean U = ((iword >> 23) & 1) != 0;
-			boolean isByte = ((iword >> 22) & 1) != 0;
-			boolean W = ((iword >> 21) & 1) != 0;
-			boolean isLoad = ((iword >> 20) & 1) != 0;
-			int Rn = (iword >> 16) & 15;
-			int Rt = (iword >> 12) & 15;
-			boolean unprivileged = (!P && W);
-			boolean writeback = (!P ^ W);
-			int offset;
-			if(registerForm) offset = applyIRShift(readRegister(iword & 15), (iword >> 5) & 3, (iword >> 7) & 31);
-			else offset = iword & 4095;
-			int base_addr = readRegisterAlignPC(Rn);
-			int offset_addr;
-			if(U) offset_addr = base_addr + offset;
-			else offset_addr = base_addr - offset;
-			int address = P ? offset_addr : base_addr;
-			int value;
-			if(isLoad) {
-				if(isByte) value = instructionReadByte(address, unprivileged ? false : isPrivileged()) & 0xFF;
-				else value = instructionReadWord(address, unprivileged ? false : isPrivileged());
-				writeRegister(Rt, value);
-			}
-			else {
-				value = readRegister(Rt);
-				if(isByte) instructionWriteByte(address, (byte)value, unprivileged ? false : isPrivileged());
-				else instructionWriteWord(address, value, unprivileged ? false : isPrivileged());
-			}
-			if(writeback) writeRegister(Rn, offset_addr);
-			return;
-		}
 		throw new UndefinedException();
 	}
-	private void executeARMPage45(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
-		/* Branch, branch with link, and block data transfer (A5-214) */
+	private void executeARMLoadStoreWordOrByte(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		/* Load/store word and unsigned byte (A5-208) */
+		/* STR (immediate, ARM, A8-674) */
+		/* STR (register, A8-676) */
+		/* STRT (A8-706) */
+		/* LDR (immediate, ARM, A8-408) */
+		/* LDR (literal, A8-410) */
+		/* LDR (register, ARM, A8-414) */
+		/* LDRT (A8-466) */
+		/* after hours of banging my head against the wall, the relationship between them becomes clear */
+		boolean registerForm = ((iword >> 25) & 1) != 0;
+		int offset;
+		if(registerForm) offset = applyIRShift(readRegister(iword & 15), (iword >> 5) & 3, (iword >> 7) & 31);
+		else offset = iword & 4095;
+		executeLoadStoreWordOrByte(iword, (iword >> 16) & 15, (iword >> 12) & 15, offset);
+	}
+	private void executeARMBlockDataTransfer(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		/* Block data transfer (A5-214) */
 		int op = (iword >> 20) & 63;
-		if(op >= 32) {
-			/* B, BL (A8-334, A8-348) */
-			boolean link = (op & 16) != 0;
-			int imm32 = iword << 8 >> 6;
-			if(link) writeLR(readPC()-4);
-			branch(readPC()+imm32);
-			return;
-		}
         /* LDMDA/LDMFA (A8-400) */
         /* LDM/LDMIA/LDMFD (ARM, A8-398) */
         /* LDMDB/LDMEA (A8-402) */
@@ -1726,7 +2062,6 @@ public final class CPU {
 		int base_addr = readRegisterAlignPC(Rn);
 		int register_list = iword & 65535;
 		int register_count = Integer.bitCount(register_list);
-		// System.out.printf("%s%s%s r%d%s, {%04X}\n", isLoad?"LDM":"STM", increment?"I":"D", before?"B":"A", Rn, W?"!":"", register_list);
 		if(!increment) base_addr -= 4 * register_count;
 		int addr = base_addr;
 		if(increment == before) addr += 4;
@@ -1739,9 +2074,35 @@ public final class CPU {
 		}
 		if(increment) base_addr += 4 * register_count;
 		if(W) writeRegister(Rn, base_addr);
-		return;
 	}
-	private void executeARMPage67(int iword, boolean unconditional) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+	/* P, U, B, W and L are taken from their usual positions in flags */
+	void executeLoadStoreWordOrByte(int flags, int Rn, int Rt, int offset) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		boolean P = (flags & DecodedInstruction.LDST_P) != 0;
+		boolean U = (flags & DecodedInstruction.LDST_U) != 0;
+		boolean isByte = (flags & DecodedInstruction.LDST_BYTE) != 0;
+		boolean W = (flags & DecodedInstruction.LDST_W) != 0;
+		boolean isLoad = (flags & DecodedInstruction.LDST_LOAD) != 0;
+		boolean unprivileged = (!P && W);
+		boolean writeback = (!P ^ W);
+		int base_addr = readRegisterAlignPC(Rn);
+		int offset_addr;
+		if(U) offset_addr = base_addr + offset;
+		else offset_addr = base_addr - offset;
+		int address = P ? offset_addr : base_addr;
+		int value;
+		if(isLoad) {
+			if(isByte) value = instructionReadByte(address, unprivileged ? false : isPrivileged()) & 0xFF;
+			else value = instructionReadWord(address, unprivileged ? false : isPrivileged());
+			writeRegister(Rt, value);
+		}
+		else {
+			value = readRegister(Rt);
+			if(isByte) instructionWriteByte(address, (byte)value, unprivileged ? false : isPrivileged());
+			else instructionWriteWord(address, value, unprivileged ? false : isPrivileged());
+		}
+		if(writeback) writeRegister(Rn, offset_addr);
+	}
+	private void executeARMCoprocessorAndSVC(int iword, boolean unconditional) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
 		/* Coprocessor instructions, and Supervisor Call (A5-215) */
 		int op1 = (iword >> 20) & 63;
 		if((op1 & 62) == 0) throw new UndefinedException();
@@ -1755,7 +2116,11 @@ public final class CPU {
 		/* TODO: throw UndefinedException when a coprocessor is masked out */
 		Coprocessor cop = coprocessors[coproc];
 		if(cop == null) throw new UndefinedException();
+		/* the device coprocessors are where input from outside the machine comes in */
+		else if(coproc < 8 && recorder != null) recorder.coprocessorInstruction(this, cop, unconditional, iword);
+		else if(coproc < 8 && replayer != null) replayer.coprocessorInstruction(this, iword);
 		else cop.executeInstruction(unconditional, iword);
+		++coprocessorInstructions;
 	}
 	private void executeARMUnconditional(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
 		/* Unconditional instructions (A5-216) */
@@ -1835,19 +2200,22 @@ public final class CPU {
 				switch(op2) {
 				case 1:
 					/* CLREX (A8-360) */
-					/* We have no multiprocessing, so this is a no-op */
+					clearExclusiveMonitor();
 					return;
 				case 4:
 					/* DSB (A8-380) */
-					/* We have no multiprocessing, so this is a no-op */
-					return;
 				case 5:
 					/* DMB (A8-378) */
-					/* We have no multiprocessing, so this is a no-op */
+					/* Cores sharing memory see each other's accesses in some order that respects program order on
+					 * either side of a DMB or DSB; Store-Exclusives and SWP, and every store once more than one core is
+					 * attached, also synchronize with the exclusive monitor's locks. All accesses complete before the
+					 * next instruction starts, so there's nothing more for a DSB to wait for. (A3-148) */
+					mem.memoryBarrier();
 					return;
 				case 6:
 					/* ISB (A8-389) */
-					/* TODO: When MMU / JIT are implemented, this will be important */
+					/* Anything that can change translation or privilege already ends a JIT block, and writes throw away
+					 * stale predecoded instructions by themselves */
 					return;
 				}
 				break;
@@ -1918,48 +2286,158 @@ public final class CPU {
 			}
 			break;
 		case 3:
-			executeARMPage67(iword, true);
+			executeARMCoprocessorAndSVC(iword, true);
 			return;
 		}
 		throw new UndefinedException();
 	}
-	private void executeARM(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+	/* bit n of conditionTable[NZCV] is set if condition code n passes with those flags */
+	private static final short[] conditionTable = new short[16];
+	static {
+		for(int nzcv = 0; nzcv < 16; ++nzcv) {
+			boolean N = (nzcv & 8) != 0, Z = (nzcv & 4) != 0, C = (nzcv & 2) != 0, V = (nzcv & 1) != 0;
+			for(int condition = 0; condition < 16; ++condition) {
+				/* condition codes (A5-288) */
+				boolean execute = true;
+				switch(condition >> 1) {
+				case 0: execute = Z; break;
+				case 1: execute = C; break;
+				case 2: execute = N; break;
+				case 3: execute = V; break;
+				case 4: execute = C && !Z; break;
+				case 5: execute = N == V; break;
+				case 6: execute = Z == false && N == V; break;
+				/* case 7: execute = true; */
+				}
+				if((condition & 1) != 0 && condition != 15) execute = !execute;
+				if(execute) conditionTable[nzcv] |= 1<<condition;
+			}
+		}
+	}
+	boolean conditionPassed(int condition) {
+		if(flagsKind != FLAGS_MATERIALIZED) materializeFlags();
+		return ((conditionTable[cpsr >>> 28] >> condition) & 1) != 0;
+	}
+	void executeARM(int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
 		int condition = (iword >> 28) & 15;
 		if(condition != 15) {
-			/* condition codes (A5-288) */
-			boolean execute = true;
-			switch(condition >> 1) {
-			case 0: execute = conditionZ(); break;
-			case 1: execute = conditionC(); break;
-			case 2: execute = conditionN(); break;
-			case 3: execute = conditionV(); break;
-			case 4: execute = conditionC() && !conditionZ(); break;
-			case 5: execute = conditionN() == conditionV(); break;
-			case 6: execute = conditionZ() == false && conditionN() == conditionV(); break;
-			/* case 7: execute = true; */
-			}
-			if((condition & 1) != 0) execute = !execute;
-			if(!execute) return;
-			switch((iword >> 25) & 7) {
-			case 0:
-				executeARMPage0(iword);
-				break;
-			case 1:
-				executeARMPage1(iword);
-				break;
-			case 2: case 3:
-				executeARMPage23(iword);
-				break;
-			case 4: case 5:
-				executeARMPage45(iword);
-				break;
-			case 6:
-			case 7:
-				executeARMPage67(iword, false);
-			}
+			if(!conditionPassed(condition)) return;
+			executeARMClass(ARMDecodeTable.lookup(iword), iword);
 		}
 		else executeARMUnconditional(iword);
 	}
+	private void executeARMClass(int encodingClass, int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		switch(encodingClass) {
+		case ARMDecodeTable.DP_REGISTER: executeARMDataProcessingRegister(iword); return;
+		case ARMDecodeTable.DP_REGISTER_SHIFTED_REGISTER: executeARMDataProcessingRegisterShiftedRegister(iword); return;
+		case ARMDecodeTable.MISCELLANEOUS: executeARMMiscellaneous(iword); return;
+		case ARMDecodeTable.HALFWORD_MULTIPLY: executeARMHalfwordMultiply(iword); return;
+		case ARMDecodeTable.MULTIPLY_AND_SYNCHRONIZATION: executeARMMultiplyAndSynchronization(iword); return;
+		case ARMDecodeTable.EXTRA_LOAD_STORE: executeARMExtraLoadStore(iword); return;
+		case ARMDecodeTable.MOVW:
+			/* MOVW (A8-484) */
+			executeMOVW((iword >> 12) & 15, ((iword >> 4) & 0xF000) | (iword & 0xFFF));
+			return;
+		case ARMDecodeTable.MOVT:
+			/* MOVT (high half-word 16 bit immediate, A8-491) */
+			executeMOVT((iword >> 12) & 15, ((iword >> 4) & 0xF000) | (iword & 0xFFF));
+			return;
+		case ARMDecodeTable.MSR_IMMEDIATE_AND_HINTS: executeARMMSRImmediateAndHints(iword); return;
+		case ARMDecodeTable.DP_IMMEDIATE: executeARMDataProcessingImmediate(iword); return;
+		case ARMDecodeTable.LOAD_STORE_IMMEDIATE: case ARMDecodeTable.LOAD_STORE_REGISTER: executeARMLoadStoreWordOrByte(iword); return;
+		case ARMDecodeTable.MEDIA: executeARMMedia(iword); return;
+		/* B, BL (A8-334, A8-348) */
+		case ARMDecodeTable.B: executeBranch(iword << 8 >> 6); return;
+		case ARMDecodeTable.BL: executeBranchWithLink(iword << 8 >> 6); return;
+		case ARMDecodeTable.BLOCK_DATA_TRANSFER: executeARMBlockDataTransfer(iword); return;
+		case ARMDecodeTable.COPROCESSOR_AND_SVC: executeARMCoprocessorAndSVC(iword, false); return;
+		default: throw new UndefinedException();
+		}
+	}
+	/* Decode an ARM instruction for the instruction cache. Must agree exactly with executeARM(int) above; anything
+	 * without a specialized handler is sent back through executeARMClass. */
+	static DecodedInstruction decodeARM(int iword, int fetchCost) {
+		int condition = (iword >> 28) & 15;
+		if(condition == 15) return new DecodedInstruction(iword, DecodedInstruction.OP_UNCONDITIONAL, 14, fetchCost);
+		int encodingClass = ARMDecodeTable.lookup(iword);
+		int op1 = (iword >> 20) & 31;
+		int Rn = (iword >> 16) & 15;
+		int Rd = (iword >> 12) & 15;
+		switch(encodingClass) {
+		case ARMDecodeTable.DP_REGISTER:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_DP_REG, condition, fetchCost, op1, Rd, Rn, iword & 15, 0, (iword >> 5) & 3, (iword >> 7) & 31, 0, 0);
+		case ARMDecodeTable.DP_REGISTER_SHIFTED_REGISTER:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_DP_RSR, condition, fetchCost, op1, Rd, Rn, iword & 15, (iword >> 8) & 15, (iword >> 5) & 3, 0, 0, 0);
+		case ARMDecodeTable.MOVW:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_MOVW, condition, fetchCost, 0, Rd, 0, 0, 0, 0, 0, ((iword >> 4) & 0xF000) | (iword & 0xFFF), 0);
+		case ARMDecodeTable.MOVT:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_MOVT, condition, fetchCost, 0, Rd, 0, 0, 0, 0, 0, ((iword >> 4) & 0xF000) | (iword & 0xFFF), 0);
+		case ARMDecodeTable.DP_IMMEDIATE: {
+			/* flag-setting PC writes have extra semantics, leave them to the general handler */
+			if(Rd == 15 && (op1 & 1) == 1) break;
+			/* same as expandARMImmediate, but carry out is computed ahead of time when it doesn't depend on C */
+			int rotation = 2*((iword >>> 8) & 15);
+			int imm32 = Integer.rotateRight(iword & 255, rotation);
+			int immCarry = rotation == 0 ? DecodedInstruction.IMM_CARRY_FROM_C : imm32 >>> 31;
+			return new DecodedInstruction(iword, DecodedInstruction.OP_DP_IMM, condition, fetchCost, op1, Rd, Rn, 0, 0, 0, 0, imm32, immCarry);
+		}
+		case ARMDecodeTable.LOAD_STORE_IMMEDIATE:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_LDST_IMM, condition, fetchCost, iword & DecodedInstruction.LDST_FLAGS, Rd, Rn, 0, 0, 0, 0, iword & 4095, 0);
+		case ARMDecodeTable.LOAD_STORE_REGISTER:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_LDST_REG, condition, fetchCost, iword & DecodedInstruction.LDST_FLAGS, Rd, Rn, iword & 15, 0, (iword >> 5) & 3, (iword >> 7) & 31, 0, 0);
+		case ARMDecodeTable.B:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_B, condition, fetchCost, 0, 0, 0, 0, 0, 0, 0, iword << 8 >> 6, 0);
+		case ARMDecodeTable.BL:
+			return new DecodedInstruction(iword, DecodedInstruction.OP_BL, condition, fetchCost, 0, 0, 0, 0, 0, 0, 0, iword << 8 >> 6, 0);
+		}
+		return new DecodedInstruction(iword, DecodedInstruction.OP_CLASS, condition, fetchCost, encodingClass, 0, 0, 0, 0, 0, 0, 0, 0);
+	}
+	private void executeDecoded(DecodedInstruction insn) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		if(insn.cond != 14 && !conditionPassed(insn.cond)) return;
+		switch(insn.op) {
+		case DecodedInstruction.OP_DP_REG: executeDataProcessingRegister(insn.opcode, insn.rd, insn.rn, insn.rm, insn.shiftType, insn.shiftAmount); return;
+		case DecodedInstruction.OP_DP_RSR: executeDataProcessingRegisterShiftedRegister(insn.opcode, insn.rd, insn.rn, insn.rm, insn.shiftType, insn.rs); return;
+		case DecodedInstruction.OP_DP_IMM: executeDataProcessingImmediate(insn.opcode, insn.rd, insn.rn, insn.imm, insn.immCarry); return;
+		case DecodedInstruction.OP_MOVW: executeMOVW(insn.rd, insn.imm); return;
+		case DecodedInstruction.OP_MOVT: executeMOVT(insn.rd, insn.imm); return;
+		case DecodedInstruction.OP_LDST_IMM: executeLoadStoreWordOrByte(insn.opcode, insn.rn, insn.rd, insn.imm); return;
+		case DecodedInstruction.OP_LDST_REG: executeLoadStoreWordOrByteRegister(insn.opcode, insn.rn, insn.rd, insn.rm, insn.shiftType, insn.shiftAmount); return;
+		case DecodedInstruction.OP_B: executeBranch(insn.imm); return;
+		case DecodedInstruction.OP_BL: executeBranchWithLink(insn.imm); return;
+		case DecodedInstruction.OP_CLASS: executeARMClass(insn.opcode, insn.iword); return;
+		case DecodedInstruction.OP_UNCONDITIONAL: executeARMUnconditional(insn.iword); return;
+		default: throw new InternalError(); /* we technically shouldn't throw these */
+		}
+	}
+	/* Handlers for pre-decoded instructions, shared by executeDecoded and JIT-compiled blocks. The condition has already
+	 * been checked. */
+	void executeDataProcessingRegister(int opcode, int Rd, int Rn, int Rm, int type, int imm5) throws UndefinedException {
+		executeDataProcessingOperation(opcode, readRegister(Rn), applyIRShift(readRegister(Rm), type, imm5), Rd);
+	}
+	void executeDataProcessingRegisterShiftedRegister(int opcode, int Rd, int Rn, int Rm, int type, int Rs) throws UndefinedException {
+		executeDataProcessingOperation(opcode, readRegister(Rn), applyRRShift(readRegister(Rm), type, Rs), Rd);
+	}
+	void executeDataProcessingImmediate(int opcode, int Rd, int Rn, int imm32, int immCarry) throws UndefinedException {
+		if(immCarry == DecodedInstruction.IMM_CARRY_FROM_C) shifterCarryOut = conditionC();
+		else shifterCarryOut = immCarry != 0;
+		executeDataProcessingOperation(opcode, readRegister(Rn), imm32, Rd);
+	}
+	void executeMOVW(int Rd, int imm16) {
+		writeRegister(Rd, imm16);
+	}
+	void executeMOVT(int Rd, int imm16) {
+		writeRegister(Rd, (readRegister(Rd) & 0xFFFF) | (imm16 << 16));
+	}
+	void executeLoadStoreWordOrByteRegister(int flags, int Rn, int Rt, int Rm, int type, int imm5) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		executeLoadStoreWordOrByte(flags, Rn, Rt, applyIRShift(readRegister(Rm), type, imm5));
+	}
+	void executeBranch(int imm32) {
+		branch(readPC()+imm32);
+	}
+	void executeBranchWithLink(int imm32) {
+		writeLR(readPC()-4);
+		branch(readPC()+imm32);
+	}
 	private void performSVC() { generateException(ProcessorMode.SUPERVISOR, (1<<CPSR_BIT_I), EXCEPTION_VECTOR_SUPERVISOR_CALL, isThumb()?pc-2:pc-4); }
 	private void generateUndefinedException() { generateException(ProcessorMode.UNDEFINED, (1<<CPSR_BIT_I), EXCEPTION_VECTOR_UNDEFINED, pc); }
 	private void generatePrefetchAbortException() { generateException(ProcessorMode.ABORT, (1<<CPSR_BIT_I)|(1<<CPSR_BIT_A), EXCEPTION_VECTOR_PREFETCH_ABORT, pc); }
@@ -1967,6 +2445,10 @@ public final class CPU {
 	private void generateIRQException() { generateException(ProcessorMode.IRQ, (1<<CPSR_BIT_I)|(1<<CPSR_BIT_A), EXCEPTION_VECTOR_IRQ, pc+4); }
 	private void generateFIQException() { generateException(ProcessorMode.FIQ, (1<<CPSR_BIT_I)|(1<<CPSR_BIT_A)|(1<<CPSR_BIT_F), EXCEPTION_VECTOR_FIQ, pc+4); }
 	private void generateException(ProcessorMode targetMode, int interruptMask, int vector, int preferredReturn) {
+		/* it's IMPLEMENTATION DEFINED whether taking an exception clears the local monitor (A3-121); we do, so that a
+		 * handler can never complete a sequence it interrupted */
+		clearExclusiveMonitor();
+		++exceptionsTaken;
 		enterProcessorModeByException(targetMode);
 		lr[cur_lr] = preferredReturn;
 		cpsr |= interruptMask;
@@ -1976,7 +2458,8 @@ public final class CPU {
 		else cpsr &= ~(1<<CPSR_BIT_T);
 		if((cp15.SCTLR & (1<<CP15.SCTLR_BIT_EE)) != 0) cpsr |= (1<<CPSR_BIT_E);
 		else cpsr &= ~(1<<CPSR_BIT_E);
-		branch(getInterruptVector(vector));
+		/* not counted as a PC write; it's counted as an exception taken */
+		pc = getInterruptVector(vector);
 	}
 	/* B1-1206 */
 	/**
@@ -1987,6 +2470,7 @@ public final class CPU {
 	 */
 	public void reset(boolean thumb_exceptions, boolean big_endian, boolean high_vectors) {
 		haveReset = true;
+		flagsKind = FLAGS_MATERIALIZED;
 		cpsr = ProcessorMode.SUPERVISOR.modeRepresentation;
 		// ResetControlRegisters()
 		for(int n = 0; n < 8; ++n) {
@@ -1998,40 +2482,131 @@ public final class CPU {
 	}
 	/*** INTERRUPTS ***/
 	private boolean waitingForInterrupt = false;
+	/* set along with waitingForInterrupt by WFE, which an event can also end */
+	private boolean waitingForEvent = false;
+	/* the Event Register (B1-1199) */
+	private volatile boolean eventRegister = false;
 	public boolean isWaitingForInterrupt() {
 		return waitingForInterrupt;
 	}
-	private TreeSet<Object> irqs = new TreeSet<Object>();
-	private TreeSet<Object> fiqs = new TreeSet<Object>();
-	public boolean haveIRQ() { return !irqs.isEmpty(); }
-	public boolean haveFIQ() { return !fiqs.isEmpty(); }
+	private final InterruptController interrupts;
+	/* who is holding the legacy lines up; only touched with the set's own lock held */
+	private final HashSet<Object> irqs = new HashSet<Object>();
+	private final HashSet<Object> fiqs = new HashSet<Object>();
+	private final Object wakeLock = new Object();
+	/** The interrupt lines feeding this core. */
+	public InterruptController getInterruptController() { return interrupts; }
+	/** Returns true if an IRQ is being signalled, whether or not the I bit masks it. */
+	public boolean haveIRQ() { return (interrupts.output & InterruptController.OUTPUT_IRQ) != 0; }
+	/** Returns true if an FIQ is being signalled, whether or not the F bit masks it. */
+	public boolean haveFIQ() { return (interrupts.output & InterruptController.OUTPUT_FIQ) != 0; }
+	/* Whether WFE finds the Event Register set, and whether WFI or WFE finds an interrupt already signalled, depend on
+	 * when things arrived from outside; a replay goes by what the recording found */
+	private boolean eventPendingAtWait() {
+		if(replayer != null) return replayer.eventPendingAtWait(this);
+		boolean pending = eventRegister;
+		if(pending && recorder != null) recorder.eventPendingAtWait(this);
+		return pending;
+	}
+	private boolean interruptPendingAtWait() {
+		if(replayer != null) return replayer.interruptPendingAtWait(this);
+		boolean pending = haveFIQ() || haveIRQ();
+		if(pending && recorder != null) recorder.interruptPendingAtWait(this);
+		return pending;
+	}
+	/* an interrupt is signalled that the CPSR would let us take right now, or a replay needs the interpreter */
+	private boolean interruptDeliverable() {
+		int output = interrupts.output;
+		if(output == 0) return false;
+		return (output & InterruptController.OUTPUT_REPLAY) != 0
+			|| ((output & InterruptController.OUTPUT_FIQ) != 0 && (cpsr & (1<<CPSR_BIT_F)) == 0)
+			|| ((output & InterruptController.OUTPUT_IRQ) != 0 && (cpsr & (1<<CPSR_BIT_I)) == 0);
+	}
+	private void legacyAssert(HashSet<Object> asserters, Object who, int line) {
+		synchronized(asserters) {
+			asserters.add(who);
+			interrupts.raise(line);
+		}
+	}
+	private void legacyDeassert(HashSet<Object> asserters, Object who, int line) {
+		synchronized(asserters) {
+			if(asserters.remove(who) && asserters.isEmpty()) interrupts.lower(line);
+		}
+	}
 	/**
-	 * TODO: document the interrupt functions
-	 * @param who
+	 * Assert an IRQ on behalf of someone. The IRQ stays asserted until everyone who asserted it clears it. Safe to call
+	 * from any thread, including another core's. This drives InterruptController.LEGACY_IRQ_LINE; new code should
+	 * drive its own line through getInterruptController instead.
+	 * @param who Whoever is asserting the IRQ
 	 */
 	public void setIRQ(Object who) {
-		irqs.add(who);
+		legacyAssert(irqs, who, InterruptController.LEGACY_IRQ_LINE);
 	}
 	/**
-	 * 
-	 * @param who
+	 * Stop asserting an IRQ on behalf of someone.
+	 * @param who Whoever asserted the IRQ
 	 */
 	public void clearIRQ(Object who) {
-		irqs.remove(who);
+		legacyDeassert(irqs, who, InterruptController.LEGACY_IRQ_LINE);
 	}
 	/**
-	 * 
-	 * @param who
+	 * As setIRQ, for FIQs. Drives InterruptController.LEGACY_FIQ_LINE.
+	 * @param who Whoever is asserting the FIQ
 	 */
 	public void setFIQ(Object who) {
-		fiqs.add(who);
+		legacyAssert(fiqs, who, InterruptController.LEGACY_FIQ_LINE);
 	}
 	/**
-	 * 
-	 * @param who
+	 * As clearIRQ, for FIQs.
+	 * @param who Whoever asserted the FIQ
 	 */
 	public void clearFIQ(Object who) {
-		fiqs.remove(who);
+		legacyDeassert(fiqs, who, InterruptController.LEGACY_FIQ_LINE);
+	}
+	/** Set the Event Register, as a SEV on any core does. Safe to call from any thread. */
+	public void signalEvent() {
+		eventRegister = true;
+		wake();
+	}
+	void wake() {
+		synchronized(wakeLock) {
+			wakeLock.notifyAll();
+		}
+	}
+	/**
+	 * If the core is in WFI or WFE, block the calling thread until something would wake it up, or until the timeout
+	 * expires. Returns immediately otherwise. Lets a thread that runs a core sleep instead of spinning on execute.
+	 * @param timeoutMillis The longest to wait, or 0 to wait forever
+	 */
+	public void awaitWakeUp(long timeoutMillis) throws InterruptedException {
+		synchronized(wakeLock) {
+			if(waitingForInterrupt && !haveIRQ() && !haveFIQ() && !(waitingForEvent && eventRegister)) wakeLock.wait(timeoutMillis);
+		}
+	}
+	/*** INSTRUCTION CACHE ***/
+	private boolean instructionCacheEnabled = true;
+	/**
+	 * This mode defaults to true. When true, and no Debugger is attached, decoded instructions are cached per physical
+	 * page and reused until that page is written to.
+	 * @param nu The new mode.
+	 */
+	public void setInstructionCacheEnabled(boolean nu) { instructionCacheEnabled = nu; }
+	/*** JIT ***/
+	private boolean jitEnabled = false;
+	private int jitThreshold = 1000;
+	/**
+	 * This mode defaults to false. When true, execute(int) compiles frequently executed runs of instructions into JVM
+	 * classes and runs those instead of interpreting them. Requires the instruction cache, and is never used while a
+	 * Debugger is attached. Cycle accounting is identical either way.
+	 * @param nu The new mode.
+	 */
+	public void setJITEnabled(boolean nu) { jitEnabled = nu; }
+	/**
+	 * Sets how many times execution has to reach an address before a block is compiled there. Defaults to 1000.
+	 */
+	public void setJITThreshold(int nu) {
+		if(nu < 1) throw new IllegalArgumentException();
+		jitThreshold = nu;
 	}
 	/*** DEBUGGING ***/
 	private boolean exceptionDebugMode = false;
@@ -2082,6 +2657,87 @@ public final class CPU {
 	public Coprocessor getCoprocessor(int id){
 		return coprocessors[id];
 	}
+	/* every slot, for Snapshot; the FPU is in two of them */
+	Coprocessor[] getCoprocessors() {
+		return coprocessors;
+	}
+	/*** SNAPSHOTS ***/
+	/* An empty core for MachineFork, built like this one on a port onto childMemory: the same MPIDR, the same settings,
+	 * and a fork of each coprocessor that was mapped in. Its state is copied in afterwards. */
+	CPU forkCore(PhysicalMemorySpace childMemory) {
+		CPU child = new CPU(null, cp15.MPIDR, new PhysicalMemorySpace(childMemory));
+		child.lazyFlags = lazyFlags;
+		child.instructionCacheEnabled = instructionCacheEnabled;
+		child.jitEnabled = jitEnabled;
+		child.jitThreshold = jitThreshold;
+		child.exceptionDebugMode = exceptionDebugMode;
+		child.debugDumpMode = debugDumpMode;
+		child.timer.CNTFRQ = timer.CNTFRQ;
+		for(int n = 0; n < 8; ++n) {
+			if(coprocessors[n] == null) continue;
+			Coprocessor cop = null;
+			for(int m = 0; m < n && cop == null; ++m) {
+				if(coprocessors[m] == coprocessors[n]) cop = child.coprocessors[m];
+			}
+			if(cop == null) cop = coprocessors[n].fork(child);
+			if(cop == null) throw new UnsupportedOperationException("coprocessor "+n+" ("+coprocessors[n].getClass().getName()+") can't be forked");
+			child.coprocessors[n] = cop;
+		}
+		return child;
+	}
+	/* The core's own state, for Snapshot; coprocessors are saved separately. The exclusive monitor isn't saved, since
+	 * it's always legal for it to forget a reservation. */
+	void saveState(SnapshotOutputStream out) throws IOException {
+		materializeFlags();
+		out.writeBoolean(haveReset);
+		out.writeInts(gpr);
+		out.writeInts(gprFIQ);
+		out.writeInts(sp);
+		out.writeInts(lr);
+		out.writeInts(spsr);
+		out.writeInt(cpsr);
+		out.writeInt(pc);
+		out.writeLong(getCycleCount());
+		out.writeInt(cycleBudget);
+		out.writeBoolean(waitingForInterrupt);
+		out.writeBoolean(waitingForEvent);
+		out.writeBoolean(eventRegister);
+		out.writeLong(instructionsRetired);
+		out.writeLong(exceptionsTaken);
+		out.writeLong(pcWrites);
+		out.writeLong(coprocessorInstructions);
+		out.writeLong(mem.getTotalBilled());
+		interrupts.saveState(out);
+	}
+	void loadState(SnapshotInputStream in) throws IOException {
+		haveReset = in.readBoolean();
+		in.readInts(gpr);
+		in.readInts(gprFIQ);
+		in.readInts(sp);
+		in.readInts(lr);
+		in.readInts(spsr);
+		int cpsr = in.readInt();
+		ProcessorMode newMode = ProcessorMode.getModeFromRepresentation(cpsr & CPSR_MASK_M);
+		if(newMode == null) throw new SnapshotMismatchException("CPSR holds an invalid mode");
+		flagsKind = FLAGS_MATERIALIZED;
+		this.cpsr = cpsr;
+		setProcessorMode(newMode);
+		pc = in.readInt();
+		long cycleCount = in.readLong();
+		cycleBudget = in.readInt();
+		heldBudget = 0;
+		budgetGranted = cycleCount + cycleBudget;
+		waitingForInterrupt = in.readBoolean();
+		waitingForEvent = in.readBoolean();
+		eventRegister = in.readBoolean();
+		instructionsRetired = in.readLong();
+		exceptionsTaken = in.readLong();
+		pcWrites = in.readLong();
+		coprocessorInstructions = in.readLong();
+		mem.setTotalBilled(in.readLong());
+		interrupts.loadState(in);
+		clearExclusiveMonitor();
+	}
 	private int clamp(int x, int min, int max) {
 		if(x < min) return min;
 		else if(x > max) return max;
@@ -1,5 +1,7 @@
 package name.bizna.jarm;
 
+import java.io.IOException;
+
 /**
  * ARM allows coprocessors to implement almost any instruction. You want to subclass {@link SaneCoprocessor} instead, probably.
  */
@@ -29,4 +31,19 @@ public abstract class Coprocessor {
 	 * Called by CPU when a reset occurs.
 	 */
 	public abstract void reset();
+	/**
+	 * Called by Snapshot to save whatever state the coprocessor has. loadState must read back exactly what this writes.
+	 */
+	public void saveState(SnapshotOutputStream out) throws IOException {}
+	/**
+	 * Called by Snapshot, on a coprocessor of the same class, to restore what saveState wrote.
+	 */
+	public void loadState(SnapshotInputStream in) throws IOException {}
+	/**
+	 * Called by MachineFork to make this coprocessor's counterpart for a forked core. The counterpart's state is then
+	 * copied with saveState and loadState, so it only needs to be built the same way. Returns null, the default, if the
+	 * coprocessor can't be forked.
+	 * @param child The forked core the counterpart will be mapped into
+	 */
+	public Coprocessor fork(CPU child) { return null; }
 }
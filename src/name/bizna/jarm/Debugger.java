@@ -23,4 +23,27 @@ public abstract class Debugger {
 	public abstract void onInstruction(CPU cpu, int addr);
 
 	public abstract void onSignal(String name, Object[] args);
+
+	/**
+	 * Whether onInstruction has to be called before every instruction.
+	 */
+	public boolean wantsInstructions() {
+		return true;
+	}
+
+	/**
+	 * Whether onReadMemory and onWriteMemory have to be called for every access, instruction fetches included.
+	 */
+	public boolean wantsMemoryAccesses() {
+		return true;
+	}
+
+	/**
+	 * Call this whenever wantsInstructions or wantsMemoryAccesses may have changed its answer, e.g. when a breakpoint
+	 * is set or cleared. The CPU asks again before its next slice. While the answer to both is no, it runs just as it
+	 * would without a debugger, instruction cache and JIT included. May be called from any thread.
+	 */
+	protected void hooksChanged() {
+		cpu.debuggerHooksChanged();
+	}
 }
@@ -0,0 +1,69 @@
+package name.bizna.jarm;
+
+/**
+ * An ARM instruction that has already been through the decoder. The operation handle and the register/immediate
+ * fields are extracted once, when the instruction is first fetched, and {@link CPU} dispatches on them directly
+ * every time the instruction is executed after that.
+ * Instances are immutable, and don't depend on any CPU state other than the instruction word itself.
+ */
+final class DecodedInstruction {
+	/* any instruction without a specialized handler; dispatched on its ARMDecodeTable class, which is in opcode */
+	static final int OP_CLASS = 0;
+	static final int OP_UNCONDITIONAL = 1;
+	/* Data-processing (register, A5-197) */
+	static final int OP_DP_REG = 2;
+	/* Data-processing (register-shifted register, A5-198) */
+	static final int OP_DP_RSR = 3;
+	/* Data-processing (immediate, A5-199) */
+	static final int OP_DP_IMM = 4;
+	/* MOVW (A8-484), MOVT (A8-491) */
+	static final int OP_MOVW = 5;
+	static final int OP_MOVT = 6;
+	/* Load/store word and unsigned byte (A5-208) */
+	static final int OP_LDST_IMM = 7;
+	static final int OP_LDST_REG = 8;
+	/* B, BL (A8-334, A8-348) */
+	static final int OP_B = 9;
+	static final int OP_BL = 10;
+	/* for OP_DP_IMM, when the immediate's carry out is simply the current C flag */
+	static final int IMM_CARRY_FROM_C = -1;
+	/* bits of the flags field for OP_LDST_* (same positions as in the instruction word) */
+	static final int LDST_LOAD = 1<<20;
+	static final int LDST_W = 1<<21;
+	static final int LDST_BYTE = 1<<22;
+	static final int LDST_U = 1<<23;
+	static final int LDST_P = 1<<24;
+	static final int LDST_FLAGS = LDST_LOAD|LDST_W|LDST_BYTE|LDST_U|LDST_P;
+	final int iword;
+	final int op;
+	/* condition code; 14 (always) for unconditional instructions too */
+	final int cond;
+	/* cycles billed by the original fetch, billed again on every cached fetch */
+	final int fetchCost;
+	/* data processing opcode (including the S bit), load/store flags, or ARMDecodeTable class */
+	final int opcode;
+	final int rd, rn, rm, rs;
+	final int shiftType, shiftAmount;
+	/* pre-expanded immediate, branch offset, or 16-bit immediate */
+	final int imm;
+	/* shifter carry out of an OP_DP_IMM immediate: 0, 1 or IMM_CARRY_FROM_C */
+	final int immCarry;
+	DecodedInstruction(int iword, int op, int cond, int fetchCost, int opcode, int rd, int rn, int rm, int rs, int shiftType, int shiftAmount, int imm, int immCarry) {
+		this.iword = iword;
+		this.op = op;
+		this.cond = cond;
+		this.fetchCost = fetchCost;
+		this.opcode = opcode;
+		this.rd = rd;
+		this.rn = rn;
+		this.rm = rm;
+		this.rs = rs;
+		this.shiftType = shiftType;
+		this.shiftAmount = shiftAmount;
+		this.imm = imm;
+		this.immCarry = immCarry;
+	}
+	DecodedInstruction(int iword, int op, int cond, int fetchCost) {
+		this(iword, op, cond, fetchCost, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+	}
+}
@@ -0,0 +1,271 @@
+package name.bizna.jarm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * RAM kept outside the Java heap, in direct ByteBuffers. Unlike ByteArrayRegion, this can be as large as the whole
+ * physical address space, and the garbage collector never has to look at its contents.
+ * The memory is split into 1GiB chunks, since a ByteBuffer can't hold more than 2GiB. Accesses are always aligned, so
+ * no access ever straddles two chunks.
+ * All of it is allocated up front, against the JVM's limit on direct memory, so a machine that doesn't fit fails when
+ * its RAM is made, not on some later store. Use PagedMemoryRegion for RAM that should only cost what the guest touches.
+ */
+public final class DirectMemoryRegion extends ByteBackedRegion {
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_MASK = (1L<<CHUNK_SHIFT)-1;
+	private static final int COPY_SIZE = 65536;
+	private final long size;
+	private final boolean allowWrites;
+	/* the same memory, viewed in each byte order */
+	private final ByteBuffer[] littleChunks, bigChunks;
+
+	/**
+	 * @throws FatalException if there isn't enough direct memory left; -XX:MaxDirectMemorySize sets how much there is
+	 */
+	public DirectMemoryRegion(long size, boolean allowWrites, int accessLatency, boolean wide) {
+		super(accessLatency, wide);
+		if(size <= 0 || size > (1L<<32)) throw new IllegalArgumentException("size must be between 1 byte and 4GiB");
+		this.size = size;
+		this.allowWrites = allowWrites;
+		int chunkCount = (int)((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+		littleChunks = new ByteBuffer[chunkCount];
+		bigChunks = new ByteBuffer[chunkCount];
+		for(int n = 0; n < chunkCount; ++n) {
+			long chunkSize = Math.min(size - ((long)n << CHUNK_SHIFT), 1L<<CHUNK_SHIFT);
+			ByteBuffer chunk;
+			try {
+				chunk = ByteBuffer.allocateDirect((int)chunkSize);
+			}
+			catch(OutOfMemoryError e) {
+				throw new FatalException("not enough direct memory for "+size+" bytes of RAM: "+e.getMessage());
+			}
+			littleChunks[n] = chunk.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			bigChunks[n] = chunk.duplicate().order(ByteOrder.BIG_ENDIAN);
+		}
+	}
+
+	public DirectMemoryRegion(long size, int accessLatency, boolean wide) {
+		this(size, true, accessLatency, wide);
+	}
+
+	public DirectMemoryRegion(long size, int accessLatency) {
+		this(size, true, accessLatency, true);
+	}
+
+	public DirectMemoryRegion(long size) {
+		this(size, true, 1, true);
+	}
+
+	/**
+	 * Make a new region that shares the memory of an existing one, but has different timing.
+	 */
+	public DirectMemoryRegion(DirectMemoryRegion other, int accessLatency, boolean wide) {
+		super(accessLatency, wide);
+		this.size = other.size;
+		this.allowWrites = other.allowWrites;
+		this.littleChunks = other.littleChunks;
+		this.bigChunks = other.bigChunks;
+	}
+
+	@Override
+	public long getRegionSize() {
+		return size;
+	}
+
+	@Override
+	public boolean isInstructionCacheable() {
+		return true;
+	}
+
+	private void checkWritable(long address) throws BusErrorException {
+		if(!allowWrites) throw new BusErrorException("DirectMemoryRegion is readonly", address, BusErrorException.AccessType.WRITE);
+	}
+
+	/* ByteBackedRegion gives us int addresses, which is fine for the first 2GiB */
+	@Override
+	public byte backingReadByte(int address) {
+		return readByte(address & 0xFFFFFFFFL);
+	}
+
+	@Override
+	public void backingWriteByte(int address, byte v) throws BusErrorException {
+		checkWritable(address);
+		littleChunks[address >>> CHUNK_SHIFT].put((int)(address & CHUNK_MASK), v);
+	}
+
+	private byte readByte(long address) {
+		return littleChunks[(int)(address >>> CHUNK_SHIFT)].get((int)(address & CHUNK_MASK));
+	}
+
+	@Override
+	public byte readByte(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyHalf);
+		return readByte(address);
+	}
+
+	@Override
+	public void writeByte(PhysicalMemorySpace mem, long address, byte v) throws BusErrorException {
+		mem.addToBill(accessLatencyHalf);
+		checkWritable(address);
+		littleChunks[(int)(address >>> CHUNK_SHIFT)].put((int)(address & CHUNK_MASK), v);
+	}
+
+	@Override
+	public short readShortLE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyHalf);
+		return littleChunks[(int)(address >>> CHUNK_SHIFT)].getShort((int)(address & CHUNK_MASK));
+	}
+
+	@Override
+	public short readShortBE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyHalf);
+		return bigChunks[(int)(address >>> CHUNK_SHIFT)].getShort((int)(address & CHUNK_MASK));
+	}
+
+	@Override
+	public void writeShortLE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException {
+		mem.addToBill(accessLatencyHalf);
+		checkWritable(address);
+		littleChunks[(int)(address >>> CHUNK_SHIFT)].putShort((int)(address & CHUNK_MASK), v);
+	}
+
+	@Override
+	public void writeShortBE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException {
+		mem.addToBill(accessLatencyHalf);
+		checkWritable(address);
+		bigChunks[(int)(address >>> CHUNK_SHIFT)].putShort((int)(address & CHUNK_MASK), v);
+	}
+
+	@Override
+	public int readIntLE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyWord);
+		return littleChunks[(int)(address >>> CHUNK_SHIFT)].getInt((int)(address & CHUNK_MASK));
+	}
+
+	@Override
+	public int readIntBE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyWord);
+		return bigChunks[(int)(address >>> CHUNK_SHIFT)].getInt((int)(address & CHUNK_MASK));
+	}
+
+	@Override
+	public void writeIntLE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException {
+		mem.addToBill(accessLatencyWord);
+		checkWritable(address);
+		littleChunks[(int)(address >>> CHUNK_SHIFT)].putInt((int)(address & CHUNK_MASK), v);
+	}
+
+	@Override
+	public void writeIntBE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException {
+		mem.addToBill(accessLatencyWord);
+		checkWritable(address);
+		bigChunks[(int)(address >>> CHUNK_SHIFT)].putInt((int)(address & CHUNK_MASK), v);
+	}
+
+	@Override
+	public void readBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) {
+		if(length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		copyTo(address, buf, offset, length);
+	}
+
+	@Override
+	public void writeBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) throws BusErrorException {
+		if(length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		checkWritable(address);
+		copyFrom(address, buf, offset, length);
+	}
+
+	/* Bulk access for loaders, savers and debuggers. Like getBackingArray on ByteArrayRegion, these are not billed, and
+	 * writes do not invalidate the instruction cache. */
+	public void copyTo(long address, byte[] dst, int offset, int length) {
+		while(length > 0) {
+			ByteBuffer chunk = littleChunks[(int)(address >>> CHUNK_SHIFT)].duplicate();
+			chunk.position((int)(address & CHUNK_MASK));
+			int amount = Math.min(length, chunk.remaining());
+			chunk.get(dst, offset, amount);
+			address += amount;
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	public void copyFrom(long address, byte[] src, int offset, int length) {
+		while(length > 0) {
+			ByteBuffer chunk = littleChunks[(int)(address >>> CHUNK_SHIFT)].duplicate();
+			chunk.position((int)(address & CHUNK_MASK));
+			int amount = Math.min(length, chunk.remaining());
+			chunk.put(src, offset, amount);
+			address += amount;
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	/* Read-only regions are shared as they are. RAM is copied whole; use PagedMemoryRegion to fork cheaply. */
+	@Override
+	public DirectMemoryRegion fork() {
+		if(!allowWrites) return this;
+		DirectMemoryRegion ret = new DirectMemoryRegion(size, true, accessLatencyHalf, accessLatencyWord == accessLatencyHalf);
+		for(int n = 0; n < littleChunks.length; ++n) {
+			ByteBuffer src = littleChunks[n].duplicate();
+			src.clear();
+			ByteBuffer dst = ret.littleChunks[n].duplicate();
+			dst.clear();
+			dst.put(src);
+		}
+		return ret;
+	}
+
+	/** Write the entire contents of the region to a stream. */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] buf = new byte[COPY_SIZE];
+		for(long address = 0; address < size; address += COPY_SIZE) {
+			int amount = (int)Math.min(COPY_SIZE, size - address);
+			copyTo(address, buf, 0, amount);
+			out.write(buf, 0, amount);
+		}
+	}
+
+	/* read-only memory is whatever it was built with, so only RAM is saved */
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		if(!allowWrites) return;
+		byte[] page = new byte[SnapshotOutputStream.PAGE_SIZE];
+		for(long address = 0; address < size; address += page.length) {
+			int amount = (int)Math.min(page.length, size - address);
+			copyTo(address, page, 0, amount);
+			if(!SnapshotOutputStream.isZero(page, 0, amount)) out.writePage((int)(address / page.length), page, 0, amount);
+		}
+		out.endPages();
+	}
+
+	@Override
+	public void loadState(SnapshotInputStream in) throws IOException {
+		if(!allowWrites) return;
+		byte[] page = new byte[SnapshotInputStream.PAGE_SIZE];
+		long pageCount = (size + page.length - 1) / page.length;
+		long zeroFrom = 0;
+		int index;
+		while((index = in.readPageIndex(pageCount)) >= 0) {
+			long address = (long)index * page.length;
+			zeroFill(zeroFrom, address);
+			int amount = (int)Math.min(page.length, size - address);
+			in.readFully(page, 0, amount);
+			copyFrom(address, page, 0, amount);
+			zeroFrom = address + amount;
+		}
+		zeroFill(zeroFrom, size);
+	}
+
+	private void zeroFill(long from, long to) {
+		byte[] zeroes = new byte[(int)Math.min(COPY_SIZE, to - from)];
+		for(long address = from; address < to; address += zeroes.length) {
+			copyFrom(address, zeroes, 0, (int)Math.min(zeroes.length, to - address));
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package name.bizna.jarm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Which 4KiB pages of a memory have been written to since they were last collected. Whoever keeps a copy of the memory
+ * somewhere else (NVRAM, a snapshot, a core dump) can then move only the pages that changed.
+ * Marks may be made from one thread while they're collected on another. take() clears the marks a word at a time as it
+ * reads them, so a mark is never lost: it either ends up in what take() returns or stays behind for next time. For
+ * that to be enough, a writer must mark a page after it stores to it, not before.
+ */
+public final class DirtyPageMap {
+	public static final int PAGE_SHIFT = 12;
+	public static final int PAGE_SIZE = 1<<PAGE_SHIFT;
+	private final long size;
+	private final int pageCount;
+	private final AtomicLongArray words;
+
+	public DirtyPageMap(long size) {
+		if(size < 0 || size > (1L<<32)) throw new IllegalArgumentException("size must be between 0 bytes and 4GiB");
+		this.size = size;
+		pageCount = (int)((size + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+		words = new AtomicLongArray((pageCount + 63) >>> 6);
+	}
+
+	/** Make a map of the same size with the same pages marked. */
+	public DirtyPageMap copy() {
+		DirtyPageMap ret = new DirtyPageMap(size);
+		ret.set(this);
+		return ret;
+	}
+
+	/** Mark exactly the pages other has marked. other must be the same size. */
+	public void set(DirtyPageMap other) {
+		if(other.size != size) throw new IllegalArgumentException("maps differ in size");
+		for(int n = 0; n < words.length(); ++n) words.set(n, other.words.get(n));
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/** Mark the pages that hold length bytes from address. */
+	public void mark(long address, long length) {
+		if(length <= 0) return;
+		int first = (int)(address >>> PAGE_SHIFT);
+		int last = (int)((address + length - 1) >>> PAGE_SHIFT);
+		for(int page = first; page <= last; ++page) markPage(page);
+	}
+
+	/* almost every store lands in a page that's already marked, which costs only the read */
+	private void markPage(int page) {
+		int index = page >>> 6;
+		long bit = 1L << (page & 63);
+		long old;
+		while(((old = words.get(index)) & bit) == 0) {
+			if(words.compareAndSet(index, old, old | bit)) return;
+		}
+	}
+
+	public void markAll() {
+		for(int page = 0; page < pageCount; page += 64) {
+			int left = pageCount - page;
+			words.set(page >>> 6, left >= 64 ? -1L : (1L << left) - 1);
+		}
+	}
+
+	public void clear() {
+		for(int n = 0; n < words.length(); ++n) words.set(n, 0);
+	}
+
+	public boolean isClean() {
+		for(int n = 0; n < words.length(); ++n) {
+			if(words.get(n) != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Collect the marked pages and clear their marks.
+	 * @return The runs of marked pages in increasing order, as start and end addresses in turn. The last run ends at the
+	 * size of the memory rather than the end of its page.
+	 */
+	public long[] take() {
+		long[] taken = new long[words.length()];
+		int runs = 0;
+		boolean inRun = false;
+		for(int n = 0; n < taken.length; ++n) {
+			if(words.get(n) != 0) taken[n] = words.getAndSet(n, 0);
+			for(int bit = 0; bit < 64; ++bit) {
+				boolean dirty = (taken[n] & (1L << bit)) != 0;
+				if(dirty && !inRun) ++runs;
+				inRun = dirty;
+			}
+		}
+		long[] ret = new long[runs * 2];
+		int out = 0;
+		inRun = false;
+		for(int page = 0; page < pageCount; ++page) {
+			boolean dirty = (taken[page >>> 6] & (1L << (page & 63))) != 0;
+			if(dirty && !inRun) ret[out++] = (long)page << PAGE_SHIFT;
+			else if(!dirty && inRun) ret[out++] = (long)page << PAGE_SHIFT;
+			inRun = dirty;
+		}
+		if(inRun) ret[out++] = size;
+		return ret;
+	}
+}
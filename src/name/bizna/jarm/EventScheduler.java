@@ -0,0 +1,83 @@
+package name.bizna.jarm;
+
+import java.util.PriorityQueue;
+
+/**
+ * Things that should happen when a CPU's cycle count (CPU.getCycleCount) reaches a given value: timers, devices that
+ * finish an operation some time after it starts, and so on. Events are fired on the thread running the CPU, between
+ * instructions, in order of time and then of scheduling.
+ * execute(int) stops exactly at the next event without checking the time after every instruction, and a core sitting in
+ * WFI skips straight to it instead of counting out the cycles in between.
+ * Events may be scheduled and cancelled from any thread. An event scheduled from another thread while the CPU is
+ * running may fire a JIT block or so late.
+ */
+public final class EventScheduler {
+	public interface Callback {
+		/**
+		 * @param when The cycle count the event was scheduled for. The CPU's cycle count is exactly this if the core was
+		 * waiting for an interrupt, and may be a little past it if an instruction straddled it.
+		 */
+		void onEvent(CPU cpu, long when);
+	}
+	public static final class Event implements Comparable<Event> {
+		final long when;
+		final long sequence;
+		final Callback callback;
+		private Event(long when, long sequence, Callback callback) {
+			this.when = when;
+			this.sequence = sequence;
+			this.callback = callback;
+		}
+		public long getTime() { return when; }
+		@Override
+		public int compareTo(Event other) {
+			if(when != other.when) return when < other.when ? -1 : 1;
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+	}
+	private final PriorityQueue<Event> queue = new PriorityQueue<Event>();
+	private long nextSequence;
+	/* the time of the earliest event, or Long.MAX_VALUE */
+	volatile long nextDue = Long.MAX_VALUE;
+	/* set when the earliest event changes, so the CPU recomputes where to stop */
+	volatile boolean changed;
+	EventScheduler() {}
+	/**
+	 * Arrange for callback to be called when the cycle count reaches when. If that's already passed, it's called
+	 * before the next instruction.
+	 * @return A handle that can be passed to cancel
+	 */
+	public synchronized Event schedule(long when, Callback callback) {
+		if(callback == null) throw new NullPointerException("callback");
+		Event event = new Event(when, nextSequence++, callback);
+		queue.add(event);
+		if(when < nextDue) {
+			nextDue = when;
+			changed = true;
+		}
+		return event;
+	}
+	/**
+	 * Returns true if the event was still waiting to fire, false if it had already fired or been cancelled.
+	 */
+	public synchronized boolean cancel(Event event) {
+		if(!queue.remove(event)) return false;
+		Event head = queue.peek();
+		nextDue = head == null ? Long.MAX_VALUE : head.when;
+		/* stopping early for nothing is harmless, so changed can stay as it was */
+		return true;
+	}
+	/** Returns the time of the earliest scheduled event, or Long.MAX_VALUE if there isn't one. */
+	public long getNextEventTime() {
+		return nextDue;
+	}
+	/* removes and returns the earliest event if it's due */
+	synchronized Event pollDue(long now) {
+		Event head = queue.peek();
+		if(head == null || head.when > now) return null;
+		queue.poll();
+		Event next = queue.peek();
+		nextDue = next == null ? Long.MAX_VALUE : next.when;
+		return head;
+	}
+}
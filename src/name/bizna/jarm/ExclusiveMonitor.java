@@ -0,0 +1,72 @@
+package name.bizna.jarm;
+
+import java.util.Arrays;
+
+/**
+ * The global exclusive monitor (A3-118) for one {@link PhysicalMemorySpace}, shared by every processor attached to it.
+ * Each processor can hold one reservation, on one Exclusives Reservation Granule. Any store to a reserved granule, by
+ * anyone, clears the reservation; a Store-Exclusive only succeeds if its processor's reservation is still there.
+ * Checking a reservation and doing the store that goes with it have to happen atomically with respect to every other
+ * store to the same granule, so while anyone might be watching, stores take the lock for their granule. Granules are
+ * spread over a fixed set of locks, so processors working on unrelated memory rarely contend.
+ * With a single processor attached, nothing is watched except between a Load-Exclusive and the matching
+ * Store-Exclusive or CLREX, and ordinary stores never take a lock.
+ */
+final class ExclusiveMonitor {
+	/* 2^3 words, as reported by CTR.ERG; aligned accesses never straddle a granule */
+	static final int GRANULE_SHIFT = 5;
+	private static final int STRIPES = 64;
+	private static final long NONE = -1;
+	private final Object[] locks = new Object[STRIPES];
+	/* the granule each processor has reserved, or NONE; only changed with that granule's lock held */
+	private volatile long[] reservations = new long[0];
+	private volatile boolean shared;
+	/* stores have to check reservations */
+	volatile boolean watching;
+	ExclusiveMonitor() {
+		for(int n = 0; n < STRIPES; ++n) locks[n] = new Object();
+	}
+	/**
+	 * Give a new processor a slot in the monitor. Once there is more than one, stores are always watched.
+	 * @return the processor's index, to pass to the other methods
+	 */
+	synchronized int attach() {
+		int ret = reservations.length;
+		long[] nu = Arrays.copyOf(reservations, ret + 1);
+		nu[ret] = NONE;
+		reservations = nu;
+		if(ret > 0) shared = watching = true;
+		return ret;
+	}
+	Object lockFor(long address) {
+		return locks[(int)(address >>> GRANULE_SHIFT) & (STRIPES-1)];
+	}
+	/* All of these must be called with lockFor(address) held. */
+	/** Something stored to this address; nobody's reservation on its granule survives. */
+	void observeStore(long address) {
+		long granule = address >>> GRANULE_SHIFT;
+		long[] reservations = this.reservations;
+		for(int n = 0; n < reservations.length; ++n) {
+			if(reservations[n] == granule) reservations[n] = NONE;
+		}
+	}
+	void reserve(int processor, long address) {
+		reservations[processor] = address >>> GRANULE_SHIFT;
+		watching = true;
+	}
+	/**
+	 * Returns true if the processor still has its reservation on this address's granule. Either way, every reservation on
+	 * the granule is gone afterward, since the caller is about to store to it.
+	 */
+	boolean claim(int processor, long address) {
+		boolean ret = reservations[processor] == address >>> GRANULE_SHIFT;
+		observeStore(address);
+		if(!shared) watching = false;
+		return ret;
+	}
+	/** CLREX, or anything else that clears the processor's local monitor. Doesn't need a lock. */
+	void release(int processor) {
+		reservations[processor] = NONE;
+		if(!shared) watching = false;
+	}
+}
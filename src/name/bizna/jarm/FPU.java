@@ -1,5 +1,7 @@
 package name.bizna.jarm;
 
+import java.io.IOException;
+
 public strictfp class FPU extends SaneCoprocessor {
 	
 	/* TODO: How to copy FPU status bits to APSR? */
@@ -734,6 +736,20 @@ public strictfp class FPU extends SaneCoprocessor {
 		FPSCR = FPSCR_IMPLEMENTED_SUBSET;
 	}
 
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		out.writeInts(registerBits);
+		out.writeInt(FPSCR);
+		out.writeInt(FPEXC);
+	}
+
+	@Override
+	public void loadState(SnapshotInputStream in) throws IOException {
+		in.readInts(registerBits);
+		FPSCR = in.readInt();
+		FPEXC = in.readInt();
+	}
+
 	public int readRegister(int register) {
 		return registerBits[register];
 	}
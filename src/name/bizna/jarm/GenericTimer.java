@@ -0,0 +1,145 @@
+package name.bizna.jarm;
+
+import java.io.IOException;
+
+/**
+ * The Generic Timer Extension (chapter B8), counting the core's cycles: the system counter is CPU.getCycleCount. With no
+ * Virtualization Extensions, CNTVOFF is zero and the virtual count is the physical count.
+ * The timers don't poll. Each one schedules an event for its compare value and asserts its interrupt line
+ * (InterruptController.PHYSICAL_TIMER_LINE, VIRTUAL_TIMER_LINE) when the event fires. The event stream works the same
+ * way.
+ */
+final class GenericTimer {
+	/* Timer PL1 Control Register, CNTKCTL */
+	/* 10-31: UNK/SBZP */
+	/* 9: PL0PTEN, 8: PL0VTEN */
+	/* 4-7: EVNTI, 3: EVNTDIR, 2: EVNTEN */
+	/* 1: PL0VCTEN, 0: PL0PCTEN */
+	static final int CNTKCTL_BIT_PL0PCTEN = 0;
+	static final int CNTKCTL_BIT_PL0VCTEN = 1;
+	static final int CNTKCTL_BIT_EVNTEN = 2;
+	static final int CNTKCTL_BIT_EVNTDIR = 3;
+	static final int CNTKCTL_SHIFT_EVNTI = 4;
+	static final int CNTKCTL_BIT_PL0VTEN = 8;
+	static final int CNTKCTL_BIT_PL0PTEN = 9;
+	static final int CNTKCTL_WRITE_MASK = 0x000003FF;
+	/* Timer control registers, CNTP_CTL and CNTV_CTL */
+	static final int CTL_BIT_ENABLE = 0;
+	static final int CTL_BIT_IMASK = 1;
+	static final int CTL_BIT_ISTATUS = 2;
+	static final int CTL_WRITE_MASK = (1<<CTL_BIT_ENABLE)|(1<<CTL_BIT_IMASK);
+	final class Timer implements EventScheduler.Callback {
+		private final int line;
+		private int ctl;
+		private long cval;
+		private EventScheduler.Event pending;
+		Timer(int line) { this.line = line; }
+		private boolean conditionMet() {
+			return (ctl & (1<<CTL_BIT_ENABLE)) != 0 && Long.compareUnsigned(cpu.getCycleCount(), cval) >= 0;
+		}
+		/* recompute the interrupt, and when to recompute it next */
+		private void update() {
+			if(pending != null) {
+				cpu.getEventScheduler().cancel(pending);
+				pending = null;
+			}
+			boolean met = conditionMet();
+			/* a compare value past 2^63 will never be reached */
+			if(!met && (ctl & (1<<CTL_BIT_ENABLE)) != 0 && cval >= 0) pending = cpu.getEventScheduler().schedule(cval, this);
+			if(met && (ctl & (1<<CTL_BIT_IMASK)) == 0) cpu.getInterruptController().raise(line);
+			else cpu.getInterruptController().lower(line);
+		}
+		@Override
+		public void onEvent(CPU cpu, long when) {
+			pending = null;
+			update();
+		}
+		int readCTL() {
+			return conditionMet() ? ctl | (1<<CTL_BIT_ISTATUS) : ctl;
+		}
+		void writeCTL(int value) {
+			ctl = value & CTL_WRITE_MASK;
+			update();
+		}
+		long readCVAL() { return cval; }
+		void writeCVAL(long value) {
+			cval = value;
+			update();
+		}
+		/* TVAL is a signed 32-bit view of CVAL minus the count */
+		int readTVAL() { return (int)(cval - cpu.getCycleCount()); }
+		void writeTVAL(int value) { writeCVAL(cpu.getCycleCount() + value); }
+		void reset() {
+			ctl = 0;
+			update();
+		}
+		void saveState(SnapshotOutputStream out) throws IOException {
+			out.writeInt(ctl);
+			out.writeLong(cval);
+		}
+		void loadState(SnapshotInputStream in) throws IOException {
+			ctl = in.readInt() & CTL_WRITE_MASK;
+			cval = in.readLong();
+			update();
+		}
+	}
+	private final CPU cpu;
+	final Timer physical, virtual;
+	/* Counter Frequency Register; only software reads it, to find out what the count means */
+	int CNTFRQ = 0;
+	int CNTKCTL = 0;
+	private EventScheduler.Event pendingStreamEvent;
+	private final EventScheduler.Callback streamCallback = new EventScheduler.Callback() {
+		@Override
+		public void onEvent(CPU cpu, long when) {
+			pendingStreamEvent = null;
+			cpu.signalEvent();
+			updateEventStream();
+		}
+	};
+	GenericTimer(CPU cpu) {
+		this.cpu = cpu;
+		physical = new Timer(InterruptController.PHYSICAL_TIMER_LINE);
+		virtual = new Timer(InterruptController.VIRTUAL_TIMER_LINE);
+	}
+	long readCount() { return cpu.getCycleCount(); }
+	/** Returns true if PL0 may access registers guarded by the given CNTKCTL bit. */
+	boolean pl0Enabled(int bit) { return (CNTKCTL & (1<<bit)) != 0; }
+	void writeCNTKCTL(int value) {
+		CNTKCTL = value & CNTKCTL_WRITE_MASK;
+		updateEventStream();
+	}
+	/* The event stream signals an event each time the chosen count bit goes 0->1 (EVNTDIR=0) or 1->0 */
+	private void updateEventStream() {
+		if(pendingStreamEvent != null) {
+			cpu.getEventScheduler().cancel(pendingStreamEvent);
+			pendingStreamEvent = null;
+		}
+		if((CNTKCTL & (1<<CNTKCTL_BIT_EVNTEN)) == 0) return;
+		int bit = (CNTKCTL >> CNTKCTL_SHIFT_EVNTI) & 15;
+		long period = 2L << bit;
+		long phase = (CNTKCTL & (1<<CNTKCTL_BIT_EVNTDIR)) != 0 ? 0 : 1L << bit;
+		long now = cpu.getCycleCount();
+		long next = (now & ~(period-1)) + phase;
+		if(next <= now) next += period;
+		pendingStreamEvent = cpu.getEventScheduler().schedule(next, streamCallback);
+	}
+	void reset() {
+		writeCNTKCTL(0);
+		physical.reset();
+		virtual.reset();
+	}
+	/* the count itself is the CPU's, and is saved with it */
+	void saveState(SnapshotOutputStream out) throws IOException {
+		out.writeInt(CNTFRQ);
+		out.writeInt(CNTKCTL);
+		physical.saveState(out);
+		virtual.saveState(out);
+	}
+	void loadState(SnapshotInputStream in) throws IOException {
+		CNTFRQ = in.readInt();
+		writeCNTKCTL(in.readInt());
+		physical.loadState(in);
+		virtual.loadState(in);
+	}
+}
@@ -0,0 +1,303 @@
+package name.bizna.jarm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records everything that comes into a single-core machine from outside, so that an InputReplayer can run it again
+ * exactly, instruction for instruction and cycle for cycle, as fast as the host can go, without any of the devices that
+ * fed it. The log starts with a snapshot of the machine, unless it was recorded from a MachineCheckpoint, and then has a
+ * record for each input, tagged with the number of instructions retired and the cycle count when it arrived:
+ * <ul>
+ * <li>each IRQ and FIQ taken, each time WFI or WFE was woken, and whether WFI or WFE found an interrupt or an event
+ * already waiting</li>
+ * <li>each instruction on coprocessors 0-7: the registers and flags it changed, the memory accesses it made, the values
+ * it wrote, and how it ended, including EscapeRetryException and EscapeCompleteException</li>
+ * <li>escapes thrown by memory regions, and how many cycles went by outside execute(int) after each escape</li>
+ * </ul>
+ * Coprocessors 8-15 belong to the core, and are replayed for real. So are memory-mapped devices: what the guest reads
+ * from a region is assumed to come out the same in the replay, which is true of RAM and ROM, and not necessarily of
+ * device registers. A device that talks to the guest through a coprocessor, as OC-ARM's CP3 does with component
+ * replies, signals and the time of day, is covered.
+ * <p>
+ * Records are written through a buffer; flush() pushes them out, and may be called from any thread. If writing fails,
+ * recording stops, and the next flush or close throws the error.
+ */
+public final class InputRecorder {
+	/* "JARMRPLY" */
+	static final long MAGIC = 0x4A41524D52504C59L;
+	public static final int VERSION = 2;
+	/* Record types. Each record is the type, then the instruction count and the cycle count as differences from the
+	 * record before, then whatever the type needs. */
+	static final int END = 0;
+	static final int TAKE_FIQ = 1;
+	static final int TAKE_IRQ = 2;
+	/* followed by the WAKE_ bits */
+	static final int WAKE = 3;
+	static final int PENDING_AT_WAIT = 4;
+	static final int EVENT_AT_WAIT = 5;
+	static final int ESCAPE_RETRY = 6;
+	static final int ESCAPE_COMPLETE = 7;
+	/* the cycle count at the start of the execute(int) after an escape */
+	static final int SLICE = 8;
+	/* followed by the instruction, the changed state, the accesses, the bill and the outcome */
+	static final int COPROCESSOR = 9;
+	/* where the recording was closed; new in version 2 */
+	static final int STOP = 10;
+	static final int WAKE_IRQ = InterruptController.OUTPUT_IRQ;
+	static final int WAKE_FIQ = InterruptController.OUTPUT_FIQ;
+	static final int WAKE_EVENT = 4;
+	/* Memory accesses made by a coprocessor instruction; the low three bits are the kind, writes are odd */
+	static final int READ_BYTE = 0;
+	static final int WRITE_BYTE = 1;
+	static final int READ_SHORT = 2;
+	static final int WRITE_SHORT = 3;
+	static final int READ_INT = 4;
+	static final int WRITE_INT = 5;
+	static final int READ_BYTES = 6;
+	static final int WRITE_BYTES = 7;
+	static final int ACCESS_STRICT_ALIGN = 8;
+	static final int ACCESS_BIG_ENDIAN = 16;
+	static final int ACCESS_PRIVILEGED = 32;
+	/* How a coprocessor instruction ended */
+	static final int OUTCOME_DONE = 0;
+	static final int OUTCOME_RETRY = 1;
+	static final int OUTCOME_COMPLETE = 2;
+	static final int OUTCOME_UNDEFINED = 3;
+	static final int OUTCOME_ALIGNMENT = 4;
+	/* followed by the reason, address, access type and fault status */
+	static final int OUTCOME_BUS_ERROR = 5;
+	private final CPU cpu;
+	private final DataOutputStream out;
+	private long lastInstruction, lastCycle;
+	private IOException failure;
+	/* the escape that's ending this execute(int) came from a coprocessor instruction, which has already said so */
+	private boolean coprocessorEscaped;
+	/* the next execute(int) follows an escape, and starts whenever the host got round to it */
+	private boolean sliceNeeded;
+	/* the accesses of the coprocessor instruction in progress */
+	private final ByteArrayOutputStream accessBytes = new ByteArrayOutputStream();
+	private final DataOutputStream accesses = new DataOutputStream(accessBytes);
+	private int accessCount;
+	private final int[] stateBefore = new int[CPU.COPROCESSOR_VISIBLE_STATE];
+	private final int[] stateAfter = new int[CPU.COPROCESSOR_VISIBLE_STATE];
+	/**
+	 * Start recording. The machine is snapshotted into the log, and then loaded back from the snapshot, so that the
+	 * recording starts from exactly the state the replay will. The core must not be running.
+	 * @param stream Where the log goes
+	 * @param cpu The only core of the machine
+	 */
+	public InputRecorder(OutputStream stream, CPU cpu) throws IOException {
+		this(stream, cpu, null);
+	}
+	/**
+	 * Start recording from a checkpoint, instead of a snapshot in the log. The log is then only the inputs, and has to be
+	 * replayed from the same checkpoint. The machine is restored from the checkpoint before recording starts, just as it
+	 * will be before the replay. The core must not be running.
+	 * @param stream Where the log goes
+	 * @param cpu The only core of the machine
+	 * @param start A checkpoint of the machine, taken just now
+	 */
+	public InputRecorder(OutputStream stream, CPU cpu, MachineCheckpoint start) throws IOException {
+		if(cpu.getMemorySpace().getProcessors().length != 1) throw new IllegalArgumentException("only a machine with a single core can be recorded");
+		if(cpu.recorder != null || cpu.replayer != null) throw new IllegalStateException("already recording or replaying");
+		this.cpu = cpu;
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		/* loading or restoring throws away the TLB and the like, which would otherwise make the first few accesses cost
+		 * less here */
+		if(start != null) start.restore();
+		else {
+			Snapshot.save(snapshot, true, cpu);
+			Snapshot.load(new ByteArrayInputStream(snapshot.toByteArray()), cpu);
+		}
+		out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+		out.writeLong(MAGIC);
+		out.writeInt(VERSION);
+		/* an empty snapshot means the log starts from a checkpoint */
+		out.writeInt(snapshot.size());
+		snapshot.writeTo(out);
+		lastInstruction = cpu.currentInstruction();
+		lastCycle = cpu.getCycleCount();
+		cpu.recorder = this;
+	}
+	/**
+	 * Write out everything recorded so far.
+	 */
+	public void flush() throws IOException {
+		if(failure != null) throw failure;
+		out.flush();
+	}
+	/**
+	 * Stop recording, and close the stream. The core must not be running. A replay of the log runs up to exactly here
+	 * before it lets the machine go.
+	 */
+	public void close() throws IOException {
+		try {
+			if(cpu.recorder == this) {
+				detach();
+				/* if an escape left the slice short, the replay has to catch up on the cycles before it stops */
+				beginSlice(cpu);
+				begin(STOP, cpu.getCycleCount());
+				out.writeByte(END);
+			}
+			if(failure != null) throw failure;
+		}
+		finally {
+			out.close();
+		}
+	}
+	private void detach() {
+		cpu.recorder = null;
+		cpu.getVirtualMemorySpace().capture = null;
+	}
+	private void fail(IOException e) {
+		if(failure == null) failure = e;
+		detach();
+	}
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		while((value & ~0x7FL) != 0) {
+			out.writeByte((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+		throw new IOException("malformed number");
+	}
+	/* the differences between records are almost always small and positive, but needn't be */
+	static void writeSigned(DataOutput out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+	static long readSigned(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+	private void begin(int type, long cycle) throws IOException {
+		out.writeByte(type);
+		writeSigned(out, cpu.currentInstruction() - lastInstruction);
+		writeSigned(out, cycle - lastCycle);
+		lastInstruction = cpu.currentInstruction();
+		lastCycle = cycle;
+	}
+	private void record(int type, long cycle) {
+		try { begin(type, cycle); }
+		catch(IOException e) { fail(e); }
+	}
+	/* Called by CPU */
+	void interruptTaken(CPU cpu, boolean fiq) {
+		record(fiq ? TAKE_FIQ : TAKE_IRQ, cpu.getCycleCount());
+	}
+	void wokeUp(CPU cpu, boolean event) {
+		try {
+			begin(WAKE, cpu.getCycleCount());
+			out.writeByte((cpu.haveIRQ() ? WAKE_IRQ : 0) | (cpu.haveFIQ() ? WAKE_FIQ : 0) | (event ? WAKE_EVENT : 0));
+		}
+		catch(IOException e) { fail(e); }
+	}
+	void interruptPendingAtWait(CPU cpu) {
+		record(PENDING_AT_WAIT, cpu.getCycleCount());
+	}
+	void eventPendingAtWait(CPU cpu) {
+		record(EVENT_AT_WAIT, cpu.getCycleCount());
+	}
+	void beginSlice(CPU cpu) {
+		if(!sliceNeeded) return;
+		sliceNeeded = false;
+		record(SLICE, cpu.getCycleCount());
+	}
+	/**
+	 * @param cycle The cycle count when the escape was thrown, which is when the instruction it happened in started
+	 */
+	void escaped(CPU cpu, long cycle, boolean completed) {
+		if(coprocessorEscaped) coprocessorEscaped = false;
+		else record(completed ? ESCAPE_COMPLETE : ESCAPE_RETRY, cycle);
+		sliceNeeded = true;
+	}
+	void coprocessorInstruction(CPU cpu, Coprocessor cop, boolean unconditional, int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		long cycle = cpu.getCycleCount();
+		PhysicalMemorySpace mem = cpu.getMemorySpace();
+		VirtualMemorySpace vm = cpu.getVirtualMemorySpace();
+		cpu.saveCoprocessorVisibleState(stateBefore);
+		int billBefore = mem.getAccessBill();
+		accessBytes.reset();
+		accessCount = 0;
+		int outcome = -1;
+		BusErrorException busError = null;
+		vm.capture = this;
+		try {
+			cop.executeInstruction(unconditional, iword);
+			outcome = OUTCOME_DONE;
+		}
+		catch(EscapeRetryException e) { outcome = OUTCOME_RETRY; throw e; }
+		catch(EscapeCompleteException e) { outcome = OUTCOME_COMPLETE; throw e; }
+		catch(UndefinedException e) { outcome = OUTCOME_UNDEFINED; throw e; }
+		catch(AlignmentException e) { outcome = OUTCOME_ALIGNMENT; throw e; }
+		catch(BusErrorException e) { outcome = OUTCOME_BUS_ERROR; busError = e; throw e; }
+		finally {
+			vm.capture = null;
+			/* anything else is the end of the run anyway */
+			if(outcome >= 0 && cpu.recorder == this) {
+				coprocessorEscaped = outcome == OUTCOME_RETRY || outcome == OUTCOME_COMPLETE;
+				try { writeCoprocessorRecord(cycle, iword, mem.getAccessBill() - billBefore, outcome, busError); }
+				catch(IOException e) { fail(e); }
+			}
+		}
+	}
+	private void writeCoprocessorRecord(long cycle, int iword, int bill, int outcome, BusErrorException busError) throws IOException {
+		begin(COPROCESSOR, cycle);
+		out.writeInt(iword);
+		cpu.saveCoprocessorVisibleState(stateAfter);
+		int changed = 0;
+		for(int n = 0; n < stateAfter.length; ++n) {
+			if(stateAfter[n] != stateBefore[n]) changed |= 1<<n;
+		}
+		writeVarLong(out, changed);
+		for(int n = 0; n < stateAfter.length; ++n) {
+			if((changed & (1<<n)) != 0) out.writeInt(stateAfter[n]);
+		}
+		writeVarLong(out, accessCount);
+		writeVarLong(out, accessBytes.size());
+		accessBytes.writeTo(out);
+		writeSigned(out, bill);
+		out.writeByte(outcome);
+		if(outcome == OUTCOME_BUS_ERROR) {
+			out.writeUTF(busError.getReason());
+			out.writeLong(busError.getAddress());
+			out.writeByte(busError.getAccessType().ordinal());
+			out.writeInt(busError.getFaultStatus());
+		}
+	}
+	/* Called by VirtualMemorySpace while a coprocessor instruction runs */
+	void recordAccess(int kind, int address, int value, boolean strictAlign, boolean bigEndian, boolean privileged) {
+		try {
+			accesses.writeByte(kind | (strictAlign ? ACCESS_STRICT_ALIGN : 0) | (bigEndian ? ACCESS_BIG_ENDIAN : 0) | (privileged ? ACCESS_PRIVILEGED : 0));
+			accesses.writeInt(address);
+			if((kind & 1) != 0) accesses.writeInt(value);
+			++accessCount;
+		}
+		/* a ByteArrayOutputStream never throws */
+		catch(IOException e) { fail(e); }
+	}
+	void recordBytes(boolean write, int address, byte[] buf, int offset, int length) {
+		try {
+			accesses.writeByte(write ? WRITE_BYTES : READ_BYTES);
+			accesses.writeInt(address);
+			writeVarLong(accesses, length);
+			if(write) accesses.write(buf, offset, length);
+			++accessCount;
+		}
+		catch(IOException e) { fail(e); }
+	}
+}
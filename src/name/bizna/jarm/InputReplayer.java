@@ -0,0 +1,365 @@
+package name.bizna.jarm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Runs a machine through a log made by InputRecorder. The machine is loaded from the snapshot at the start of the log,
+ * and then, for as long as the log lasts, gets its inputs from the log instead of from outside: interrupts are taken
+ * before the same instructions, WFI and WFE wake at the same cycles, and coprocessors 0-7 aren't called at all, their
+ * effects being played back instead. Interrupt lines raised by devices are ignored until the replay is over.
+ * <p>
+ * The machine must be built and configured the same way as the one that was recorded: the same regions, coprocessors,
+ * and instruction cache and JIT settings. Give it cycles with execute(int) as usual; how many at a time makes no
+ * difference, and there's no need for zeroBudget. When the replay reaches the instruction where the recording was
+ * closed, execute(int) returns right there, as it does after an escape; from then on isFinished returns true and the
+ * machine runs on its own. If the replay stops matching the log, execute throws ReplayDivergedException.
+ * A log that was cut short, say because the recording machine crashed, is replayed as far as it goes, and so is one
+ * from version 1, which didn't say where it was closed.
+ */
+public final class InputReplayer implements EventScheduler.Callback {
+	private final CPU cpu;
+	private final InterruptController interrupts;
+	private final EventScheduler scheduler;
+	private final DataInputStream in;
+	private boolean finished;
+	/* the next record; everything after its counts is still in the stream */
+	private int type;
+	private long instruction, cycle;
+	private int wakeBits;
+	/* stops the core when the next record is due */
+	private EventScheduler.Event event;
+	/* the IRQ and FIQ signals we're driving, and whether the CPU should call beforeInterrupts */
+	private int forced;
+	private boolean hook;
+	/* checkWakeUp has woken the core for the WAKE record, which the next instruction consumes */
+	private boolean woken;
+	private long exceptionsBefore;
+	private final int[] state = new int[CPU.COPROCESSOR_VISIBLE_STATE];
+	private byte[] buffer = new byte[256];
+	/**
+	 * Load the machine from the log and start replaying. The core must not be running.
+	 * @param stream The log
+	 * @param cpu The only core of a machine put together like the recorded one
+	 * @throws SnapshotMismatchException if this isn't a log, or the machine doesn't match
+	 */
+	public InputReplayer(InputStream stream, CPU cpu) throws IOException {
+		this(stream, cpu, null);
+	}
+	/**
+	 * Restore the machine from a checkpoint and start replaying a log that was recorded from it. The core must not be
+	 * running.
+	 * @param stream The log
+	 * @param cpu The only core of the machine the checkpoint was taken of
+	 * @param start The checkpoint the recording started from, or null to load the machine from the log
+	 * @throws SnapshotMismatchException if this isn't a log, or the machine doesn't match
+	 */
+	public InputReplayer(InputStream stream, CPU cpu, MachineCheckpoint start) throws IOException {
+		if(cpu.getMemorySpace().getProcessors().length != 1) throw new IllegalArgumentException("only a machine with a single core can be replayed");
+		if(cpu.recorder != null || cpu.replayer != null) throw new IllegalStateException("already recording or replaying");
+		this.cpu = cpu;
+		this.interrupts = cpu.getInterruptController();
+		this.scheduler = cpu.getEventScheduler();
+		in = new DataInputStream(new BufferedInputStream(stream, 65536));
+		if(in.readLong() != InputRecorder.MAGIC) throw new SnapshotMismatchException("not an input recording");
+		int version = in.readInt();
+		if(version > InputRecorder.VERSION) throw new SnapshotMismatchException("recording is version "+version+", we only understand up to "+InputRecorder.VERSION);
+		byte[] snapshot = new byte[in.readInt()];
+		in.readFully(snapshot);
+		if(start != null) start.restore();
+		else if(snapshot.length == 0) throw new SnapshotMismatchException("recording was started from a checkpoint, and has no snapshot");
+		else Snapshot.load(new ByteArrayInputStream(snapshot), cpu);
+		instruction = cpu.currentInstruction();
+		cycle = cpu.getCycleCount();
+		cpu.replayer = this;
+		interrupts.setReplaying(true);
+		readNext();
+		arm();
+	}
+	/**
+	 * Returns true once every record in the log has been replayed, or the replay has diverged or been closed.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+	/**
+	 * Stop replaying, if that hasn't already happened, and close the stream. The core must not be running.
+	 */
+	public void close() throws IOException {
+		finish();
+		in.close();
+	}
+	private void finish() {
+		if(finished) return;
+		finished = true;
+		if(event != null) {
+			scheduler.cancel(event);
+			event = null;
+		}
+		cpu.replayer = null;
+		interrupts.setReplaying(false);
+	}
+	/* the recording was closed while the core waited; a waiting core would idle away the rest of the budget */
+	private void stopWaiting() {
+		finish();
+		cpu.forfeitBudget();
+	}
+	private ReplayDivergedException diverged(String why) {
+		finish();
+		return new ReplayDivergedException(String.format("replay diverged at instruction %d, cycle %d, PC %08X: %s", cpu.currentInstruction(), cpu.getCycleCount(), cpu.readCurrentPC(), why));
+	}
+	private void readNext() throws IOException {
+		int next = in.read();
+		try {
+			if(next > InputRecorder.STOP) throw new IOException("unknown record type "+next);
+			if(next > InputRecorder.END) {
+				instruction += InputRecorder.readSigned(in);
+				cycle += InputRecorder.readSigned(in);
+				if(next == InputRecorder.WAKE) wakeBits = in.readUnsignedByte();
+				type = next;
+				return;
+			}
+		}
+		/* the recording was cut short */
+		catch(EOFException e) {}
+		type = InputRecorder.END;
+	}
+	/* done with the current record */
+	private void advance() {
+		try { readNext(); }
+		catch(IOException e) {
+			finish();
+			throw new UncheckedIOException(e);
+		}
+	}
+	private void setOutput() {
+		if(finished) return;
+		interrupts.output = forced | (hook ? InterruptController.OUTPUT_REPLAY : 0);
+	}
+	/* make sure we get control back when the next record is due */
+	private void arm() {
+		if(event != null) {
+			scheduler.cancel(event);
+			event = null;
+		}
+		hook = false;
+		long now = cpu.getCycleCount();
+		switch(type) {
+		case InputRecorder.END:
+			finish();
+			return;
+		case InputRecorder.SLICE:
+			/* beginSlice takes care of it */
+			break;
+		case InputRecorder.WAKE:
+			/* the core idles until exactly then, and checkWakeUp does the rest */
+			if(cycle > now) {
+				event = scheduler.schedule(cycle, this);
+				cpu.holdBudgetForEvents();
+			}
+			break;
+		case InputRecorder.STOP:
+			/* beforeInterrupts stops before the next instruction; a core that was closed waiting for an interrupt is
+			 * stopped by the event instead */
+			if(instruction <= cpu.currentInstruction()) hook = true;
+			if(cycle > now) {
+				event = scheduler.schedule(cycle, this);
+				cpu.holdBudgetForEvents();
+			}
+			else if(hook && cpu.isWaitingForInterrupt()) {
+				stopWaiting();
+				return;
+			}
+			break;
+		default:
+			/* events fire between instructions, at or before the one that starts at that cycle count; from there we
+			 * look before every instruction until we reach it */
+			if(instruction <= cpu.currentInstruction() || cycle <= now) hook = true;
+			else {
+				event = scheduler.schedule(cycle, this);
+				cpu.holdBudgetForEvents();
+			}
+		}
+		setOutput();
+	}
+	@Override
+	public void onEvent(CPU cpu, long when) {
+		event = null;
+		if(type == InputRecorder.WAKE) {
+			if(!cpu.isWaitingForInterrupt()) throw diverged("the recorded core was waiting for an interrupt");
+		}
+		else if(type == InputRecorder.STOP && cpu.isWaitingForInterrupt() && instruction == cpu.currentInstruction()) stopWaiting();
+		else {
+			hook = true;
+			setOutput();
+		}
+	}
+	private void checkTime(String what) {
+		if(cycle != cpu.getCycleCount()) throw diverged(what+" was recorded at cycle "+cycle);
+	}
+	/* the record is due in the middle of this instruction */
+	private boolean due(int what) {
+		return type == what && instruction == cpu.currentInstruction();
+	}
+	/* Called by CPU */
+	void beginSlice(CPU cpu) {
+		if(type != InputRecorder.SLICE || instruction != cpu.currentInstruction()) return;
+		cpu.setCycleCount(cycle);
+		advance();
+		arm();
+	}
+	boolean checkWakeUp(CPU cpu) {
+		if(type != InputRecorder.WAKE || instruction != cpu.currentInstruction() || woken) return false;
+		long now = cpu.getCycleCount();
+		if(now < cycle) return false;
+		if(now > cycle) throw diverged("the recorded core woke up at cycle "+cycle);
+		woken = true;
+		forced = wakeBits & (InterruptController.OUTPUT_IRQ | InterruptController.OUTPUT_FIQ);
+		hook = true;
+		setOutput();
+		return (wakeBits & InputRecorder.WAKE_EVENT) != 0;
+	}
+	void beforeInterrupts(CPU cpu) throws EscapeRetryException, EscapeCompleteException {
+		forced = 0;
+		long retired = cpu.currentInstruction();
+		while(type != InputRecorder.END && type != InputRecorder.SLICE && instruction <= retired) {
+			if(instruction < retired) throw diverged("missed a record for instruction "+instruction);
+			if(type == InputRecorder.STOP) {
+				/* hand the machine back before anything from outside can get at it */
+				finish();
+				throw new EscapeRetryException();
+			}
+			else if(type == InputRecorder.ESCAPE_COMPLETE) {
+				/* the instruction before this one escaped once it had finished */
+				advance();
+				arm();
+				throw new EscapeCompleteException();
+			}
+			else if(type == InputRecorder.WAKE) {
+				if(!woken) throw diverged("the recorded core was waiting for an interrupt");
+				woken = false;
+			}
+			else if(type == InputRecorder.TAKE_FIQ || type == InputRecorder.TAKE_IRQ) {
+				checkTime("an interrupt");
+				forced |= type == InputRecorder.TAKE_FIQ ? InterruptController.OUTPUT_FIQ : InterruptController.OUTPUT_IRQ;
+			}
+			/* the rest happen during the instruction */
+			else break;
+			advance();
+		}
+		exceptionsBefore = cpu.exceptionsTaken;
+		setOutput();
+	}
+	void afterInterrupts(CPU cpu) throws EscapeRetryException {
+		if(forced != 0 && cpu.exceptionsTaken == exceptionsBefore) throw diverged("the recorded core took an interrupt here");
+		forced = 0;
+		if(due(InputRecorder.ESCAPE_RETRY)) {
+			checkTime("an escape");
+			advance();
+			arm();
+			throw new EscapeRetryException();
+		}
+		arm();
+	}
+	boolean eventPendingAtWait(CPU cpu) {
+		if(!due(InputRecorder.EVENT_AT_WAIT)) return false;
+		checkTime("an event");
+		advance();
+		arm();
+		return true;
+	}
+	boolean interruptPendingAtWait(CPU cpu) {
+		if(!due(InputRecorder.PENDING_AT_WAIT)) return false;
+		checkTime("an interrupt");
+		advance();
+		arm();
+		return true;
+	}
+	void coprocessorInstruction(CPU cpu, int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		if(!due(InputRecorder.COPROCESSOR)) throw diverged(String.format("coprocessor instruction %08X wasn't recorded", iword));
+		checkTime("a coprocessor instruction");
+		byte[] accesses;
+		int accessCount, bill, outcome;
+		BusErrorException busError = null;
+		try {
+			int recorded = in.readInt();
+			if(recorded != iword) throw diverged(String.format("the recorded coprocessor instruction was %08X, not %08X", recorded, iword));
+			int changed = (int)InputRecorder.readVarLong(in);
+			for(int n = 0; n < state.length; ++n) {
+				if((changed & (1<<n)) != 0) state[n] = in.readInt();
+			}
+			accessCount = (int)InputRecorder.readVarLong(in);
+			accesses = new byte[(int)InputRecorder.readVarLong(in)];
+			in.readFully(accesses);
+			bill = (int)InputRecorder.readSigned(in);
+			outcome = in.readUnsignedByte();
+			if(outcome == InputRecorder.OUTCOME_BUS_ERROR) {
+				String reason = in.readUTF();
+				long address = in.readLong();
+				BusErrorException.AccessType accessType = BusErrorException.AccessType.values()[in.readUnsignedByte()];
+				busError = new BusErrorException(reason, address, accessType, in.readInt());
+			}
+			for(int n = 0; n < state.length; ++n) {
+				if((changed & (1<<n)) != 0) cpu.restoreCoprocessorVisibleState(n, state[n]);
+			}
+		}
+		catch(EOFException e) { throw diverged("the recording ends partway through this coprocessor instruction"); }
+		catch(IOException e) {
+			finish();
+			throw new UncheckedIOException(e);
+		}
+		advance();
+		arm();
+		/* the accesses are made for real, so that they cost the same and fault the same way; only what they wrote comes
+		 * from the recording */
+		PhysicalMemorySpace mem = cpu.getMemorySpace();
+		int billBefore = mem.getAccessBill();
+		DataInputStream access = new DataInputStream(new ByteArrayInputStream(accesses));
+		try {
+			for(int n = 0; n < accessCount; ++n) replayAccess(cpu.getVirtualMemorySpace(), access);
+		}
+		catch(IOException e) { throw diverged("a coprocessor instruction's accesses are corrupt"); }
+		int extra = bill - (mem.getAccessBill() - billBefore);
+		if(extra > 0) mem.addToBill(extra);
+		switch(outcome) {
+		case InputRecorder.OUTCOME_DONE: return;
+		case InputRecorder.OUTCOME_RETRY: throw new EscapeRetryException();
+		case InputRecorder.OUTCOME_COMPLETE: throw new EscapeCompleteException();
+		case InputRecorder.OUTCOME_UNDEFINED: throw new UndefinedException();
+		case InputRecorder.OUTCOME_ALIGNMENT: throw new AlignmentException();
+		case InputRecorder.OUTCOME_BUS_ERROR: throw busError;
+		default: throw diverged("unknown coprocessor instruction outcome "+outcome);
+		}
+	}
+	private void replayAccess(VirtualMemorySpace vm, DataInputStream access) throws IOException, BusErrorException, AlignmentException, EscapeRetryException {
+		int kind = access.readUnsignedByte();
+		int address = access.readInt();
+		boolean strictAlign = (kind & InputRecorder.ACCESS_STRICT_ALIGN) != 0;
+		boolean bigEndian = (kind & InputRecorder.ACCESS_BIG_ENDIAN) != 0;
+		boolean privileged = (kind & InputRecorder.ACCESS_PRIVILEGED) != 0;
+		switch(kind & 7) {
+		case InputRecorder.READ_BYTE: vm.readByte(address, privileged); break;
+		case InputRecorder.WRITE_BYTE: vm.writeByte(address, (byte)access.readInt(), privileged); break;
+		case InputRecorder.READ_SHORT: vm.readShort(address, strictAlign, bigEndian, privileged); break;
+		case InputRecorder.WRITE_SHORT: vm.writeShort(address, (short)access.readInt(), strictAlign, bigEndian, privileged); break;
+		case InputRecorder.READ_INT: vm.readInt(address, strictAlign, bigEndian, privileged); break;
+		case InputRecorder.WRITE_INT: vm.writeInt(address, access.readInt(), strictAlign, bigEndian, privileged); break;
+		case InputRecorder.READ_BYTES:
+		case InputRecorder.WRITE_BYTES: {
+			int length = (int)InputRecorder.readVarLong(access);
+			if(buffer.length < length) buffer = new byte[Math.max(length, buffer.length*2)];
+			if((kind & 1) != 0) {
+				access.readFully(buffer, 0, length);
+				vm.writeBytes(address, buffer, 0, length);
+			}
+			else vm.readBytes(address, buffer, 0, length);
+			break;
+		}
+		}
+	}
+}
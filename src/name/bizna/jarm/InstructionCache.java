@@ -0,0 +1,75 @@
+package name.bizna.jarm;
+
+import java.util.Arrays;
+
+/**
+ * Predecoded instructions, kept per 4KiB page of PHYSICAL memory. Any write to a page throws away everything cached
+ * for that page, so self-modifying code and program loaders see no difference.
+ * Only regions whose {@link MemoryRegion#isInstructionCacheable()} returns true are ever cached.
+ */
+final class InstructionCache {
+	static final int PAGE_SHIFT = 12;
+	static final int PAGE_SIZE = 1<<PAGE_SHIFT;
+	static final int PAGE_INSTRUCTIONS = PAGE_SIZE>>2;
+	/* two-level table; the top level covers 4MiB per entry, so an empty cache costs 4KiB */
+	private static final int DIRECTORY_SHIFT = 22;
+	private static final int TABLE_MASK = (1<<(DIRECTORY_SHIFT-PAGE_SHIFT))-1;
+	static final class Page {
+		final DecodedInstruction[] instructions = new DecodedInstruction[PAGE_INSTRUCTIONS];
+		/* compiled blocks and execution counts by starting instruction; only allocated once the JIT looks at a page */
+		JITBlock[] blocks;
+		int[] heat;
+		/* set when the page is thrown away, so a block running from it knows to bail out; possibly by another core */
+		volatile boolean dead;
+	}
+	private final Page[][] directory = new Page[1<<(32-DIRECTORY_SHIFT)][];
+	Page getPage(long address) {
+		Page[] table = directory[(int)(address >>> DIRECTORY_SHIFT)];
+		if(table == null) return null;
+		return table[(int)(address >>> PAGE_SHIFT) & TABLE_MASK];
+	}
+	Page getOrCreatePage(long address) {
+		int dirIndex = (int)(address >>> DIRECTORY_SHIFT);
+		Page[] table = directory[dirIndex];
+		if(table == null) directory[dirIndex] = table = new Page[TABLE_MASK+1];
+		int tableIndex = (int)(address >>> PAGE_SHIFT) & TABLE_MASK;
+		Page page = table[tableIndex];
+		if(page == null) table[tableIndex] = page = new Page();
+		return page;
+	}
+	DecodedInstruction lookup(long address) {
+		Page page = getPage(address);
+		if(page == null) return null;
+		return page.instructions[(int)(address >>> 2) & (PAGE_INSTRUCTIONS-1)];
+	}
+	void store(long address, DecodedInstruction insn) {
+		getOrCreatePage(address).instructions[(int)(address >>> 2) & (PAGE_INSTRUCTIONS-1)] = insn;
+	}
+	/* called on every write, keep it cheap */
+	void invalidate(long address) {
+		Page[] table = directory[(int)(address >>> DIRECTORY_SHIFT)];
+		if(table != null) {
+			int tableIndex = (int)(address >>> PAGE_SHIFT) & TABLE_MASK;
+			Page page = table[tableIndex];
+			if(page != null) {
+				page.dead = true;
+				table[tableIndex] = null;
+			}
+		}
+	}
+	void invalidateRange(long address, long length) {
+		if(length <= 0) return;
+		for(long page = address >>> PAGE_SHIFT; page <= (address + length - 1) >>> PAGE_SHIFT; ++page) {
+			invalidate(page << PAGE_SHIFT);
+		}
+	}
+	void invalidateAll() {
+		for(Page[] table : directory) {
+			if(table == null) continue;
+			for(Page page : table) {
+				if(page != null) page.dead = true;
+			}
+		}
+		Arrays.fill(directory, null);
+	}
+}
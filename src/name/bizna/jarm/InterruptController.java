@@ -0,0 +1,148 @@
+package name.bizna.jarm;
+
+import java.io.IOException;
+
+/**
+ * The interrupt lines feeding one CPU. Each of the 32 lines can be raised and lowered by whoever drives it, from any
+ * thread; the CPU sees the result as a single volatile word, so checking for interrupts between instructions costs one
+ * load.
+ * A line signals the CPU when it is raised, enabled, and its priority is numerically lower than the priority mask.
+ * Each line goes to either IRQ or FIQ. Lines start out enabled, routed to IRQ, at priority 0x80, with nothing masked.
+ * The guest can find out which line to service with getHighestPending, through whatever device the machine gives it.
+ */
+public final class InterruptController {
+	public static final int LINES = 32;
+	/* bits of output */
+	static final int OUTPUT_IRQ = 1;
+	static final int OUTPUT_FIQ = 2;
+	/* set by InputReplayer when it has something to do before the next instruction */
+	static final int OUTPUT_REPLAY = 4;
+	/** The lines behind CPU.setIRQ and CPU.setFIQ */
+	public static final int LEGACY_IRQ_LINE = 31;
+	public static final int LEGACY_FIQ_LINE = 30;
+	/** The lines driven by the Generic Timer; the same numbers a GIC gives them as PPIs */
+	public static final int PHYSICAL_TIMER_LINE = 29;
+	public static final int VIRTUAL_TIMER_LINE = 27;
+	/** The line driven by the performance monitors' overflow interrupt */
+	public static final int PMU_LINE = 23;
+	public static final int DEFAULT_PRIORITY = 0x80;
+	private final CPU cpu;
+	/* all the line state is only touched with this object locked */
+	private int raised;
+	private int enabled = ~0;
+	private int fiqLines = 1<<LEGACY_FIQ_LINE;
+	private final int[] priorities = new int[LINES];
+	private int priorityMask = 0x100;
+	/* lines that pass the priority mask; kept up to date so that update() doesn't have to look at every priority */
+	private int unmaskedLines = ~0;
+	/* OUTPUT_IRQ and/or OUTPUT_FIQ, or whatever InputReplayer puts there */
+	volatile int output;
+	/* while a replay is in charge of output, the lines are still tracked but don't reach the CPU */
+	private boolean replaying;
+	InterruptController(CPU cpu) {
+		this.cpu = cpu;
+		for(int n = 0; n < LINES; ++n) priorities[n] = DEFAULT_PRIORITY;
+	}
+	private static void checkLine(int line) {
+		if(line < 0 || line >= LINES) throw new IndexOutOfBoundsException("no interrupt line "+line);
+	}
+	private void update() {
+		if(replaying) return;
+		int signalling = raised & enabled & unmaskedLines;
+		int nu = ((signalling & ~fiqLines) != 0 ? OUTPUT_IRQ : 0) | ((signalling & fiqLines) != 0 ? OUTPUT_FIQ : 0);
+		int old = output;
+		output = nu;
+		if((nu & ~old) != 0) cpu.wake();
+	}
+	private void recomputeUnmasked() {
+		int nu = 0;
+		for(int n = 0; n < LINES; ++n) {
+			if(priorities[n] < priorityMask) nu |= 1<<n;
+		}
+		unmaskedLines = nu;
+	}
+	/** Assert a line. It stays asserted until it's lowered. */
+	public synchronized void raise(int line) {
+		checkLine(line);
+		raised |= 1<<line;
+		update();
+	}
+	public synchronized void lower(int line) {
+		checkLine(line);
+		raised &= ~(1<<line);
+		update();
+	}
+	public synchronized void setEnabled(int line, boolean enable) {
+		checkLine(line);
+		if(enable) enabled |= 1<<line;
+		else enabled &= ~(1<<line);
+		update();
+	}
+	/** Route a line to FIQ instead of IRQ, or back. */
+	public synchronized void setFIQ(int line, boolean fiq) {
+		checkLine(line);
+		if(fiq) fiqLines |= 1<<line;
+		else fiqLines &= ~(1<<line);
+		update();
+	}
+	/**
+	 * @param priority 0 (most urgent) through 255 (least)
+	 */
+	public synchronized void setPriority(int line, int priority) {
+		checkLine(line);
+		if(priority < 0 || priority > 255) throw new IllegalArgumentException("priority must be 0-255");
+		priorities[line] = priority;
+		recomputeUnmasked();
+		update();
+	}
+	/**
+	 * Only lines whose priority is numerically lower than the mask will signal the CPU. 256 lets everything through,
+	 * 0 nothing.
+	 */
+	public synchronized void setPriorityMask(int mask) {
+		if(mask < 0 || mask > 256) throw new IllegalArgumentException("priority mask must be 0-256");
+		priorityMask = mask;
+		recomputeUnmasked();
+		update();
+	}
+	public synchronized boolean isRaised(int line) {
+		checkLine(line);
+		return (raised & (1<<line)) != 0;
+	}
+	/** Returns every line that is raised, enabled or not, as a bitmask. */
+	public synchronized int getRaisedLines() {
+		return raised;
+	}
+	/**
+	 * Returns the most urgent line that is currently signalling, lowest number first among equals, or -1 if there are
+	 * none.
+	 */
+	public synchronized int getHighestPending() {
+		int signalling = raised & enabled & unmaskedLines;
+		int best = -1;
+		for(int n = 0; signalling != 0; ++n, signalling >>>= 1) {
+			if((signalling & 1) != 0 && (best < 0 || priorities[n] < priorities[best])) best = n;
+		}
+		return best;
+	}
+	synchronized void setReplaying(boolean replaying) {
+		this.replaying = replaying;
+		if(replaying) output = 0;
+		else update();
+	}
+	/* only the configuration; the lines are as their devices are driving them */
+	synchronized void saveState(SnapshotOutputStream out) throws IOException {
+		out.writeInt(enabled);
+		out.writeInt(fiqLines);
+		out.writeInts(priorities);
+		out.writeInt(priorityMask);
+	}
+	synchronized void loadState(SnapshotInputStream in) throws IOException {
+		enabled = in.readInt();
+		fiqLines = in.readInt();
+		in.readInts(priorities);
+		priorityMask = in.readInt();
+		recomputeUnmasked();
+		update();
+	}
+}
@@ -0,0 +1,40 @@
+package name.bizna.jarm;
+
+/**
+ * Superclass of the classes generated by the JIT. It has to be public, because each generated class lives in its own
+ * ClassLoader (so it can be unloaded when its code is invalidated) and therefore outside this package. Nothing outside
+ * the JIT has any reason to touch it.
+ */
+public abstract class JITBlock {
+	protected JITBlock() {}
+	/**
+	 * Execute the block, starting at its first instruction. Returns when the block ends, when the cycle budget runs out,
+	 * or when anything happens that the interpreter has to deal with.
+	 */
+	public abstract void run(CPU cpu) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException;
+	/* generated code calls only these; they should all inline */
+	protected static boolean step(CPU cpu, int address, int fetchCost) { return cpu.jitStep(address, fetchCost); }
+	protected static boolean condition(CPU cpu, int condition) { return cpu.conditionPassed(condition); }
+	protected static void interpret(CPU cpu, int iword) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		cpu.executeARM(iword);
+	}
+	protected static void dataProcessingRegister(CPU cpu, int opcode, int Rd, int Rn, int Rm, int type, int imm5) throws UndefinedException {
+		cpu.executeDataProcessingRegister(opcode, Rd, Rn, Rm, type, imm5);
+	}
+	protected static void dataProcessingRegisterShiftedRegister(CPU cpu, int opcode, int Rd, int Rn, int Rm, int type, int Rs) throws UndefinedException {
+		cpu.executeDataProcessingRegisterShiftedRegister(opcode, Rd, Rn, Rm, type, Rs);
+	}
+	protected static void dataProcessingImmediate(CPU cpu, int opcode, int Rd, int Rn, int imm32, int immCarry) throws UndefinedException {
+		cpu.executeDataProcessingImmediate(opcode, Rd, Rn, imm32, immCarry);
+	}
+	protected static void movw(CPU cpu, int Rd, int imm16) { cpu.executeMOVW(Rd, imm16); }
+	protected static void movt(CPU cpu, int Rd, int imm16) { cpu.executeMOVT(Rd, imm16); }
+	protected static void loadStoreImmediate(CPU cpu, int flags, int Rn, int Rt, int imm12) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		cpu.executeLoadStoreWordOrByte(flags, Rn, Rt, imm12);
+	}
+	protected static void loadStoreRegister(CPU cpu, int flags, int Rn, int Rt, int Rm, int type, int imm5) throws BusErrorException, AlignmentException, UndefinedException, EscapeRetryException, EscapeCompleteException {
+		cpu.executeLoadStoreWordOrByteRegister(flags, Rn, Rt, Rm, type, imm5);
+	}
+	protected static void branch(CPU cpu, int imm32) { cpu.executeBranch(imm32); }
+	protected static void branchWithLink(CPU cpu, int imm32) { cpu.executeBranchWithLink(imm32); }
+}
@@ -0,0 +1,277 @@
+package name.bizna.jarm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compiles runs of predecoded instructions from one {@link InstructionCache.Page} into JVM classes, so that HotSpot
+ * can inline the handlers for each instruction with its fields as constants.
+ * Each instruction becomes a call to {@link JITBlock#step}, which does all the bookkeeping execute(int) would do
+ * between instructions and bails out if anything interesting happened, followed by a call to the same handler
+ * executeDecoded would have used. Anything without a specialized handler goes back through executeARM(int).
+ * The classfiles are version 49, so we don't have to produce StackMapTables.
+ */
+final class JITCompiler {
+	/* HotSpot refuses to compile methods with more than 8000 bytes of bytecode; we use at most about 50 per instruction */
+	static final int MAX_BLOCK_INSTRUCTIONS = 128;
+	private static final String BLOCK_CLASS = "name/bizna/jarm/JITBlock";
+	private static final String CPU_DESC = "Lname/bizna/jarm/CPU;";
+	/* one loader per class, so that an invalidated block can be garbage collected */
+	private static final class BlockLoader extends ClassLoader {
+		BlockLoader() { super(JITBlock.class.getClassLoader()); }
+		Class<?> define(String name, byte[] b) { return defineClass(name, b, 0, b.length); }
+	}
+	private static final class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final HashMap<String,Integer> entries = new HashMap<String,Integer>();
+		private int count = 1;
+		private int add(String key, byte[] entry) {
+			Integer ret = entries.get(key);
+			if(ret != null) return ret;
+			bytes.write(entry, 0, entry.length);
+			entries.put(key, count);
+			return count++;
+		}
+		private static byte[] entry(int tag, int a, int b) {
+			return new byte[]{(byte)tag, (byte)(a>>8), (byte)a, (byte)(b>>8), (byte)b};
+		}
+		int utf8(String s) {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			try {
+				DataOutputStream d = new DataOutputStream(b);
+				d.writeByte(1);
+				d.writeUTF(s);
+			}
+			catch(IOException e) { throw new InternalError(); }
+			return add("U"+s, b.toByteArray());
+		}
+		int integer(int i) {
+			return add("I"+i, new byte[]{3, (byte)(i>>24), (byte)(i>>16), (byte)(i>>8), (byte)i});
+		}
+		int classRef(String name) {
+			int n = utf8(name);
+			return add("C"+name, new byte[]{7, (byte)(n>>8), (byte)n});
+		}
+		int methodRef(String owner, String name, String desc) {
+			int c = classRef(owner);
+			int nt = add("N"+name+desc, entry(12, utf8(name), utf8(desc)));
+			return add("M"+owner+"."+name+desc, entry(10, c, nt));
+		}
+		void writeTo(DataOutputStream dest) throws IOException {
+			dest.writeShort(count);
+			bytes.writeTo(dest);
+		}
+	}
+	private static final class Code {
+		final ConstantPool pool;
+		byte[] code = new byte[1024];
+		int length = 0;
+		Code(ConstantPool pool) { this.pool = pool; }
+		void u1(int b) {
+			if(length == code.length) code = Arrays.copyOf(code, length * 2);
+			code[length++] = (byte)b;
+		}
+		void u2(int s) { u1(s >> 8); u1(s); }
+		void pushInt(int i) {
+			if(i >= -1 && i <= 5) u1(0x03 + i); /* iconst_<i> */
+			else if(i == (byte)i) { u1(0x10); u1(i); } /* bipush */
+			else if(i == (short)i) { u1(0x11); u2(i); } /* sipush */
+			else { u1(0x13); u2(pool.integer(i)); } /* ldc_w */
+		}
+		void invokeHelper(String name, String desc) {
+			u1(0xB8); /* invokestatic */
+			u2(pool.methodRef(BLOCK_CLASS, name, desc));
+		}
+		/* emits a branch with a placeholder offset, returns the location to patch */
+		int branch(int opcode) {
+			int at = length;
+			u1(opcode);
+			u2(0);
+			return at;
+		}
+		void patch(int at) {
+			int offset = length - at;
+			code[at+1] = (byte)(offset >> 8);
+			code[at+2] = (byte)offset;
+		}
+	}
+	private static final String DESC_STEP = "("+CPU_DESC+"II)Z";
+	private static final String DESC_I = "("+CPU_DESC+"I)V";
+	private static final String DESC_II = "("+CPU_DESC+"II)V";
+	private static final String DESC_IIII = "("+CPU_DESC+"IIII)V";
+	private static final String DESC_IIIII = "("+CPU_DESC+"IIIII)V";
+	private static final String DESC_IIIIII = "("+CPU_DESC+"IIIIII)V";
+	private static void emitInstruction(Code c, DecodedInstruction insn) {
+		switch(insn.op) {
+		case DecodedInstruction.OP_DP_REG:
+			c.u1(0x2B); c.pushInt(insn.opcode); c.pushInt(insn.rd); c.pushInt(insn.rn); c.pushInt(insn.rm); c.pushInt(insn.shiftType); c.pushInt(insn.shiftAmount);
+			c.invokeHelper("dataProcessingRegister", DESC_IIIIII);
+			break;
+		case DecodedInstruction.OP_DP_RSR:
+			c.u1(0x2B); c.pushInt(insn.opcode); c.pushInt(insn.rd); c.pushInt(insn.rn); c.pushInt(insn.rm); c.pushInt(insn.shiftType); c.pushInt(insn.rs);
+			c.invokeHelper("dataProcessingRegisterShiftedRegister", DESC_IIIIII);
+			break;
+		case DecodedInstruction.OP_DP_IMM:
+			c.u1(0x2B); c.pushInt(insn.opcode); c.pushInt(insn.rd); c.pushInt(insn.rn); c.pushInt(insn.imm); c.pushInt(insn.immCarry);
+			c.invokeHelper("dataProcessingImmediate", DESC_IIIII);
+			break;
+		case DecodedInstruction.OP_MOVW:
+			c.u1(0x2B); c.pushInt(insn.rd); c.pushInt(insn.imm);
+			c.invokeHelper("movw", DESC_II);
+			break;
+		case DecodedInstruction.OP_MOVT:
+			c.u1(0x2B); c.pushInt(insn.rd); c.pushInt(insn.imm);
+			c.invokeHelper("movt", DESC_II);
+			break;
+		case DecodedInstruction.OP_LDST_IMM:
+			c.u1(0x2B); c.pushInt(insn.opcode); c.pushInt(insn.rn); c.pushInt(insn.rd); c.pushInt(insn.imm);
+			c.invokeHelper("loadStoreImmediate", DESC_IIII);
+			break;
+		case DecodedInstruction.OP_LDST_REG:
+			c.u1(0x2B); c.pushInt(insn.opcode); c.pushInt(insn.rn); c.pushInt(insn.rd); c.pushInt(insn.rm); c.pushInt(insn.shiftType); c.pushInt(insn.shiftAmount);
+			c.invokeHelper("loadStoreRegister", DESC_IIIIII);
+			break;
+		case DecodedInstruction.OP_B:
+			c.u1(0x2B); c.pushInt(insn.imm);
+			c.invokeHelper("branch", DESC_I);
+			break;
+		case DecodedInstruction.OP_BL:
+			c.u1(0x2B); c.pushInt(insn.imm);
+			c.invokeHelper("branchWithLink", DESC_I);
+			break;
+		default:
+			/* executeARM(int) does its own condition check */
+			c.u1(0x2B); c.pushInt(insn.iword);
+			c.invokeHelper("interpret", DESC_I);
+			break;
+		}
+	}
+	private static boolean isFallback(DecodedInstruction insn) {
+		return insn.op <= DecodedInstruction.OP_UNCONDITIONAL;
+	}
+	/* coprocessor operations (including MCR to CP15), MSR, CPS, SVC and friends */
+	private static boolean mayChangeTranslation(DecodedInstruction insn) {
+		if(insn.op == DecodedInstruction.OP_UNCONDITIONAL) return true;
+		if(insn.op != DecodedInstruction.OP_CLASS) return false;
+		switch(insn.opcode) {
+		case ARMDecodeTable.COPROCESSOR_AND_SVC:
+		case ARMDecodeTable.MISCELLANEOUS:
+		case ARMDecodeTable.MSR_IMMEDIATE_AND_HINTS:
+			return true;
+		default:
+			return false;
+		}
+	}
+	private static int blockSerial = 0;
+	/**
+	 * Compile a block starting at the given slot of the given page. Returns null if there's nothing to compile.
+	 * @param address Physical address of the first instruction in the block
+	 */
+	static JITBlock compile(InstructionCache.Page page, int slot, long address) {
+		Code c = new Code(new ConstantPool());
+		int count = 0;
+		for(int n = slot; n < InstructionCache.PAGE_INSTRUCTIONS && count < MAX_BLOCK_INSTRUCTIONS; ++n, ++count) {
+			DecodedInstruction insn = page.instructions[n];
+			if(insn == null) break;
+			/* if(!step(cpu, address, fetchCost)) return; */
+			c.u1(0x2B); /* aload_1 */
+			c.pushInt((int)address + count * 4);
+			c.pushInt(insn.fetchCost);
+			c.invokeHelper("step", DESC_STEP);
+			c.u1(0x9A); c.u2(4); /* ifne +4 */
+			c.u1(0xB1); /* return */
+			int skip = -1;
+			if(insn.cond != 14 && !isFallback(insn)) {
+				/* if(condition(cpu, cond)) */
+				c.u1(0x2B); c.pushInt(insn.cond);
+				c.invokeHelper("condition", "("+CPU_DESC+"I)Z");
+				skip = c.branch(0x99); /* ifeq */
+			}
+			emitInstruction(c, insn);
+			if(skip >= 0) c.patch(skip);
+			/* nothing can follow an unconditional branch */
+			if(insn.cond == 14 && (insn.op == DecodedInstruction.OP_B || insn.op == DecodedInstruction.OP_BL)) {
+				++count;
+				break;
+			}
+			/* anything that might change translation or privilege ends the block, since the rest of the page may no
+			 * longer be mapped where it was */
+			if(mayChangeTranslation(insn)) {
+				++count;
+				break;
+			}
+		}
+		if(count == 0) return null;
+		c.u1(0xB1); /* return */
+		String name;
+		synchronized(JITCompiler.class) {
+			name = String.format("name/bizna/jarm/jit/Block%08X_%d", address, blockSerial++);
+		}
+		try {
+			byte[] classBytes = writeClass(c, name);
+			Class<?> klass = new BlockLoader().define(name.replace('/', '.'), classBytes);
+			return (JITBlock)klass.getConstructor().newInstance();
+		}
+		catch(IOException e) { throw new InternalError(); }
+		catch(ReflectiveOperationException e) { return null; }
+		catch(LinkageError e) { return null; }
+	}
+	private static byte[] writeClass(Code c, String name) throws IOException {
+		ConstantPool pool = c.pool;
+		int thisClass = pool.classRef(name);
+		int superClass = pool.classRef(BLOCK_CLASS);
+		int superInit = pool.methodRef(BLOCK_CLASS, "<init>", "()V");
+		int initName = pool.utf8("<init>");
+		int initDesc = pool.utf8("()V");
+		int runName = pool.utf8("run");
+		int runDesc = pool.utf8("("+CPU_DESC+")V");
+		int codeName = pool.utf8("Code");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0); /* minor */
+		out.writeShort(49); /* major (Java 5) */
+		pool.writeTo(out);
+		out.writeShort(0x0031); /* ACC_PUBLIC | ACC_FINAL | ACC_SUPER */
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); /* interfaces */
+		out.writeShort(0); /* fields */
+		out.writeShort(2); /* methods */
+		/* public <init>() { super(); } */
+		out.writeShort(0x0001);
+		out.writeShort(initName);
+		out.writeShort(initDesc);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + 5);
+		out.writeShort(1); /* max_stack */
+		out.writeShort(1); /* max_locals */
+		out.writeInt(5);
+		out.writeByte(0x2A); /* aload_0 */
+		out.writeByte(0xB7); /* invokespecial */
+		out.writeShort(superInit);
+		out.writeByte(0xB1); /* return */
+		out.writeShort(0); /* exception table */
+		out.writeShort(0); /* attributes */
+		/* public void run(CPU cpu) */
+		out.writeShort(0x0001);
+		out.writeShort(runName);
+		out.writeShort(runDesc);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + c.length);
+		out.writeShort(8); /* max_stack: cpu and up to six ints */
+		out.writeShort(2); /* max_locals: this, cpu */
+		out.writeInt(c.length);
+		out.write(c.code, 0, c.length);
+		out.writeShort(0); /* exception table */
+		out.writeShort(0); /* attributes */
+		out.writeShort(0); /* class attributes */
+		out.flush();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,273 @@
+package name.bizna.jarm;
+
+import java.util.Arrays;
+
+/**
+ * VMSAv7 address translation using the short-descriptor translation table format (B3-1324), without the Security,
+ * Multiprocessing, Large Physical Address, or Virtualization Extensions.
+ * Translations are kept in a set-associative TLB, tagged with the ASID from CONTEXTIDR, and are only ever thrown away
+ * by the CP15 TLB maintenance operations, or when SCTLR changes the meaning of the tables. Domains are checked on every
+ * access, so DACR can be changed freely.
+ * The instruction cache and the JIT work on physical addresses, and don't need to know about any of this.
+ */
+final class MMU {
+	static final int ACCESS_READ = 0;
+	static final int ACCESS_WRITE = 1;
+	static final int ACCESS_EXECUTE = 2;
+	/* Fault status encodings, short-descriptor format (B3-1415) */
+	static final int FS_ALIGNMENT = 0x01;
+	static final int FS_ACCESS_FLAG_SECTION = 0x03;
+	static final int FS_TRANSLATION_SECTION = 0x05;
+	static final int FS_ACCESS_FLAG_PAGE = 0x06;
+	static final int FS_TRANSLATION_PAGE = 0x07;
+	static final int FS_EXTERNAL = 0x08;
+	static final int FS_DOMAIN_SECTION = 0x09;
+	static final int FS_DOMAIN_PAGE = 0x0B;
+	static final int FS_WALK_EXTERNAL_FIRST = 0x0C;
+	static final int FS_PERMISSION_SECTION = 0x0D;
+	static final int FS_WALK_EXTERNAL_SECOND = 0x0E;
+	static final int FS_PERMISSION_PAGE = 0x0F;
+	/* 64 sets of 4 ways; every entry maps one 4KiB page, even if it came from a section or a large page */
+	private static final int TLB_SET_BITS = 6;
+	private static final int TLB_SETS = 1<<TLB_SET_BITS;
+	private static final int TLB_WAYS = 4;
+	private static final int TLB_INVALID = -1;
+	private static final int ASID_GLOBAL = -1;
+	private final int[] tlbPage = new int[TLB_SETS*TLB_WAYS];
+	private final int[] tlbASID = new int[TLB_SETS*TLB_WAYS];
+	private final int[] tlbFrame = new int[TLB_SETS*TLB_WAYS];
+	/* which bits of the address the descriptor the entry came from covered, for TLBIMVA */
+	private final int[] tlbBlockMask = new int[TLB_SETS*TLB_WAYS];
+	private final int[] tlbAttributes = new int[TLB_SETS*TLB_WAYS];
+	private final byte[] tlbVictim = new byte[TLB_SETS];
+	/* tlbAttributes: AP[2:0], XN, PXN, domain, and whether it came from a second-level table */
+	private static final int ATTR_MASK_AP = 7;
+	private static final int ATTR_BIT_XN = 3;
+	private static final int ATTR_BIT_PXN = 4;
+	private static final int ATTR_SHIFT_DOMAIN = 5;
+	private static final int ATTR_BIT_PAGE = 9;
+	/* permissions granted by each value of AP[2:0] (B3-1357) */
+	private static final int PRIV_READ = 1, PRIV_WRITE = 2, USER_READ = 4, USER_WRITE = 8;
+	private static final int[] PERMISSIONS = {
+		0, PRIV_READ|PRIV_WRITE, PRIV_READ|PRIV_WRITE|USER_READ, PRIV_READ|PRIV_WRITE|USER_READ|USER_WRITE,
+		0, PRIV_READ, PRIV_READ|USER_READ, PRIV_READ|USER_READ
+	};
+	/* when SCTLR.AFE is set, AP[0] is the Access flag and only AP[2:1] count (B3-1358) */
+	private static final int[] PERMISSIONS_AFE = {
+		PRIV_READ|PRIV_WRITE, PRIV_READ|PRIV_WRITE,
+		PRIV_READ|PRIV_WRITE|USER_READ|USER_WRITE, PRIV_READ|PRIV_WRITE|USER_READ|USER_WRITE,
+		PRIV_READ, PRIV_READ,
+		PRIV_READ|USER_READ, PRIV_READ|USER_READ
+	};
+	private final CPU cpu;
+	private final CP15 cp15;
+	private final PhysicalMemorySpace mem;
+	/* SCTLR.M, cached so that the common case costs one field read */
+	boolean enabled;
+	private boolean accessFlagEnabled;
+	MMU(CPU cpu, CP15 cp15, PhysicalMemorySpace mem) {
+		this.cpu = cpu;
+		this.cp15 = cp15;
+		this.mem = mem;
+		invalidateAll();
+	}
+	boolean isPrivileged() {
+		return cpu.isPrivileged();
+	}
+	/**
+	 * Call whenever SCTLR changes. Changing M or AFE flushes the TLB, since the entries in it may no longer mean the same
+	 * thing.
+	 */
+	void controlChanged() {
+		boolean nuEnabled = (cp15.SCTLR & (1<<CP15.SCTLR_BIT_M)) != 0;
+		boolean nuAccessFlagEnabled = (cp15.SCTLR & (1<<CP15.SCTLR_BIT_AFE)) != 0;
+		if(nuEnabled != enabled || nuAccessFlagEnabled != accessFlagEnabled) invalidateAll();
+		enabled = nuEnabled;
+		accessFlagEnabled = nuAccessFlagEnabled;
+	}
+	/**
+	 * Translate a virtual address to a physical one, checking permissions. Only call this when enabled is true.
+	 * @param access ACCESS_READ, ACCESS_WRITE, or ACCESS_EXECUTE
+	 * @throws BusErrorException with the fault status set, if the access faults
+	 */
+	long translate(int address, int access, boolean privileged) throws BusErrorException, EscapeRetryException {
+		if(flushRequested) {
+			flushRequested = false;
+			invalidateAll();
+		}
+		int page = address >>> 12;
+		int asid = cp15.CONTEXTIDR & 0xFF;
+		int set = page & (TLB_SETS-1);
+		int i = set * TLB_WAYS;
+		int end = i + TLB_WAYS;
+		for(; i < end; ++i) {
+			if(tlbPage[i] == page && (tlbASID[i] == asid || tlbASID[i] == ASID_GLOBAL)) break;
+		}
+		if(i == end) i = walk(address, access, asid, set);
+		checkPermissions(address, tlbAttributes[i], access, privileged);
+		return ((tlbFrame[i] & 0xFFFFFL) << 12) | (address & 0xFFF);
+	}
+	private void checkPermissions(int address, int attributes, int access, boolean privileged) throws BusErrorException {
+		boolean isPage = (attributes & (1<<ATTR_BIT_PAGE)) != 0;
+		int domain = (attributes >>> ATTR_SHIFT_DOMAIN) & 15;
+		switch((cp15.DACR >>> (domain * 2)) & 3) {
+		case 1: /* Client */
+			break;
+		case 3: /* Manager */
+			return;
+		default: /* No access, or reserved */
+			throw fault(address, access, isPage ? FS_DOMAIN_PAGE : FS_DOMAIN_SECTION, domain);
+		}
+		int permissions = (accessFlagEnabled ? PERMISSIONS_AFE : PERMISSIONS)[attributes & ATTR_MASK_AP];
+		int needed;
+		if(access == ACCESS_WRITE) needed = privileged ? PRIV_WRITE : USER_WRITE;
+		else needed = privileged ? PRIV_READ : USER_READ;
+		if((permissions & needed) == 0
+				|| (access == ACCESS_EXECUTE && ((attributes & (1<<ATTR_BIT_XN)) != 0 || (privileged && (attributes & (1<<ATTR_BIT_PXN)) != 0))))
+			throw fault(address, access, isPage ? FS_PERMISSION_PAGE : FS_PERMISSION_SECTION, domain);
+	}
+	/* an external abort during a walk is reported against the address being translated */
+	private int readDescriptor(long address, int access, int faultAddress, int status, int domain, boolean bigEndian) throws BusErrorException, EscapeRetryException {
+		try {
+			return mem.readInt(address, bigEndian);
+		}
+		catch(BusErrorException e) {
+			throw fault(faultAddress, access, status, domain);
+		}
+	}
+	/* Walk the translation tables (B3-1335), put the result in the TLB, and return its index. */
+	private int walk(int address, int access, int asid, int set) throws BusErrorException, EscapeRetryException {
+		boolean bigEndian = (cp15.SCTLR & (1<<CP15.SCTLR_BIT_EE)) != 0;
+		/* TTBCR.N decides how much of the address space TTBR0 covers (B3-1330) */
+		int n = cp15.TTBCR & 7;
+		long l1Address;
+		if(n == 0 || (address >>> (32-n)) == 0)
+			l1Address = (cp15.TTBR0 & ~((1<<(14-n))-1)) | (((address << n) >>> (20+n)) << 2);
+		else
+			l1Address = (cp15.TTBR1 & 0xFFFFC000) | ((address >>> 20) << 2);
+		l1Address &= 0xFFFFFFFFL;
+		int l1 = readDescriptor(l1Address, access, address, FS_WALK_EXTERNAL_FIRST, 0, bigEndian);
+		int frame, blockMask, ap, domain, attributes;
+		boolean global;
+		long afAddress;
+		int afDescriptor, afBit;
+		switch(l1 & 3) {
+		case 0:
+			throw fault(address, access, FS_TRANSLATION_SECTION, 0);
+		case 1: {
+			/* Page table (B3-1326) */
+			domain = (l1 >>> 5) & 15;
+			long l2Address = ((l1 & 0xFFFFFC00) | (((address >>> 12) & 0xFF) << 2)) & 0xFFFFFFFFL;
+			int l2 = readDescriptor(l2Address, access, address, FS_WALK_EXTERNAL_SECOND, domain, bigEndian);
+			if((l2 & 3) == 0) throw fault(address, access, FS_TRANSLATION_PAGE, domain);
+			else if((l2 & 3) == 1) {
+				/* Large page, 64KiB */
+				blockMask = 0xFFFF0000;
+				frame = ((l2 & 0xFFFF0000) | (address & 0x0000F000)) >>> 12;
+				attributes = ((l2 >>> 15) & 1) << ATTR_BIT_XN;
+			}
+			else {
+				/* Small page, 4KiB */
+				blockMask = 0xFFFFF000;
+				frame = l2 >>> 12;
+				attributes = (l2 & 1) << ATTR_BIT_XN;
+			}
+			ap = ((l2 >>> 4) & 3) | ((l2 >>> 7) & 4);
+			global = (l2 & (1<<11)) == 0;
+			attributes |= ((l1 >>> 2) & 1) << ATTR_BIT_PXN;
+			attributes |= 1 << ATTR_BIT_PAGE;
+			afAddress = l2Address;
+			afDescriptor = l2;
+			afBit = 1<<4;
+			break;
+		}
+		default:
+			if((l1 & (1<<18)) != 0) {
+				/* Supersection, 16MiB, always in domain 0; we have no physical address bits above 32 to extend */
+				blockMask = 0xFF000000;
+				frame = ((l1 & 0xFF000000) | (address & 0x00FFF000)) >>> 12;
+				domain = 0;
+			}
+			else {
+				/* Section, 1MiB */
+				blockMask = 0xFFF00000;
+				frame = ((l1 & 0xFFF00000) | (address & 0x000FF000)) >>> 12;
+				domain = (l1 >>> 5) & 15;
+			}
+			ap = ((l1 >>> 10) & 3) | ((l1 >>> 13) & 4);
+			global = (l1 & (1<<17)) == 0;
+			attributes = (((l1 >>> 4) & 1) << ATTR_BIT_XN) | ((l1 & 1) << ATTR_BIT_PXN);
+			afAddress = l1Address;
+			afDescriptor = l1;
+			afBit = 1<<10;
+			break;
+		}
+		if(accessFlagEnabled && (ap & 1) == 0) {
+			/* Access flag is clear; either set it ourselves, or fault and let software do it (B3-1362) */
+			if((cp15.SCTLR & (1<<CP15.SCTLR_BIT_HA)) == 0)
+				throw fault(address, access, (attributes & (1<<ATTR_BIT_PAGE)) != 0 ? FS_ACCESS_FLAG_PAGE : FS_ACCESS_FLAG_SECTION, domain);
+			mem.writeInt(afAddress, afDescriptor | afBit, bigEndian);
+			ap |= 1;
+		}
+		attributes |= ap | (domain << ATTR_SHIFT_DOMAIN);
+		int i = set * TLB_WAYS + tlbVictim[set];
+		tlbVictim[set] = (byte)((tlbVictim[set] + 1) & (TLB_WAYS-1));
+		tlbPage[i] = address >>> 12;
+		tlbASID[i] = global ? ASID_GLOBAL : asid;
+		tlbFrame[i] = frame;
+		tlbBlockMask[i] = blockMask;
+		tlbAttributes[i] = attributes;
+		return i;
+	}
+	/**
+	 * The address translation operations, ATS1CPR and friends (B4-1744). Returns the value they leave in PAR: the
+	 * physical page on success, or the fault status on failure.
+	 */
+	int translateForPAR(int address, boolean write, boolean privileged) throws EscapeRetryException {
+		if(!enabled) return address & 0xFFFFF000;
+		try {
+			return (int)translate(address, write ? ACCESS_WRITE : ACCESS_READ, privileged) & 0xFFFFF000;
+		}
+		catch(BusErrorException e) {
+			int fsr = e.getFaultStatus();
+			return 1 | ((fsr & 15) << 1) | (((fsr >>> 10) & 1) << 5);
+		}
+	}
+	private BusErrorException fault(int address, int access, int status, int domain) {
+		int fsr = (status & 15) | ((status & 16) << 6) | (domain << 4);
+		String reason;
+		switch(status) {
+		case FS_TRANSLATION_SECTION: case FS_TRANSLATION_PAGE: reason = "translation fault"; break;
+		case FS_ACCESS_FLAG_SECTION: case FS_ACCESS_FLAG_PAGE: reason = "access flag fault"; break;
+		case FS_DOMAIN_SECTION: case FS_DOMAIN_PAGE: reason = "domain fault"; break;
+		case FS_PERMISSION_SECTION: case FS_PERMISSION_PAGE: reason = "permission fault"; break;
+		default: reason = "external abort on translation table walk"; break;
+		}
+		return new BusErrorException(reason, address & 0xFFFFFFFFL, access == ACCESS_WRITE ? BusErrorException.AccessType.WRITE : BusErrorException.AccessType.READ, fsr);
+	}
+	/*** TLB maintenance (B4-1746) ***/
+	void invalidateAll() {
+		Arrays.fill(tlbPage, TLB_INVALID);
+	}
+	/* TLBIMVA (matching ASID or global) and TLBIMVAA (any ASID) */
+	void invalidateByAddress(int address, int asid, boolean anyASID) {
+		for(int i = 0; i < tlbPage.length; ++i) {
+			if(tlbPage[i] == TLB_INVALID) continue;
+			int mask = tlbBlockMask[i];
+			if(((tlbPage[i] << 12) & mask) != (address & mask)) continue;
+			if(anyASID || tlbASID[i] == ASID_GLOBAL || tlbASID[i] == asid) tlbPage[i] = TLB_INVALID;
+		}
+	}
+	/* Another core did a broadcast TLB operation. Invalidating our TLB from its thread would race with our own walks, so
+	 * we do it ourselves before the next translation; flushing everything covers whatever it was. */
+	private volatile boolean flushRequested;
+	void requestFlush() {
+		flushRequested = true;
+	}
+	/* TLBIASID; global entries survive */
+	void invalidateByASID(int asid) {
+		for(int i = 0; i < tlbPage.length; ++i) {
+			if(tlbASID[i] == asid) tlbPage[i] = TLB_INVALID;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package name.bizna.jarm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A copy of a whole machine kept in memory, to go back to later, as often as need be. RAM in a PagedMemoryRegion is kept
+ * the way MachineFork keeps it, copy-on-write: taking a checkpoint costs the same however big it is, and keeping it
+ * costs only the pages the machine goes on to write. Everything else, the cores and their coprocessors and any other
+ * region, is kept the way a Snapshot keeps it, which is small unless a big region other than RAM holds state.
+ * A checkpoint leaves out what a Snapshot does, and can only be restored into the machine it was taken of, with the same
+ * regions still mapped. None of the cores may be running while one is taken or restored.
+ */
+public final class MachineCheckpoint {
+	private final CPU[] cpus;
+	private final MemoryRegion[] regions;
+	/* the forks of the paged regions, in the same places as in regions, and null for the rest */
+	private final PagedMemoryRegion[] pages;
+	/* the cores, then the state of every region that isn't paged */
+	private final byte[] state;
+	/**
+	 * @param cpus Every core of the machine, in the same order they will be restored in
+	 */
+	public MachineCheckpoint(CPU... cpus) {
+		Snapshot.checkCores(cpus);
+		this.cpus = cpus.clone();
+		List<PhysicalMemorySpace.MappedRegion> mapped = cpus[0].getMemorySpace().getMappedRegions();
+		regions = new MemoryRegion[mapped.size()];
+		pages = new PagedMemoryRegion[regions.length];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SnapshotOutputStream out = new SnapshotOutputStream(bytes);
+		try {
+			for(CPU cpu : cpus) Snapshot.saveCore(out, cpu);
+			for(int n = 0; n < regions.length; ++n) {
+				regions[n] = mapped.get(n).getRegion();
+				if(regions[n] instanceof PagedMemoryRegion) pages[n] = ((PagedMemoryRegion)regions[n]).fork();
+				else regions[n].saveState(out);
+			}
+			out.flush();
+		}
+		catch(IOException e) {
+			/* a ByteArrayOutputStream doesn't fail */
+			throw new FatalException("couldn't save machine state: "+e.getMessage());
+		}
+		state = bytes.toByteArray();
+	}
+	/**
+	 * Put the machine back the way it was when the checkpoint was taken. The checkpoint is left as it was.
+	 * @throws SnapshotMismatchException if the machine has been put together differently since
+	 */
+	public void restore() throws IOException {
+		PhysicalMemorySpace mem = cpus[0].getMemorySpace();
+		List<PhysicalMemorySpace.MappedRegion> mapped = mem.getMappedRegions();
+		if(mapped.size() != regions.length) throw new SnapshotMismatchException("number of mapped regions differs");
+		for(int n = 0; n < regions.length; ++n) {
+			if(mapped.get(n).getRegion() != regions[n]) throw new SnapshotMismatchException(String.format("region at %08X differs", mapped.get(n).getBase()));
+		}
+		SnapshotInputStream in = new SnapshotInputStream(new ByteArrayInputStream(state));
+		for(CPU cpu : cpus) Snapshot.loadCore(in, cpu);
+		for(int n = 0; n < regions.length; ++n) {
+			if(pages[n] != null) ((PagedMemoryRegion)regions[n]).restore(pages[n]);
+			else regions[n].loadState(in);
+		}
+		mem.invalidateInstructionCache();
+	}
+}
@@ -0,0 +1,57 @@
+package name.bizna.jarm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+
+/**
+ * Forks a whole machine: builds a new one with the same cores, coprocessors and memory map, in the same state, which
+ * then runs on its own. Each region is forked with MemoryRegion.fork, so RAM in a PagedMemoryRegion, and the written
+ * pages of a copy-on-write MappedFileRegion, is shared copy-on-write; forking paged RAM costs the same however big it
+ * is, and after that only the pages either machine writes get copied. RAM in a ByteArrayRegion isn't shared; it's copied
+ * whole when it's forked. Boot or warm up one machine, then fork as many as you like and run them on their own threads,
+ * alongside the parent and each other.
+ * A fork leaves out the same things a Snapshot does: debuggers, the levels of interrupt lines driven by devices, and
+ * events devices have scheduled. None of the parent's cores may be running while it's forked.
+ */
+public final class MachineFork {
+	private MachineFork() {}
+	/**
+	 * @param cpus Every core of the machine
+	 * @return The forked cores, in the same order, sharing a memory space of their own
+	 * @throws UnsupportedOperationException if a region or coprocessor can't be forked
+	 */
+	public static CPU[] fork(CPU... cpus) {
+		Snapshot.checkCores(cpus);
+		PhysicalMemorySpace childMemory = new PhysicalMemorySpace();
+		/* a region mapped more than once is forked once */
+		IdentityHashMap<MemoryRegion, MemoryRegion> forked = new IdentityHashMap<MemoryRegion, MemoryRegion>();
+		for(PhysicalMemorySpace.MappedRegion it : cpus[0].getMemorySpace().getMappedRegions()) {
+			MemoryRegion region = forked.get(it.getRegion());
+			if(region == null) {
+				region = it.getRegion().fork();
+				if(region == null) throw new UnsupportedOperationException(String.format("region at %08X (%s) can't be forked", it.getBase(), it.getRegion().getClass().getName()));
+				forked.put(it.getRegion(), region);
+			}
+			childMemory.mapRegion((int)it.getBase(), region);
+		}
+		CPU[] children = new CPU[cpus.length];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			for(int n = 0; n < cpus.length; ++n) {
+				children[n] = cpus[n].forkCore(childMemory);
+				bytes.reset();
+				SnapshotOutputStream out = new SnapshotOutputStream(bytes);
+				Snapshot.saveCore(out, cpus[n]);
+				out.flush();
+				Snapshot.loadCore(new SnapshotInputStream(new ByteArrayInputStream(bytes.toByteArray())), children[n]);
+			}
+		}
+		catch(IOException e) {
+			/* only a coprocessor whose saveState and loadState disagree can get us here */
+			throw new FatalException("couldn't copy core state: "+e.getMessage());
+		}
+		return children;
+	}
+}
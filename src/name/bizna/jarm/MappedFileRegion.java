@@ -0,0 +1,266 @@
+package name.bizna.jarm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A region backed by part of a file, mapped with FileChannel.map instead of being read in. Nothing is read until it's
+ * touched, and every process that maps the same file shares the same pages.
+ * The region may be longer than the part of the file it maps; the rest reads as zero, like an ELF segment whose
+ * p_memsz is larger than its p_filesz.
+ * A read-only region throws a BusErrorException on any write. A copy-on-write region copies each 4KiB page onto the heap
+ * the first time it's written, so the file is never changed and each region gets its own copy. (FileChannel's own
+ * PRIVATE mode would need the file to be opened for writing, which we don't want for programs and ROMs.)
+ */
+public final class MappedFileRegion extends ByteBackedRegion {
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_SIZE = 1<<PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE-1;
+	private final int size, fileLength;
+	private final ByteBuffer fileLittle, fileBig;
+	/* A copied page, viewed in each byte order. Other cores find pages through the arrays below without taking a lock;
+	 * the fields being final is what guarantees they then see the views whole, byte order and all. */
+	private static final class Page {
+		final byte[] bytes;
+		final ByteBuffer little, big;
+		Page(byte[] bytes) {
+			this.bytes = bytes;
+			little = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			big = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+		}
+	}
+	/* pages that have been written; null if the region is read-only */
+	private final Page[] copied;
+	/* the copied pages this region may write in place, null where a page is still shared with a fork; writes only ever go
+	 * through these */
+	private final Page[] own;
+
+	/**
+	 * @param channel The file to map. It only has to be open for reading, and may be closed once the region is created.
+	 * @param position Where in the file the region starts
+	 * @param fileLength How many bytes of the file to map
+	 * @param size How big the region is; must be at least fileLength
+	 * @param copyOnWrite true if the region may be written, false if it is read-only
+	 * @throws EOFException if the file isn't long enough
+	 */
+	public MappedFileRegion(FileChannel channel, long position, int fileLength, int size, boolean copyOnWrite, int accessLatency, boolean wide) throws IOException {
+		super(accessLatency, wide);
+		if(fileLength < 0 || size < fileLength) throw new IllegalArgumentException("size must be at least fileLength");
+		if(position < 0 || position + fileLength > channel.size()) throw new EOFException();
+		ByteBuffer mapped = fileLength == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, position, fileLength);
+		this.size = size;
+		this.fileLength = fileLength;
+		fileLittle = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		fileBig = mapped.duplicate().order(ByteOrder.BIG_ENDIAN);
+		if(copyOnWrite) {
+			int pageCount = (int)(((long)size + PAGE_MASK) >>> PAGE_SHIFT);
+			copied = new Page[pageCount];
+			own = new Page[pageCount];
+		}
+		else copied = own = null;
+	}
+
+	public MappedFileRegion(FileChannel channel, long position, int fileLength, int size, boolean copyOnWrite) throws IOException {
+		this(channel, position, fileLength, size, copyOnWrite, 1, true);
+	}
+
+	private MappedFileRegion(MappedFileRegion parent) {
+		super(parent.accessLatencyHalf, parent.accessLatencyWord == parent.accessLatencyHalf);
+		this.size = parent.size;
+		this.fileLength = parent.fileLength;
+		this.fileLittle = parent.fileLittle;
+		this.fileBig = parent.fileBig;
+		this.copied = parent.copied.clone();
+		this.own = new Page[copied.length];
+	}
+
+	/* A read-only region is shared as it is. A copy-on-write one shares the file and the pages copied so far; whichever
+	 * writes to a shared page next copies it again. Nothing may be accessing this region while it's forked. */
+	@Override
+	public synchronized MappedFileRegion fork() {
+		if(copied == null) return this;
+		MappedFileRegion child = new MappedFileRegion(this);
+		Arrays.fill(own, null);
+		return child;
+	}
+
+	@Override
+	public long getRegionSize() {
+		return size;
+	}
+
+	@Override
+	public boolean isInstructionCacheable() {
+		return true;
+	}
+
+	/* returns the page's copy, or null if it hasn't been written */
+	private Page getCopiedPage(int address) {
+		return copied == null ? null : copied[address >>> PAGE_SHIFT];
+	}
+
+	/* returns the page that a write to address may go to; copies it first if need be */
+	private Page writablePage(int address) throws BusErrorException {
+		if(own == null) throw new BusErrorException("MappedFileRegion is readonly", address, BusErrorException.AccessType.WRITE);
+		Page page = own[address >>> PAGE_SHIFT];
+		if(page == null) {
+			copyPageLocked(address >>> PAGE_SHIFT);
+			page = own[address >>> PAGE_SHIFT];
+		}
+		return page;
+	}
+
+	/* several cores may write to the same page at once; only one of them gets to copy it */
+	private synchronized void copyPageLocked(int index) {
+		if(own[index] != null) return;
+		byte[] page = new byte[PAGE_SIZE];
+		int start = index << PAGE_SHIFT;
+		if(copied[index] != null) {
+			/* copied before a fork, and still shared with it */
+			System.arraycopy(copied[index].bytes, 0, page, 0, PAGE_SIZE);
+		}
+		else if(start < fileLength) {
+			ByteBuffer src = fileLittle.duplicate();
+			src.position(start);
+			src.get(page, 0, Math.min(PAGE_SIZE, fileLength - start));
+		}
+		setPage(index, page);
+	}
+
+	private void setPage(int index, byte[] page) {
+		copied[index] = own[index] = new Page(page);
+	}
+
+	@Override
+	public byte backingReadByte(int address) {
+		Page page = getCopiedPage(address);
+		if(page != null) return page.bytes[address & PAGE_MASK];
+		else if(address < fileLength) return fileLittle.get(address);
+		else return 0;
+	}
+
+	@Override
+	public void backingWriteByte(int address, byte v) throws BusErrorException {
+		writablePage(address).bytes[address & PAGE_MASK] = v;
+	}
+
+	/* The wider accesses below are all aligned, so they never straddle a page. They only fall back on ByteBackedRegion
+	 * when they straddle the end of the mapped part of the file. */
+
+	@Override
+	public short readShortLE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+		int a = (int)address;
+		Page page = getCopiedPage(a);
+		if(page != null) {
+			mem.addToBill(accessLatencyHalf);
+			return page.little.getShort(a & PAGE_MASK);
+		}
+		else if(a + 2 <= fileLength) {
+			mem.addToBill(accessLatencyHalf);
+			return fileLittle.getShort(a);
+		}
+		else return super.readShortLE(mem, address);
+	}
+
+	@Override
+	public short readShortBE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+		int a = (int)address;
+		Page page = getCopiedPage(a);
+		if(page != null) {
+			mem.addToBill(accessLatencyHalf);
+			return page.big.getShort(a & PAGE_MASK);
+		}
+		else if(a + 2 <= fileLength) {
+			mem.addToBill(accessLatencyHalf);
+			return fileBig.getShort(a);
+		}
+		else return super.readShortBE(mem, address);
+	}
+
+	@Override
+	public void writeShortLE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException {
+		mem.addToBill(accessLatencyHalf);
+		int a = (int)address;
+		writablePage(a).little.putShort(a & PAGE_MASK, v);
+	}
+
+	@Override
+	public void writeShortBE(PhysicalMemorySpace mem, long address, short v) throws BusErrorException {
+		mem.addToBill(accessLatencyHalf);
+		int a = (int)address;
+		writablePage(a).big.putShort(a & PAGE_MASK, v);
+	}
+
+	@Override
+	public int readIntLE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+		int a = (int)address;
+		Page page = getCopiedPage(a);
+		if(page != null) {
+			mem.addToBill(accessLatencyWord);
+			return page.little.getInt(a & PAGE_MASK);
+		}
+		else if(a + 4 <= fileLength) {
+			mem.addToBill(accessLatencyWord);
+			return fileLittle.getInt(a);
+		}
+		else return super.readIntLE(mem, address);
+	}
+
+	@Override
+	public int readIntBE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException {
+		int a = (int)address;
+		Page page = getCopiedPage(a);
+		if(page != null) {
+			mem.addToBill(accessLatencyWord);
+			return page.big.getInt(a & PAGE_MASK);
+		}
+		else if(a + 4 <= fileLength) {
+			mem.addToBill(accessLatencyWord);
+			return fileBig.getInt(a);
+		}
+		else return super.readIntBE(mem, address);
+	}
+
+	@Override
+	public void writeIntLE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException {
+		mem.addToBill(accessLatencyWord);
+		int a = (int)address;
+		writablePage(a).little.putInt(a & PAGE_MASK, v);
+	}
+
+	@Override
+	public void writeIntBE(PhysicalMemorySpace mem, long address, int v) throws BusErrorException {
+		mem.addToBill(accessLatencyWord);
+		int a = (int)address;
+		writablePage(a).big.putInt(a & PAGE_MASK, v);
+	}
+
+	/* the file is still there, so only the pages that have been written need saving; all of them, since a page written
+	 * to zeroes still differs from the file */
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		if(copied == null) return;
+		for(int index = 0; index < copied.length; ++index) {
+			Page page = copied[index];
+			if(page != null) out.writePage(index, page.bytes, 0, Math.min(PAGE_SIZE, size - (index << PAGE_SHIFT)));
+		}
+		out.endPages();
+	}
+
+	@Override
+	public synchronized void loadState(SnapshotInputStream in) throws IOException {
+		if(copied == null) return;
+		Arrays.fill(copied, null);
+		Arrays.fill(own, null);
+		int index;
+		while((index = in.readPageIndex(copied.length)) >= 0) {
+			byte[] page = new byte[PAGE_SIZE];
+			in.readFully(page, 0, Math.min(PAGE_SIZE, size - (index << PAGE_SHIFT)));
+			setPage(index, page);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package name.bizna.jarm;
 
+import java.io.IOException;
 
 /*
  * A contiguous region of PHYSICAL memory space.
@@ -21,4 +22,25 @@ public abstract class MemoryRegion {
 	public abstract int readIntBE(PhysicalMemorySpace mem, long address) throws BusErrorException, EscapeRetryException;
 	public abstract void writeIntLE(PhysicalMemorySpace mem, long address, int value) throws BusErrorException, EscapeRetryException;
 	public abstract void writeIntBE(PhysicalMemorySpace mem, long address, int value) throws BusErrorException, EscapeRetryException;
+	/* Return true only if the contents of this region never change except through the write functions above.
+	 * Instructions fetched from such a region are predecoded and cached, and will NOT be fetched again until
+	 * something writes to their page. */
+	public boolean isInstructionCacheable() { return false; }
+	/* Copy a run of bytes out of or into the region. The run never goes past the end of the region, but may start and
+	 * end anywhere. These just call readByte and writeByte for every byte; regions that can copy in bulk should override
+	 * them, and bill one word access for every four bytes and one byte access for each byte left over. */
+	public void readBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		for(int n = 0; n < length; ++n) buf[offset+n] = readByte(mem, address+n);
+	}
+	public void writeBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		for(int n = 0; n < length; ++n) writeByte(mem, address+n, buf[offset+n]);
+	}
+	/* Save and restore whatever the region holds, for a Snapshot. Regions that hold nothing worth keeping, such as ROMs and
+	 * most devices, can leave these alone. Anything written by saveState must be read back by loadState. */
+	public void saveState(SnapshotOutputStream out) throws IOException {}
+	public void loadState(SnapshotInputStream in) throws IOException {}
+	/* Return a region to put in a forked machine (see MachineFork): one with the same contents as this one, that changes
+	 * independently from then on and may be used on another thread. Regions that never change can return themselves.
+	 * Return null, the default, if the region can't be forked, such as a device that talks to the outside world. */
+	public MemoryRegion fork() { return null; }
 }
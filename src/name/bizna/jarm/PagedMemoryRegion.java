@@ -0,0 +1,386 @@
+package name.bizna.jarm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * RAM kept in 4KiB pages outside the Java heap, which forks of the region share copy-on-write. The page table has two
+ * levels: a root pointing to directories of 512 pages, 2MiB each. fork() doesn't copy either of them; it marks the root
+ * shared, and hands the same root to the new region. Once shared, a part of the table or a page is never written again.
+ * The first write after a fork copies the root, and the first write to each directory and page copies that too, marking
+ * whatever the copy points to as shared in turn. So a fork costs the same whatever the size of the region, and after
+ * that only the pages either side writes get copied, along with the root once and the directories they're in. A new region
+ * starts out with every directory sharing a single directory of zero pages, so RAM the guest never writes to costs
+ * nothing; a big machine that touches little of its memory stays small.
+ * Pages are cut from direct ByteBuffers a slab at a time, so the garbage collector never has to copy guest memory
+ * around, and it doesn't count towards the heap. Direct memory has a limit of its own, as big as the heap unless
+ * -XX:MaxDirectMemorySize says otherwise. Once it runs out, slabs come from the heap instead, so a store that needs a new
+ * page never fails for want of direct memory. A slab is freed once none of its pages are in use. DirectMemoryRegion is
+ * the one to use for RAM that has to be off the heap, all of it, and fail when it's made if it can't be.
+ * Any number of forks may be in use on different threads at once; they never see each other's writes.
+ */
+public final class PagedMemoryRegion extends ByteBackedRegion {
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_SIZE = 1<<PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE-1;
+	private static final int DIRECTORY_SHIFT = 9;
+	private static final int DIRECTORY_PAGES = 1<<DIRECTORY_SHIFT;
+	private static final int DIRECTORY_MASK = DIRECTORY_PAGES-1;
+	/* how many pages are allocated at a time; one direct buffer each would cost more in bookkeeping than in memory */
+	private static final int SLAB_PAGES = 64;
+	/* A page, viewed in each byte order. Other cores find pages through the table without taking a lock; the views
+	 * being final is what guarantees they then see them whole.
+	 * shared, here and in the table, only ever goes from false to true. It's set while nothing that can see the page
+	 * without going through something already shared is running: a fork, or a copy of what points to it. So a writer
+	 * that finds nothing shared on its way down owns everything it passed, and can write in place. */
+	private static final class Page {
+		final ByteBuffer little, big;
+		boolean shared;
+		Page(ByteBuffer bytes, boolean shared) {
+			little = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			big = bytes.duplicate().order(ByteOrder.BIG_ENDIAN);
+			this.shared = shared;
+		}
+	}
+	private static final class Directory {
+		final Page[] pages;
+		boolean shared;
+		Directory(Page[] pages, boolean shared) {
+			this.pages = pages;
+			this.shared = shared;
+		}
+		/* the copy is ours; the pages are now pointed to by both */
+		Directory copy() {
+			for(Page page : pages) page.shared = true;
+			return new Directory(pages.clone(), false);
+		}
+	}
+	private static final class Root {
+		final Directory[] directories;
+		boolean shared;
+		Root(Directory[] directories, boolean shared) {
+			this.directories = directories;
+			this.shared = shared;
+		}
+		Root copy() {
+			for(Directory directory : directories) directory.shared = true;
+			return new Root(directories.clone(), false);
+		}
+	}
+	private static final Page ZERO_PAGE = new Page(ByteBuffer.allocateDirect(PAGE_SIZE), true);
+	private static final Directory ZERO_DIRECTORY;
+	static {
+		Page[] pages = new Page[DIRECTORY_PAGES];
+		Arrays.fill(pages, ZERO_PAGE);
+		ZERO_DIRECTORY = new Directory(pages, true);
+	}
+	/* Hands out new pages. Only used with its Memory locked. */
+	private static final class PageAllocator {
+		/* set for good the first time direct memory runs out; asking again would cost a full GC every slab */
+		private static volatile boolean directExhausted;
+		private ByteBuffer slab;
+		Page allocate() {
+			if(slab == null || !slab.hasRemaining()) slab = allocateSlab();
+			slab.limit(slab.position() + PAGE_SIZE);
+			Page page = new Page(slab.slice(), false);
+			slab.limit(slab.capacity());
+			slab.position(slab.position() + PAGE_SIZE);
+			return page;
+		}
+		private static ByteBuffer allocateSlab() {
+			if(!directExhausted) {
+				try {
+					return ByteBuffer.allocateDirect(PAGE_SIZE * SLAB_PAGES);
+				}
+				catch(OutOfMemoryError e) {
+					directExhausted = true;
+				}
+			}
+			return ByteBuffer.allocate(PAGE_SIZE * SLAB_PAGES);
+		}
+	}
+	/* What every view of the same pages shares: the root of their table, which a copy replaces, and where new pages come
+	 * from. Copies are made with it locked. */
+	private static final class Memory {
+		volatile Root root;
+		final PageAllocator allocator = new PageAllocator();
+		Memory(Root root) {
+			this.root = root;
+		}
+	}
+	private final long size;
+	private final int pageCount;
+	private final Memory memory;
+
+	public PagedMemoryRegion(long size, int accessLatency, boolean wide) {
+		super(accessLatency, wide);
+		if(size <= 0 || size > (1L<<32)) throw new IllegalArgumentException("size must be between 1 byte and 4GiB");
+		this.size = size;
+		pageCount = (int)((size + PAGE_MASK) >>> PAGE_SHIFT);
+		Directory[] directories = new Directory[(pageCount + DIRECTORY_MASK) >>> DIRECTORY_SHIFT];
+		Arrays.fill(directories, ZERO_DIRECTORY);
+		memory = new Memory(new Root(directories, false));
+	}
+
+	public PagedMemoryRegion(long size, int accessLatency) {
+		this(size, accessLatency, true);
+	}
+
+	public PagedMemoryRegion(long size) {
+		this(size, 1, true);
+	}
+
+	/**
+	 * Make a new region that shares the memory of an existing one, but has different timing. Unlike a fork, the two see
+	 * each other's writes.
+	 */
+	public PagedMemoryRegion(PagedMemoryRegion other, int accessLatency, boolean wide) {
+		super(accessLatency, wide);
+		this.size = other.size;
+		this.pageCount = other.pageCount;
+		this.memory = other.memory;
+	}
+
+	private PagedMemoryRegion(PagedMemoryRegion parent, Root root) {
+		super(parent.accessLatencyHalf, parent.accessLatencyWord == parent.accessLatencyHalf);
+		this.size = parent.size;
+		this.pageCount = parent.pageCount;
+		this.memory = new Memory(root);
+	}
+
+	/**
+	 * Make a region with the same contents as this one, which shares its pages until either of them writes to them.
+	 * Costs the same however big the region is, and whatever has been written. Nothing may be accessing this region
+	 * while it's forked.
+	 */
+	@Override
+	public PagedMemoryRegion fork() {
+		synchronized(memory) {
+			Root root = memory.root;
+			root.shared = true;
+			return new PagedMemoryRegion(this, root);
+		}
+	}
+
+	/**
+	 * Go back to the contents of a fork of this region, which is left as it is. Like fork(), this only shares the
+	 * table, and the two share their pages until either writes to them. Nothing may be accessing either region, and the
+	 * instruction cache of any memory space this region is mapped into must be invalidated afterwards. MachineCheckpoint
+	 * uses this to go back to a checkpoint.
+	 */
+	public void restore(PagedMemoryRegion fork) {
+		if(fork.size != size) throw new IllegalArgumentException("regions differ in size");
+		synchronized(fork.memory) {
+			synchronized(memory) {
+				Root root = fork.memory.root;
+				root.shared = true;
+				memory.root = root;
+			}
+		}
+	}
+
+	@Override
+	public long getRegionSize() {
+		return size;
+	}
+
+	@Override
+	public boolean isInstructionCacheable() {
+		return true;
+	}
+
+	private Page page(int index) {
+		return memory.root.directories[index >>> DIRECTORY_SHIFT].pages[index & DIRECTORY_MASK];
+	}
+
+	private Page writablePage(int address) {
+		int index = address >>> PAGE_SHIFT;
+		Root root = memory.root;
+		Directory directory = root.directories[index >>> DIRECTORY_SHIFT];
+		Page page = directory.pages[index & DIRECTORY_MASK];
+		if(root.shared || directory.shared || page.shared) page = copyPage(index);
+		return page;
+	}
+
+	/* several cores may write to the same page at once, maybe through different views; only one of them gets to copy
+	 * it */
+	private Page copyPage(int index) {
+		synchronized(memory) {
+			Root root = memory.root;
+			if(root.shared) {
+				root = root.copy();
+				memory.root = root;
+			}
+			Directory directory = root.directories[index >>> DIRECTORY_SHIFT];
+			if(directory.shared) {
+				directory = directory.copy();
+				root.directories[index >>> DIRECTORY_SHIFT] = directory;
+			}
+			Page page = directory.pages[index & DIRECTORY_MASK];
+			if(page.shared) {
+				Page copy = memory.allocator.allocate();
+				if(page != ZERO_PAGE) copy.little.duplicate().put(page.little.duplicate());
+				page = copy;
+				directory.pages[index & DIRECTORY_MASK] = page;
+			}
+			return page;
+		}
+	}
+
+	@Override
+	public byte backingReadByte(int address) {
+		return page(address >>> PAGE_SHIFT).little.get(address & PAGE_MASK);
+	}
+
+	@Override
+	public void backingWriteByte(int address, byte v) {
+		writablePage(address).little.put(address & PAGE_MASK, v);
+	}
+
+	/* Accesses are aligned, so they never straddle a page. */
+
+	@Override
+	public short readShortLE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyHalf);
+		int a = (int)address;
+		return page(a >>> PAGE_SHIFT).little.getShort(a & PAGE_MASK);
+	}
+
+	@Override
+	public short readShortBE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyHalf);
+		int a = (int)address;
+		return page(a >>> PAGE_SHIFT).big.getShort(a & PAGE_MASK);
+	}
+
+	@Override
+	public void writeShortLE(PhysicalMemorySpace mem, long address, short v) {
+		mem.addToBill(accessLatencyHalf);
+		int a = (int)address;
+		writablePage(a).little.putShort(a & PAGE_MASK, v);
+	}
+
+	@Override
+	public void writeShortBE(PhysicalMemorySpace mem, long address, short v) {
+		mem.addToBill(accessLatencyHalf);
+		int a = (int)address;
+		writablePage(a).big.putShort(a & PAGE_MASK, v);
+	}
+
+	@Override
+	public int readIntLE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyWord);
+		int a = (int)address;
+		return page(a >>> PAGE_SHIFT).little.getInt(a & PAGE_MASK);
+	}
+
+	@Override
+	public int readIntBE(PhysicalMemorySpace mem, long address) {
+		mem.addToBill(accessLatencyWord);
+		int a = (int)address;
+		return page(a >>> PAGE_SHIFT).big.getInt(a & PAGE_MASK);
+	}
+
+	@Override
+	public void writeIntLE(PhysicalMemorySpace mem, long address, int v) {
+		mem.addToBill(accessLatencyWord);
+		int a = (int)address;
+		writablePage(a).little.putInt(a & PAGE_MASK, v);
+	}
+
+	@Override
+	public void writeIntBE(PhysicalMemorySpace mem, long address, int v) {
+		mem.addToBill(accessLatencyWord);
+		int a = (int)address;
+		writablePage(a).big.putInt(a & PAGE_MASK, v);
+	}
+
+	@Override
+	public void readBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) {
+		if(length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		copyTo(address, buf, offset, length);
+	}
+
+	@Override
+	public void writeBytes(PhysicalMemorySpace mem, long address, byte[] buf, int offset, int length) {
+		if(length <= 0) return;
+		mem.addToBill(bulkLatency(length));
+		copyFrom(address, buf, offset, length);
+	}
+
+	/* Bulk access for loaders, savers and debuggers. Like getBackingArray on ByteArrayRegion, these are not billed, and
+	 * writes do not invalidate the instruction cache. */
+	public void copyTo(long address, byte[] dst, int offset, int length) {
+		while(length > 0) {
+			int a = (int)address;
+			int amount = Math.min(length, PAGE_SIZE - (a & PAGE_MASK));
+			ByteBuffer page = page(a >>> PAGE_SHIFT).little.duplicate();
+			page.position(a & PAGE_MASK);
+			page.get(dst, offset, amount);
+			address += amount;
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	public void copyFrom(long address, byte[] src, int offset, int length) {
+		while(length > 0) {
+			int a = (int)address;
+			int amount = Math.min(length, PAGE_SIZE - (a & PAGE_MASK));
+			ByteBuffer page = writablePage(a).little.duplicate();
+			page.position(a & PAGE_MASK);
+			page.put(src, offset, amount);
+			address += amount;
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	/** Write the entire contents of the region to a stream. */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] buf = new byte[PAGE_SIZE];
+		for(long address = 0; address < size; address += PAGE_SIZE) {
+			int amount = (int)Math.min(PAGE_SIZE, size - address);
+			copyTo(address, buf, 0, amount);
+			out.write(buf, 0, amount);
+		}
+	}
+
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		byte[] buf = new byte[PAGE_SIZE];
+		Directory[] directories = memory.root.directories;
+		for(int index = 0; index < pageCount; ++index) {
+			Directory directory = directories[index >>> DIRECTORY_SHIFT];
+			if(directory == ZERO_DIRECTORY) {
+				index |= DIRECTORY_MASK;
+				continue;
+			}
+			if(directory.pages[index & DIRECTORY_MASK] == ZERO_PAGE) continue;
+			int amount = (int)Math.min(PAGE_SIZE, size - ((long)index << PAGE_SHIFT));
+			copyTo((long)index << PAGE_SHIFT, buf, 0, amount);
+			if(!SnapshotOutputStream.isZero(buf, 0, amount)) out.writePage(index, buf, 0, amount);
+		}
+		out.endPages();
+	}
+
+	@Override
+	public void loadState(SnapshotInputStream in) throws IOException {
+		synchronized(memory) {
+			Directory[] directories = new Directory[memory.root.directories.length];
+			Arrays.fill(directories, ZERO_DIRECTORY);
+			memory.root = new Root(directories, false);
+			byte[] buf = new byte[PAGE_SIZE];
+			int index;
+			while((index = in.readPageIndex(pageCount)) >= 0) {
+				int amount = (int)Math.min(PAGE_SIZE, size - ((long)index << PAGE_SHIFT));
+				in.readFully(buf, 0, amount);
+				copyPage(index).little.duplicate().put(buf, 0, amount);
+			}
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package name.bizna.jarm;
+
+import java.io.IOException;
+
+/**
+ * The Performance Monitors Extension, PMUv2 (chapter C12), with six event counters and the cycle counter.
+ * Nothing is counted per event. The CPU keeps running totals of everything countable anyway, and each counter
+ * remembers the total it last saw, so reading a counter is a subtraction. Overflow is found the same way. The counters
+ * check for it whenever they are touched, and an event is scheduled for when the nearest counter could overflow. That
+ * assumes no event happens more than once per cycle, which only fails when memory is configured to cost 0 cycles; then
+ * the overflow interrupt can come late, though PMOVSR is always right when it's read.
+ */
+final class PerformanceMonitors implements EventScheduler.Callback {
+	static final int COUNTERS = 6;
+	/* index of the cycle counter in our arrays; bit 31 in the registers */
+	private static final int CYCLE_COUNTER = COUNTERS;
+	private static final int CYCLE_COUNTER_BIT = 31;
+	private static final int COUNTER_BITS = ((1<<COUNTERS)-1) | (1<<CYCLE_COUNTER_BIT);
+	/* Performance Monitors Control Register */
+	/* 24-31: IMP (same as MIDR) */
+	/* 16-23: IDCODE (0) */
+	/* 11-15: N (number of event counters) */
+	/* 5: DP (RAZ/WI, no prohibited regions) */
+	/* 4: X (RAZ/WI, nothing to export to) */
+	/* 3: D (cycle counter counts every 64th cycle) */
+	/* 2: C (write 1 to zero the cycle counter) */
+	/* 1: P (write 1 to zero the event counters) */
+	/* 0: E (enable) */
+	static final int PMCR_BIT_E = 0;
+	static final int PMCR_BIT_P = 1;
+	static final int PMCR_BIT_C = 2;
+	static final int PMCR_BIT_D = 3;
+	static final int PMCR_READ_OR = (CP15.MIDR & 0xFF000000) | (COUNTERS << 11);
+	static final int PMCR_WRITE_MASK = (1<<PMCR_BIT_E)|(1<<PMCR_BIT_D);
+	/* PMUSERENR bit 0: PL0 may use everything but PMUSERENR and PMINTENSET/PMINTENCLR */
+	static final int PMUSERENR_BIT_EN = 0;
+	/* Common architectural events that we count */
+	static final int EVENT_SW_INCR = 0x00;
+	static final int EVENT_INST_RETIRED = 0x08;
+	static final int EVENT_EXC_TAKEN = 0x09;
+	static final int EVENT_PC_WRITE_RETIRED = 0x0C;
+	static final int EVENT_CPU_CYCLES = 0x11;
+	/* IMPLEMENTATION DEFINED events: cycles billed for memory accesses, and instructions handed to a coprocessor */
+	static final int EVENT_MEMORY_BILL_CYCLES = 0xC0;
+	static final int EVENT_COPROCESSOR_INSTRUCTIONS = 0xC1;
+	/* which of events 0x00-0x1F are counted */
+	static final int PMCEID0 = (1<<EVENT_SW_INCR)|(1<<EVENT_INST_RETIRED)|(1<<EVENT_EXC_TAKEN)|(1<<EVENT_PC_WRITE_RETIRED)|(1<<EVENT_CPU_CYCLES);
+	static final int PMCEID1 = 0;
+	private final CPU cpu;
+	private int control;
+	int PMCNTENSET, PMOVSR, PMINTENSET, PMSELR, PMUSERENR;
+	private final int[] eventTypes = new int[COUNTERS];
+	/* counts, kept within 32 bits; and the running total each counter last caught up with */
+	private final long[] counts = new long[COUNTERS+1];
+	private final long[] seen = new long[COUNTERS+1];
+	private EventScheduler.Event pendingCheck;
+	PerformanceMonitors(CPU cpu) {
+		this.cpu = cpu;
+	}
+	private static int bitFor(int counter) { return counter == CYCLE_COUNTER ? 1<<CYCLE_COUNTER_BIT : 1<<counter; }
+	private boolean running(int counter) {
+		return (control & (1<<PMCR_BIT_E)) != 0 && (PMCNTENSET & bitFor(counter)) != 0;
+	}
+	private long total(int counter) {
+		if(counter == CYCLE_COUNTER) return cpu.getCycleCount();
+		switch(eventTypes[counter]) {
+		case EVENT_INST_RETIRED: return cpu.instructionsRetired;
+		case EVENT_EXC_TAKEN: return cpu.exceptionsTaken;
+		case EVENT_PC_WRITE_RETIRED: return cpu.pcWrites;
+		case EVENT_CPU_CYCLES: return cpu.getCycleCount();
+		case EVENT_MEMORY_BILL_CYCLES: return cpu.getMemorySpace().getTotalBilled();
+		case EVENT_COPROCESSOR_INSTRUCTIONS: return cpu.coprocessorInstructions;
+		/* SW_INCR, and anything we don't count, only changes through PMSWINC */
+		default: return 0;
+		}
+	}
+	private void add(int counter, long delta) {
+		long sum = counts[counter] + delta;
+		if((sum >>> 32) != 0) PMOVSR |= bitFor(counter);
+		counts[counter] = sum & 0xFFFFFFFFL;
+	}
+	/* bring a counter up to date */
+	private void catchUp(int counter) {
+		long now = total(counter);
+		if(running(counter)) {
+			long delta = now - seen[counter];
+			if(counter == CYCLE_COUNTER && (control & (1<<PMCR_BIT_D)) != 0) {
+				/* keep the leftover cycles for next time */
+				delta >>>= 6;
+				now = seen[counter] + (delta << 6);
+			}
+			add(counter, delta);
+		}
+		seen[counter] = now;
+	}
+	private void catchUpAll() {
+		for(int n = 0; n <= CYCLE_COUNTER; ++n) catchUp(n);
+	}
+	/* after anything changes: update the interrupt, and arrange to look again before any counter can overflow */
+	private void update() {
+		catchUpAll();
+		if((PMOVSR & PMINTENSET) != 0) cpu.getInterruptController().raise(InterruptController.PMU_LINE);
+		else cpu.getInterruptController().lower(InterruptController.PMU_LINE);
+		if(pendingCheck != null) {
+			cpu.getEventScheduler().cancel(pendingCheck);
+			pendingCheck = null;
+		}
+		long soonest = Long.MAX_VALUE;
+		for(int n = 0; n <= CYCLE_COUNTER; ++n) {
+			if(!running(n) || (PMINTENSET & bitFor(n)) == 0 || (PMOVSR & bitFor(n)) != 0) continue;
+			long cycles = 0x100000000L - counts[n];
+			if(n == CYCLE_COUNTER && (control & (1<<PMCR_BIT_D)) != 0) cycles <<= 6;
+			if(cycles < soonest) soonest = cycles;
+		}
+		if(soonest != Long.MAX_VALUE) pendingCheck = cpu.getEventScheduler().schedule(cpu.getCycleCount() + soonest, this);
+	}
+	@Override
+	public void onEvent(CPU cpu, long when) {
+		pendingCheck = null;
+		catchUpAll();
+		update();
+	}
+	/** Returns true if PL0 may use the counters. */
+	boolean userEnabled() { return (PMUSERENR & (1<<PMUSERENR_BIT_EN)) != 0; }
+	int readPMCR() { return PMCR_READ_OR | control; }
+	void writePMCR(int value) {
+		catchUpAll();
+		if((value & (1<<PMCR_BIT_P)) != 0) {
+			for(int n = 0; n < COUNTERS; ++n) counts[n] = 0;
+		}
+		if((value & (1<<PMCR_BIT_C)) != 0) counts[CYCLE_COUNTER] = 0;
+		control = value & PMCR_WRITE_MASK;
+		update();
+	}
+	void writePMCNTENSET(int value) {
+		catchUpAll();
+		PMCNTENSET |= value & COUNTER_BITS;
+		update();
+	}
+	void writePMCNTENCLR(int value) {
+		catchUpAll();
+		PMCNTENSET &= ~value;
+		update();
+	}
+	int readPMOVSR() {
+		catchUpAll();
+		return PMOVSR;
+	}
+	/* write 1 to clear */
+	void writePMOVSR(int value) {
+		catchUpAll();
+		PMOVSR &= ~value;
+		update();
+	}
+	void writePMSWINC(int value) {
+		for(int n = 0; n < COUNTERS; ++n) {
+			if((value & (1<<n)) != 0 && eventTypes[n] == EVENT_SW_INCR && running(n)) add(n, 1);
+		}
+		update();
+	}
+	void writePMINTENSET(int value) {
+		catchUpAll();
+		PMINTENSET |= value & COUNTER_BITS;
+		update();
+	}
+	void writePMINTENCLR(int value) {
+		PMINTENSET &= ~value;
+		update();
+	}
+	int readPMCCNTR() {
+		catchUp(CYCLE_COUNTER);
+		return (int)counts[CYCLE_COUNTER];
+	}
+	void writePMCCNTR(int value) {
+		catchUp(CYCLE_COUNTER);
+		counts[CYCLE_COUNTER] = value & 0xFFFFFFFFL;
+		update();
+	}
+	/* PMXEVTYPER and PMXEVCNTR go through PMSELR; selecting a counter that doesn't exist is UNPREDICTABLE, we RAZ/WI */
+	int readPMXEVTYPER() {
+		return PMSELR < COUNTERS ? eventTypes[PMSELR] : 0;
+	}
+	void writePMXEVTYPER(int value) {
+		if(PMSELR >= COUNTERS) return;
+		catchUp(PMSELR);
+		eventTypes[PMSELR] = value & 0xFF;
+		/* the new event's total starts from here */
+		seen[PMSELR] = total(PMSELR);
+		update();
+	}
+	int readPMXEVCNTR() {
+		if(PMSELR >= COUNTERS) return 0;
+		catchUp(PMSELR);
+		return (int)counts[PMSELR];
+	}
+	void writePMXEVCNTR(int value) {
+		if(PMSELR >= COUNTERS) return;
+		catchUp(PMSELR);
+		counts[PMSELR] = value & 0xFFFFFFFFL;
+		update();
+	}
+	void reset() {
+		control = 0;
+		PMCNTENSET = PMOVSR = PMINTENSET = PMSELR = PMUSERENR = 0;
+		for(int n = 0; n <= CYCLE_COUNTER; ++n) counts[n] = 0;
+		for(int n = 0; n < COUNTERS; ++n) eventTypes[n] = 0;
+		update();
+	}
+	/* seen is relative to the CPU's running totals, which are restored before we are */
+	void saveState(SnapshotOutputStream out) throws IOException {
+		catchUpAll();
+		out.writeInt(control);
+		out.writeInt(PMCNTENSET);
+		out.writeInt(PMOVSR);
+		out.writeInt(PMINTENSET);
+		out.writeInt(PMSELR);
+		out.writeInt(PMUSERENR);
+		out.writeInts(eventTypes);
+		out.writeLongs(counts);
+		out.writeLongs(seen);
+	}
+	void loadState(SnapshotInputStream in) throws IOException {
+		control = in.readInt() & PMCR_WRITE_MASK;
+		PMCNTENSET = in.readInt() & COUNTER_BITS;
+		PMOVSR = in.readInt() & COUNTER_BITS;
+		PMINTENSET = in.readInt() & COUNTER_BITS;
+		PMSELR = in.readInt();
+		PMUSERENR = in.readInt();
+		in.readInts(eventTypes);
+		in.readLongs(counts);
+		in.readLongs(seen);
+		update();
+	}
+}
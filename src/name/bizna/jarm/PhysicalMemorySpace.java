@@ -4,6 +4,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * The physical address space as one processor sees it. Several processors can share the same memory by each having their
+ * own port onto it, made with {@link #PhysicalMemorySpace(PhysicalMemorySpace)}; the map of regions, the exclusive
+ * monitor, and instruction cache coherence are shared between all the ports, while the access bill and the
+ * predecoded instructions are kept per port.
+ */
 public final class PhysicalMemorySpace {
 	public static final class MappedRegion {
 		public MappedRegion(long base, MemoryRegion region) {
@@ -30,8 +36,96 @@ public final class PhysicalMemorySpace {
 			this.region = region;
 		}
 	}
-	private MappedRegion[] memoryMap = new MappedRegion[0];
+	/* one entry per 64KiB page that lies entirely within a single mapped region; null means use the binary search */
+	private static final int PAGE_SHIFT = 16;
+	private static final long PAGE_SIZE = 1L<<PAGE_SHIFT;
+	/* everything the ports onto the same memory have in common */
+	private static final class Shared {
+		volatile MappedRegion[] memoryMap = new MappedRegion[0];
+		final MappedRegion[] pageMap = new MappedRegion[1<<(32-PAGE_SHIFT)];
+		final ExclusiveMonitor monitor = new ExclusiveMonitor();
+		/* every port's instruction cache; a write through any port invalidates them all */
+		volatile InstructionCache[] caches = new InstructionCache[0];
+		volatile CPU[] processors = new CPU[0];
+	}
+	private final Shared shared;
+	private final MappedRegion[] pageMap;
+	public PhysicalMemorySpace() {
+		this(new Shared());
+	}
+	/**
+	 * Make a new port onto the same memory as an existing space, for another processor. Regions mapped or unmapped
+	 * through either one are seen by both.
+	 */
+	public PhysicalMemorySpace(PhysicalMemorySpace other) {
+		this(other.shared);
+	}
+	private PhysicalMemorySpace(Shared shared) {
+		this.shared = shared;
+		this.pageMap = shared.pageMap;
+		this.monitor = shared.monitor;
+	}
+	/**
+	 * Register a processor using this memory, so that it takes part in the exclusive monitor and in broadcast
+	 * maintenance operations. Only a port with a processor fetches instructions, so this is also when the port's
+	 * instruction cache starts being kept coherent.
+	 * @return the processor's index in the exclusive monitor
+	 */
+	final int attachProcessor(CPU cpu) {
+		synchronized(shared) {
+			CPU[] processors = Arrays.copyOf(shared.processors, shared.processors.length + 1);
+			processors[processors.length - 1] = cpu;
+			shared.processors = processors;
+			InstructionCache[] caches = Arrays.copyOf(shared.caches, shared.caches.length + 1);
+			caches[caches.length - 1] = icache;
+			shared.caches = caches;
+			return monitor.attach();
+		}
+	}
+	/* Undo attachProcessor. The processor's slot in the exclusive monitor is released, but not reused. */
+	final void detachProcessor(CPU cpu, int monitorId) {
+		synchronized(shared) {
+			shared.processors = without(shared.processors, cpu);
+			shared.caches = without(shared.caches, icache);
+			monitor.release(monitorId);
+		}
+	}
+	private static <T> T[] without(T[] array, T item) {
+		for(int n = 0; n < array.length; ++n) {
+			if(array[n] == item) {
+				T[] ret = Arrays.copyOf(array, array.length - 1);
+				System.arraycopy(array, n + 1, ret, n, array.length - n - 1);
+				return ret;
+			}
+		}
+		return array;
+	}
+	/** Returns true if this memory space and other are ports onto the same memory. */
+	public final boolean sharesMemoryWith(PhysicalMemorySpace other) {
+		return shared == other.shared;
+	}
+	/** Every processor that uses this memory, through any port. */
+	final CPU[] getProcessors() {
+		return shared.processors;
+	}
+	private void rebuildPageMap() {
+		Arrays.fill(pageMap, null);
+		for(MappedRegion it : shared.memoryMap) {
+			long end = Math.min(it.end, 1L<<32);
+			for(long page = (it.base + PAGE_SIZE - 1) >>> PAGE_SHIFT; (page + 1) << PAGE_SHIFT <= end; ++page) {
+				pageMap[(int)page] = it;
+			}
+		}
+	}
 	private MappedRegion getRegion(long address) throws BusErrorException {
+		if((address >>> 32) == 0) {
+			MappedRegion ret = pageMap[(int)(address >>> PAGE_SHIFT)];
+			if(ret != null) return ret;
+		}
+		return searchRegion(address);
+	}
+	private MappedRegion searchRegion(long address) throws BusErrorException {
+		MappedRegion[] memoryMap = shared.memoryMap;
 		int t = 0, b = memoryMap.length;
 		while(b > t) {
 			int c = (b - t) / 2 + t;
@@ -43,14 +137,44 @@ public final class PhysicalMemorySpace {
 		throw new BusErrorException("failed to get physical region" , address, BusErrorException.AccessType.UNKNOWN);
 	}
 	private int accessCycleBill;
+	/* every cycle ever settled, for the performance monitors */
+	private long totalBilled;
+	final InstructionCache icache = new InstructionCache();
+	/* Throw away all predecoded instructions, in every port. Only needed if you change the contents of a cacheable
+	 * region without going through this memory space. */
+	public final void invalidateInstructionCache() {
+		for(InstructionCache cache : shared.caches) cache.invalidateAll();
+	}
+	/* Instructions predecoded by another processor may be from before a write we're making; throw them away. A processor
+	 * fetching from the page at the same moment may still keep what it fetched, as real hardware may until it executes
+	 * an ISB, so the ICIALLU family (see CP15) also comes here. */
+	private void invalidateCode(long address) {
+		for(InstructionCache cache : shared.caches) cache.invalidate(address);
+	}
+	private void invalidateCodeRange(long address, long length) {
+		for(InstructionCache cache : shared.caches) cache.invalidateRange(address, length);
+	}
+	final boolean isInstructionCacheable(long address) throws BusErrorException {
+		return getRegion(address).region.isInstructionCacheable();
+	}
 	public final byte readByte(long address) throws BusErrorException, EscapeRetryException {
 		MappedRegion mapping = getRegion(address);
 		byte ret = mapping.region.readByte(this, address - mapping.base);
 		return ret;
 	}
 	public final void writeByte(long address, byte value) throws BusErrorException, EscapeRetryException {
+		if(monitor.watching) {
+			synchronized(monitor.lockFor(address)) {
+				monitor.observeStore(address);
+				writeByteUnmonitored(address, value);
+			}
+		}
+		else writeByteUnmonitored(address, value);
+	}
+	private void writeByteUnmonitored(long address, byte value) throws BusErrorException, EscapeRetryException {
 		MappedRegion mapping = getRegion(address);
 		mapping.region.writeByte(this, address - mapping.base, value);
+		invalidateCode(address);
 	}
 	public final short readShort(long address, boolean bigEndian) throws BusErrorException, EscapeRetryException {
 		assert((address&1)==0);
@@ -62,9 +186,19 @@ public final class PhysicalMemorySpace {
 	}
 	public final void writeShort(long address, short value, boolean bigEndian) throws BusErrorException, EscapeRetryException {
 		assert((address&1)==0);
+		if(monitor.watching) {
+			synchronized(monitor.lockFor(address)) {
+				monitor.observeStore(address);
+				writeShortUnmonitored(address, value, bigEndian);
+			}
+		}
+		else writeShortUnmonitored(address, value, bigEndian);
+	}
+	private void writeShortUnmonitored(long address, short value, boolean bigEndian) throws BusErrorException, EscapeRetryException {
 		MappedRegion mapping = getRegion(address);
 		if(bigEndian) mapping.region.writeShortBE(this, address - mapping.base, value);
 		else mapping.region.writeShortLE(this, address - mapping.base, value);
+		invalidateCode(address);
 	}
 	public final int readInt(long address, boolean bigEndian) throws BusErrorException, EscapeRetryException {
 		assert((address&3)==0);
@@ -76,21 +210,161 @@ public final class PhysicalMemorySpace {
 	}
 	public final void writeInt(long address, int value, boolean bigEndian) throws BusErrorException, EscapeRetryException {
 		assert((address&3)==0);
+		if(monitor.watching) {
+			synchronized(monitor.lockFor(address)) {
+				monitor.observeStore(address);
+				writeIntUnmonitored(address, value, bigEndian);
+			}
+		}
+		else writeIntUnmonitored(address, value, bigEndian);
+	}
+	private void writeIntUnmonitored(long address, int value, boolean bigEndian) throws BusErrorException, EscapeRetryException {
 		MappedRegion mapping = getRegion(address);
 		if(bigEndian) mapping.region.writeIntBE(this, address - mapping.base, value);
 		else mapping.region.writeIntLE(this, address - mapping.base, value);
+		invalidateCode(address);
+	}
+	/* Bulk copies, which look up the region once per region they touch rather than once per byte. The address wraps
+	 * around the end of the 32-bit space, just as it would if the bytes were accessed one at a time. */
+	public final void readBytes(long address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		while(length > 0) {
+			address &= 0xFFFFFFFFL;
+			MappedRegion mapping = getRegion(address);
+			int span = (int)Math.min(length, Math.min(mapping.end, 1L<<32) - address);
+			mapping.region.readBytes(this, address - mapping.base, buf, offset, span);
+			address += span;
+			offset += span;
+			length -= span;
+		}
+	}
+	public final void writeBytes(long address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		if(monitor.watching) {
+			/* one granule at a time, so that each piece is atomic with respect to the exclusives */
+			while(length > 0) {
+				address &= 0xFFFFFFFFL;
+				int span = (int)Math.min(length, (1L<<ExclusiveMonitor.GRANULE_SHIFT) - (address & ((1L<<ExclusiveMonitor.GRANULE_SHIFT)-1)));
+				synchronized(monitor.lockFor(address)) {
+					monitor.observeStore(address);
+					writeBytesUnmonitored(address, buf, offset, span);
+				}
+				address += span;
+				offset += span;
+				length -= span;
+			}
+		}
+		else writeBytesUnmonitored(address, buf, offset, length);
+	}
+	private void writeBytesUnmonitored(long address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		while(length > 0) {
+			address &= 0xFFFFFFFFL;
+			MappedRegion mapping = getRegion(address);
+			int span = (int)Math.min(length, Math.min(mapping.end, 1L<<32) - address);
+			/* before the write, in case it fails partway through */
+			invalidateCodeRange(address, span);
+			mapping.region.writeBytes(this, address - mapping.base, buf, offset, span);
+			address += span;
+			offset += span;
+			length -= span;
+		}
+	}
+	/*** EXCLUSIVE ACCESS (A3-114) ***/
+	final ExclusiveMonitor monitor;
+	/**
+	 * Load-Exclusive: read 1, 2, 4 or 8 aligned bytes and reserve them for the processor, as one atomic operation.
+	 * A doubleword is read as two words; the word at the lower address is in the low half of the result.
+	 */
+	final long loadExclusive(int processor, long address, int size, boolean bigEndian) throws BusErrorException, EscapeRetryException {
+		synchronized(monitor.lockFor(address)) {
+			long ret;
+			switch(size) {
+			case 1: ret = readByte(address) & 0xFFL; break;
+			case 2: ret = readShort(address, bigEndian) & 0xFFFFL; break;
+			case 4: ret = readInt(address, bigEndian) & 0xFFFFFFFFL; break;
+			default: ret = (readInt(address, bigEndian) & 0xFFFFFFFFL) | ((long)readInt(address+4, bigEndian) << 32); break;
+			}
+			monitor.reserve(processor, address);
+			return ret;
+		}
+	}
+	/**
+	 * Store-Exclusive: if the processor's reservation survived, store the value and return true. Otherwise store nothing
+	 * and return false.
+	 */
+	final boolean storeExclusive(int processor, long address, int size, long value, boolean bigEndian) throws BusErrorException, EscapeRetryException {
+		synchronized(monitor.lockFor(address)) {
+			if(!monitor.claim(processor, address)) return false;
+			switch(size) {
+			case 1: writeByteUnmonitored(address, (byte)value); break;
+			case 2: writeShortUnmonitored(address, (short)value, bigEndian); break;
+			case 4: writeIntUnmonitored(address, (int)value, bigEndian); break;
+			default:
+				writeIntUnmonitored(address, (int)value, bigEndian);
+				writeIntUnmonitored(address+4, (int)(value >>> 32), bigEndian);
+				break;
+			}
+			return true;
+		}
+	}
+	/** SWP/SWPB: store a value and return what was there before, as one atomic operation. */
+	final int swap(long address, int value, boolean isByte, boolean bigEndian) throws BusErrorException, EscapeRetryException {
+		synchronized(monitor.lockFor(address)) {
+			monitor.observeStore(address);
+			if(isByte) {
+				int ret = readByte(address) & 0xFF;
+				writeByteUnmonitored(address, (byte)value);
+				return ret;
+			}
+			else {
+				int ret = readInt(address, bigEndian);
+				writeIntUnmonitored(address, value, bigEndian);
+				return ret;
+			}
+		}
+	}
+	/* DMB and DSB. Every access goes straight to the regions, with no caches or write buffers of our own, so the only
+	 * reordering is what the JVM and the host processor do. A volatile store followed by a volatile load is a full
+	 * two-way fence on every JVM we know of. With only one processor there is nobody to be ordered against. */
+	private volatile int fence;
+	final void memoryBarrier() {
+		if(shared.processors.length > 1) {
+			fence = 0;
+			int ignored = fence;
+		}
+	}
+	/* ICIMVAU and friends; throw away the predecoded instructions for one page, in every port */
+	final void invalidateInstructionCache(long address) {
+		invalidateCode(address);
+	}
+	final int getAccessBill() {
+		return accessCycleBill;
 	}
 	public final int settleAccessBill() {
 		int ret = accessCycleBill;
 		accessCycleBill = 0;
+		totalBilled += ret;
 		return ret;
 	}
+	/** Returns the total of every bill ever settled through this port. */
+	public final long getTotalBilled() {
+		return totalBilled;
+	}
+	/* for loading a core's state; whatever was billed since the last settlement belongs to the state being replaced */
+	final void setTotalBilled(long totalBilled) {
+		this.totalBilled = totalBilled;
+		accessCycleBill = 0;
+	}
 	public final void addToBill(int i) {
 		assert(i > 0);
 		accessCycleBill += i;
 	}
 	public final void mapRegion(int _address, MemoryRegion region) {
+		synchronized(shared) {
+			mapRegionLocked(_address, region);
+		}
+	}
+	private void mapRegionLocked(int _address, MemoryRegion region) {
 		long address = _address & 0xFFFFFFFFL;
+		MappedRegion[] memoryMap = shared.memoryMap;
 		MappedRegion[] newMap = new MappedRegion[memoryMap.length+1];
 		int i = 0;
 		for(; i < memoryMap.length; ++i) {
@@ -103,21 +377,35 @@ public final class PhysicalMemorySpace {
 			MappedRegion it = memoryMap[i];
 			newMap[i+1] = it;
 		}
-		memoryMap = newMap;
+		shared.memoryMap = newMap;
+		rebuildPageMap();
+		invalidateInstructionCache();
 	}
 	public final void unmapRegion(int _address, MemoryRegion region) {
+		synchronized(shared) {
+			unmapRegionLocked(_address, region);
+		}
+	}
+	private void unmapRegionLocked(int _address, MemoryRegion region) {
 		long address = _address & 0xFFFFFFFFL;
+		MappedRegion[] memoryMap = shared.memoryMap;
 		ArrayList<MappedRegion> newMap = new ArrayList<MappedRegion>(memoryMap.length);
 		for(MappedRegion it : memoryMap) {
 			if(it.base != address || (region == null || it.region != region)) newMap.add(it);
 		}
-		memoryMap = newMap.toArray(new MappedRegion[newMap.size()]);
+		shared.memoryMap = newMap.toArray(new MappedRegion[newMap.size()]);
+		rebuildPageMap();
+		invalidateInstructionCache();
 	}
 	public final void unmapAllRegions() {
-		memoryMap = new MappedRegion[0];
+		synchronized(shared) {
+			shared.memoryMap = new MappedRegion[0];
+			rebuildPageMap();
+			invalidateInstructionCache();
+		}
 	}
 	
 	public List<MappedRegion> getMappedRegions() {
-		return Arrays.asList(memoryMap);
+		return Arrays.asList(shared.memoryMap);
 	}
 }
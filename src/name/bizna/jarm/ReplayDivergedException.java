@@ -0,0 +1,11 @@
+package name.bizna.jarm;
+
+/**
+ * Thrown out of CPU.execute when a replay stops matching its recording: the machine it's replayed into isn't built or
+ * configured like the one that was recorded, or something the recorder doesn't cover, like a memory-mapped device,
+ * came out differently. The replay is over by the time this is thrown; the core is left as it was.
+ */
+public class ReplayDivergedException extends RuntimeException {
+	static final long serialVersionUID = 1;
+	public ReplayDivergedException(String why) { super(why); }
+}
@@ -0,0 +1,144 @@
+package name.bizna.jarm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Saves and restores a whole machine: every core's registers and coprocessors, and the contents of every region mapped
+ * into their memory. Boot once, snapshot, and every later run can start from the snapshot.
+ * A snapshot only holds state, not structure. It's loaded into a machine built the same way as the one that was saved:
+ * the same number of cores, the same coprocessors, the same kinds of region at the same addresses. Anything that doesn't
+ * match is an error. Devices behind their own regions or coprocessors save whatever they put in saveState; interrupt
+ * lines are left as their devices are driving them, and so are events scheduled by devices.
+ * None of the cores may be running while a snapshot is saved or loaded.
+ * <p>
+ * The format is a header (the magic number, the version, and a flags byte) followed by the body, which may be deflated.
+ * The body holds each core in turn, each core's coprocessors tagged by slot and class, and then each mapped region tagged
+ * by base address, size and class.
+ */
+public final class Snapshot {
+	public static final int VERSION = 1;
+	/* "JARMSNAP" */
+	private static final long MAGIC = 0x4A41524D534E4150L;
+	private static final int FLAG_DEFLATED = 1;
+	private static final int END_OF_COPROCESSORS = -1;
+	private Snapshot() {}
+	static void checkCores(CPU[] cpus) {
+		if(cpus.length == 0) throw new IllegalArgumentException("no cores to snapshot");
+		for(CPU cpu : cpus) {
+			if(!cpu.getMemorySpace().sharesMemoryWith(cpus[0].getMemorySpace())) throw new IllegalArgumentException("cores in one snapshot must share their memory");
+		}
+	}
+	/* a coprocessor mapped into several slots, like the FPU, is only saved from the first */
+	static boolean mappedEarlier(Coprocessor[] coprocessors, int slot) {
+		for(int n = 0; n < slot; ++n) {
+			if(coprocessors[n] == coprocessors[slot]) return true;
+		}
+		return false;
+	}
+	/* one core and its coprocessors; MachineFork uses these too */
+	static void saveCore(SnapshotOutputStream out, CPU cpu) throws IOException {
+		cpu.saveState(out);
+		Coprocessor[] coprocessors = cpu.getCoprocessors();
+		for(int n = 0; n < coprocessors.length; ++n) {
+			Coprocessor cop = coprocessors[n];
+			if(cop == null || mappedEarlier(coprocessors, n)) continue;
+			out.writeByte(n);
+			out.writeUTF(cop.getClass().getName());
+			cop.saveState(out);
+		}
+		out.writeByte(END_OF_COPROCESSORS);
+	}
+	static void loadCore(SnapshotInputStream in, CPU cpu) throws IOException {
+		cpu.loadState(in);
+		Coprocessor[] coprocessors = cpu.getCoprocessors();
+		int n;
+		while((n = in.readByte()) != END_OF_COPROCESSORS) {
+			String className = in.readUTF();
+			Coprocessor cop = n >= 0 && n < coprocessors.length ? coprocessors[n] : null;
+			if(cop == null || !cop.getClass().getName().equals(className)) throw new SnapshotMismatchException("coprocessor "+n+" differs");
+			cop.loadState(in);
+		}
+	}
+	/**
+	 * @param compress true to deflate the body; slower, but RAM that isn't all zero usually compresses well
+	 * @param cpus Every core of the machine, in the same order they will be given to load
+	 */
+	public static void save(OutputStream out, boolean compress, CPU... cpus) throws IOException {
+		checkCores(cpus);
+		SnapshotOutputStream header = new SnapshotOutputStream(out);
+		header.writeLong(MAGIC);
+		header.writeInt(VERSION);
+		header.writeByte(compress ? FLAG_DEFLATED : 0);
+		header.flush();
+		Deflater deflater = null;
+		DeflaterOutputStream deflated = null;
+		SnapshotOutputStream body;
+		if(compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			deflated = new DeflaterOutputStream(out, deflater, 65536);
+			body = new SnapshotOutputStream(deflated);
+		}
+		else body = header;
+		try {
+			body.writeInt(cpus.length);
+			for(CPU cpu : cpus) saveCore(body, cpu);
+			List<PhysicalMemorySpace.MappedRegion> regions = cpus[0].getMemorySpace().getMappedRegions();
+			body.writeInt(regions.size());
+			for(PhysicalMemorySpace.MappedRegion it : regions) {
+				body.writeLong(it.getBase());
+				body.writeLong(it.getEnd() - it.getBase());
+				body.writeUTF(it.getRegion().getClass().getName());
+				it.getRegion().saveState(body);
+			}
+			body.flush();
+			if(deflated != null) deflated.finish();
+		}
+		finally {
+			if(deflater != null) deflater.end();
+		}
+	}
+	/**
+	 * @param cpus Every core of the machine, in the same order they were given to save
+	 */
+	public static void load(InputStream in, CPU... cpus) throws IOException {
+		checkCores(cpus);
+		SnapshotInputStream header = new SnapshotInputStream(in);
+		if(header.readLong() != MAGIC) throw new SnapshotMismatchException("not a snapshot");
+		int version = header.readInt();
+		if(version > VERSION) throw new SnapshotMismatchException("snapshot is version "+version+", we only understand up to "+VERSION);
+		int flags = header.readUnsignedByte();
+		Inflater inflater = null;
+		SnapshotInputStream body;
+		if((flags & FLAG_DEFLATED) != 0) {
+			inflater = new Inflater();
+			body = new SnapshotInputStream(new InflaterInputStream(in, inflater, 65536));
+		}
+		else body = header;
+		try {
+			if(body.readInt() != cpus.length) throw new SnapshotMismatchException("number of cores differs");
+			for(CPU cpu : cpus) loadCore(body, cpu);
+			PhysicalMemorySpace mem = cpus[0].getMemorySpace();
+			List<PhysicalMemorySpace.MappedRegion> regions = mem.getMappedRegions();
+			if(body.readInt() != regions.size()) throw new SnapshotMismatchException("number of mapped regions differs");
+			for(PhysicalMemorySpace.MappedRegion it : regions) {
+				long base = body.readLong();
+				long size = body.readLong();
+				String className = body.readUTF();
+				if(base != it.getBase() || size != it.getEnd() - it.getBase() || !className.equals(it.getRegion().getClass().getName()))
+					throw new SnapshotMismatchException(String.format("region at %08X differs", it.getBase()));
+				it.getRegion().loadState(body);
+			}
+			mem.invalidateInstructionCache();
+		}
+		finally {
+			if(inflater != null) inflater.end();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package name.bizna.jarm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Where a {@link Snapshot} is read from; the counterpart of {@link SnapshotOutputStream}.
+ */
+public class SnapshotInputStream extends DataInputStream {
+	public static final int PAGE_SIZE = SnapshotOutputStream.PAGE_SIZE;
+	/* the page the list is up to, so that readPageIndex can insist they come in order */
+	private long lastPage = -1;
+	public SnapshotInputStream(InputStream in) {
+		super(in);
+	}
+	/** Read an array written by writeInts, which must be exactly the size of values. */
+	public void readInts(int[] values) throws IOException {
+		if(readInt() != values.length) throw new SnapshotMismatchException("array length differs");
+		for(int n = 0; n < values.length; ++n) values[n] = readInt();
+	}
+	public void readLongs(long[] values) throws IOException {
+		if(readInt() != values.length) throw new SnapshotMismatchException("array length differs");
+		for(int n = 0; n < values.length; ++n) values[n] = readLong();
+	}
+	/**
+	 * Returns the index of the next page in a list, or -1 at the end of the list. The caller must then read the page's
+	 * contents with readFully.
+	 * @param pageCount How many pages the memory has; anything outside that means the snapshot is corrupt
+	 */
+	public int readPageIndex(long pageCount) throws IOException {
+		int index = readInt();
+		if(index == SnapshotOutputStream.END_OF_PAGES) {
+			lastPage = -1;
+			return -1;
+		}
+		if(index < 0 || index <= lastPage || index >= pageCount) throw new SnapshotMismatchException("page list is corrupt");
+		lastPage = index;
+		return index;
+	}
+	/** Read a list of pages written by writePages; pages that aren't in the list are zeroed. */
+	public void readPages(byte[] array, int offset, int length) throws IOException {
+		long pageCount = ((long)length + PAGE_SIZE - 1) / PAGE_SIZE;
+		int zeroFrom = 0;
+		int index;
+		while((index = readPageIndex(pageCount)) >= 0) {
+			int start = index * PAGE_SIZE;
+			Arrays.fill(array, offset + zeroFrom, offset + start, (byte)0);
+			int amount = Math.min(PAGE_SIZE, length - start);
+			readFully(array, offset + start, amount);
+			zeroFrom = start + amount;
+		}
+		Arrays.fill(array, offset + zeroFrom, offset + length, (byte)0);
+	}
+}
@@ -0,0 +1,12 @@
+package name.bizna.jarm;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a snapshot is corrupt, or was taken of a machine that isn't put together like the one it's being loaded
+ * into.
+ */
+public class SnapshotMismatchException extends IOException {
+	static final long serialVersionUID = 1;
+	public SnapshotMismatchException(String why) { super(why); }
+}
@@ -0,0 +1,53 @@
+package name.bizna.jarm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Where a {@link Snapshot} is written. Coprocessors and regions with state of their own get one of these in saveState,
+ * and write whatever they like to it, as long as their loadState reads back exactly the same.
+ * Memory is written a page at a time, with pages that are all zero left out; see {@link #writePages}.
+ */
+public class SnapshotOutputStream extends DataOutputStream {
+	public static final int PAGE_SIZE = 4096;
+	/* ends a list of pages */
+	static final int END_OF_PAGES = -1;
+	public SnapshotOutputStream(OutputStream out) {
+		super(out);
+	}
+	public void writeInts(int[] values) throws IOException {
+		writeInt(values.length);
+		for(int value : values) writeInt(value);
+	}
+	public void writeLongs(long[] values) throws IOException {
+		writeInt(values.length);
+		for(long value : values) writeLong(value);
+	}
+	public static boolean isZero(byte[] buf, int offset, int length) {
+		for(int n = 0; n < length; ++n) {
+			if(buf[offset+n] != 0) return false;
+		}
+		return true;
+	}
+	/**
+	 * Write one page of a list. Pages must be written in increasing order, and the list ended with endPages. Only as much
+	 * of the last page as lies inside the memory should be passed; the reader knows how big the memory is.
+	 */
+	public void writePage(int index, byte[] buf, int offset, int length) throws IOException {
+		writeInt(index);
+		write(buf, offset, length);
+	}
+	public void endPages() throws IOException {
+		writeInt(END_OF_PAGES);
+	}
+	/** Write a run of memory as a complete list of pages, leaving out the ones that are all zero. */
+	public void writePages(byte[] array, int offset, int length) throws IOException {
+		for(int index = 0; (long)index * PAGE_SIZE < length; ++index) {
+			int start = offset + index * PAGE_SIZE;
+			int amount = Math.min(PAGE_SIZE, length - index * PAGE_SIZE);
+			if(!isZero(array, start, amount)) writePage(index, array, start, amount);
+		}
+		endPages();
+	}
+}
@@ -0,0 +1,118 @@
+package name.bizna.jarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads back a trace written by TraceRecorder, a record at a time. Call next() to move to each record, and then look at
+ * it with the getters.
+ * <p>
+ * Run as a program, dumps a trace file as text, a record per line.
+ */
+public final class TraceReader {
+	private final DataInputStream in;
+	private int kind;
+	private long cycle;
+	private int address, value;
+	/* what the recorder's writer thread had after the same record */
+	private int nextPC, lastAccess;
+	private final int[] cachedPCs = new int[TraceRecorder.WORD_CACHE_SIZE], cachedWords = new int[TraceRecorder.WORD_CACHE_SIZE];
+	public TraceReader(InputStream stream) throws IOException {
+		stream = new BufferedInputStream(stream, 65536);
+		DataInputStream header = new DataInputStream(stream);
+		if(header.readLong() != TraceRecorder.MAGIC) throw new IOException("not a trace");
+		int version = header.readInt();
+		if(version > TraceRecorder.VERSION) throw new IOException("trace is version "+version+", we only understand up to "+TraceRecorder.VERSION);
+		int flags = header.readUnsignedByte();
+		if((flags & TraceRecorder.FLAG_DEFLATED) != 0) stream = new InflaterInputStream(stream);
+		in = new DataInputStream(new BufferedInputStream(stream, 65536));
+		Arrays.fill(cachedPCs, 1);
+	}
+	/**
+	 * Move to the next record.
+	 * @return false if there are no more
+	 */
+	public boolean next() throws IOException {
+		int tag = in.read();
+		if(tag < 0) return false;
+		if(tag == TraceRecorder.TAG_RESYNC) {
+			cycle = InputRecorder.readVarLong(in);
+			tag = in.read();
+			if(tag < 0) throw new IOException("trace is corrupt");
+		}
+		kind = tag & TraceRecorder.TAG_KIND_MASK;
+		long cycles = tag >>> TraceRecorder.TAG_CYCLES_SHIFT;
+		if(cycles == TraceRecorder.TAG_CYCLES_MAX) cycles += InputRecorder.readVarLong(in);
+		cycle += cycles;
+		if(kind == TraceRecorder.INSTRUCTION) {
+			address = nextPC + readZigzag();
+			nextPC = address + 4;
+			int slot = (address >>> 2) & (TraceRecorder.WORD_CACHE_SIZE-1);
+			if((tag & TraceRecorder.TAG_SAME_WORD) != 0) {
+				if(cachedPCs[slot] != address) throw new IOException("trace is corrupt");
+				value = cachedWords[slot];
+			}
+			else {
+				value = Integer.reverseBytes(in.readInt());
+				cachedPCs[slot] = address;
+				cachedWords[slot] = value;
+			}
+		}
+		else {
+			address = lastAccess + readZigzag();
+			lastAccess = address;
+			value = (int)InputRecorder.readVarLong(in);
+		}
+		return true;
+	}
+	private int readZigzag() throws IOException {
+		int zigzag = (int)InputRecorder.readVarLong(in);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+	/** One of TraceRecorder's record kinds. */
+	public int getKind() { return kind; }
+	public long getCycle() { return cycle; }
+	/** The PC of an instruction, or the virtual address of an access. */
+	public int getAddress() { return address; }
+	/** The instruction word, the value read or written, or the length of a run of bytes. */
+	public int getValue() { return value; }
+	public boolean isInstruction() { return kind == TraceRecorder.INSTRUCTION; }
+	public void close() throws IOException {
+		in.close();
+	}
+	private static final String[] ACCESS_NAMES = {null, "R1", "R2", "R4", "W1", "W2", "W4", "RN", "WN"};
+	/**
+	 * Print the current record as a line of text.
+	 */
+	public void print(PrintStream out) {
+		if(kind == TraceRecorder.INSTRUCTION) out.printf("%14d\t%08X : %08X\n", cycle, address, value);
+		else if(kind < ACCESS_NAMES.length) {
+			if(kind == TraceRecorder.READ_BYTES || kind == TraceRecorder.WRITE_BYTES)
+				out.printf("%14d\t\t%s [%08X] x %d\n", cycle, ACCESS_NAMES[kind], address, value);
+			else out.printf("%14d\t\t%s [%08X] = %08X\n", cycle, ACCESS_NAMES[kind], address, value);
+		}
+		else out.printf("%14d\t\t?%d %08X %08X\n", cycle, kind, address, value);
+	}
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.err.println("Usage: TraceReader path/to/trace");
+			System.exit(1);
+		}
+		TraceReader reader = new TraceReader(new FileInputStream(args[0]));
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 65536), false);
+		try {
+			while(reader.next()) reader.print(out);
+		}
+		finally {
+			out.flush();
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package name.bizna.jarm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Records every instruction a core executes and every memory access it makes, for reading back with TraceReader. Each
+ * record has a kind, the cycle count, an address (the PC of an instruction, or where an access went) and a value (the
+ * instruction word, the value read or written, or the length of a run of bytes). An instruction's record comes before
+ * those of the accesses it makes, and an instruction that's run again after an escape gets another record. Instruction
+ * fetches aren't recorded as accesses. The accesses of LDREXD and STREXD are recorded as two words, as their registers
+ * see them. The core's state may be loaded while it's traced, and the trace carries on from the cycle count it loaded.
+ * <p>
+ * The core stores each record, 16 bytes, into a ring buffer outside the heap, and that's all it pays for. A thread of the
+ * recorder's own takes them out, packs them down to a few bytes each, mostly by saying how they differ from the ones
+ * before, and writes them out. Nothing is locked on either side. If the core gets so far ahead that the buffer fills, it
+ * waits for room rather than lose records. If writing fails, recording stops, and close() throws the error.
+ */
+public final class TraceRecorder {
+	/* "JARMTRCE" */
+	static final long MAGIC = 0x4A41524D54524345L;
+	public static final int VERSION = 2;
+	static final int FLAG_DEFLATED = 1;
+	/* Record kinds */
+	public static final int INSTRUCTION = 0;
+	public static final int READ_BYTE = 1;
+	public static final int READ_SHORT = 2;
+	public static final int READ_INT = 3;
+	public static final int WRITE_BYTE = 4;
+	public static final int WRITE_SHORT = 5;
+	public static final int WRITE_INT = 6;
+	/* the value is the length of the run */
+	public static final int READ_BYTES = 7;
+	public static final int WRITE_BYTES = 8;
+	/* In the ring, a record is the kind in the top 4 bits of a long and the cycle count in the rest, then the address,
+	 * then the value.
+	 * In the file, it starts with a tag: the kind in the low 4 bits, TAG_SAME_WORD, and the cycles since the record
+	 * before in the top 3 bits, unless there were TAG_CYCLES_MAX or more, in which case the rest follows as a varint.
+	 * Then comes the address, as a zigzagged varint difference from the PC after the last instruction's or the address
+	 * of the last access. Last comes the value: an instruction word as 4 bytes, unless it was left out because it's
+	 * the same as the last one at that PC, or any other value as a varint.
+	 * If the cycle count went back, as it does when a core's state is loaded, the record is preceded by a TAG_RESYNC
+	 * byte and the record's cycle count as a varint, and counts on from there. Version 1 traces have none of these. */
+	static final int RING_RECORD_SIZE = 16;
+	static final int KIND_SHIFT = 60;
+	static final long CYCLE_MASK = (1L<<KIND_SHIFT)-1;
+	static final int TAG_KIND_MASK = 15;
+	static final int TAG_SAME_WORD = 16;
+	static final int TAG_CYCLES_SHIFT = 5;
+	static final int TAG_CYCLES_MAX = 7;
+	/* not a record kind; it has no cycles of its own, so it is only ever this byte */
+	static final int TAG_RESYNC = 15;
+	/* how many instruction words are remembered to compare with, by PC */
+	static final int WORD_CACHE_SIZE = 4096;
+	public static final int DEFAULT_BUFFER_SIZE = 16<<20;
+	/* how long the writer thread sleeps when it has caught up */
+	private static final long IDLE_NANOS = 1000000;
+	private static final int CHUNK_SIZE = 65536;
+	/* how often the core tells the writer how far it's got; doing it every record would have the two of them fighting
+	 * over the cache line all the time */
+	private static final int PUBLISH_INTERVAL = 4096;
+	/* the most a record can take in the file */
+	private static final int MAX_PACKED_RECORD = 1 + 9 + 1 + 10 + 5 + 5;
+	private final CPU cpu;
+	private final ByteBuffer ring;
+	private final int mask;
+	private final OutputStream stream;
+	private final Deflater deflater;
+	private final OutputStream body;
+	private final Thread writer;
+	/* Everything up to published has been stored by the core; everything up to freed has been written out. Both only
+	 * grow, and each has only one thread that changes it, except that close() has the last word on published. */
+	private final AtomicLong published = new AtomicLong(), freed = new AtomicLong();
+	/* the core's copies: where the next record goes, and how far it can go before looking at freed again */
+	private long head, limit;
+	private volatile boolean closing;
+	private volatile IOException failure;
+	/**
+	 * Start tracing, with a buffer of DEFAULT_BUFFER_SIZE bytes. The core must not be running.
+	 */
+	public TraceRecorder(OutputStream stream, CPU cpu, boolean compress) throws IOException {
+		this(stream, cpu, compress, DEFAULT_BUFFER_SIZE);
+	}
+	/**
+	 * Start tracing. The core must not be running.
+	 * @param stream Where the trace goes
+	 * @param cpu The core to trace
+	 * @param compress true to deflate the trace as well; it usually comes out several times smaller, but a core running
+	 * flat out may end up waiting for the deflating
+	 * @param bufferSize How many bytes the core can get ahead of the writer by, at 16 bytes a record; a power of two
+	 */
+	public TraceRecorder(OutputStream stream, CPU cpu, boolean compress, int bufferSize) throws IOException {
+		if(bufferSize < RING_RECORD_SIZE || (bufferSize & (bufferSize-1)) != 0) throw new IllegalArgumentException("buffer size must be a power of two, and hold at least one record");
+		if(cpu.tracer != null) throw new IllegalStateException("already tracing");
+		this.cpu = cpu;
+		this.stream = stream;
+		ring = ByteBuffer.allocateDirect(bufferSize);
+		mask = bufferSize - 1;
+		limit = bufferSize;
+		DataOutputStream header = new DataOutputStream(stream);
+		header.writeLong(MAGIC);
+		header.writeInt(VERSION);
+		header.writeByte(compress ? FLAG_DEFLATED : 0);
+		header.flush();
+		if(compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			body = new DeflaterOutputStream(stream, deflater, CHUNK_SIZE);
+		}
+		else {
+			deflater = null;
+			body = stream;
+		}
+		writer = new Thread("jarm trace writer") {
+			@Override
+			public void run() { drain(); }
+		};
+		writer.setDaemon(true);
+		writer.start();
+		cpu.tracer = this;
+		cpu.getVirtualMemorySpace().trace = this;
+	}
+	/**
+	 * Stop tracing, and wait for everything recorded to be written out. The core must not be running.
+	 */
+	public void close() throws IOException {
+		try {
+			detach();
+			published.set(head);
+			closing = true;
+			LockSupport.unpark(writer);
+			boolean interrupted = false;
+			while(writer.isAlive()) {
+				try { writer.join(); }
+				catch(InterruptedException e) { interrupted = true; }
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(failure != null) throw failure;
+			if(deflater != null) ((DeflaterOutputStream)body).finish();
+		}
+		finally {
+			if(deflater != null) deflater.end();
+			stream.close();
+		}
+	}
+	private void detach() {
+		if(cpu.tracer != this) return;
+		cpu.tracer = null;
+		cpu.getVirtualMemorySpace().trace = null;
+	}
+	/* Called by the core */
+	void instruction(int pc, int iword, long cycle) {
+		put(((long)INSTRUCTION << KIND_SHIFT) | (cycle & CYCLE_MASK), pc, iword);
+	}
+	void access(int kind, int address, int value) {
+		put(((long)kind << KIND_SHIFT) | (cpu.getCycleCount() & CYCLE_MASK), address, value);
+	}
+	private void put(long word, int address, int value) {
+		if(head == limit && !waitForRoom()) return;
+		int at = (int)head & mask;
+		ring.putLong(at, word);
+		ring.putInt(at+8, address);
+		ring.putInt(at+12, value);
+		head += RING_RECORD_SIZE;
+		/* the writer only needs to see the stores above before it sees the new head, which lazySet promises */
+		if((head & (PUBLISH_INTERVAL-1)) == 0) published.lazySet(head);
+	}
+	private boolean waitForRoom() {
+		published.lazySet(head);
+		while(true) {
+			limit = freed.get() + ring.capacity();
+			if(head != limit) return true;
+			if(failure != null || !writer.isAlive()) {
+				detach();
+				return false;
+			}
+			Thread.yield();
+		}
+	}
+	/* The writer thread */
+	private long lastCycle;
+	private int nextPC, lastAccess;
+	private final int[] cachedPCs = new int[WORD_CACHE_SIZE], cachedWords = new int[WORD_CACHE_SIZE];
+	private final byte[] chunk = new byte[CHUNK_SIZE + MAX_PACKED_RECORD];
+	private int chunkLength;
+	private void drain() {
+		/* no instruction is at an odd address, so nothing matches these */
+		Arrays.fill(cachedPCs, 1);
+		long tail = 0;
+		try {
+			while(true) {
+				/* if closing was already set, so was the last head */
+				boolean last = closing;
+				long end = published.get();
+				if(end == tail) {
+					if(chunkLength > 0) {
+						body.write(chunk, 0, chunkLength);
+						chunkLength = 0;
+					}
+					if(last) break;
+					LockSupport.parkNanos(this, IDLE_NANOS);
+					continue;
+				}
+				while(tail != end) {
+					int at = (int)tail & mask;
+					pack(ring.getLong(at), ring.getInt(at+8), ring.getInt(at+12));
+					tail += RING_RECORD_SIZE;
+					if(chunkLength >= CHUNK_SIZE) {
+						body.write(chunk, 0, chunkLength);
+						chunkLength = 0;
+						freed.lazySet(tail);
+					}
+				}
+				freed.lazySet(tail);
+			}
+			body.flush();
+		}
+		catch(IOException e) {
+			failure = e;
+		}
+	}
+	private void pack(long word, int address, int value) {
+		int kind = (int)(word >>> KIND_SHIFT);
+		long cycle = word & CYCLE_MASK;
+		long cycles = cycle - lastCycle;
+		if(cycles < 0) {
+			chunk[chunkLength++] = (byte)TAG_RESYNC;
+			putVarLong(cycle);
+			cycles = 0;
+		}
+		lastCycle = cycle;
+		int tagAt = chunkLength++;
+		int tag = kind;
+		if(cycles < TAG_CYCLES_MAX) tag |= (int)cycles << TAG_CYCLES_SHIFT;
+		else {
+			tag |= TAG_CYCLES_MAX << TAG_CYCLES_SHIFT;
+			putVarLong(cycles - TAG_CYCLES_MAX);
+		}
+		if(kind == INSTRUCTION) {
+			putZigzag(address - nextPC);
+			nextPC = address + 4;
+			int slot = (address >>> 2) & (WORD_CACHE_SIZE-1);
+			if(cachedPCs[slot] == address && cachedWords[slot] == value) tag |= TAG_SAME_WORD;
+			else {
+				cachedPCs[slot] = address;
+				cachedWords[slot] = value;
+				chunk[chunkLength++] = (byte)value;
+				chunk[chunkLength++] = (byte)(value >> 8);
+				chunk[chunkLength++] = (byte)(value >> 16);
+				chunk[chunkLength++] = (byte)(value >> 24);
+			}
+		}
+		else {
+			putZigzag(address - lastAccess);
+			lastAccess = address;
+			putVarLong(value & 0xFFFFFFFFL);
+		}
+		chunk[tagAt] = (byte)tag;
+	}
+	private void putZigzag(int value) {
+		putVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+	}
+	private void putVarLong(long value) {
+		while((value & ~0x7FL) != 0) {
+			chunk[chunkLength++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		chunk[chunkLength++] = (byte)value;
+	}
+}
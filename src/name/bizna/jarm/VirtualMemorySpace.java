@@ -1,88 +1,175 @@
 package name.bizna.jarm;
 
+import java.nio.ByteBuffer;
+
 public final class VirtualMemorySpace {
 	private final PhysicalMemorySpace mem;
 	private final Debugger debugger;
+	/* whether the debugger wants to hear about accesses; kept up to date by the CPU */
+	boolean reportAccesses;
+	private final MMU mmu;
 	private int lastAccessAddress, lastAccessWidth;
 	private boolean lastAccessWasStore;
+	/* set by InputRecorder while a device coprocessor runs, so that a replay can make the same accesses */
+	InputRecorder capture;
+	/* set while a TraceRecorder is attached; accesses are traced once they've been made, runs of bytes before */
+	TraceRecorder trace;
 	public int getLastAccessAddress() { return lastAccessAddress; }
 	public int getLastAccessWidth() { return lastAccessWidth; }
 	public boolean getLastAccessWasStore() { return lastAccessWasStore; }
-	VirtualMemorySpace(PhysicalMemorySpace mem, Debugger debugger) {
+	VirtualMemorySpace(PhysicalMemorySpace mem, Debugger debugger, MMU mmu) {
 		this.mem = mem;
 		this.debugger = debugger;
+		this.reportAccesses = debugger != null;
+		this.mmu = mmu;
+	}
+	private long translate(int address, int access, boolean privileged) throws BusErrorException, EscapeRetryException {
+		if(!mmu.enabled) return address & 0xFFFFFFFFL;
+		else return mmu.translate(address, access, privileged);
+	}
+	/**
+	 * Returns the physical address an instruction fetch from the given address would use, at the current privilege level.
+	 */
+	public final long translateFetch(int address) throws BusErrorException, EscapeRetryException {
+		return translate(address, MMU.ACCESS_EXECUTE, mmu.isPrivileged());
+	}
+	/**
+	 * Fetch a 32-bit ARM instruction. Instructions are always little-endian, and always aligned.
+	 */
+	public final int readInstruction(int address) throws BusErrorException, EscapeRetryException {
+		if(reportAccesses) debugger.onReadMemory(address, 4, false);
+		
+		lastAccessAddress = address; lastAccessWidth = 2; lastAccessWasStore = false;
+		return mem.readInt(translateFetch(address), false);
 	}
 	public final byte readByte(int address) throws BusErrorException, EscapeRetryException {
-		if(debugger!=null) debugger.onReadMemory(address, 1, false);
+		return readByte(address, mmu.isPrivileged());
+	}
+	public final byte readByte(int address, boolean privileged) throws BusErrorException, EscapeRetryException {
+		if(reportAccesses) debugger.onReadMemory(address, 1, false);
+		if(capture!=null) capture.recordAccess(InputRecorder.READ_BYTE, address, 0, false, false, privileged);
 		
 		lastAccessAddress = address; lastAccessWidth = 0; lastAccessWasStore = false;
-		return mem.readByte(address & 0xFFFFFFFFL);
+		byte ret = mem.readByte(translate(address, MMU.ACCESS_READ, privileged));
+		if(trace!=null) trace.access(TraceRecorder.READ_BYTE, address, ret&0xFF);
+		return ret;
 	}
 	public final void writeByte(int address, byte value) throws BusErrorException, EscapeRetryException {
-		if(debugger!=null) debugger.onWriteMemory(address, 2, false, value);
+		writeByte(address, value, mmu.isPrivileged());
+	}
+	public final void writeByte(int address, byte value, boolean privileged) throws BusErrorException, EscapeRetryException {
+		if(reportAccesses) debugger.onWriteMemory(address, 2, false, value);
+		if(capture!=null) capture.recordAccess(InputRecorder.WRITE_BYTE, address, value, false, false, privileged);
 		
 		lastAccessAddress = address; lastAccessWidth = 0; lastAccessWasStore = true;
-		mem.writeByte(address & 0xFFFFFFFFL, value);
+		mem.writeByte(translate(address, MMU.ACCESS_WRITE, privileged), value);
+		if(trace!=null) trace.access(TraceRecorder.WRITE_BYTE, address, value&0xFF);
+	}
+	/* unaligned accesses are done a byte at a time, and each byte may be on a different page */
+	private byte readPart(int address, boolean privileged) throws BusErrorException, EscapeRetryException {
+		return mem.readByte(translate(address, MMU.ACCESS_READ, privileged));
+	}
+	private void writePart(int address, byte value, boolean privileged) throws BusErrorException, EscapeRetryException {
+		mem.writeByte(translate(address, MMU.ACCESS_WRITE, privileged), value);
 	}
 	public final short readShort(int address, boolean strictAlign, boolean bigEndian) throws AlignmentException, BusErrorException, EscapeRetryException {
-		if(debugger!=null) debugger.onReadMemory(address, 2, bigEndian);
+		return readShort(address, strictAlign, bigEndian, mmu.isPrivileged());
+	}
+	public final short readShort(int address, boolean strictAlign, boolean bigEndian, boolean privileged) throws AlignmentException, BusErrorException, EscapeRetryException {
+		if(reportAccesses) debugger.onReadMemory(address, 2, bigEndian);
+		if(capture!=null) capture.recordAccess(InputRecorder.READ_SHORT, address, 0, strictAlign, bigEndian, privileged);
 		
 		lastAccessAddress = address; lastAccessWidth = 1; lastAccessWasStore = false;
+		short ret;
 		if((address&1) != 0) {
 			if(strictAlign) throw new AlignmentException();
-			else if(bigEndian) return (short)((mem.readByte(address&0xFFFFFFFFL)<<8)|(mem.readByte(address+1&0xFFFFFFFFL)&0xFF));
-			else return (short)((mem.readByte(address&0xFFFFFFFFL)&0xFF)|(mem.readByte(address+1&0xFFFFFFFFL)<<8));
+			else if(bigEndian) ret = (short)((readPart(address, privileged)<<8)|(readPart(address+1, privileged)&0xFF));
+			else ret = (short)((readPart(address, privileged)&0xFF)|(readPart(address+1, privileged)<<8));
 		}
-		else return mem.readShort(address&0xFFFFFFFFL, bigEndian);
+		else ret = mem.readShort(translate(address, MMU.ACCESS_READ, privileged), bigEndian);
+		if(trace!=null) trace.access(TraceRecorder.READ_SHORT, address, ret&0xFFFF);
+		return ret;
 	}
 	public final void writeShort(int address, short value, boolean strictAlign, boolean bigEndian) throws AlignmentException, BusErrorException, EscapeRetryException {
-		if(debugger!=null) debugger.onWriteMemory(address, 2, bigEndian, value);
+		writeShort(address, value, strictAlign, bigEndian, mmu.isPrivileged());
+	}
+	public final void writeShort(int address, short value, boolean strictAlign, boolean bigEndian, boolean privileged) throws AlignmentException, BusErrorException, EscapeRetryException {
+		if(reportAccesses) debugger.onWriteMemory(address, 2, bigEndian, value);
+		if(capture!=null) capture.recordAccess(InputRecorder.WRITE_SHORT, address, value, strictAlign, bigEndian, privileged);
 		
 		lastAccessAddress = address; lastAccessWidth = 1; lastAccessWasStore = true;
 		if((address&1) != 0) {
 			if(strictAlign) throw new AlignmentException();
 			else if(bigEndian) {
-				mem.writeByte(address&0xFFFFFFFFL, (byte)(value >> 8));
-				mem.writeByte(address+1&0xFFFFFFFFL, (byte)value);
+				writePart(address, (byte)(value >> 8), privileged);
+				writePart(address+1, (byte)value, privileged);
 			}
 			else {
-				mem.writeByte(address&0xFFFFFFFFL, (byte)value);
-				mem.writeByte(address+1&0xFFFFFFFFL, (byte)(value >> 8));
+				writePart(address, (byte)value, privileged);
+				writePart(address+1, (byte)(value >> 8), privileged);
 			}
 		}
-		else mem.writeShort(address & 0xFFFFFFFFL, value, bigEndian);
+		else mem.writeShort(translate(address, MMU.ACCESS_WRITE, privileged), value, bigEndian);
+		if(trace!=null) trace.access(TraceRecorder.WRITE_SHORT, address, value&0xFFFF);
 	}
 	public final int readInt(int address, boolean strictAlign, boolean bigEndian) throws AlignmentException, BusErrorException, EscapeRetryException {
-		if(debugger!=null) debugger.onReadMemory(address, 4, bigEndian);
+		return readInt(address, strictAlign, bigEndian, mmu.isPrivileged());
+	}
+	public final int readInt(int address, boolean strictAlign, boolean bigEndian, boolean privileged) throws AlignmentException, BusErrorException, EscapeRetryException {
+		if(reportAccesses) debugger.onReadMemory(address, 4, bigEndian);
+		if(capture!=null) capture.recordAccess(InputRecorder.READ_INT, address, 0, strictAlign, bigEndian, privileged);
 		
 		lastAccessAddress = address; lastAccessWidth = 2; lastAccessWasStore = false;
+		int ret;
 		if((address&3) != 0) {
 			if(strictAlign) throw new AlignmentException();
-			else if(bigEndian) return (int)((mem.readByte(address&0xFFFFFFFFL)<<24)|((mem.readByte(address+1&0xFFFFFFFFL)&0xFF)<<16)|((mem.readByte(address+2&0xFFFFFFFFL)&0xFF)<<8)|(mem.readByte(address+3&0xFFFFFFFFL)&0xFF));
-			else return (int)((mem.readByte(address&0xFFFFFFFFL)&0xFF)|((mem.readByte(address+1&0xFFFFFFFFL)&0xFF)<<8)|((mem.readByte(address+2&0xFFFFFFFFL)&0xFF)<<16)|(mem.readByte(address+3&0xFFFFFFFFL)<<24));
+			else if(bigEndian) ret = (int)((readPart(address, privileged)<<24)|((readPart(address+1, privileged)&0xFF)<<16)|((readPart(address+2, privileged)&0xFF)<<8)|(readPart(address+3, privileged)&0xFF));
+			else ret = (int)((readPart(address, privileged)&0xFF)|((readPart(address+1, privileged)&0xFF)<<8)|((readPart(address+2, privileged)&0xFF)<<16)|(readPart(address+3, privileged)<<24));
 		}
-		else return mem.readInt(address & 0xFFFFFFFFL, bigEndian);
+		else ret = mem.readInt(translate(address, MMU.ACCESS_READ, privileged), bigEndian);
+		if(trace!=null) trace.access(TraceRecorder.READ_INT, address, ret);
+		return ret;
 	}
 	public final void writeInt(int address, int value, boolean strictAlign, boolean bigEndian) throws AlignmentException, BusErrorException, EscapeRetryException {
-		if(debugger!=null) debugger.onWriteMemory(address, 4, bigEndian, value);
+		writeInt(address, value, strictAlign, bigEndian, mmu.isPrivileged());
+	}
+	public final void writeInt(int address, int value, boolean strictAlign, boolean bigEndian, boolean privileged) throws AlignmentException, BusErrorException, EscapeRetryException {
+		if(reportAccesses) debugger.onWriteMemory(address, 4, bigEndian, value);
+		if(capture!=null) capture.recordAccess(InputRecorder.WRITE_INT, address, value, strictAlign, bigEndian, privileged);
 		
 		lastAccessAddress = address; lastAccessWidth = 2; lastAccessWasStore = true;
 		if((address&3) != 0) {
 			if(strictAlign) throw new AlignmentException();
 			else if(bigEndian) {
-				mem.writeByte((address)&0xFFFFFFFFL, (byte)(value >> 24));
-				mem.writeByte((address+1)&0xFFFFFFFFL, (byte)(value >> 16));
-				mem.writeByte((address+2)&0xFFFFFFFFL, (byte)(value >> 8));
-				mem.writeByte((address+3)&0xFFFFFFFFL, (byte)value);
+				writePart(address, (byte)(value >> 24), privileged);
+				writePart(address+1, (byte)(value >> 16), privileged);
+				writePart(address+2, (byte)(value >> 8), privileged);
+				writePart(address+3, (byte)value, privileged);
 			}
 			else {
-				mem.writeByte((address)&0xFFFFFFFFL, (byte)value);
-				mem.writeByte((address+1)&0xFFFFFFFFL, (byte)(value >> 8));
-				mem.writeByte((address+2)&0xFFFFFFFFL, (byte)(value >> 16));
-				mem.writeByte((address+3)&0xFFFFFFFFL, (byte)(value >> 24));
+				writePart(address, (byte)value, privileged);
+				writePart(address+1, (byte)(value >> 8), privileged);
+				writePart(address+2, (byte)(value >> 16), privileged);
+				writePart(address+3, (byte)(value >> 24), privileged);
 			}
 		}
-		else mem.writeInt(address & 0xFFFFFFFFL, value, bigEndian);
+		else mem.writeInt(translate(address, MMU.ACCESS_WRITE, privileged), value, bigEndian);
+		if(trace!=null) trace.access(TraceRecorder.WRITE_INT, address, value);
+	}
+	/**
+	 * Check and translate the address of a Load-Exclusive, Store-Exclusive, or SWP. These must always be aligned, whatever
+	 * SCTLR.A says. The caller does the access itself, through PhysicalMemorySpace, so that it can be atomic.
+	 * @param size 1, 2, 4 or 8 bytes; the address must be a multiple of it
+	 */
+	final long translateAtomic(int address, int size, boolean write, boolean bigEndian, long value) throws AlignmentException, BusErrorException, EscapeRetryException {
+		if(reportAccesses) {
+			if(write) debugger.onWriteMemory(address, size, bigEndian, value);
+			else debugger.onReadMemory(address, size, bigEndian);
+		}
+		
+		lastAccessAddress = address; lastAccessWidth = size == 8 ? 3 : size >> 1; lastAccessWasStore = write;
+		if((address & (size-1)) != 0) throw new AlignmentException();
+		return translate(address, write ? MMU.ACCESS_WRITE : MMU.ACCESS_READ, mmu.isPrivileged());
 	}
 	public final long readLong(int address, boolean strictAlign, boolean bigEndian) throws AlignmentException, BusErrorException, EscapeRetryException {
 		int first, second;
@@ -101,4 +188,91 @@ public final class VirtualMemorySpace {
 			writeInt(address+4, (int)(value >> 32L), strictAlign, bigEndian);
 		}
 	}
+	/* with the MMU on, runs are split where a new translation might start */
+	private static final int PAGE_SIZE = 4096;
+	/**
+	 * Read a run of bytes, looking up each region only once. If there is a debugger listening, each byte is still
+	 * reported to it separately.
+	 */
+	public final void readBytes(int address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		if(length <= 0) return;
+		if(reportAccesses) {
+			for(int n = 0; n < length; ++n) buf[offset+n] = readByte(address+n);
+			return;
+		}
+		if(capture!=null) capture.recordBytes(false, address, buf, offset, length);
+		if(trace!=null) trace.access(TraceRecorder.READ_BYTES, address, length);
+		lastAccessAddress = address+length-1; lastAccessWidth = 0; lastAccessWasStore = false;
+		if(!mmu.enabled) mem.readBytes(address & 0xFFFFFFFFL, buf, offset, length);
+		else {
+			boolean privileged = mmu.isPrivileged();
+			while(length > 0) {
+				int amount = Math.min(length, PAGE_SIZE - (address & (PAGE_SIZE-1)));
+				mem.readBytes(mmu.translate(address, MMU.ACCESS_READ, privileged), buf, offset, amount);
+				address += amount;
+				offset += amount;
+				length -= amount;
+			}
+		}
+	}
+	/**
+	 * Write a run of bytes, looking up each region only once. If there is a debugger listening, each byte is still
+	 * reported to it separately.
+	 */
+	public final void writeBytes(int address, byte[] buf, int offset, int length) throws BusErrorException, EscapeRetryException {
+		if(length <= 0) return;
+		if(reportAccesses) {
+			for(int n = 0; n < length; ++n) writeByte(address+n, buf[offset+n]);
+			return;
+		}
+		if(capture!=null) capture.recordBytes(true, address, buf, offset, length);
+		if(trace!=null) trace.access(TraceRecorder.WRITE_BYTES, address, length);
+		lastAccessAddress = address+length-1; lastAccessWidth = 0; lastAccessWasStore = true;
+		if(!mmu.enabled) mem.writeBytes(address & 0xFFFFFFFFL, buf, offset, length);
+		else {
+			boolean privileged = mmu.isPrivileged();
+			while(length > 0) {
+				int amount = Math.min(length, PAGE_SIZE - (address & (PAGE_SIZE-1)));
+				mem.writeBytes(mmu.translate(address, MMU.ACCESS_WRITE, privileged), buf, offset, amount);
+				address += amount;
+				offset += amount;
+				length -= amount;
+			}
+		}
+	}
+	/* ByteBuffer versions; these transfer everything between the buffer's position and its limit, and advance its
+	 * position. Buffers without a backing array go through a bounce buffer. */
+	private static final int BOUNCE_SIZE = 4096;
+	public final void readBytes(int address, ByteBuffer dst) throws BusErrorException, EscapeRetryException {
+		if(dst.hasArray()) {
+			int length = dst.remaining();
+			readBytes(address, dst.array(), dst.arrayOffset() + dst.position(), length);
+			dst.position(dst.position() + length);
+		}
+		else {
+			byte[] bounce = new byte[Math.min(dst.remaining(), BOUNCE_SIZE)];
+			while(dst.hasRemaining()) {
+				int length = Math.min(dst.remaining(), bounce.length);
+				readBytes(address, bounce, 0, length);
+				dst.put(bounce, 0, length);
+				address += length;
+			}
+		}
+	}
+	public final void writeBytes(int address, ByteBuffer src) throws BusErrorException, EscapeRetryException {
+		if(src.hasArray()) {
+			int length = src.remaining();
+			writeBytes(address, src.array(), src.arrayOffset() + src.position(), length);
+			src.position(src.position() + length);
+		}
+		else {
+			byte[] bounce = new byte[Math.min(src.remaining(), BOUNCE_SIZE)];
+			while(src.hasRemaining()) {
+				int length = Math.min(src.remaining(), bounce.length);
+				src.get(bounce, 0, length);
+				writeBytes(address, bounce, 0, length);
+				address += length;
+			}
+		}
+	}
 }
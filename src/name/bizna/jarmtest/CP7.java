@@ -1,11 +1,16 @@
 package name.bizna.jarmtest;
 
+import java.io.IOException;
+
 import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.CPU;
+import name.bizna.jarm.Coprocessor;
 import name.bizna.jarm.EscapeCompleteException;
 import name.bizna.jarm.EscapeRetryException;
 import name.bizna.jarm.SaneCoprocessor;
+import name.bizna.jarm.SnapshotInputStream;
+import name.bizna.jarm.SnapshotOutputStream;
 import name.bizna.jarm.UndefinedException;
 
 public class CP7 extends SaneCoprocessor {
@@ -76,6 +81,21 @@ public class CP7 extends SaneCoprocessor {
 	public void reset() {
 		quitReason = -1;
 	}
+
+	@Override
+	public Coprocessor fork(CPU child) {
+		return new CP7(child);
+	}
+
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		out.writeInt(quitReason);
+	}
+
+	@Override
+	public void loadState(SnapshotInputStream in) throws IOException {
+		quitReason = in.readInt();
+	}
 	
 	public int getQuitReason() {
 		return quitReason;
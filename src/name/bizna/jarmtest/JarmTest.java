@@ -14,6 +14,9 @@ public class JarmTest {
 		System.out.println("Options:");
 		System.out.println("--baseDir <path...>: Change the base directory. If not specified, the working directory is used.");
 		System.out.println("--threads <count>: Number of threads to use. If not specified, one thread is used per CPU.");
+		System.out.println("--jit: Run tests through the JIT, compiling every block the first time it is reached.");
+		System.out.println("--trace <path>: Trace every spec that's run into a file in this directory, named after the spec. Read them with name.bizna.jarm.TraceReader.");
+		System.out.println("--roundtrip: After each spec, also check that its machine saves and loads back the same, and still passes, and that a recording of the run replays to the same state, and traces the same. Can't be used with --trace.");
 	}
 	
 	private static void recursivelyBuildTestList(List<TestDirectory> tests, File cwd, String canonPath) {
@@ -25,9 +28,22 @@ public class JarmTest {
 		}
 	}
 	
+	static CPU createCPU(boolean useJIT) {
+		CPU cpu = new CPU();
+		cpu.mapCoprocessor(7, new CP7(cpu));
+		if(useJIT) {
+			cpu.setJITEnabled(true);
+			cpu.setJITThreshold(1);
+		}
+		return cpu;
+	}
+	
 	public static void main(String[] args) {
 		File baseDirectory = new File(System.getProperty("user.dir"));
 		int threadCount = Runtime.getRuntime().availableProcessors();
+		boolean useJIT = false;
+		File traceDirectory = null;
+		boolean roundTrip = false;
 		int i = 0;
 		boolean commandLineValid = true;
 		while(i < args.length) {
@@ -56,11 +72,32 @@ public class JarmTest {
 					}
 				}
 			}
+			else if(arg.equals("--jit")) {
+				useJIT = true;
+			}
+			else if(arg.equals("--trace")) {
+				if(i >= args.length) { System.err.println("--trace requires an argument"); commandLineValid = false; }
+				else {
+					traceDirectory = new File(args[i++]);
+					if(!traceDirectory.isDirectory()) {
+						System.err.println("--trace argument must be a directory");
+						commandLineValid = false;
+					}
+				}
+			}
+			else if(arg.equals("--roundtrip")) {
+				roundTrip = true;
+			}
 			else {
 				System.err.println("Unknown argument");
 				commandLineValid = false;
 			}
 		}
+		if(roundTrip && traceDirectory != null) {
+			/* --roundtrip traces the specs itself, and a core can only have one trace */
+			System.err.println("--trace and --roundtrip can't be used together");
+			commandLineValid = false;
+		}
 		if(!commandLineValid) { printUsageString(); System.exit(1); }
 		List<TestDirectory> tests = new ArrayList<TestDirectory>();
 		recursivelyBuildTestList(tests, baseDirectory, null);
@@ -69,10 +106,9 @@ public class JarmTest {
 		if(threadCount == 1) {
 			failures = new ArrayList<String>();
 			// Don't bother actually making a separate thread
-			CPU cpu = new CPU();
-			cpu.mapCoprocessor(7, new CP7(cpu));
+			CPU cpu = createCPU(useJIT);
 			for(TestDirectory test : tests) {
-				if(test.runTest(cpu, failures)) ++passed;
+				if(test.runTest(cpu, failures, traceDirectory, roundTrip)) ++passed;
 				else ++failed;
 			}
 		}
@@ -80,7 +116,7 @@ public class JarmTest {
 			TestThread threads[] = new TestThread[threadCount];
 			AtomicInteger semaphore = new AtomicInteger(0);
 			for(int n = 0; n < threadCount; ++n)
-				threads[n] = new TestThread("TestThread-"+n, tests, semaphore);
+				threads[n] = new TestThread("TestThread-"+n, tests, semaphore, useJIT, traceDirectory, roundTrip);
 			for(int n = 0; n < threadCount; ++n)
 				threads[n].start();
 			int totalFailCount = 0;
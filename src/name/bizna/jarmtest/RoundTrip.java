@@ -0,0 +1,193 @@
+package name.bizna.jarmtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import name.bizna.jarm.AlignmentException;
+import name.bizna.jarm.BusErrorException;
+import name.bizna.jarm.CPU;
+import name.bizna.jarm.InputRecorder;
+import name.bizna.jarm.InputReplayer;
+import name.bizna.jarm.MachineFork;
+import name.bizna.jarm.ReplayDivergedException;
+import name.bizna.jarm.Snapshot;
+import name.bizna.jarm.TraceReader;
+import name.bizna.jarm.TraceRecorder;
+import name.bizna.jarm.UndefinedException;
+
+/**
+ * Checks that what a spec leaves behind survives the trip through a snapshot: saved, and loaded into a fresh fork of the
+ * machine the spec started from, it has to save back to the same bytes, and still pass the spec.
+ * Each spec's run is also recorded with an InputRecorder, and replayed on another fresh fork, which has to end up in
+ * exactly the same state. Both the run and the replay are traced, and the traces have to read back the same, record for
+ * record, with an instruction for at least every one the run retired.
+ * A RoundTrip follows one spec at a time: start, run the spec, then check.
+ */
+public class RoundTrip {
+	/* the specs are short; there's no need for TraceRecorder's usual buffer */
+	private static final int TRACE_BUFFER_SIZE = 1<<16;
+	private final CPU parent;
+	private ByteArrayOutputStream log, trace;
+	private InputRecorder recorder;
+	private TraceRecorder tracer;
+	private long instructionsBefore;
+	private String recordingFailure;
+	/**
+	 * @param parent The machine every spec of a directory is forked from, as it was before any of them ran
+	 */
+	public RoundTrip(CPU parent) {
+		this.parent = parent;
+	}
+	/**
+	 * Start recording a spec's run. The core must have been set up for the spec, and not be running.
+	 */
+	public void start(CPU cpu) {
+		log = new ByteArrayOutputStream();
+		trace = new ByteArrayOutputStream();
+		recorder = null;
+		tracer = null;
+		recordingFailure = null;
+		try {
+			recorder = new InputRecorder(log, cpu);
+			/* deflated here and not in the replay, so that both ways get read back */
+			tracer = new TraceRecorder(trace, cpu, true, TRACE_BUFFER_SIZE);
+			instructionsBefore = cpu.getInstructionCount();
+		}
+		catch(IOException e) {
+			recordingFailure = e.getMessage();
+		}
+	}
+	/**
+	 * @return false if any check failed, having added why to failureList
+	 */
+	public boolean check(CPU cpu, TestSpec spec, List<String> failureList) {
+		long instructions = cpu.getInstructionCount() - instructionsBefore;
+		if(tracer != null) {
+			try { tracer.close(); }
+			catch(IOException e) { recordingFailure = e.getMessage(); }
+			tracer = null;
+		}
+		if(recorder != null) {
+			try { recorder.close(); }
+			catch(IOException e) { recordingFailure = e.getMessage(); }
+			recorder = null;
+		}
+		boolean passed = checkSnapshot(cpu, spec, failureList);
+		if(recordingFailure != null) {
+			failureList.add("couldn't record: "+recordingFailure);
+			passed = false;
+		}
+		else if(!checkReplay(cpu, instructions, failureList)) passed = false;
+		return passed;
+	}
+	private boolean checkSnapshot(CPU cpu, TestSpec spec, List<String> failureList) {
+		try {
+			byte[] saved = save(cpu);
+			CPU copy = MachineFork.fork(parent)[0];
+			Snapshot.load(new ByteArrayInputStream(saved), copy);
+			if(!Arrays.equals(save(copy), saved)) {
+				failureList.add("snapshot didn't load back the same");
+				return false;
+			}
+			return checkAgain(copy, spec, "after loading a snapshot", failureList);
+		}
+		catch(IOException e) {
+			failureList.add("couldn't snapshot: "+e.getMessage());
+			return false;
+		}
+	}
+	private boolean checkReplay(CPU cpu, long instructions, List<String> failureList) {
+		try {
+			CPU replay = MachineFork.fork(parent)[0];
+			InputReplayer replayer = new InputReplayer(new ByteArrayInputStream(log.toByteArray()), replay);
+			ByteArrayOutputStream replayTrace = new ByteArrayOutputStream();
+			TraceRecorder replayTracer = new TraceRecorder(replayTrace, replay, false, TRACE_BUFFER_SIZE);
+			try {
+				/* the replay gets the same budget the run did, however many calls it takes to spend it, so that they
+				 * end up with the same left over */
+				int budget = TestDirectory.SPEC_BUDGET;
+				while(!replayer.isFinished()) {
+					long retired = replay.getInstructionCount(), cycles = replay.getCycleCount();
+					try {
+						replay.execute(budget);
+					}
+					catch(BusErrorException e) { /* NOTREACHED */ }
+					catch(AlignmentException e) { /* NOTREACHED */ }
+					catch(UndefinedException e) { /* NOTREACHED */ }
+					budget = 0;
+					if(replay.getInstructionCount() == retired && replay.getCycleCount() == cycles) break;
+				}
+			}
+			finally {
+				replayTracer.close();
+			}
+			boolean finished = replayer.isFinished();
+			replayer.close();
+			if(!finished) {
+				failureList.add("replay didn't reach the end of the recording");
+				return false;
+			}
+			/* coprocessor 7 is played back in a replay, not called, so it never heard why the spec quit */
+			((CP7)replay.getCoprocessor(7)).setQuitReason(((CP7)cpu.getCoprocessor(7)).getQuitReason());
+			if(!Arrays.equals(save(replay), save(cpu))) {
+				failureList.add("replay didn't end up in the same state");
+				return false;
+			}
+			return checkTraces(trace.toByteArray(), replayTrace.toByteArray(), instructions, failureList);
+		}
+		catch(ReplayDivergedException e) {
+			failureList.add(e.getMessage());
+			return false;
+		}
+		catch(IOException e) {
+			failureList.add("couldn't replay: "+e.getMessage());
+			return false;
+		}
+	}
+	private static boolean checkTraces(byte[] run, byte[] replay, long instructions, List<String> failureList) throws IOException {
+		TraceReader a = new TraceReader(new ByteArrayInputStream(run));
+		TraceReader b = new TraceReader(new ByteArrayInputStream(replay));
+		long records = 0, instructionRecords = 0, lastCycle = Long.MIN_VALUE;
+		while(true) {
+			boolean more = a.next();
+			if(more != b.next()) {
+				failureList.add("traces of the run and the replay differ in length");
+				return false;
+			}
+			if(!more) break;
+			if(a.getKind() != b.getKind() || a.getCycle() != b.getCycle() || a.getAddress() != b.getAddress() || a.getValue() != b.getValue()) {
+				failureList.add("traces of the run and the replay differ at record "+records);
+				return false;
+			}
+			if(a.getCycle() < lastCycle) {
+				failureList.add("trace goes back in time at record "+records);
+				return false;
+			}
+			lastCycle = a.getCycle();
+			if(a.isInstruction()) ++instructionRecords;
+			++records;
+		}
+		/* an instruction that faults is traced, but doesn't retire */
+		if(instructionRecords < instructions) {
+			failureList.add("trace has "+instructionRecords+" instructions, but the run retired "+instructions);
+			return false;
+		}
+		return true;
+	}
+	private static byte[] save(CPU cpu) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Snapshot.save(bytes, false, cpu);
+		return bytes.toByteArray();
+	}
+	private static boolean checkAgain(CPU cpu, TestSpec spec, String when, List<String> failureList) {
+		List<String> failures = new ArrayList<String>();
+		if(spec.checkFinalState(cpu, failures)) return true;
+		if(failures.isEmpty()) failureList.add(when+": unknown failure");
+		else for(String failure : failures) failureList.add(when+": "+failure);
+		return false;
+	}
+}
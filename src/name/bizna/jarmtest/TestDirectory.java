@@ -1,20 +1,26 @@
 package name.bizna.jarmtest;
 
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
-import name.bizna.jarm.ByteArrayRegion;
 import name.bizna.jarm.CPU;
+import name.bizna.jarm.MachineFork;
+import name.bizna.jarm.MappedFileRegion;
+import name.bizna.jarm.PagedMemoryRegion;
 import name.bizna.jarm.PhysicalMemorySpace;
+import name.bizna.jarm.TraceRecorder;
 import name.bizna.jarm.UndefinedException;
 import name.bizna.jarm.UnimplementedInstructionException;
 import name.bizna.jarmtest.TestSpec.InvalidSpecException;
@@ -22,9 +28,13 @@ import name.bizna.jarmtest.TestSpec.InvalidSpecException;
 public class TestDirectory {
 	public static final String CODE_FILENAME = "code.elf";
 	public static final int MAX_PROGRAM_SPACE = 1<<30;
+	/* how many cycles a spec gets to run in */
+	static final int SPEC_BUDGET = 1<<30;
 	private File path;
 	private String name;
-	private byte[] programBytes = null, hiBytes = null;
+	/* the PT_LOAD entries of the program, mapped from the file once per directory */
+	private List<ProgramHeaderEntry> loadSegments = null;
+	private boolean hasHighSegments = false;
 	private boolean littleEndian = false, hasEntryPoint = false;
 	private int entryPoint = 0;
 	private static class ProgramHeaderEntry {
@@ -49,8 +59,8 @@ public class TestDirectory {
 	}
 	private void loadProgram(File path, String id) throws NonLoadableFileException {
 		RandomAccessFile f = null;
-		programBytes = null;
-		hiBytes = null;
+		loadSegments = null;
+		hasHighSegments = false;
 		littleEndian = false;
 		entryPoint = 0;
 		hasEntryPoint = false;
@@ -116,48 +126,33 @@ public class TestDirectory {
 				f.read(headerReadArray, 0, 32);
 				phents[n] = new ProgramHeaderEntry(headerReadBuf);
 			}
-			int memtop = 0;
+			List<ProgramHeaderEntry> segments = new ArrayList<ProgramHeaderEntry>();
+			long memtop = 0;
 			for(ProgramHeaderEntry phent : phents) {
 				// PT_LOAD = 1
 				if(phent.p_type != 1) continue;
+				if(phent.p_filesz < 0 || phent.p_filesz > phent.p_memsz) throw new NonLoadableFileException("section is longer in the file than in memory", id);
 				if(phent.p_vaddr < 0 && phent.p_vaddr >= -65536) {
 					// it's a high section
 					if(phent.p_memsz > -phent.p_vaddr) throw new NonLoadableFileException("high section is too long", id);
-					if(hiBytes == null) {
-						try {
-							hiBytes = new byte[65536];
-						}
-						catch(OutOfMemoryError e) {
-							throw new NonLoadableFileException("can't even allocate 64k for hiBytes, please increase the maximum memory size of the Java VM", id);
-						}
-					}
+					hasHighSegments = true;
 				}
 				else {
 					if(phent.p_vaddr < 0 || phent.p_vaddr >= MAX_PROGRAM_SPACE) throw new NonLoadableFileException("virtual address out of range", id);
 					if(phent.p_memsz >= MAX_PROGRAM_SPACE) throw new NonLoadableFileException("absurdly long section", id);
 					int phent_top = phent.p_vaddr + phent.p_memsz;
 					if(phent_top < 0 || phent_top > MAX_PROGRAM_SPACE) throw new NonLoadableFileException("absurdly long section", id);
-					if(phent_top > memtop) memtop = phent_top;
 				}
-			}
-			assert(memtop <= MAX_PROGRAM_SPACE);
-			try {
-				programBytes = new byte[memtop];
-			}
-			catch(OutOfMemoryError e) {
-				throw new NonLoadableFileException("too big to fit in memory, please increase the maximum memory size of the Java VM", id);
-			}
-			for(ProgramHeaderEntry phent : phents) {
-				if(phent.p_type != 1) continue;
-				if(phent.p_filesz > 0) {
-					f.seek(phent.p_offset);
-					if(phent.p_vaddr >= -65536 && phent.p_vaddr < 0)
-						f.read(hiBytes, phent.p_vaddr + 65536, phent.p_filesz);
-					else
-						f.read(programBytes, phent.p_vaddr, phent.p_filesz);
+				/* the ELF spec requires PT_LOAD entries to be sorted by p_vaddr */
+				long base = phent.p_vaddr & 0xFFFFFFFFL;
+				if(base < memtop) throw new NonLoadableFileException("overlapping or unsorted sections", id);
+				if(phent.p_memsz > 0) {
+					if(phent.p_offset < 0 || (long)phent.p_offset + phent.p_filesz > f.length()) throw new NonLoadableFileException("unexpected EOF", id);
+					memtop = base + phent.p_memsz;
+					segments.add(phent);
 				}
-				/* byte arrays are zero-filled when created, so we don't have to zero-fill */
 			}
+			loadSegments = segments;
 		}
 		catch(EOFException e) {
 			throw new NonLoadableFileException("unexpected EOF", id);
@@ -172,6 +167,35 @@ public class TestDirectory {
 			if(f != null) try { f.close(); } catch(IOException e) { e.printStackTrace(); }
 		}
 	}
+	/**
+	 * Map the program loaded by loadProgram, copy-on-write, straight from the file. Any part of the low program space, or
+	 * of the top 64KiB if there are high sections, that isn't covered by a section becomes zeroed RAM.
+	 */
+	private void mapProgram(PhysicalMemorySpace mem, File path, String id) throws NonLoadableFileException {
+		RandomAccessFile f = null;
+		try {
+			f = new RandomAccessFile(path, "r");
+			FileChannel channel = f.getChannel();
+			long cursor = 0;
+			for(ProgramHeaderEntry phent : loadSegments) {
+				long base = phent.p_vaddr & 0xFFFFFFFFL;
+				if(base >= 0xFFFF0000L && cursor < 0xFFFF0000L) cursor = 0xFFFF0000L;
+				if(base > cursor) mem.mapRegion((int)cursor, new PagedMemoryRegion(base - cursor));
+				mem.mapRegion(phent.p_vaddr, new MappedFileRegion(channel, phent.p_offset, phent.p_filesz, phent.p_memsz, true));
+				cursor = base + phent.p_memsz;
+			}
+			if(hasHighSegments && cursor < (1L<<32)) mem.mapRegion((int)cursor, new PagedMemoryRegion((1L<<32) - cursor));
+		}
+		catch(FileNotFoundException e) {
+			throw new NonLoadableFileException("file not found", id);
+		}
+		catch(IOException e) {
+			throw new NonLoadableFileException("IO error", id);
+		}
+		finally {
+			if(f != null) try { f.close(); } catch(IOException e) { e.printStackTrace(); }
+		}
+	}
 	public TestDirectory(File path, String name) {
 		this.path = path;
 		this.name = name;
@@ -180,6 +204,12 @@ public class TestDirectory {
 		return new File(dir, CODE_FILENAME).exists();
 	}
 	public boolean runTestWithSpec(CPU cpu, File specFile, String specId, List<String> subtestFailureList) {
+		return runTestWithSpec(cpu, specFile, specId, subtestFailureList, null);
+	}
+	/**
+	 * @param roundTrip The checks to make once the spec has run, or null to make none
+	 */
+	public boolean runTestWithSpec(CPU cpu, File specFile, String specId, List<String> subtestFailureList, RoundTrip roundTrip) {
 		try {
 			TestSpec spec;
 			try {
@@ -200,8 +230,9 @@ public class TestDirectory {
 			spec.applyInitialStateAndReset(cpu, littleEndian);
 			if(hasEntryPoint) cpu.loadPC(entryPoint);
 			cpu.zeroBudget(false);
+			if(roundTrip != null) roundTrip.start(cpu);
 			try {
-				cpu.execute(1<<30);
+				cpu.execute(SPEC_BUDGET);
 			}
 			catch(BusErrorException e) { /* NOTREACHED */ }
 			catch(AlignmentException e) { /* NOTREACHED */ }
@@ -210,7 +241,9 @@ public class TestDirectory {
 				e.printStackTrace();
 				((CP7)cpu.getCoprocessor(7)).setQuitReason(9);
 			}
-			return spec.checkFinalState(cpu, subtestFailureList);
+			boolean passed = spec.checkFinalState(cpu, subtestFailureList);
+			if(roundTrip != null && !roundTrip.check(cpu, spec, subtestFailureList)) passed = false;
+			return passed;
 		}
 		catch(NonLoadableFileException e) {
 			subtestFailureList.add(e.getIdentifier() + " (parse error in spec)");
@@ -218,6 +251,13 @@ public class TestDirectory {
 		}
 	}
 	public boolean runTest(CPU cpu, List<String> failureList) {
+		return runTest(cpu, failureList, null, false);
+	}
+	/**
+	 * @param traceDirectory Where to write a trace of each spec's run, or null not to trace
+	 * @param roundTrip true to check that each spec's machine also survives a snapshot, and a record and replay (see RoundTrip)
+	 */
+	public boolean runTest(CPU cpu, List<String> failureList, File traceDirectory, boolean roundTrip) {
 		boolean success = true;
 		List<File> specFiles = new ArrayList<File>();
 		for(File file : path.listFiles()) {
@@ -231,34 +271,33 @@ public class TestDirectory {
 		}
 		else {
 			try {
-				loadProgram(new File(path, CODE_FILENAME), name+File.separator+CODE_FILENAME);
+				File codeFile = new File(path, CODE_FILENAME);
+				String codeId = name+File.separator+CODE_FILENAME;
+				loadProgram(codeFile, codeId);
 				PhysicalMemorySpace mem = cpu.getMemorySpace();
-				if(specFiles.size() == 1) {
-					mem.unmapAllRegions();
-					if(programBytes != null) mem.mapRegion(0, new ByteArrayRegion(programBytes));
-					if(hiBytes != null) mem.mapRegion(-65536, new ByteArrayRegion(hiBytes));
-					String specId = name+File.separator+specFiles.get(0).getName();
+				mem.unmapAllRegions();
+				mapProgram(mem, codeFile, codeId);
+				/* a core that's never been reset isn't in any mode, and can't be forked */
+				cpu.reset(false, !littleEndian, false);
+				RoundTrip checks = roundTrip ? new RoundTrip(cpu) : null;
+				for(File specFile : specFiles) {
+					/* each spec runs on its own fork of the freshly loaded machine, so none of them sees what another
+					 * one wrote, and the program is only mapped once */
+					CPU child = MachineFork.fork(cpu)[0];
+					String specId = name+File.separator+specFile.getName();
 					List<String> subtestFailureList = new ArrayList<String>();
-					if(!runTestWithSpec(cpu, specFiles.get(0), specId, subtestFailureList)) {
+					TraceRecorder trace = traceDirectory == null ? null : startTrace(child, traceDirectory, specId);
+					boolean passed = runTestWithSpec(child, specFile, specId, subtestFailureList, checks);
+					if(trace != null) {
+						try { trace.close(); }
+						catch(IOException e) { System.err.println(specId+": couldn't write trace: "+e.getMessage()); }
+					}
+					if(!passed) {
 						if(subtestFailureList.isEmpty()) failureList.add(specId+" (unknown failure)");
 						else for(String failure : subtestFailureList) failureList.add(specId+" ("+failure+")");
 						success = false;
 					}
 				}
-				else {
-					for(File specFile : specFiles) {
-						mem.unmapAllRegions();
-						if(programBytes != null) mem.mapRegion(0, new ByteArrayRegion(programBytes.clone()));
-						if(hiBytes != null) mem.mapRegion(-65536, new ByteArrayRegion(hiBytes.clone()));
-						String specId = name+File.separator+specFile.getName();
-						List<String> subtestFailureList = new ArrayList<String>();
-						if(!runTestWithSpec(cpu, specFile, specId, subtestFailureList)) {
-							if(subtestFailureList.isEmpty()) failureList.add(specId+" (unknown failure)");
-							else for(String failure : subtestFailureList) failureList.add(specId+" ("+failure+")");
-							success = false;
-						}
-					}
-				}
 			}
 			catch(NonLoadableFileException e) {
 				failureList.add(e.getIdentifier() + " (non-loadable ELF: "+e.getWay()+")");
@@ -267,6 +306,16 @@ public class TestDirectory {
 		}
 		return success;
 	}
+	private static TraceRecorder startTrace(CPU cpu, File traceDirectory, String specId) {
+		File traceFile = new File(traceDirectory, specId.replace(File.separatorChar, '.')+".trace");
+		try {
+			return new TraceRecorder(new BufferedOutputStream(new FileOutputStream(traceFile)), cpu, true);
+		}
+		catch(IOException e) {
+			System.err.println(traceFile+": couldn't start trace: "+e.getMessage());
+			return null;
+		}
+	}
 	public String getName() {
 		return name;
 	}
@@ -1,5 +1,6 @@
 package name.bizna.jarmtest;
 
+import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -9,22 +10,27 @@ import name.bizna.jarm.CPU;
 public class TestThread extends Thread {
 	private final List<TestDirectory> list;
 	private final AtomicInteger semaphore;
+	private final boolean useJIT;
+	private final File traceDirectory;
+	private final boolean roundTrip;
 	private int passed = 0, failed = 0;
 	private List<String> failures = new LinkedList<String>();
-	public TestThread(String name, List<TestDirectory> list, AtomicInteger semaphore) {
+	public TestThread(String name, List<TestDirectory> list, AtomicInteger semaphore, boolean useJIT, File traceDirectory, boolean roundTrip) {
 		super(name);
 		this.list = list;
 		this.semaphore = semaphore;
+		this.useJIT = useJIT;
+		this.traceDirectory = traceDirectory;
+		this.roundTrip = roundTrip;
 	}
 	@Override
 	public void run() {
 		int cachedSize = list.size();
 		int dirIndex;
-		CPU cpu = new CPU();
-		cpu.mapCoprocessor(7, new CP7(cpu));
+		CPU cpu = JarmTest.createCPU(useJIT);
 		while((dirIndex = semaphore.getAndAdd(1)) < cachedSize) {
 			TestDirectory dir = list.get(dirIndex);
-			if(dir.runTest(cpu, failures)) ++passed;
+			if(dir.runTest(cpu, failures, traceDirectory, roundTrip)) ++passed;
 			else {
 				++failed;
 			}
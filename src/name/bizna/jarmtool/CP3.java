@@ -3,6 +3,7 @@ package name.bizna.jarmtool;
 import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.CPU;
+import name.bizna.jarm.Coprocessor;
 import name.bizna.jarm.EscapeCompleteException;
 import name.bizna.jarm.EscapeRetryException;
 import name.bizna.jarm.SaneCoprocessor;
@@ -28,23 +29,15 @@ public class CP3 extends SaneCoprocessor {
 			EscapeRetryException, EscapeCompleteException {
 		if(CRd != 15) throw new UndefinedException();
 		VirtualMemorySpace vm = cpu.getVirtualMemorySpace();
-		int strlen = 0;
-		try {
-			int p = base;
-			while(vm.readByte(p++) != 0) strlen++;
-		}
-		catch(BusErrorException e) {}
-		byte[] strarray = new byte[strlen];
+		String error;
 		boolean be = false;
 		try {
-			int p = base;
-			int n = 0;
-			while(n < strlen) strarray[n++] = vm.readByte(p++);
+			error = CP7.readString(vm, base);
 		}
 		catch(BusErrorException e) {
+			error = "";
 			be = true;
 		}
-		String error = new String(strarray);
 		System.err.println("\nPROGRAM CRASHED: "+error);
 		if(be) System.err.println("Also, there was a bus error while fetching the error message.");
 		throw new ProgramExit(125);
@@ -94,4 +87,9 @@ public class CP3 extends SaneCoprocessor {
 	public void reset() {
 	}
 
+	@Override
+	public Coprocessor fork(CPU child) {
+		return new CP3(child);
+	}
+
 }
@@ -1,5 +1,6 @@
 package name.bizna.jarmtool;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
@@ -10,6 +11,7 @@ import java.io.RandomAccessFile;
 import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.CPU;
+import name.bizna.jarm.Coprocessor;
 import name.bizna.jarm.EscapeCompleteException;
 import name.bizna.jarm.EscapeRetryException;
 import name.bizna.jarm.SaneCoprocessor;
@@ -50,18 +52,14 @@ public class CP7 extends SaneCoprocessor {
 			byte[] r = new byte[count];
 			try {
 				int red = i.read(r);
-				int q = red;
-				int n = 0;
-				while(q > 0) {
-					try {
-						vm.writeByte(p, r[n]);
-					}
-					catch(EscapeRetryException e) {
-						continue;
+				if(red > 0) {
+					while(true) {
+						try {
+							vm.writeBytes(p, r, 0, red);
+							break;
+						}
+						catch(EscapeRetryException e) {}
 					}
-					p++;
-					n++;
-					q--;
 				}
 				return red;
 			}
@@ -114,20 +112,21 @@ public class CP7 extends SaneCoprocessor {
 		public int write(VirtualMemorySpace vm, int p, int count) {
 			if(count <= 0) return 0;
 			try {
+				byte[] w = new byte[Math.min(count, 4096)];
 				int wrote = 0;
 				while(count > 0) {
-					byte b;
+					int length = Math.min(count, w.length);
 					while(true) {
 						try {
-							b = vm.readByte(p);
+							vm.readBytes(p, w, 0, length);
 							break;
 						}
 						catch(EscapeRetryException e) {}
 					}
-					count--;
-					p++;
-					o.write(b);
-					++wrote;
+					count -= length;
+					p += length;
+					o.write(w, 0, length);
+					wrote += length;
 				}
 				return wrote;
 			}
@@ -245,18 +244,14 @@ public class CP7 extends SaneCoprocessor {
 			byte[] r = new byte[count];
 			try {
 				int red = raf.read(r);
-				int q = red;
-				int n = 0;
-				while(q > 0) {
-					try {
-						vm.writeByte(p, r[n]);
-					}
-					catch(EscapeRetryException e) {
-						continue;
+				if(red > 0) {
+					while(true) {
+						try {
+							vm.writeBytes(p, r, 0, red);
+							break;
+						}
+						catch(EscapeRetryException e) {}
 					}
-					p++;
-					n++;
-					q--;
 				}
 				return red;
 			}
@@ -286,20 +281,21 @@ public class CP7 extends SaneCoprocessor {
 		public int write(VirtualMemorySpace vm, int p, int count) {
 			if(count <= 0) return 0;
 			try {
+				byte[] w = new byte[Math.min(count, 4096)];
 				int wrote = 0;
 				while(count > 0) {
-					byte b;
+					int length = Math.min(count, w.length);
 					while(true) {
 						try {
-							b = vm.readByte(p);
+							vm.readBytes(p, w, 0, length);
 							break;
 						}
 						catch(EscapeRetryException e) {}
 					}
-					count--;
-					p++;
-					raf.write(b);
-					++wrote;
+					count -= length;
+					p += length;
+					raf.write(w, 0, length);
+					wrote += length;
 				}
 				return wrote;
 			}
@@ -561,15 +557,31 @@ public class CP7 extends SaneCoprocessor {
 		}
 	}
 
-	private String readString(VirtualMemorySpace vm, int start) throws BusErrorException, EscapeRetryException {
-		int len = 0;
+	/* Strings are read in chunks that don't cross a STRING_CHUNK boundary, so we never read far past the terminator. */
+	private static final int STRING_CHUNK = 64;
+	static String readString(VirtualMemorySpace vm, int start) throws BusErrorException, EscapeRetryException {
+		ByteArrayOutputStream sbyte = new ByteArrayOutputStream();
+		byte[] chunk = new byte[STRING_CHUNK];
 		int p = start;
-		while(vm.readByte(p++) != 0) ++len;
-		byte[] sbyte = new byte[len];
-		p = start;
-		int n = 0;
-		while(n < len) sbyte[n++] = vm.readByte(p++);
-		return new String(sbyte);
+		while(true) {
+			int len = STRING_CHUNK - (p & (STRING_CHUNK-1));
+			try {
+				vm.readBytes(p, chunk, 0, len);
+			}
+			catch(BusErrorException e) {
+				/* the chunk runs off the end of memory, but the string might not */
+				chunk[0] = vm.readByte(p);
+				len = 1;
+			}
+			for(int n = 0; n < len; ++n) {
+				if(chunk[n] == 0) {
+					sbyte.write(chunk, 0, n);
+					return new String(sbyte.toByteArray());
+				}
+			}
+			sbyte.write(chunk, 0, len);
+			p += len;
+		}
 	}
 
 	@Override
@@ -598,4 +610,12 @@ public class CP7 extends SaneCoprocessor {
 		}
 	}
 
+	/* the fork shares the open files, file positions and all, as after fork(2) */
+	@Override
+	public Coprocessor fork(CPU child) {
+		CP7 ret = new CP7(child);
+		ret.fds = fds.clone();
+		return ret;
+	}
+
 }
@@ -6,13 +6,14 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.ByteArrayRegion;
 import name.bizna.jarm.CPU;
-import name.bizna.jarm.EscapeCompleteException;
-import name.bizna.jarm.EscapeRetryException;
+import name.bizna.jarm.MappedFileRegion;
+import name.bizna.jarm.PhysicalMemorySpace;
 import name.bizna.jarm.UndefinedException;
 
 public class JarmTool {
@@ -50,7 +51,11 @@ public class JarmTool {
 			/*p_align = buf.getInt();*/
 		}
 	}
-	private static byte[] loadProgram(String pathstring) {
+	/**
+	 * Map every PT_LOAD segment of the program straight from the file, copy-on-write, and fill any gaps below the top of
+	 * the program with zeroed RAM.
+	 */
+	private static boolean loadProgram(String pathstring, PhysicalMemorySpace mem) {
 		RandomAccessFile f = null;
 		try {
 			f = new RandomAccessFile(pathstring, "r");
@@ -113,50 +118,46 @@ public class JarmTool {
 				f.read(headerReadArray, 0, 32);
 				phents[n] = new ProgramHeaderEntry(headerReadBuf);
 			}
-			int memtop = 0;
+			long memtop = 0;
 			for(ProgramHeaderEntry phent : phents) {
 				// PT_LOAD = 1
 				if(phent.p_type != 1) continue;
 				if(phent.p_vaddr < 0 || phent.p_vaddr >= MAX_PROGRAM_SPACE) throw new NonLoadableFileException("virtual address out of range");
 				if(phent.p_memsz >= MAX_PROGRAM_SPACE) throw new NonLoadableFileException("absurdly long section");
+				if(phent.p_filesz < 0 || phent.p_filesz > phent.p_memsz) throw new NonLoadableFileException("section is longer in the file than in memory");
 				int phent_top = phent.p_vaddr + phent.p_memsz;
 				if(phent_top < 0 || phent_top > MAX_PROGRAM_SPACE) throw new NonLoadableFileException("absurdly long section");
-				if(phent_top > memtop) memtop = phent_top;
+				/* the ELF spec requires PT_LOAD entries to be sorted by p_vaddr */
+				if(phent.p_vaddr < memtop) throw new NonLoadableFileException("overlapping or unsorted sections");
+				if(phent.p_memsz > 0) memtop = phent_top;
 			}
 			assert(memtop <= MAX_PROGRAM_SPACE);
-			byte[] programSpace;
-			try {
-				programSpace = new byte[memtop];
-			}
-			catch(OutOfMemoryError e) {
-				throw new NonLoadableFileException("too big to fit in memory, please increase the maximum memory size of the Java VM");
-			}
+			FileChannel channel = f.getChannel();
+			long cursor = 0;
 			for(ProgramHeaderEntry phent : phents) {
-				if(phent.p_type != 1) continue;
-				if(phent.p_filesz > 0) {
-					f.seek(phent.p_offset);
-					f.read(programSpace, phent.p_vaddr, phent.p_filesz);
-				}
-				/* byte arrays are zero-filled when created, so we don't have to zero-fill */
+				if(phent.p_type != 1 || phent.p_memsz == 0) continue;
+				if(phent.p_vaddr > cursor) mem.mapRegion((int)cursor, new ByteArrayRegion(phent.p_vaddr - cursor));
+				mem.mapRegion(phent.p_vaddr, new MappedFileRegion(channel, phent.p_offset & 0xFFFFFFFFL, phent.p_filesz, phent.p_memsz, true));
+				cursor = phent.p_vaddr + phent.p_memsz;
 			}
-			return programSpace;
+			return true;
 		}
 		catch(FileNotFoundException e) {
 			System.err.println(pathstring+": No such file");
-			return null;
+			return false;
 		}
 		catch(NonLoadableFileException e) {
 			System.err.println(pathstring+": Not loadable: "+e.getWay());
-			return null;
+			return false;
 		}
 		catch(EOFException e) {
 			System.err.println(pathstring+": Unexpected end of file");
-			return null;
+			return false;
 		}
 		catch(IOException e) {
 			System.err.println(pathstring+": IOException caught");
 			e.printStackTrace();
-			return null;
+			return false;
 		}
 		finally {
 			if(f != null) try { f.close(); } catch(IOException e) { e.printStackTrace(); }
@@ -191,24 +192,25 @@ public class JarmTool {
 			System.err.println("Please note that a jarmtool has effectively the same access to the filesystem as the running JVM!");
 			System.exit(126);
 		}
-		byte[] programSpace = loadProgram(args[0]);
-		if(programSpace == null) {
+		CPU cpu = new CPU();
+		if(!loadProgram(args[0], cpu.getMemorySpace())) {
 			System.err.println("Program load failed, exiting");
 			System.exit(127);
 		}
 		byte[] argSpace = coalesceArgs(args);
-		CPU cpu = new CPU();
 		CP3 cp3 = new CP3(cpu);
 		CP7 cp7 = new CP7(cpu);
 		cpu.mapCoprocessor(3, cp3);
 		cpu.mapCoprocessor(7, cp7);
-		cpu.getMemorySpace().mapRegion(0x00000000, new ByteArrayRegion(programSpace));
 		cpu.getMemorySpace().mapRegion(PROGRAM_ARGS_BLOCK_ADDR, new ByteArrayRegion(argSpace, false));
 		cpu.reset(false, !littleEndian, false);
 		cpu.loadPC(entryPoint);
+		/* execute(int) rather than execute(), so the JIT gets used; exceptions still come back to us */
+		cpu.setExceptionDebugMode(true);
+		cpu.setJITEnabled(true);
 		try {
 			while(true) {
-				cpu.execute();
+				cpu.execute(1<<30);
 			}
 		}
 		catch(ProgramExit e) {
@@ -226,11 +228,5 @@ public class JarmTool {
 			e.printStackTrace();
 			cpu.dumpState(System.err);
 		}
-		catch(EscapeCompleteException e) {
-			// ?
-		}
-		catch(EscapeRetryException e) {
-			// ?
-		}
 	}
 }
@@ -27,6 +27,7 @@ import li.cil.oc.api.network.Node;
 import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.CPU;
+import name.bizna.jarm.Coprocessor;
 import name.bizna.jarm.EscapeCompleteException;
 import name.bizna.jarm.EscapeRetryException;
 import name.bizna.jarm.SaneCoprocessor;
@@ -224,6 +225,41 @@ public class CP3 extends SaneCoprocessor {
 
 	CP3(CPU cpu, Machine machine, JARMArchitecture parent) { super(cpu); this.machine = machine; this.vm = cpu.getVirtualMemorySpace(); this.parent = parent; }
 
+	/**
+	 * The fork starts with the same registers, and talks to the same machine: the same components, and the same queue of
+	 * signals. Only one of the two should be running at a time.
+	 */
+	@Override
+	public Coprocessor fork(CPU child) {
+		CP3 ret = new CP3(child, machine, parent);
+		ret.signalBufferName = signalBufferName;
+		ret.signalBufferArgs = signalBufferArgs;
+		ret.invokeBufferFunc = invokeBufferFunc;
+		ret.invokeBufferParams = invokeBufferParams;
+		ret.replyResult = replyResult;
+		ret.replyBuffer = replyBuffer;
+		ret.asyncInvokeBufferFunc = asyncInvokeBufferFunc;
+		ret.asyncInvokeBufferParams = asyncInvokeBufferParams;
+		ret.asyncReplyResult = asyncReplyResult;
+		ret.asyncReplyBuffer = asyncReplyBuffer;
+		ret.icr_INTERCHANGE_PACKED = icr_INTERCHANGE_PACKED;
+		ret.invokeTargetRegister = invokeTargetRegister;
+		ret.memoryModuleIndexRegister = memoryModuleIndexRegister;
+		ret.componentListBuffer = componentListBuffer;
+		ret.compactComponentIndexRegister = compactComponentIndexRegister;
+		ret.interchangeStoreTruncationRegister = interchangeStoreTruncationRegister;
+		ret.syncInvokeDiscardReply = syncInvokeDiscardReply;
+		ret.syncInvokeOnComponent = syncInvokeOnComponent;
+		ret.syncInvokeFunc = syncInvokeFunc;
+		ret.syncInvokeParams = syncInvokeParams;
+		ret.asyncInvokeOnComponent = asyncInvokeOnComponent;
+		ret.asyncInvokeFunc = asyncInvokeFunc;
+		ret.asyncInvokeParams = asyncInvokeParams;
+		ret.overrideResult = overrideResult;
+		ret.ptr = ptr;
+		return ret;
+	}
+
 	private boolean tryGetSignal() {
 		if(signalBufferName != null) return true;
 		Signal sig = machine.popSignal();
@@ -960,28 +996,23 @@ public class CP3 extends SaneCoprocessor {
 			ptr += 4;
 		}
 	}
+	/* Aligned byte arrays and strings are stored as big-endian words, which puts the bytes in memory in the same order
+	 * as unaligned ones, so both can be copied in bulk. The only differences are the alignment check and the padding. */
+	private static void checkWordAligned(int addr, int length) throws AlignmentException {
+		if(length > 0 && (addr & 3) != 0) throw new AlignmentException();
+	}
+	private static final byte[] zeroPadding = new byte[3];
 	private void writeByteArray(byte[] bwat, boolean unaligned, int length) throws AlignmentException, BusErrorException, UndefinedException, EscapeRetryException {
 		if(unaligned) {
-			for(int n = 0; n < length; ++n) {
-				vm.writeByte(ptr++, bwat[n]);
-			}
+			vm.writeBytes(ptr, bwat, 0, length);
+			ptr += length;
 		}
 		else {
-			int n;
-			for(n = 0; n < length-3; n += 4) {
-				int wut = (bwat[n] << 24) | ((bwat[n+1]&255) << 16) | ((bwat[n+2]&255) << 8) | (bwat[n+3]&255);
-				vm.writeInt(ptr, wut, true, true);
-				ptr += 4;
-			}
-			if(n != length) {
-				switch(length&3) {
-				// case 0 is impossible
-				case 1: vm.writeInt(ptr, bwat[n] << 24, true, true); break;
-				case 2: vm.writeInt(ptr, (bwat[n] << 24) | ((bwat[n+1]&255) << 16), true, true); break;
-				case 3: vm.writeInt(ptr, (bwat[n] << 24) | ((bwat[n+1]&255) << 16) | ((bwat[n+2]&255) << 8), true, true); break;
-				}
-				ptr += 4;
-			}
+			checkWordAligned(ptr, length);
+			int paddedLength = OCARM.padToWordLength(length);
+			vm.writeBytes(ptr, bwat, 0, length);
+			vm.writeBytes(ptr + length, zeroPadding, 0, paddedLength - length);
+			ptr += paddedLength;
 		}
 	}
 	private void writeInterchangeValue(Object wat, boolean packed) throws AlignmentException, BusErrorException, UndefinedException, EscapeRetryException {
@@ -1266,24 +1297,17 @@ public class CP3 extends SaneCoprocessor {
 	}
 	
 	private byte[] readUnalignedByteArray(int addr, int length) throws AlignmentException, BusErrorException, EscapeRetryException {
-		ByteBuffer byteBuf = ioByteBuffer.get();
-		byteBuf.clear();
-		for(int n = 0; n < length; ++n) {
-			byteBuf.put(vm.readByte(addr++));
-		}
-		byteBuf.flip();
 		byte[] ret = new byte[length];
-		byteBuf.get(ret);
+		vm.readBytes(addr, ret, 0, length);
 		return ret;
 	}
 	
 	private byte[] readAlignedByteArray(int addr, int length) throws AlignmentException, BusErrorException, EscapeRetryException {
+		checkWordAligned(addr, length);
 		ByteBuffer byteBuf = ioByteBuffer.get();
 		byteBuf.clear();
-		for(int n = 0; n < length; n += 4) {
-			byteBuf.putInt(vm.readInt(addr, true, true));
-			addr += 4;
-		}
+		byteBuf.limit(OCARM.padToWordLength(length));
+		vm.readBytes(addr, byteBuf);
 		byteBuf.flip();
 		byteBuf.limit(length);
 		byte[] ret = new byte[length];
@@ -1294,9 +1318,8 @@ public class CP3 extends SaneCoprocessor {
 	private String readUnalignedString(int addr, int length) throws BusErrorException, EscapeRetryException {
 		ByteBuffer byteBuf = ioByteBuffer.get();
 		byteBuf.clear();
-		for(int n = 0; n < length; ++n) {
-			byteBuf.put(vm.readByte(addr++));
-		}
+		byteBuf.limit(length);
+		vm.readBytes(addr, byteBuf);
 		byteBuf.flip();
 		CharsetDecoder decoder = utf8Decoder.get();
 		CharBuffer charBuf = stringCharBuffer.get();
@@ -1310,12 +1333,11 @@ public class CP3 extends SaneCoprocessor {
 
 	private String readAlignedString(int addr, int length) throws AlignmentException, BusErrorException, EscapeRetryException {
 		/* we're sloppy and ignore weird results in here */
+		checkWordAligned(addr, length);
 		ByteBuffer byteBuf = ioByteBuffer.get();
 		byteBuf.clear();
-		for(int n = 0; n < length; n += 4) {
-			byteBuf.putInt(vm.readInt(addr, true, true));
-			addr += 4;
-		}
+		byteBuf.limit(OCARM.padToWordLength(length));
+		vm.readBytes(addr, byteBuf);
 		byteBuf.flip();
 		byteBuf.limit(length);
 		CharsetDecoder decoder = utf8Decoder.get();
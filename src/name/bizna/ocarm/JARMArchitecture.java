@@ -47,6 +47,10 @@ public class JARMArchitecture implements Architecture {
 	boolean sramMappingValid = false;
 	long lastRunTime = Long.MIN_VALUE;
 	byte[] romArray, sramArray;
+	/* the pages of sramArray the EEPROM hasn't been sent yet */
+	DirtyPageMap sramDirty;
+	/* everything in sramArray from here on was zero when it was last sent, or when it was read */
+	int sramZeroFrom;
 	int romArrayMask;
 	int romArchSafeOffset;
 	boolean blockRemTick;
@@ -89,6 +93,7 @@ public class JARMArchitecture implements Architecture {
 			if(sramArray == null) throw new BusErrorException("SRAM doesn't exist", address, BusErrorException.AccessType.WRITE);
 			if(address < 0 || address >= sramArray.length) throw new BusErrorException("address is out of bounds for SRAM", address, BusErrorException.AccessType.WRITE);
 			sramArray[address] = b;
+			sramDirty.mark(address, 1);
 		}
 		@Override
 		public byte backingReadByte(int address) throws BusErrorException, EscapeRetryException {
@@ -100,7 +105,10 @@ public class JARMArchitecture implements Architecture {
 	}
 	
 	void flushNVRAM() throws EscapeRetryException {
+		/* the EEPROM only takes its data whole, but there's no need to send it again if none of it changed */
 		if(!sramMappingValid || sramArray == null) return;
+		long[] runs = sramDirty.take();
+		if(runs.length == 0) return;
 		Map<String,String> components = machine.components();
 		String addr = null;
 		for(Map.Entry<String, String> entry : components.entrySet()) {
@@ -109,16 +117,25 @@ public class JARMArchitecture implements Architecture {
 				break;
 			}
 		}
+    	boolean sent = false;
     	try {
+    		/* only the pages written since can have stopped being zero, so the trailing zeroes are found without
+    		 * looking at the rest */
     		int size;
-    		for(size = sramArray.length; size > 0 && sramArray[size-1] == 0; --size)
+    		for(size = Math.max(sramZeroFrom, (int)runs[runs.length-1]); size > 0 && sramArray[size-1] == 0; --size)
     			;
     		machine.invoke(addr, "setData", new Object[]{Arrays.copyOf(sramArray,size)});
+    		sramZeroFrom = size;
+    		sent = true;
     	}
     	catch(LimitReachedException e) { blockRemTick = true; throw new EscapeRetryException(); }
     	catch(Exception e) {
     		OCARM.logger.error("Exception while invoking eeprom.setData", e);
     	}
+    	finally {
+    		/* put the marks back, so the next flush tries again */
+    		if(!sent) for(int n = 0; n < runs.length; n += 2) sramDirty.mark(runs[n], runs[n+1] - runs[n]);
+    	}
 	}
 	
 	int getMemoryLatency(int index) {
@@ -148,7 +165,8 @@ public class JARMArchitecture implements Architecture {
 	private static class RAMModule {
 		int byteSize;
 		int tier;
-		private byte[] backing;
+		/* paged, so that only what the guest has written takes up memory; most never touch most of their RAM */
+		private PagedMemoryRegion backing;
 		RAMModule(int byteSize, int tier) {
 			this.byteSize = byteSize;
 			if(tier < 0) tier = 0;
@@ -171,10 +189,19 @@ public class JARMArchitecture implements Architecture {
 		public int hashCode() {
 			return super.hashCode();
 		}
-		byte[] getBacking() {
-			if(backing == null) backing = new byte[byteSize];
+		PagedMemoryRegion getBacking() {
+			if(backing == null) backing = new PagedMemoryRegion(byteSize);
 			return backing;
 		}
+		/* fills in every page, so this gives up the savings */
+		void randomize(Random rng) {
+			PagedMemoryRegion backing = getBacking();
+			byte[] buf = new byte[65536];
+			for(int n = 0; n < byteSize; n += buf.length) {
+				rng.nextBytes(buf);
+				backing.copyFrom(n, buf, 0, Math.min(buf.length, byteSize - n));
+			}
+		}
 	}
 
 	@Override
@@ -235,6 +262,8 @@ public class JARMArchitecture implements Architecture {
 		// recomputeMemory(machine.host().internalComponents());
 		remapMemory();
 		cpu.reset(false, true, true);
+		/* OC machines tick 20 times a second */
+		cpu.setCounterFrequency(cpuCyclesPerTick * 20);
 		return true;
 	}
 
@@ -263,8 +292,9 @@ public class JARMArchitecture implements Architecture {
 				Random rng = new Random();
 				needRandomizeMemory = false;
 				for(RAMModule module : ramModules) {
-					rng.nextBytes(module.backing);
+					module.randomize(rng);
 				}
+				if(mem != null) mem.invalidateInstructionCache();
 			}
 		}
 		long thisRunTime = machine.worldTime();
@@ -353,13 +383,14 @@ public class JARMArchitecture implements Architecture {
 	}
 	
 	private void mapRAM() {
-		int addr = 0;
+		long addr = 0;
 		for(RAMModule module : ramModules) {
-			int next_addr = addr + module.byteSize;
+			/* RAM has to fit below SRAM, which starts at 2GiB */
+			long next_addr = addr + module.byteSize;
 			int next_size = module.byteSize;
-			if(next_addr > (1<<30) || next_addr < 0 || next_size > (1<<30) || next_size < 0)
-				throw new RuntimeException("Okay, stopping you right there. I'm not going to let you put more than 1GB RAM into a machine. That's just silly. Running Minecraft in the emulated CPU takes less RAM than that for crying out loud! Seriously!");
-			mem.mapRegion(addr, new ByteArrayRegion(module.getBacking(), true, OCARM.instance.getRAMLatency(cpuTier, module.tier), OCARM.instance.isCPUWide(cpuTier) && OCARM.instance.isRAMWide(module.tier)));
+			if(next_addr > 0x80000000L || next_size > (1<<30) || next_size < 0)
+				throw new RuntimeException("Okay, stopping you right there. I'm not going to let you put more than 2GB RAM into a machine. That's just silly. Running Minecraft in the emulated CPU takes less RAM than that for crying out loud! Seriously!");
+			mem.mapRegion((int)addr, new PagedMemoryRegion(module.getBacking(), OCARM.instance.getRAMLatency(cpuTier, module.tier), OCARM.instance.isCPUWide(cpuTier) && OCARM.instance.isRAMWide(module.tier)));
 			addr += module.byteSize;
 		}
 	}
@@ -457,6 +488,8 @@ public class JARMArchitecture implements Architecture {
             			byte[] newArray = (byte[])result[0];
             			sramArray = Arrays.copyOf(newArray, nvramDataSize);
             		}
+            		sramDirty = new DirtyPageMap(sramArray.length);
+            		sramZeroFrom = sramArray.length;
                 	sramMappingValid = true;
             	}
                 catch(NullPointerException e) { blockRemTick = true; throw new EscapeRetryException(); }
@@ -611,7 +644,7 @@ public class JARMArchitecture implements Architecture {
 		out.write(romData);
 		out.write(sramArray);
 		for(RAMModule module : ramModules) {
-			out.write(module.backing);
+			module.getBacking().writeTo(out);
 		}
 		channel.close();
 	}
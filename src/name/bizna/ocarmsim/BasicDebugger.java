@@ -23,6 +23,10 @@ import name.bizna.ocarmsim.components.SimComponent;
  */
 public abstract class BasicDebugger extends Debugger implements Runnable {
 
+	private static final long IDLE_WAIT_MILLIS = 10;
+	/* cycles per execute when not single-stepping; breakpoints and watchpoints still stop it on the spot, and CP3
+	 * escapes from it whenever it needs the simulator */
+	private static final int RUN_SLICE = 10000;
 	private State state;
 	private long sleep;
 	private String reason;
@@ -30,6 +34,10 @@ public abstract class BasicDebugger extends Debugger implements Runnable {
 	private final Set<Breakpoint> breakpoints = new HashSet<Breakpoint>();
 	private final Set<Breakpoint> readWatchpoints = new HashSet<Breakpoint>();
 	private final Set<Breakpoint> writeWatchpoints = new HashSet<Breakpoint>();
+	/* what the CPU checks against; rebuilt whenever a set changes */
+	private final BreakpointIndex breakpointIndex = new BreakpointIndex();
+	private final BreakpointIndex readWatchpointIndex = new BreakpointIndex();
+	private final BreakpointIndex writeWatchpointIndex = new BreakpointIndex();
 
 	public synchronized void reset() {
 		// Reset CPU.
@@ -81,7 +89,11 @@ public abstract class BasicDebugger extends Debugger implements Runnable {
 						switch (state) {
 							case RUNNING:
 								try {
-									cpu.execute(1);
+									if (cpu.isWaitingForInterrupt()) {
+										idle();
+									} else {
+										cpu.execute(singleStep ? 1 : RUN_SLICE);
+									}
 								} catch (BreakpointException ignored) {
 									setState(State.PAUSED);
 								}
@@ -127,6 +139,26 @@ public abstract class BasicDebugger extends Debugger implements Runnable {
 		}
 	}
 
+	/**
+	 * The CPU is in WFI or WFE. Skip ahead to its next scheduled event, or if there isn't one, give another thread a
+	 * chance to wake it instead of spinning.
+	 */
+	private void idle() throws BusErrorException, AlignmentException, UndefinedException {
+		long gap = cpu.getEventScheduler().getNextEventTime() - cpu.getCycleCount();
+		if (gap > 0 && gap <= Integer.MAX_VALUE) {
+			cpu.execute((int) gap);
+			return;
+		}
+		if (gap > 0) {
+			try {
+				cpu.awaitWakeUp(IDLE_WAIT_MILLIS);
+			} catch (InterruptedException ex) {
+				Logger.getLogger(BasicDebugger.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+		cpu.execute(1);
+	}
+
 	protected synchronized void sleep(long nanos) {
 		System.out.println((nanos / 1000000) + "ms");
 		sleep = System.nanoTime() + nanos;
@@ -171,28 +203,48 @@ public abstract class BasicDebugger extends Debugger implements Runnable {
 		}
 	}
 
+	/**
+	 * The machine has been put back to an earlier state, from which it can run again, whatever became of it later.
+	 */
+	protected synchronized void rewound() {
+		setState(State.PAUSED);
+		sleep = 0;
+	}
+
 	protected void addBreakpoint(Breakpoint point) {
 		breakpoints.add(point);
+		breakpointIndex.rebuild(breakpoints);
+		hooksChanged();
 	}
 
 	protected void addReadWatchpoint(Breakpoint point) {
 		readWatchpoints.add(point);
+		readWatchpointIndex.rebuild(readWatchpoints);
+		hooksChanged();
 	}
 
 	protected void addWriteWatchpoint(Breakpoint point) {
 		writeWatchpoints.add(point);
+		writeWatchpointIndex.rebuild(writeWatchpoints);
+		hooksChanged();
 	}
 
 	protected void removeBreakpoint(Breakpoint point) {
 		breakpoints.remove(point);
+		breakpointIndex.rebuild(breakpoints);
+		hooksChanged();
 	}
 
 	protected void removeReadWatchpoint(Breakpoint point) {
 		readWatchpoints.remove(point);
+		readWatchpointIndex.rebuild(readWatchpoints);
+		hooksChanged();
 	}
 
 	protected void removeWriteWatchpoint(Breakpoint point) {
 		writeWatchpoints.remove(point);
+		writeWatchpointIndex.rebuild(writeWatchpoints);
+		hooksChanged();
 	}
 
 	public Set<Breakpoint> getBreakpoints() {
@@ -216,34 +268,40 @@ public abstract class BasicDebugger extends Debugger implements Runnable {
 		notifyAll();
 	}
 
+	/* with nothing set, the CPU runs at full speed */
+	@Override
+	public boolean wantsInstructions() {
+		return !breakpoints.isEmpty();
+	}
+
+	@Override
+	public boolean wantsMemoryAccesses() {
+		return !readWatchpoints.isEmpty() || !writeWatchpoints.isEmpty();
+	}
+
 	@Override
 	public void onReadMemory(int addr, int size, boolean bigEndian) {
-		if (breakpointsContainRegion(readWatchpoints, addr, size)) {
+		if (readWatchpointIndex.overlaps(addr, size)) {
 			throw new BreakpointException();
 		}
 	}
 
 	@Override
 	public void onWriteMemory(int addr, int size, boolean bigEndian, long value) {
-		if (breakpointsContainRegion(writeWatchpoints, addr, size)) {
+		if (writeWatchpointIndex.overlaps(addr, size)) {
 			throw new BreakpointException();
 		}
 	}
 
 	@Override
 	public void onInstruction(CPU cpu, int addr) {
-		if (breakpointsContainRegion(breakpoints, addr, 4)) {
+		if (breakpointIndex.overlaps(addr, 4)) {
 			throw new BreakpointException();
 		}
 	}
 
-	private boolean breakpointsContainRegion(Set<Breakpoint> points, int addr, int size) {
-		for (Breakpoint point : readWatchpoints) {
-			if ((point.getAddress() & 0xFFFFFFFFL) < (addr & 0xFFFFFFFFL) + size && (addr & 0xFFFFFFFFL) < (point.getAddress() & 0xFFFFFFFFL) + (point.getLength() & 0xFFFFFFFFL)) {
-				return true;
-			}
-		}
-		return false;
+	protected boolean hasBreakpointAt(int addr) {
+		return breakpointIndex.overlaps(addr, 4);
 	}
 
 	@Override
@@ -0,0 +1,103 @@
+package name.bizna.ocarmsim;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Answers whether an access touches any of a set of breakpoints, without looking at them one by one. A bit per 4KiB
+ * page of the address space says whether any breakpoint covers part of it, so accesses to other pages cost one array
+ * lookup. Otherwise, the breakpoints are kept sorted by start address, alongside the furthest end of any of them up to
+ * that point, and a binary search finds whether one overlaps.
+ * <p>
+ * Rebuilding after a change copies everything, but checks can go on from another thread in the meantime, and see
+ * either the old breakpoints or the new ones.
+ */
+final class BreakpointIndex {
+
+	private static final int PAGE_SHIFT = 12;
+	private static final long ADDRESS_SPACE = 1L << 32;
+
+	private static final class Table {
+
+		final long[] pageBits;
+		/* sorted by start; ends[i] is the furthest end of breakpoints 0 to i */
+		final long[] starts;
+		final long[] ends;
+
+		Table(long[] pageBits, long[] starts, long[] ends) {
+			this.pageBits = pageBits;
+			this.starts = starts;
+			this.ends = ends;
+		}
+	}
+
+	private static final Table EMPTY = new Table(new long[(int) (ADDRESS_SPACE >>> PAGE_SHIFT >>> 6)], new long[0], new long[0]);
+
+	private volatile Table table = EMPTY;
+
+	void rebuild(Collection<Breakpoint> points) {
+		long[][] ranges = new long[points.size()][];
+		int count = 0;
+		for (Breakpoint point : points) {
+			long start = point.getAddress() & 0xFFFFFFFFL;
+			long length = point.getLength() & 0xFFFFFFFFL;
+			if (length > 0) {
+				ranges[count++] = new long[]{start, start + length};
+			}
+		}
+		if (count == 0) {
+			table = EMPTY;
+			return;
+		}
+		Arrays.sort(ranges, 0, count, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		long[] pageBits = new long[EMPTY.pageBits.length];
+		long[] starts = new long[count];
+		long[] ends = new long[count];
+		long furthest = 0;
+		for (int n = 0; n < count; ++n) {
+			starts[n] = ranges[n][0];
+			furthest = Math.max(furthest, ranges[n][1]);
+			ends[n] = furthest;
+			long last = Math.min(ranges[n][1], ADDRESS_SPACE) - 1;
+			for (long page = ranges[n][0] >>> PAGE_SHIFT; page <= last >>> PAGE_SHIFT; ++page) {
+				pageBits[(int) (page >>> 6)] |= 1L << page;
+			}
+		}
+		table = new Table(pageBits, starts, ends);
+	}
+
+	/**
+	 * @return true if any breakpoint overlaps the size bytes starting at addr
+	 */
+	boolean overlaps(int addr, int size) {
+		Table t = table;
+		long start = addr & 0xFFFFFFFFL;
+		long end = start + size;
+		if (!hasPage(t, start) && !hasPage(t, end - 1)) {
+			return false;
+		}
+		/* the last breakpoint that starts before the end of the access; one up to there overlaps if any reaches past
+		 * the start of it */
+		int low = 0, high = t.starts.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (t.starts[mid] < end) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low > 0 && t.ends[low - 1] > start;
+	}
+
+	private static boolean hasPage(Table t, long address) {
+		long page = (address & (ADDRESS_SPACE - 1)) >>> PAGE_SHIFT;
+		return (t.pageBits[(int) (page >>> 6)] & (1L << page)) != 0;
+	}
+}
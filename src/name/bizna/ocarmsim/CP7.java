@@ -6,6 +6,7 @@ import java.nio.CharBuffer;
 import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.CPU;
+import name.bizna.jarm.Coprocessor;
 import name.bizna.jarm.EscapeCompleteException;
 import name.bizna.jarm.EscapeRetryException;
 import name.bizna.jarm.SaneCoprocessor;
@@ -107,4 +108,14 @@ public class CP7 extends SaneCoprocessor {
 	@Override
 	public void reset() {}
 
+	/* the fork gets its own copy of the line that hasn't been flushed yet */
+	@Override
+	public Coprocessor fork(CPU child) {
+		CP7 ret = new CP7(child);
+		CharBuffer pending = buffer.duplicate();
+		pending.flip();
+		ret.buffer.put(pending);
+		return ret;
+	}
+
 }
@@ -14,8 +14,8 @@ import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import li.cil.oc.api.machine.Machine;
-import name.bizna.jarm.ByteArrayRegion;
 import name.bizna.jarm.Debugger;
+import name.bizna.jarm.PagedMemoryRegion;
 import name.bizna.jarm.PhysicalMemorySpace;
 import name.bizna.ocarmsim.components.SimComponent;
 import name.bizna.ocarmsim.components.SimEEPROM;
@@ -79,15 +79,14 @@ public class HardwareDefinition {
 
 		int ram_quantity = getMemory();
 		PhysicalMemorySpace mem = debugger.getCpu().getMemorySpace();
-		if (ram_quantity > 1048576) {
-			/* we need to use two modules, since no mapping can exceed 1GiB */
-			int upper_quantity = ram_quantity - 1048576;
-			mem.mapRegion(0x40000000, new ByteArrayRegion(upper_quantity * 1024));
-			arch.setModule2Size(upper_quantity * 1024);
-			ram_quantity = 1048576;
-		}
 		if (ram_quantity > 0) {
-			mem.mapRegion(0x00000000, new ByteArrayRegion(ram_quantity * 1024));
+			/* one region for all of it; pages are only allocated once the guest writes to them, and there is no 1GiB limit */
+			mem.mapRegion(0x00000000, new PagedMemoryRegion(ram_quantity * 1024L));
+			/* the architecture still reports RAM as two modules of at most 1GiB each */
+			if (ram_quantity > 1048576) {
+				arch.setModule2Size((ram_quantity - 1048576) * 1024);
+				ram_quantity = 1048576;
+			}
 			arch.setModule1Size(ram_quantity * 1024);
 		}
 
@@ -28,6 +28,8 @@ public class Launcher {
 		boolean command_line_valid = true;
 		int gdbPort = 0;
 		boolean gdbVerbose = false;
+		long gdbInterval = GDBDebugger.DEFAULT_CHECKPOINT_INTERVAL;
+		int gdbCheckpoints = GDBDebugger.DEFAULT_CHECKPOINTS;
 		String addrinfocmd = null;
 
 		int i = 0;
@@ -44,6 +46,42 @@ public class Launcher {
 				}
 			} else if (arg.equals("-gdbverbose")) {
 				gdbVerbose = true;
+			} else if (arg.equals("-gdbinterval")) {
+				if (i >= args.length) {
+					System.err.println("No parameter given to -gdbinterval");
+					command_line_valid = false;
+				} else {
+					long q;
+					try {
+						q = Long.parseLong(args[i++]);
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+					if (q < 1) {
+						System.err.println("Out-of-range parameter for -gdbinterval");
+						command_line_valid = false;
+					} else {
+						gdbInterval = q;
+					}
+				}
+			} else if (arg.equals("-gdbcheckpoints")) {
+				if (i >= args.length) {
+					System.err.println("No parameter given to -gdbcheckpoints");
+					command_line_valid = false;
+				} else {
+					int q;
+					try {
+						q = Integer.parseInt(args[i++]);
+					} catch (NumberFormatException e) {
+						q = -1;
+					}
+					if (q < 0) {
+						System.err.println("Out-of-range parameter for -gdbcheckpoints");
+						command_line_valid = false;
+					} else {
+						gdbCheckpoints = q;
+					}
+				}
 			} else if (arg.equals("-addrinfocmd")) {
 				if (i >= args.length) {
 					System.err.println("No parameter given to -addrinfocmd");
@@ -61,11 +99,15 @@ public class Launcher {
 			System.exit(1);
 		}
 
-		launch(new FileReader(new File(args[args.length - 1])), addrinfocmd, gdbPort, gdbVerbose);
+		launch(new FileReader(new File(args[args.length - 1])), addrinfocmd, gdbPort, gdbVerbose, gdbInterval, gdbCheckpoints);
 	}
 
 	public static void launch(Reader hardwareDefinition, String addrinfocmd, int gdbPort, boolean gdbVerbose) throws IOException {
-		BasicDebugger debugger = gdbPort == 0 ? new SimpleDebugger(addrinfocmd) : new GDBDebugger(gdbPort, gdbVerbose);
+		launch(hardwareDefinition, addrinfocmd, gdbPort, gdbVerbose, GDBDebugger.DEFAULT_CHECKPOINT_INTERVAL, GDBDebugger.DEFAULT_CHECKPOINTS);
+	}
+
+	public static void launch(Reader hardwareDefinition, String addrinfocmd, int gdbPort, boolean gdbVerbose, long gdbInterval, int gdbCheckpoints) throws IOException {
+		BasicDebugger debugger = gdbPort == 0 ? new SimpleDebugger(addrinfocmd) : new GDBDebugger(gdbPort, gdbVerbose, gdbInterval, gdbCheckpoints);
 
 		HardwareDefinition hardware = JAXB.unmarshal(hardwareDefinition, HardwareDefinition.class);
 		List<JComponent> components = hardware.prepareSimulation(debugger);
@@ -99,6 +141,10 @@ public class Launcher {
 		System.err.println("    Specifies the port where the gdbserver should listen.");
 		System.err.println("  -gdbverbose");
 		System.err.println("    Print all gdb packets that are sent or received.");
+		System.err.println("  -gdbinterval instructions");
+		System.err.println("    How many instructions to run between the checkpoints that gdb's reverse-step and reverse-continue go back to. Default is " + GDBDebugger.DEFAULT_CHECKPOINT_INTERVAL + ".");
+		System.err.println("  -gdbcheckpoints count");
+		System.err.println("    How many checkpoints to keep, which limits how far back gdb can go. 0 turns reverse execution off. Default is " + GDBDebugger.DEFAULT_CHECKPOINTS + ".");
 		System.err.println("  -addrinfocmd \"command to execute\"");
 		System.err.println("    Specifies an external command to use to map instruction addresses to useful information. The command should read hexadecimal addresses one line at a time, and output exactly one line of information for each line of input. (e.g. -addrinfocmd \"arm-none-eabi-addr2line -spfe path/to/unstripped_binary.elf\")");
 		System.err.println("    The parser that processes the command string is very simple. If you want complex argument escaping, consider making a shell script and executing that.");
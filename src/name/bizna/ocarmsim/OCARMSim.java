@@ -3,6 +3,7 @@ package name.bizna.ocarmsim;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import name.bizna.ocarmsim.gdb.GDBDebugger;
 
 public class OCARMSim {
 
@@ -30,6 +31,10 @@ public class OCARMSim {
 		System.err.println("    Specifies the port where the gdbserver should listen.");
 		System.err.println("  -gdbverbose");
 		System.err.println("    Print all gdb packets that are sent or received.");
+		System.err.println("  -gdbinterval instructions");
+		System.err.println("    How many instructions to run between the checkpoints that gdb's reverse-step and reverse-continue go back to. Default is " + GDBDebugger.DEFAULT_CHECKPOINT_INTERVAL + ".");
+		System.err.println("  -gdbcheckpoints count");
+		System.err.println("    How many checkpoints to keep, which limits how far back gdb can go. 0 turns reverse execution off. Default is " + GDBDebugger.DEFAULT_CHECKPOINTS + ".");
 		System.err.println("  -addrinfocmd \"command to execute\"");
 		System.err.println("    Specifies an external command to use to map instruction addresses to useful information. The command should read hexadecimal addresses one line at a time, and output exactly one line of information for each line of input. (e.g. -addrinfocmd \"arm-none-eabi-addr2line -spfe path/to/unstripped_binary.elf\")");
 		System.err.println("    The parser that processes the command string is very simple. If you want complex argument escaping, consider making a shell script and executing that.");
@@ -48,6 +53,8 @@ public class OCARMSim {
 		String addrinfocmd = null;
 		int gdbPort = 0;
 		boolean gdbVerbose = false;
+		long gdbInterval = GDBDebugger.DEFAULT_CHECKPOINT_INTERVAL;
+		int gdbCheckpoints = GDBDebugger.DEFAULT_CHECKPOINTS;
 		int i = 0;
 		while (i < args.length) {
 			String arg = args[i++];
@@ -161,6 +168,44 @@ public class OCARMSim {
 			else if(arg.equals("-gdbverbose")) {
 				gdbVerbose = true;
 			}
+			else if(arg.equals("-gdbinterval")) {
+				if (i >= args.length) {
+					System.err.println("No parameter given to -gdbinterval");
+					commandLineValid = false;
+				} else {
+					long q;
+					try {
+						q = Long.parseLong(args[i++]);
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+					if (q < 1) {
+						System.err.println("Out-of-range parameter for -gdbinterval");
+						commandLineValid = false;
+					} else {
+						gdbInterval = q;
+					}
+				}
+			}
+			else if(arg.equals("-gdbcheckpoints")) {
+				if (i >= args.length) {
+					System.err.println("No parameter given to -gdbcheckpoints");
+					commandLineValid = false;
+				} else {
+					int q;
+					try {
+						q = Integer.parseInt(args[i++]);
+					} catch (NumberFormatException e) {
+						q = -1;
+					}
+					if (q < 0) {
+						System.err.println("Out-of-range parameter for -gdbcheckpoints");
+						commandLineValid = false;
+					} else {
+						gdbCheckpoints = q;
+					}
+				}
+			}
 			else {
 				System.err.println("Unknown command line argument: " + arg);
 				commandLineValid = false;
@@ -183,6 +228,6 @@ public class OCARMSim {
 		System.out.println("Generated hardware definition:");
 		System.out.println(xml.toString());
 		
-		Launcher.launch(new StringReader(xml.toString()), addrinfocmd, gdbPort, gdbVerbose);
+		Launcher.launch(new StringReader(xml.toString()), addrinfocmd, gdbPort, gdbVerbose, gdbInterval, gdbCheckpoints);
 	}
 }
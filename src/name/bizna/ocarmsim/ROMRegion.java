@@ -1,8 +1,10 @@
 package name.bizna.ocarmsim;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.ByteBackedRegion;
 import name.bizna.jarm.EscapeRetryException;
@@ -12,41 +14,42 @@ public class ROMRegion extends ByteBackedRegion {
 	// cribbed from JARMArchitecture
 	private static final int ROM_MIN_BIT_DEPTH = 12; // 4K ROM
 	
-	private final byte[] array;
+	/* the ROM file, mapped rather than read, minus any Lua header */
+	private final ByteBuffer image;
 	private final int arrayMask;
+	private byte[] array;
 
 	ROMRegion(File inpath) throws IOException {
 		int arraySizeBits = ROM_MIN_BIT_DEPTH;
 		long len = inpath.length();
 		if(len > 0x40000000) throw new IOException("That EEPROM image is WAY too big!");
 		while((1L << arraySizeBits) < len) ++arraySizeBits;
-		FileInputStream fis = new FileInputStream(inpath);
+		arrayMask = (1 << arraySizeBits) - 1;
+		RandomAccessFile f = new RandomAccessFile(inpath, "r");
 		try {
-			array = new byte[1 << arraySizeBits];
-			arrayMask = (1 << arraySizeBits) - 1;
-			if(fis.read(array) < 0) throw new IOException();
-		}
-		finally {
-			fis.close();
-		}
-		if(array[0] == '-' && array[1] == '-' && array[2] == '[') {
-			int n = 3;
-			while(n < array.length && array[n] == '=') ++ n;
-			if(n < array.length-1 && array[n] == '[') {
-				// it's Lua-compatible, trim that part of it
-				++n;
-				int amt = array.length - n;
-				for(int m = 0; m < amt; ++m, ++n) {
-					array[m] = array[n];
+			FileChannel channel = f.getChannel();
+			ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(mapped.remaining() >= 3 && mapped.get(0) == '-' && mapped.get(1) == '-' && mapped.get(2) == '[') {
+				int n = 3;
+				while(n < mapped.limit() && mapped.get(n) == '=') ++ n;
+				if(n < mapped.limit()-1 && mapped.get(n) == '[') {
+					// it's Lua-compatible, skip that part of it
+					++n;
+					mapped.position(n);
 				}
 			}
+			image = mapped.slice();
+		}
+		finally {
+			f.close();
 		}
 	}
 
 	@Override
 	public byte backingReadByte(int address) throws BusErrorException,
 			EscapeRetryException {
-		return array[address & arrayMask];
+		address &= arrayMask;
+		return address < image.limit() ? image.get(address) : 0;
 	}
 
 	@Override
@@ -60,7 +63,19 @@ public class ROMRegion extends ByteBackedRegion {
 		return 0x40000000;
 	}
 
-	public byte[] getArray() {
+	@Override
+	public boolean isInstructionCacheable() {
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the whole ROM, padded with zeroes to a power of two. It's made the first time it's asked for.
+	 */
+	public synchronized byte[] getArray() {
+		if(array == null) {
+			array = new byte[arrayMask + 1];
+			image.duplicate().get(array, 0, image.limit());
+		}
 		return array;
 	}
 
@@ -7,7 +7,10 @@ import java.io.IOException;
 import java.util.Arrays;
 import name.bizna.jarm.BusErrorException;
 import name.bizna.jarm.ByteBackedRegion;
+import name.bizna.jarm.DirtyPageMap;
 import name.bizna.jarm.EscapeRetryException;
+import name.bizna.jarm.SnapshotInputStream;
+import name.bizna.jarm.SnapshotOutputStream;
 
 public class SRAMRegion extends ByteBackedRegion {
 	
@@ -15,6 +18,8 @@ public class SRAMRegion extends ByteBackedRegion {
 	private final boolean writable;
 	private final byte[] sramArray;
 	private final byte[] nvramArray;
+	/* the pages of sramArray that nvramArray is behind on */
+	private final DirtyPageMap dirtyPages;
 
 	SRAMRegion(File inpath, int arraySize, boolean writable) throws IOException {
 		path = inpath;
@@ -43,6 +48,7 @@ public class SRAMRegion extends ByteBackedRegion {
 			}
 			nvramArray = Arrays.copyOf(sramArray, sramArray.length);
 		}
+		dirtyPages = new DirtyPageMap(sramArray.length);
 	}
 
 	@Override
@@ -55,15 +61,37 @@ public class SRAMRegion extends ByteBackedRegion {
 	public void backingWriteByte(int address, byte v) throws BusErrorException,
 			EscapeRetryException {
 		sramArray[address] = v;
+		dirtyPages.mark(address, 1);
 	}
 
 	@Override
 	public long getRegionSize() {
 		return sramArray.length;
 	}
+
+	@Override
+	public boolean isInstructionCacheable() {
+		return true;
+	}
 	
+	/* only what the guest sees; the NVRAM copy is the file's business */
+	@Override
+	public void saveState(SnapshotOutputStream out) throws IOException {
+		out.writePages(sramArray, 0, sramArray.length);
+	}
+
+	@Override
+	public void loadState(SnapshotInputStream in) throws IOException {
+		in.readPages(sramArray, 0, sramArray.length);
+		dirtyPages.markAll();
+	}
+	
+	/* only the pages written since the last flush are copied, and if there aren't any, the file is already up to date */
 	public void flushToNVRAM() throws IOException {
-		System.arraycopy(sramArray, 0, nvramArray, 0, sramArray.length);
+		long[] runs = dirtyPages.take();
+		if(runs.length == 0) return;
+		for(int n = 0; n < runs.length; n += 2)
+			System.arraycopy(sramArray, (int)runs[n], nvramArray, (int)runs[n], (int)(runs[n+1] - runs[n]));
 		maybeWriteNVRAM();
 	}
 	
@@ -71,7 +99,7 @@ public class SRAMRegion extends ByteBackedRegion {
 		if(path != null && writable) {
 			FileOutputStream fos = new FileOutputStream(path);
 			try {
-				fos.write(sramArray);
+				fos.write(nvramArray);
 			}
 			finally {
 				fos.close();
@@ -86,4 +114,9 @@ public class SRAMRegion extends ByteBackedRegion {
 	public byte[] getNvramArray() {
 		return nvramArray;
 	}
+
+	/* mark everything if nvramArray is changed some other way, so the next flush puts the guest's copy back whole */
+	public DirtyPageMap getDirtyPages() {
+		return dirtyPages;
+	}
 }
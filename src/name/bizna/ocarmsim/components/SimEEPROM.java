@@ -72,6 +72,7 @@ public class SimEEPROM extends SimComponent {
 			return new Object[]{null, "data too long"};
 		}
 		System.arraycopy(array, 0, sram.getNvramArray(), 0, array.length);
+		sram.getDirtyPages().markAll();
 		try {
 			sram.maybeWriteNVRAM();
 		} catch (IOException e) {
@@ -0,0 +1,275 @@
+package name.bizna.ocarmsim.gdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import name.bizna.jarm.AlignmentException;
+import name.bizna.jarm.BusErrorException;
+import name.bizna.jarm.CPU;
+import name.bizna.jarm.InputRecorder;
+import name.bizna.jarm.InputReplayer;
+import name.bizna.jarm.MachineCheckpoint;
+import name.bizna.jarm.UndefinedException;
+import name.bizna.ocarmsim.BreakpointException;
+
+/**
+ * Lets the gdbserver run the machine backwards. While the machine runs forwards, a checkpoint is started every so many
+ * instructions: a MachineCheckpoint, followed by everything that comes in from outside until the next one, recorded
+ * with InputRecorder. RAM is kept copy-on-write, so a checkpoint costs next to nothing to take, and holds on to only the
+ * pages the machine has written since. Only the newest few are kept. Going back loads a checkpoint and replays it with
+ * InputReplayer, once to find the instruction to stop at and once more to stop there. A replay comes out the same,
+ * cycle for cycle, and doesn't call on the simulated components again. Running forwards from the past goes on replaying
+ * until it has caught up, and then carries on live.
+ * <p>
+ * Changing the machine from the debugger while it's in the past means the rest of the history no longer follows, so the
+ * whole history is thrown away. Watchpoints aren't checked while replaying, since stopping partway through an
+ * instruction would take the machine somewhere the recording never went.
+ */
+class ExecutionHistory {
+
+	/* cycles per execute while travelling; the debugger stops us where we're going */
+	private static final int TRAVEL_SLICE = 1 << 24;
+
+	private static class Checkpoint {
+
+		final long startInstruction, startCycle;
+		final MachineCheckpoint start;
+		final byte[] log;
+
+		Checkpoint(long startInstruction, long startCycle, MachineCheckpoint start, byte[] log) {
+			this.startInstruction = startInstruction;
+			this.startCycle = startCycle;
+			this.start = start;
+			this.log = log;
+		}
+	}
+
+	private final CPU cpu;
+	private final long interval;
+	private final int capacity;
+	private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+	/* in the present, the checkpoint being recorded */
+	private InputRecorder recorder;
+	private MachineCheckpoint recordingStart;
+	private ByteArrayOutputStream recording;
+	private long recordingInstruction, recordingCycle;
+	/* in the past, the checkpoint being replayed */
+	private InputReplayer replayer;
+	private int replaying;
+	/* While travelling, we either look for the last instruction before the limit that we'd stop at, or, once it's been
+	 * found, replay again up to it. Instructions are told apart by the instruction count and the cycle count together,
+	 * since one that faults doesn't retire, and the next one starts with the same instruction count. */
+	private boolean travelling, seeking, stopped, anyInstruction, found;
+	private long limitInstruction, limitCycle;
+	private long foundInstruction, foundCycle;
+
+	/**
+	 * @param interval How many instructions to run between checkpoints
+	 * @param capacity How many checkpoints to keep; 0 turns the history off
+	 */
+	ExecutionHistory(CPU cpu, long interval, int capacity) {
+		if (interval <= 0 || capacity < 0) {
+			throw new IllegalArgumentException("checkpoint interval must be positive, and the number of checkpoints can't be negative");
+		}
+		this.cpu = cpu;
+		this.interval = interval;
+		this.capacity = capacity;
+	}
+
+	boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	boolean isReplaying() {
+		return replayer != null;
+	}
+
+	boolean isTravelling() {
+		return travelling;
+	}
+
+	/**
+	 * Called before the machine runs forwards. Starts a checkpoint if one is due, or, if we're in the past and have
+	 * come to the end of a checkpoint, goes on to the next one.
+	 */
+	void beforeRunning() throws IOException {
+		if (!isEnabled()) {
+			return;
+		}
+		if (replayer != null && (!replayer.isFinished() || replayNext())) {
+			return;
+		}
+		if (recorder == null || cpu.getInstructionCount() - recordingInstruction >= interval) {
+			seal();
+			record();
+		}
+	}
+
+	/**
+	 * Called when the debugger has changed the machine, behind the back of the recording.
+	 */
+	void stateChanged() throws IOException {
+		if (replayer != null) {
+			clear();
+		} else if (recorder != null) {
+			/* the next checkpoint starts from the changed machine, so replays see the change too */
+			seal();
+			record();
+		}
+	}
+
+	/**
+	 * Forget everything, as after a reset. The next checkpoint is started when the machine next runs.
+	 */
+	void clear() {
+		try {
+			if (replayer != null) {
+				replayer.close();
+			}
+			if (recorder != null) {
+				recorder.close();
+			}
+		} catch (IOException ignored) {
+			/* only ever in memory */
+		}
+		replayer = null;
+		recorder = null;
+		recordingStart = null;
+		recording = null;
+		checkpoints.clear();
+	}
+
+	/**
+	 * Go back to the instruction before the current one.
+	 * @return false if the history doesn't go back that far, in which case the machine is at its start instead
+	 */
+	boolean reverseStep() throws IOException, BusErrorException, AlignmentException, UndefinedException {
+		return goBack(true);
+	}
+
+	/**
+	 * Go back to the last instruction before the current one that has a breakpoint on it.
+	 * @return false if there isn't one as far back as the history goes, in which case the machine is at its start
+	 */
+	boolean reverseContinue() throws IOException, BusErrorException, AlignmentException, UndefinedException {
+		return goBack(false);
+	}
+
+	/**
+	 * Called by the debugger before each instruction while travelling.
+	 * @param breakpoint Whether there's a breakpoint on the instruction
+	 * @return true if the machine should stop here
+	 */
+	boolean reached(boolean breakpoint) {
+		long instruction = cpu.getInstructionCount();
+		long cycle = cpu.getCycleCount();
+		if (replayer.isFinished()) {
+			/* the rest belongs to the next checkpoint */
+			stopped = true;
+		} else if (seeking) {
+			stopped = instruction == foundInstruction && cycle == foundCycle;
+		} else if (before(instruction, cycle, limitInstruction, limitCycle)) {
+			if (anyInstruction || breakpoint) {
+				found = true;
+				foundInstruction = instruction;
+				foundCycle = cycle;
+			}
+		} else {
+			stopped = true;
+		}
+		return stopped;
+	}
+
+	private static boolean before(long instruction, long cycle, long thanInstruction, long thanCycle) {
+		return cycle < thanCycle || (cycle == thanCycle && instruction < thanInstruction);
+	}
+
+	private boolean goBack(boolean anyInstruction) throws IOException, BusErrorException, AlignmentException, UndefinedException {
+		seal();
+		if (checkpoints.isEmpty()) {
+			return false;
+		}
+		limitInstruction = cpu.getInstructionCount();
+		limitCycle = cpu.getCycleCount();
+		this.anyInstruction = anyInstruction;
+		for (int index = checkpoints.size() - 1; index >= 0; --index) {
+			Checkpoint it = checkpoints.get(index);
+			if (!before(it.startInstruction, it.startCycle, limitInstruction, limitCycle)) {
+				continue;
+			}
+			found = false;
+			seeking = false;
+			replay(index);
+			travel();
+			if (found) {
+				seeking = true;
+				replay(index);
+				travel();
+				return true;
+			}
+		}
+		replay(0);
+		return false;
+	}
+
+	private void travel() throws BusErrorException, AlignmentException, UndefinedException {
+		stopped = false;
+		travelling = true;
+		try {
+			while (!stopped && !replayer.isFinished()) {
+				try {
+					cpu.execute(TRAVEL_SLICE);
+				} catch (BreakpointException ignored) {
+					/* we got where we were going */
+				}
+			}
+		} finally {
+			travelling = false;
+		}
+	}
+
+	private void record() throws IOException {
+		recording = new ByteArrayOutputStream();
+		recordingInstruction = cpu.getInstructionCount();
+		recordingCycle = cpu.getCycleCount();
+		recordingStart = new MachineCheckpoint(cpu);
+		recorder = new InputRecorder(recording, cpu, recordingStart);
+	}
+
+	private void seal() throws IOException {
+		if (recorder == null) {
+			return;
+		}
+		recorder.close();
+		recorder = null;
+		checkpoints.add(new Checkpoint(recordingInstruction, recordingCycle, recordingStart, recording.toByteArray()));
+		recordingStart = null;
+		recording = null;
+		while (checkpoints.size() > capacity) {
+			checkpoints.remove(0);
+		}
+	}
+
+	private void replay(int index) throws IOException {
+		if (replayer != null) {
+			replayer.close();
+		}
+		replaying = index;
+		Checkpoint it = checkpoints.get(index);
+		replayer = new InputReplayer(new ByteArrayInputStream(it.log), cpu, it.start);
+	}
+
+	/* go on from the end of one checkpoint to the start of the next; false if that was the last, and we're back in the
+	 * present */
+	private boolean replayNext() throws IOException {
+		replayer.close();
+		replayer = null;
+		if (replaying + 1 >= checkpoints.size()) {
+			return false;
+		}
+		replay(replaying + 1);
+		return true;
+	}
+}
@@ -8,9 +8,14 @@ import javax.swing.AbstractAction;
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
+import name.bizna.jarm.AlignmentException;
 import name.bizna.jarm.BusErrorException;
+import name.bizna.jarm.CPU;
 import name.bizna.jarm.EscapeRetryException;
 import name.bizna.jarm.FPU;
+import name.bizna.jarm.PhysicalMemorySpace;
+import name.bizna.jarm.ReplayDivergedException;
+import name.bizna.jarm.UndefinedException;
 import name.bizna.ocarmsim.BasicDebugger;
 import name.bizna.ocarmsim.Breakpoint;
 import name.bizna.ocarmsim.BreakpointException;
@@ -22,13 +27,29 @@ import name.bizna.ocarmsim.OCARM;
  */
 public class GDBDebugger extends BasicDebugger {
 
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000000;
+	public static final int DEFAULT_CHECKPOINTS = 16;
+
 	private final boolean verbose;
 	private final ServerSocket serverSocket;
 	private final AtomicBoolean running = new AtomicBoolean(true);
+	private final ExecutionHistory history;
+	private boolean watchpointHit;
+	/* the history finds its way back through onInstruction, breakpoints or not */
+	private boolean reversing;
 	private GDBSocket socket;
 
 	public GDBDebugger(int port, boolean verbose) {
+		this(port, verbose, DEFAULT_CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINTS);
+	}
+
+	/**
+	 * @param checkpointInterval How many instructions to run between the checkpoints reverse execution starts from
+	 * @param checkpoints How many checkpoints to keep, which is how far back reverse execution can go; 0 turns it off
+	 */
+	public GDBDebugger(int port, boolean verbose, long checkpointInterval, int checkpoints) {
 		this.verbose = verbose;
+		this.history = new ExecutionHistory(cpu, checkpointInterval, checkpoints);
 
 		try {
 			serverSocket = new ServerSocket(port);
@@ -92,6 +113,9 @@ public class GDBDebugger extends BasicDebugger {
 						case 'c':
 							cont(new GDBCommandPacket('C', "00;" + packet.getData()));
 							break;
+						case 'b':
+							reverse(packet);
+							break;
 						case 'z':
 							removePoint(packet);
 							break;
@@ -156,7 +180,7 @@ public class GDBDebugger extends BasicDebugger {
 		String command = packet.getData().contains(":") ? packet.getData().substring(0, packet.getData().indexOf(':')) : packet.getData();
 		// even more thans, Java 1.6
 		if(command.equals("Supported"))
-			socket.write(new GDBPacket("multiprocess-;swbreak-;hwbreak+"));
+			socket.write(new GDBPacket("multiprocess-;swbreak-;hwbreak+" + (history.isEnabled() ? ";ReverseStep+;ReverseContinue+" : "")));
 		else if(command.equals("Attached"))
 			socket.write(new GDBPacket("1"));
 		else if(command.equals("Symbol"))
@@ -279,6 +303,7 @@ public class GDBDebugger extends BasicDebugger {
 		for (int i = 0; i < 16 + 8 + 2; i++) {
 			offset += writeRegister(i, packet.getData(), offset);
 		}
+		history.stateChanged();
 
 		socket.write(new GDBPacket("OK"));
 	}
@@ -293,6 +318,7 @@ public class GDBDebugger extends BasicDebugger {
 		int reg = Integer.parseUnsignedInt(packet.getData().split("=")[0], 16);
 
 		writeRegister(reg, packet.getData().split("=")[1], 0);
+		history.stateChanged();
 
 		socket.write(new GDBPacket("OK"));
 	}
@@ -301,6 +327,9 @@ public class GDBDebugger extends BasicDebugger {
 		int addr = Integer.parseUnsignedInt(packet.getData().split(",")[0], 16);
 		int length = Integer.parseUnsignedInt(packet.getData().split(",")[1], 16);
 		byte[] buffer = new byte[length];
+		/* looking mustn't cost the guest any cycles, or a replay would come out differently */
+		PhysicalMemorySpace mem = cpu.getMemorySpace();
+		int bill = mem.settleAccessBill();
 
 		try {
 			for (int i = 0; i < length; i++) {
@@ -316,12 +345,17 @@ public class GDBDebugger extends BasicDebugger {
 			socket.write(new GDBPacket(GDBError.MEMORY_ACCESS.message()));
 		} catch (EscapeRetryException ex) {
 			socket.write(new GDBPacket(GDBError.RETRY.message()));
+		} finally {
+			mem.settleAccessBill();
+			mem.addToBill(bill);
 		}
 	}
 
 	private void writeMemory(GDBCommandPacket packet) throws IOException {
 		int addr = Integer.parseUnsignedInt(packet.getData().split(",")[0], 16);
 		int length = Integer.parseUnsignedInt(packet.getData().split(",")[1].split(":")[0], 16);
+		PhysicalMemorySpace mem = cpu.getMemorySpace();
+		int bill = mem.settleAccessBill();
 
 		try {
 			char[] data = packet.getData().split(":")[1].toCharArray();
@@ -332,12 +366,16 @@ public class GDBDebugger extends BasicDebugger {
 				} catch (BreakpointException ignored) {
 				}
 			}
+			history.stateChanged();
 
 			socket.write(new GDBPacket("OK"));
 		} catch (BusErrorException ex) {
 			socket.write(new GDBPacket(GDBError.MEMORY_ACCESS.message()));
 		} catch (EscapeRetryException ex) {
 			socket.write(new GDBPacket(GDBError.RETRY.message()));
+		} finally {
+			mem.settleAccessBill();
+			mem.addToBill(bill);
 		}
 	}
 
@@ -373,9 +411,12 @@ public class GDBDebugger extends BasicDebugger {
 		// int signal = Integer.parseUnsignedInt(packet.getData().split(";")[0], 16);
 		int addr = packet.getData().split(";").length > 1 && !packet.getData().split(";")[1].isEmpty() ? Integer.parseUnsignedInt(packet.getData().split(";")[1], 16) : cpu.readCurrentPC();
 
-		cpu.writePC(addr);
+		jumpTo(addr);
+		watchpointHit = false;
 		do {
+			history.beforeRunning();
 			step();
+			afterRunning();
 		} while (getState() == State.RUNNING || getState() == State.SLEEPING);
 
 		socket.write(new GDBPacket("S" + new String(toHex(getCurrentSignal(), 1))));
@@ -385,14 +426,111 @@ public class GDBDebugger extends BasicDebugger {
 		// int signal = Integer.parseUnsignedInt(packet.getData().split(";")[0], 16);
 		int addr = packet.getData().split(";").length > 1 && !packet.getData().split(";")[1].isEmpty() ? Integer.parseUnsignedInt(packet.getData().split(";")[1], 16) : cpu.readCurrentPC();
 
-		cpu.writePC(addr);
+		jumpTo(addr);
+		watchpointHit = false;
 		do {
+			history.beforeRunning();
 			go();
+			afterRunning();
 		} while (getState() == State.RUNNING || getState() == State.SLEEPING);
 
 		socket.write(new GDBPacket("S" + new String(toHex(getCurrentSignal(), 1))));
 	}
 
+	private void jumpTo(int addr) throws IOException {
+		if (addr != cpu.readCurrentPC()) {
+			cpu.writePC(addr);
+			history.stateChanged();
+		}
+	}
+
+	private void afterRunning() throws IOException {
+		if (watchpointHit) {
+			/* the watchpoint cut an instruction short, which a replay wouldn't */
+			watchpointHit = false;
+			history.stateChanged();
+		}
+	}
+
+	private void reverse(GDBCommandPacket packet) throws IOException, BusErrorException, AlignmentException, UndefinedException {
+		if (!history.isEnabled()) {
+			socket.write(new GDBPacket(""));
+			return;
+		}
+		boolean reached;
+		reversing = true;
+		hooksChanged();
+		try {
+			if (packet.getData().equals("s")) {
+				reached = history.reverseStep();
+			} else if (packet.getData().equals("c")) {
+				reached = history.reverseContinue();
+			} else {
+				throw new RuntimeException("Unsupported b command: " + packet.getData());
+			}
+		} catch (ReplayDivergedException ex) {
+			OCARM.logger.error("gdbserver: %s", ex.getMessage());
+			history.clear();
+			socket.write(new GDBPacket(GDBError.REPLAY_DIVERGED.message()));
+			return;
+		} finally {
+			reversing = false;
+			hooksChanged();
+		}
+		rewound();
+
+		socket.write(new GDBPacket(reached ? "S" + new String(toHex(getCurrentSignal(), 1)) : "T05replaylog:begin;"));
+	}
+
+	@Override
+	public synchronized void reset() {
+		/* nothing in the history leads here */
+		history.clear();
+		super.reset();
+	}
+
+	@Override
+	public void onReadMemory(int addr, int size, boolean bigEndian) {
+		if (history.isReplaying()) {
+			return;
+		}
+		try {
+			super.onReadMemory(addr, size, bigEndian);
+		} catch (BreakpointException ex) {
+			watchpointHit = true;
+			throw ex;
+		}
+	}
+
+	@Override
+	public void onWriteMemory(int addr, int size, boolean bigEndian, long value) {
+		if (history.isReplaying()) {
+			return;
+		}
+		try {
+			super.onWriteMemory(addr, size, bigEndian, value);
+		} catch (BreakpointException ex) {
+			watchpointHit = true;
+			throw ex;
+		}
+	}
+
+	@Override
+	public boolean wantsInstructions() {
+		return reversing || super.wantsInstructions();
+	}
+
+	@Override
+	public void onInstruction(CPU cpu, int addr) {
+		if (history.isTravelling()) {
+			if (history.reached(hasBreakpointAt(addr))) {
+				throw new BreakpointException();
+			}
+			return;
+		}
+		super.onInstruction(cpu, addr);
+	}
+
 	private void removePoint(GDBCommandPacket packet) throws IOException {
 		int type = Integer.parseUnsignedInt(packet.getData().split(",")[0], 16);
 		int addr = Integer.parseUnsignedInt(packet.getData().split(",")[1], 16);
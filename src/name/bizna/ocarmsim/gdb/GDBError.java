@@ -5,7 +5,7 @@ package name.bizna.ocarmsim.gdb;
  * @author Jean-Rémy Buchs <jrb0001@692b8c32.de>
  */
 public enum GDBError {
-	UNKNOWN, MEMORY_ACCESS, RETRY;
+	UNKNOWN, MEMORY_ACCESS, RETRY, REPLAY_DIVERGED;
 
 	public String message() {
 		if (ordinal() < 16) {
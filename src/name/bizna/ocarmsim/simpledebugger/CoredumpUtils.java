@@ -8,8 +8,8 @@ import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import name.bizna.jarm.ByteArrayRegion;
 import name.bizna.jarm.CPU;
+import name.bizna.jarm.PagedMemoryRegion;
 import name.bizna.jarm.PhysicalMemorySpace;
 import name.bizna.ocarmsim.ROMRegion;
 import name.bizna.ocarmsim.SRAMRegion;
@@ -25,26 +25,26 @@ public class CoredumpUtils {
 	private final CPU cpu;
 	private final ROMRegion rom;
 	private final SRAMRegion sram;
-	private final ByteArrayRegion[] rams;
+	private final PagedMemoryRegion[] rams;
 
 	public CoredumpUtils(CPU cpu) {
 		this.cpu = cpu;
 
 		ROMRegion romRegion = null;
 		SRAMRegion sramRegion = null;
-		final List<ByteArrayRegion> ramRegions = new ArrayList<ByteArrayRegion>();
+		final List<PagedMemoryRegion> ramRegions = new ArrayList<PagedMemoryRegion>();
 		for (PhysicalMemorySpace.MappedRegion mappedRegion : cpu.getMemorySpace().getMappedRegions()) {
 			if (mappedRegion.getRegion() instanceof ROMRegion) {
 				romRegion = (ROMRegion) mappedRegion.getRegion();
 			} else if (mappedRegion.getRegion() instanceof SRAMRegion) {
 				sramRegion = (SRAMRegion) mappedRegion.getRegion();
-			} else if (mappedRegion.getRegion() instanceof ByteArrayRegion) {
-				ramRegions.add((ByteArrayRegion) mappedRegion.getRegion());
+			} else if (mappedRegion.getRegion() instanceof PagedMemoryRegion) {
+				ramRegions.add((PagedMemoryRegion) mappedRegion.getRegion());
 			}
 		};
 		rom = Objects.requireNonNull(romRegion, "No ROM found");
 		sram = Objects.requireNonNull(sramRegion, "No SRAM found");
-		rams = ramRegions.toArray(new ByteArrayRegion[ramRegions.size()]);
+		rams = ramRegions.toArray(new PagedMemoryRegion[ramRegions.size()]);
 	}
 
 	public void dumpCore(OutputStream out) throws IOException {
@@ -109,7 +109,7 @@ public class CoredumpUtils {
 			buf.putShort(swapShort(E, 52)); // e_ehsize = 52
 			buf.putShort(swapShort(E, 32)); // e_phentsize = 32
 			int numRams = 0;
-			for (ByteArrayRegion module : rams) {
+			for (PagedMemoryRegion module : rams) {
 				if (module != null) {
 					++numRams;
 				}
@@ -131,7 +131,7 @@ public class CoredumpUtils {
 			offset = putLoadHeader(buf, E, offset, 0x80000000, (int) sram.getRegionSize(), 7/*PF_X|PF_W|PF_R*/);
 			channel.write(buf);
 			int mappingOffset = 0;
-			for (ByteArrayRegion module : rams) {
+			for (PagedMemoryRegion module : rams) {
 				if (module != null) {
 					offset = offset + putLoadHeader(buf, E, offset, mappingOffset, (int) module.getRegionSize(), 7/*PF_X|PF_W|PF_R*/);
 					channel.write(buf);
@@ -142,9 +142,9 @@ public class CoredumpUtils {
 			channel.write(noteBuf);
 			out.write(rom.getArray());
 			out.write(sram.getSramArray());
-			for (ByteArrayRegion module : rams) {
+			for (PagedMemoryRegion module : rams) {
 				if (module != null) {
-					out.write(module.getBackingArray());
+					module.writeTo(out);
 				}
 			}
 		}
@@ -78,6 +78,11 @@ public class SimpleDebugger extends BasicDebugger {
 		super.onWriteMemory(addr, size, bigEndian, value);
 	}
 
+	@Override
+	public boolean wantsInstructions() {
+		return minStack.get() != 0 || super.wantsInstructions();
+	}
+
 	@Override
 	public void onInstruction(CPU cpu, int addr) {
 		super.onInstruction(cpu, addr);
@@ -319,6 +324,7 @@ public class SimpleDebugger extends BasicDebugger {
 				@Override
 				public void actionPerformed(ActionEvent e) {
 					minStack.set(Long.parseUnsignedLong(minStackField.getText(), 16));
+					hooksChanged();
 				}
 			});
 			minStackPanel.add(minStackButton);
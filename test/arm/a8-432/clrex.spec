@@ -0,0 +1,4 @@
+r5 := 2
+
+r2 == 1
+r3 == 41
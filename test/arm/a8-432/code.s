@@ -0,0 +1,27 @@
+        .include "standard_ivs.s"
+
+        .text
+        .code 32
+
+        .global _start
+        .func _start
+_start:
+        MOVW r1, #:lower16:_word
+        MOVT r1, #:upper16:_word
+        // r5 is 0 to store exclusively, 1 to store without a load, 2 to clear the monitor first
+        CMP r5, #1
+        BEQ _store
+        LDREX r0, [r1]
+        ADD r0, r0, #1
+        CMP r5, #2
+        BNE _store
+        CLREX
+_store:
+        STREX r2, r0, [r1]
+        LDR r3, [r1]
+        CDP p7, 0, cr0, cr0, cr0, #0
+_word:
+        .word 41
+        .endfunc
+
+        .end
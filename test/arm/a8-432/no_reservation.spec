@@ -0,0 +1,5 @@
+r0 := 99
+r5 := 1
+
+r2 == 1
+r3 == 41
@@ -0,0 +1,4 @@
+r5 := 0
+
+r2 == 0
+r3 == 42
@@ -0,0 +1,32 @@
+        .include "standard_ivs.s"
+
+        .text
+        .code 32
+
+        .global _start
+        .func _start
+_start:
+        MOVW r1, #:lower16:_dword
+        MOVT r1, #:upper16:_dword
+        CMP r5, #1
+        BEQ _odd
+        CMP r5, #2
+        BEQ _lr
+        LDREXD r2, r3, [r1]
+        STREXD r4, r6, r7, [r1]
+        LDR r8, [r1]
+        LDR r9, [r1, #4]
+        CDP p7, 0, cr0, cr0, cr0, #0
+_odd:
+        .inst 0xE1B13F9F // LDREXD r3, r4, [r1]; Rt must be even
+        CDP p7, 0, cr0, cr0, cr0, #0
+_lr:
+        .inst 0xE1B1EF9F // LDREXD r14, r15, [r1]; Rt must not be r14
+        CDP p7, 0, cr0, cr0, cr0, #0
+        .balign 8
+_dword:
+        .word 0x01020304
+        .word 0x05060708
+        .endfunc
+
+        .end
@@ -0,0 +1,3 @@
+r5 := 1
+
+quitReason == 2
@@ -0,0 +1,3 @@
+r5 := 2
+
+quitReason == 2
@@ -0,0 +1,9 @@
+r5 := 0
+r6 := 0x11111111
+r7 := 0x22222222
+
+r2 == 0x01020304
+r3 == 0x05060708
+r4 == 0
+r8 == 0x11111111
+r9 == 0x22222222
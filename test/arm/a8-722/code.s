@@ -0,0 +1,20 @@
+        .include "standard_ivs.s"
+
+        .text
+        .code 32
+
+        .global _start
+        .func _start
+_start:
+        MOVW r1, #:lower16:_word
+        MOVT r1, #:upper16:_word
+        CMP r5, #0
+        SWPEQ r0, r2, [r1]
+        SWPBNE r0, r2, [r1]
+        LDR r3, [r1]
+        CDP p7, 0, cr0, cr0, cr0, #0
+_word:
+        .word 0x11223344
+        .endfunc
+
+        .end
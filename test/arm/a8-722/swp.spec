@@ -0,0 +1,5 @@
+r2 := 0xAABBCCDD
+r5 := 0
+
+r0 == 0x11223344
+r3 == 0xAABBCCDD
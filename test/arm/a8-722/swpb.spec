@@ -0,0 +1,5 @@
+r2 := 0xAABBCCDD
+r5 := 1
+
+r0 == 0x11
+r3 == 0xDD223344
@@ -0,0 +1,5 @@
+r1 := 0x00100000
+r4 := 0x12345678
+r5 := 1
+
+r0 == 0x12345678
@@ -0,0 +1,70 @@
+        .text
+        .code 32
+
+        .func _interrupt_vectors
+_interrupt_vectors:
+        CDP p7, 1, cr0, cr0, cr0, #0 // Reset
+        CDP p7, 2, cr0, cr0, cr0, #0 // Undefined
+        CDP p7, 3, cr0, cr0, cr0, #0 // Supervisor Call
+        CDP p7, 4, cr0, cr0, cr0, #0 // Prefetch Abort
+        B _data_abort                // Data Abort
+        CDP p7, 6, cr0, cr0, cr0, #0 // Hypervisor Trap (unsupported)
+        CDP p7, 7, cr0, cr0, cr0, #0 // IRQ
+        CDP p7, 8, cr0, cr0, cr0, #0 // FIQ
+        .endfunc
+
+        .func _data_abort
+_data_abort:
+        MRC p15, 0, r2, c5, c0, 0 // DFSR
+        MRC p15, 0, r3, c6, c0, 0 // DFAR
+        SUB r3, r3, r1            // 0 if DFAR is the address that faulted
+        CDP p7, 5, cr0, cr0, cr0, #0
+        .endfunc
+
+        .global _start
+        .func _start
+_start:
+        MOVW r6, #:lower16:_l1_table
+        MOVT r6, #:upper16:_l1_table
+        MCR p15, 0, r6, c2, c0, 0 // TTBR0
+        MOV r7, #7
+        MCR p15, 0, r7, c2, c0, 2 // TTBCR: N=7, TTBR0 covers the bottom 32MiB
+        MOV r7, #1
+        MCR p15, 0, r7, c3, c0, 0 // DACR: domain 0 is client, the rest no access
+        MOV r7, #0
+        MCR p15, 0, r7, c8, c7, 0 // TLBIALL
+        MRC p15, 0, r7, c1, c0, 0
+        ORR r7, r7, #1
+        MCR p15, 0, r7, c1, c0, 0 // SCTLR.M
+        ISB
+        // r1 picks the section, r5 whether to store r4 there too
+        MOVW r8, #:lower16:_magic
+        MOVT r8, #:upper16:_magic
+        ADD r1, r1, r8
+        LDR r0, [r1]
+        CMP r5, #0
+        STRNE r4, [r1]
+        LDRNE r0, [r8]
+        CDP p7, 0, cr0, cr0, cr0, #0
+        .endfunc
+
+_magic:
+        .word 0x600DF00D
+
+        // short descriptors (B3-1324); TTBCR.N=7 leaves 32 of them, 128-byte aligned
+        .balign 128
+_l1_table:
+        .word 0x00000C02        // 0x000: section, PA 0, read/write
+        .word 0x00000C02        // 0x001: section, PA 0 again
+        .word 0x00000000        // 0x002: fault
+        .word 0x00008402        // 0x003: section, PA 0, read-only at PL1
+        .word _l2_table + 0x01  // 0x004: page table, domain 0
+        .word 0x00000C22        // 0x005: section, PA 0, domain 1
+        .space 26*4             // 0x006-0x01F: fault
+
+        .balign 1024
+_l2_table:
+        .word 0x00000032        // 0x00400: small page, PA 0, read/write
+        .space 255*4            // 0x00401-0x004FF: fault
+
+        .end
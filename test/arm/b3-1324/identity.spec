@@ -0,0 +1,4 @@
+r1 := 0
+r5 := 0
+
+r0 == 0x600DF00D
@@ -0,0 +1,8 @@
+r1 := 0x00300000
+r4 := 0x12345678
+r5 := 1
+
+quitReason == 5
+r0 == 0x600DF00D
+r2 == 0x80D
+r3 == 0
@@ -0,0 +1,6 @@
+r1 := 0x00200000
+r5 := 0
+
+quitReason == 5
+r2 == 0x005
+r3 == 0
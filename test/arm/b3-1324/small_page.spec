@@ -0,0 +1,4 @@
+r1 := 0x00400000
+r5 := 0
+
+r0 == 0x600DF00D
@@ -0,0 +1,31 @@
+        .include "standard_ivs.s"
+
+        .text
+        .code 32
+
+        .global _start
+        .func _start
+_start:
+        // event counter 0 counts instructions from r4, the cycle counter counts from r1
+        MOV r7, #1
+        MCR p15, 0, r7, c9, c12, 0    // PMCR: E
+        MOV r7, #0
+        MCR p15, 0, r7, c9, c12, 5    // PMSELR
+        MOV r7, #0x08
+        MCR p15, 0, r7, c9, c13, 1    // PMXEVTYPER: INST_RETIRED
+        MCR p15, 0, r4, c9, c13, 2    // PMXEVCNTR
+        MCR p15, 0, r1, c9, c13, 0    // PMCCNTR
+        MCR p15, 0, r3, c9, c14, 1    // PMINTENSET
+        .inst 0xE321F053              // MSR CPSR_c, #0x53: unmask IRQs, staying in Supervisor mode
+        // count while going r2 times round the loop
+        MCR p15, 0, r5, c9, c12, 1    // PMCNTENSET
+_loop:
+        SUBS r2, r2, #1
+        BNE _loop
+        MCR p15, 0, r5, c9, c12, 2    // PMCNTENCLR
+        MRC p15, 0, r0, c9, c12, 3    // PMOVSR
+        MRC p15, 0, r6, c9, c13, 2    // PMXEVCNTR
+        CDP p7, 0, cr0, cr0, cr0, #0
+        .endfunc
+
+        .end
@@ -0,0 +1,7 @@
+r1 := 0xFFFFFF00
+r2 := 1000
+r3 := 0x80000000
+r4 := 0
+r5 := 0x80000000
+
+quitReason == 7
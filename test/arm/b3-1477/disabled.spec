@@ -0,0 +1,8 @@
+r1 := 0
+r2 := 10
+r3 := 0
+r4 := 0x1234
+r5 := 0
+
+r0 == 0
+r6 == 0x1234
@@ -0,0 +1,7 @@
+r1 := 0
+r2 := 100
+r3 := 1
+r4 := 0xFFFFFFF0
+r5 := 1
+
+quitReason == 7
@@ -0,0 +1,8 @@
+r1 := 0
+r2 := 10
+r3 := 0
+r4 := 0
+r5 := 1
+
+r0 == 0
+r6 == 21
@@ -0,0 +1,18 @@
+        .include "standard_ivs.s"
+
+        .text
+        .code 32
+
+        .global _start
+        .func _start
+_start:
+        // TPIDRPRW from sp, and back through lr; or from pc if r6 isn't 0
+        CMP r6, #0
+        MCREQ p15, 0, sp, c13, c0, 4  // TPIDRPRW
+        MCRNE p15, 0, pc, c13, c0, 4
+        MRC p15, 0, lr, c13, c0, 4
+        MRC p15, 0, r0, c13, c0, 4
+        CDP p7, 0, cr0, cr0, cr0, #0
+        .endfunc
+
+        .end
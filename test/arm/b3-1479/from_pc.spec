@@ -0,0 +1,3 @@
+r6 := 1
+
+quitReason == 2
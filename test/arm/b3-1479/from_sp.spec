@@ -0,0 +1,5 @@
+r6 := 0
+r13 := 0x12345678
+
+r0 == 0x12345678
+r14 == 0x12345678
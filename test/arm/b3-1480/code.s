@@ -0,0 +1,34 @@
+        .include "standard_ivs.s"
+
+        .text
+        .code 32
+
+        .global _start
+        .func _start
+_start:
+        // r1 cycles from now, set through CNTP_TVAL if r6 is 0, or through CNTP_CVAL, by way of sp and lr, if it's 1
+        CMP r6, #0
+        MCREQ p15, 0, r1, c14, c2, 0  // CNTP_TVAL
+        CMP r6, #1
+        BNE _not_cval
+        MRRC p15, 0, sp, lr, c14      // CNTPCT
+        ADDS sp, sp, r1
+        ADC lr, lr, #0
+        MCRR p15, 2, sp, lr, c14      // CNTP_CVAL
+_not_cval:
+        // UNPREDICTABLE, so undefined: both halves to one register if r6 is 2, from the PC if it's 3
+        CMP r6, #2
+        MRRCEQ p15, 0, r0, r0, c14
+        CMP r6, #3
+        MCRREQ p15, 2, r0, pc, c14
+        MCR p15, 0, r3, c14, c2, 1    // CNTP_CTL
+        .inst 0xE321F053              // MSR CPSR_c, #0x53: unmask IRQs, staying in Supervisor mode
+        // wait r2 times round the loop for the interrupt
+_loop:
+        MRC p15, 0, r0, c14, c2, 1    // CNTP_CTL
+        SUBS r2, r2, #1
+        BNE _loop
+        CDP p7, 0, cr0, cr0, cr0, #0
+        .endfunc
+
+        .end
@@ -0,0 +1,6 @@
+r1 := 100
+r2 := 1000
+r3 := 1
+r6 := 1
+
+quitReason == 7
@@ -0,0 +1,6 @@
+r1 := 100
+r2 := 1000
+r3 := 0
+r6 := 0
+
+r0 == 0
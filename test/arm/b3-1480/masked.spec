@@ -0,0 +1,6 @@
+r1 := 100
+r2 := 1000
+r3 := 3
+r6 := 0
+
+r0 == 7
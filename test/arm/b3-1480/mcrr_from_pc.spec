@@ -0,0 +1,3 @@
+r6 := 3
+
+quitReason == 2
@@ -0,0 +1,3 @@
+r6 := 2
+
+quitReason == 2
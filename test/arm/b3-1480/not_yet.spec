@@ -0,0 +1,6 @@
+r1 := 100000
+r2 := 100
+r3 := 1
+r6 := 0
+
+r0 == 1